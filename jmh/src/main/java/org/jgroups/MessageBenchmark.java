@@ -0,0 +1,89 @@
+package org.jgroups;
+
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.FRAG2;
+import org.jgroups.protocols.FragHeader;
+import org.jgroups.protocols.TpHeader;
+import org.jgroups.protocols.UDP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.*;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.DataInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures marshalling ({@link Message#writeTo(java.io.DataOutput)}), unmarshalling
+ * ({@link Message#readFrom(java.io.DataInput)}) and {@link Message#size()} of a message carrying the headers
+ * typically found on the send path (transport, NAKACK2 or UNICAST3, FRAG2).
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+@Fork(1)
+public class MessageBenchmark {
+    protected static final short UDP_ID=ClassConfigurator.getProtocolId(UDP.class);
+    protected static final short NAKACK2_ID=ClassConfigurator.getProtocolId(NAKACK2.class);
+    protected static final short UNICAST3_ID=ClassConfigurator.getProtocolId(UNICAST3.class);
+    protected static final short FRAG2_ID=ClassConfigurator.getProtocolId(FRAG2.class);
+
+    @Param({"0", "100", "1000", "10000"})
+    protected int                          msg_size;
+
+    @Param({"true", "false"})
+    protected boolean                      multicast;
+
+    protected Message                      msg;
+    protected ExposedByteArrayOutputStream out_stream;
+    protected ExposedDataOutputStream      out;
+    protected byte[]                       marshalled;
+
+
+    @Setup
+    public void setup() throws Exception {
+        msg=new Message(multicast? null : Util.createRandomAddress("B"), Util.createRandomAddress("A"),
+                        msg_size > 0? new byte[msg_size] : null);
+        msg.putHeader(UDP_ID, new TpHeader("demo-cluster"));
+        if(multicast)
+            msg.putHeader(NAKACK2_ID, NakAckHeader2.createMessageHeader(322649));
+        else
+            msg.putHeader(UNICAST3_ID, UNICAST3.Header.createDataHeader(322649, (short)1, false));
+        msg.putHeader(FRAG2_ID, new FragHeader(12345, 0, 1));
+
+        out_stream=new ExposedByteArrayOutputStream((int)msg.size() + 16);
+        out=new ExposedDataOutputStream(out_stream);
+        msg.writeTo(out);
+        marshalled=out_stream.toByteArray();
+    }
+
+    @Benchmark
+    public int writeTo() throws Exception {
+        out_stream.reset();
+        out.reset();
+        msg.writeTo(out);
+        return out_stream.size();
+    }
+
+    @Benchmark
+    public Message readFrom() throws Exception {
+        DataInputStream in=new DataInputStream(new ExposedByteArrayInputStream(marshalled));
+        Message m=new Message(false);
+        m.readFrom(in);
+        return m;
+    }
+
+    @Benchmark
+    public long size() {
+        return msg.size();
+    }
+
+    @Benchmark
+    public Message copy() {
+        return msg.copy(true, true);
+    }
+}
@@ -0,0 +1,113 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.Util;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures the send path of the {@link TP.Bundler} implementations: messages are handed to the bundler and
+ * marshalled into bundles, but the transport ({@link NoopTransport}) discards the resulting buffers instead of putting
+ * them on the wire. Run with multiple threads (e.g. "-t 8") to measure contention between senders.
+ * @author agent
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+@Fork(1)
+public class BundlerBenchmark {
+    protected static final short NAKACK2_ID=ClassConfigurator.getProtocolId(NAKACK2.class);
+
+    @Param({"transfer-queue", "ring-buffer", "sender-sends", "sender-sends-with-timer"})
+    protected String        bundler_type;
+
+    @Param({"100", "1000"})
+    protected int           msg_size;
+
+    protected NoopTransport transport;
+    protected TP.Bundler    bundler;
+    protected Address       local_addr, dest;
+    protected byte[]        payload;
+    protected final AtomicLong seqno=new AtomicLong(0);
+
+
+    @Setup
+    public void setup() throws Exception {
+        local_addr=Util.createRandomAddress("A");
+        dest=Util.createRandomAddress("B");
+        payload=new byte[msg_size];
+        transport=new NoopTransport();
+        transport.setId(ClassConfigurator.getProtocolId(UDP.class)); // NoopTransport has no ID of its own
+        transport.init();
+        transport.local_addr=local_addr;
+        transport.channel_name="demo-cluster";
+        transport.header=new TpHeader(transport.channel_name);
+
+        if(bundler_type.equals("transfer-queue"))
+            bundler=transport.new TransferQueueBundler(transport.bundler_capacity);
+        else if(bundler_type.equals("ring-buffer"))
+            bundler=transport.new RingBufferBundler(transport.bundler_capacity);
+        else if(bundler_type.equals("sender-sends"))
+            bundler=transport.new SenderSendsBundler();
+        else if(bundler_type.equals("sender-sends-with-timer"))
+            bundler=transport.new SenderSendsWithTimerBundler();
+        else
+            throw new IllegalArgumentException("bundler type " + bundler_type + " not known");
+        transport.setBundler(bundler);
+        bundler.start();
+    }
+
+    @TearDown
+    public void tearDown() {
+        bundler.stop();
+        transport.destroy();
+    }
+
+    @Benchmark
+    public void sendMulticast() throws Exception {
+        bundler.send(createMessage(null));
+    }
+
+    @Benchmark
+    public void sendUnicast() throws Exception {
+        bundler.send(createMessage(dest));
+    }
+
+    protected Message createMessage(Address target) {
+        Message msg=new Message(target, local_addr, payload);
+        msg.putHeader(transport.getId(), transport.header);
+        msg.putHeader(NAKACK2_ID, NakAckHeader2.createMessageHeader(seqno.incrementAndGet()));
+        return msg;
+    }
+
+
+    /** Transport which discards all messages: only the number of messages and bytes sent are recorded */
+    protected static class NoopTransport extends TP {
+        protected final AtomicLong num_sends=new AtomicLong(0), num_send_bytes=new AtomicLong(0);
+
+        public boolean supportsMulticasting() {return true;}
+
+        public void sendMulticast(byte[] data, int offset, int length) throws Exception {}
+
+        public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {}
+
+        public String getInfo() {return "NoopTransport";}
+
+        protected PhysicalAddress getPhysicalAddress() {return null;}
+
+        protected void doSend(Buffer buf, Address dest, boolean multicast) throws Exception {
+            num_sends.incrementAndGet();
+            num_send_bytes.addAndGet(buf.getLength());
+        }
+    }
+}
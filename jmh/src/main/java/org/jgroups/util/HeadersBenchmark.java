@@ -0,0 +1,76 @@
+package org.jgroups.util;
+
+import org.jgroups.Header;
+import org.jgroups.protocols.FragHeader;
+import org.jgroups.protocols.TpHeader;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookup ({@link Headers#getHeader(short)}), insertion ({@link Headers#putHeader(short,org.jgroups.Header)})
+ * and {@link Headers#marshalledSize()} for different numbers of headers. The header looked up is always the last one
+ * added, which is the worst case for the linear scan.
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+@Fork(1)
+public class HeadersBenchmark {
+
+    @Param({"1", "3", "6", "8"})
+    protected int      num_headers;
+
+    protected Headers  headers;
+    protected short[]  ids;
+    protected Header[] hdrs;
+    protected short    last_id;
+
+    @Setup
+    public void setup() {
+        ids=new short[num_headers];
+        hdrs=new Header[num_headers];
+        for(int i=0; i < num_headers; i++) {
+            ids[i]=(short)(i+1);
+            hdrs[i]=i == 0? new TpHeader("demo-cluster") : new FragHeader(i, 0, 1);
+        }
+        last_id=ids[num_headers-1];
+        headers=create();
+    }
+
+    @Benchmark
+    public Header getHeader() {
+        return headers.getHeader(last_id);
+    }
+
+    @Benchmark
+    public Header getMissingHeader() {
+        return headers.getHeader((short)(num_headers + 10));
+    }
+
+    /** Adds all headers to a new instance with the default capacity of {@link org.jgroups.Message} (3) */
+    @Benchmark
+    public Headers putHeaders() {
+        return create();
+    }
+
+    @Benchmark
+    public int marshalledSize() {
+        return headers.marshalledSize();
+    }
+
+    @Benchmark
+    public Headers copy() {
+        return headers.copy();
+    }
+
+    protected Headers create() {
+        Headers retval=new Headers(3);
+        for(int i=0; i < ids.length; i++)
+            retval.putHeader(ids[i], hdrs[i]);
+        return retval;
+    }
+}
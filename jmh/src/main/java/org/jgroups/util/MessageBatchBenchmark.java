@@ -0,0 +1,70 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.Header;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures iteration over a {@link MessageBatch}, header lookups of all messages (as done by NAKACK2 and UNICAST3
+ * in up(MessageBatch)) and {@link MessageBatch#getMatchingMessages(short,boolean)}.
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+@Fork(1)
+public class MessageBatchBenchmark {
+    protected static final short NAKACK2_ID=ClassConfigurator.getProtocolId(NAKACK2.class);
+    protected static final short UNICAST3_ID=ClassConfigurator.getProtocolId(UNICAST3.class);
+
+    @Param({"10", "100", "500"})
+    protected int          batch_size;
+
+    protected MessageBatch batch;
+
+    @Setup
+    public void setup() {
+        Address sender=Util.createRandomAddress("A");
+        batch=new MessageBatch(null, sender, "demo-cluster", true, MessageBatch.Mode.REG, batch_size);
+        for(int i=1; i <= batch_size; i++) {
+            Message msg=new Message(null, sender, new byte[100]);
+            msg.putHeader(NAKACK2_ID, NakAckHeader2.createMessageHeader(i));
+            batch.add(msg);
+        }
+    }
+
+    @Benchmark
+    public void iterate(Blackhole bh) {
+        for(Message msg: batch)
+            bh.consume(msg);
+    }
+
+    @Benchmark
+    public void getHeaders(Blackhole bh) {
+        for(Message msg: batch) {
+            Header hdr=msg.getHeader(NAKACK2_ID);
+            bh.consume(hdr);
+        }
+    }
+
+    @Benchmark
+    public Collection<Message> getMatchingMessages() {
+        return batch.getMatchingMessages(UNICAST3_ID, false); // none match, so the batch is not modified
+    }
+
+    @Benchmark
+    public long totalSize() {
+        return batch.totalSize();
+    }
+}
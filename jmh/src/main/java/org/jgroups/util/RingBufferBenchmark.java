@@ -0,0 +1,51 @@
+package org.jgroups.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures {@link RingBuffer} with multiple producers ({@link RingBuffer#add(long,Object,boolean)}) and a single
+ * consumer ({@link RingBuffer#removeMany(boolean,int)}), the way it is used by UNICAST2/NAKACK2 senders.
+ * Run with e.g. "-tg 4,1" to get 4 producers and 1 consumer.
+ * @author agent
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+@Fork(1)
+public class RingBufferBenchmark {
+    protected static final Integer ELEMENT=1;
+
+    @Param({"1024", "8192"})
+    protected int                 capacity;
+
+    protected RingBuffer<Integer> buf;
+    protected final AtomicLong    seqno=new AtomicLong(0);
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        buf=new RingBuffer<Integer>(capacity, 0);
+        seqno.set(0);
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() {
+        buf.destroy(); // releases blocked producers
+    }
+
+    @Benchmark @Group("rb") @GroupThreads(3)
+    public boolean add() {
+        return buf.add(seqno.incrementAndGet(), ELEMENT, true);
+    }
+
+    @Benchmark @Group("rb") @GroupThreads(1)
+    public int removeMany() {
+        List<Integer> list=buf.removeMany(true, 100);
+        return list != null? list.size() : 0;
+    }
+}
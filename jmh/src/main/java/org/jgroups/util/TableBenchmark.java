@@ -0,0 +1,64 @@
+package org.jgroups.util;
+
+import org.jgroups.Message;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Table#add(long,Object)} followed by {@link Table#removeMany(java.util.concurrent.atomic.AtomicBoolean,boolean,int)},
+ * which is the pattern used by NAKACK2 and UNICAST3 on the receiver side. Each invocation adds and then removes
+ * {@link #batch_size} messages.
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+@Fork(1)
+public class TableBenchmark {
+    protected static final Message MSG=new Message(null, new byte[10]);
+
+    @Param({"1", "10", "100"})
+    protected int            batch_size;
+
+    protected Table<Message> table;
+    protected long           seqno;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        table=new Table<Message>(5, 8192, 0);
+        seqno=0;
+    }
+
+    @Benchmark
+    public int addAndRemoveMany() {
+        for(int i=0; i < batch_size; i++)
+            table.add(++seqno, MSG);
+        List<Message> list=table.removeMany(table.getProcessing(), true, 0);
+        return list != null? list.size() : 0;
+    }
+
+    /** Adds the batch in reverse order, so that all but the last add create gaps */
+    @Benchmark
+    public int addReverseAndRemoveMany() {
+        long start=seqno;
+        seqno+=batch_size;
+        for(long i=seqno; i > start; i--)
+            table.add(i, MSG);
+        List<Message> list=table.removeMany(table.getProcessing(), true, 0);
+        return list != null? list.size() : 0;
+    }
+
+    @Benchmark
+    public SeqnoList getMissing() {
+        table.add(seqno+2, MSG); // creates a gap at seqno+1
+        SeqnoList missing=table.getMissing();
+        table.add(++seqno, MSG);
+        seqno++;
+        table.removeMany(table.getProcessing(), true, 0);
+        return missing;
+    }
+}
@@ -0,0 +1,66 @@
+package org.jgroups.util;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link Util#objectToByteBuffer(Object)} and {@link Util#objectFromByteBuffer(byte[])} for the types
+ * which have a fast path (primitives, String, byte[], Streamable) and for a type which falls back to Java
+ * serialization.
+ * @author agent
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations=5)
+@Measurement(iterations=10)
+@Fork(1)
+public class UtilBenchmark {
+
+    @Param({"long", "string", "bytes", "streamable", "serializable"})
+    protected String type;
+
+    protected Object obj;
+    protected byte[] marshalled;
+
+    @Setup
+    public void setup() throws Exception {
+        if(type.equals("long"))
+            obj=322649L;
+        else if(type.equals("string"))
+            obj="hello world, this is a key";
+        else if(type.equals("bytes"))
+            obj=new byte[1000];
+        else if(type.equals("streamable"))
+            obj=new SeqnoList(1, 100);
+        else if(type.equals("serializable"))
+            obj=new Person("Bela", 322649);
+        else
+            throw new IllegalArgumentException("type " + type + " not known");
+        marshalled=Util.objectToByteBuffer(obj);
+    }
+
+    @Benchmark
+    public byte[] objectToByteBuffer() throws Exception {
+        return Util.objectToByteBuffer(obj);
+    }
+
+    @Benchmark
+    public Object objectFromByteBuffer() throws Exception {
+        return Util.objectFromByteBuffer(marshalled);
+    }
+
+
+    protected static class Person implements Serializable {
+        private static final long serialVersionUID=-6346573018451069433L;
+        protected final String name;
+        protected final int    age;
+
+        public Person(String name, int age) {
+            this.name=name;
+            this.age=age;
+        }
+    }
+}
@@ -6,6 +6,10 @@ import org.jgroups.util.Streamable;
 /**
  * Header is a JGroups internal base class for all JGroups headers. Client normally do not need to
  * interact with headers unless they are developing their custom protocols.
+ * <p/>
+ * A header must not be modified after it has been added to a message with {@link Message#putHeader(short,Header)}:
+ * the message caches its marshalled size (see {@link #size()}), and copies of the message share the same header
+ * instance. To change a header, create a new (or copied) header and call putHeader() again.
  * 
  * @author Bela Ban
  * @since 2.0
@@ -2,12 +2,12 @@
 package org.jgroups;
 
 
-import org.jgroups.conf.ClassConfigurator;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.util.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.Map;
 
 /**
@@ -18,6 +18,9 @@ import java.util.Map;
  * <p>
  * The byte buffer can point to a reference, and we can subset it using index and length. However,
  * when the message is serialized, we only write the bytes between index and length.
+ * <p>
+ * Alternatively, the payload can be a {@link ByteBuffer} (e.g. a direct or memory-mapped buffer), which is not copied
+ * onto the heap when the message is sent; see {@link #setBuffer(java.nio.ByteBuffer)}.
  *
  * @since 2.0
  * @author Bela Ban
@@ -35,6 +38,12 @@ public class Message implements Streamable {
     /** The number of bytes in the buffer (usually buf.length is buf not equal to null). */
     protected int              length;
 
+    /** Payload backed by a ByteBuffer (e.g. off-heap); the bytes between position and limit. If set, buf is null */
+    protected ByteBuffer       nio_buf;
+
+    /** The payload of nio_buf as an array, created by the first call to {@link #getRawBuffer()}. Guarded by this */
+    protected byte[]           nio_array;
+
     /** All headers are placed here */
     protected Headers          headers;
 
@@ -221,10 +230,20 @@ public class Message implements Streamable {
     * Returns a <em>reference</em> to the payload (byte buffer). Note that this buffer should not be
     * modified as we do not copy the buffer on copy() or clone(): the buffer of the copied message
     * is simply a reference to the old buffer.<br/>
-    * Even if offset and length are used: we return the <em>entire</em> buffer, not a subset.
+    * Even if offset and length are used: we return the <em>entire</em> buffer, not a subset.<br/>
+    * If the payload is a {@link ByteBuffer}, its backing array is returned if the payload spans all of it, otherwise
+    * the payload is copied into an array on the first call. In both cases offset is 0, and the array is cached, so
+    * subsequent calls return the same array. Code on the send path should still check {@link #hasByteBuffer()}
+    * first, as a direct buffer is copied onto the heap.
     */
    public byte[] getRawBuffer() {
-        return buf;
+        if(nio_buf == null)
+            return buf;
+        synchronized(this) { // several threads (e.g. loopback and send) may access the same message
+            if(nio_array == null)
+                nio_array=arrayOf(nio_buf);
+            return nio_array;
+        }
     }
 
    /**
@@ -233,6 +252,8 @@ public class Message implements Streamable {
     * @return byte array with a copy of the buffer.
     */
     final public byte[] getBuffer() {
+        if(nio_buf != null)
+            return getRawBuffer();
         if(buf == null)
             return null;
         if(offset == 0 && length == buf.length)
@@ -253,6 +274,8 @@ public class Message implements Streamable {
      */
     final public Message setBuffer(byte[] b) {
         buf=b;
+        nio_buf=null;
+        nio_array=null;
         if(buf != null) {
             offset=0;
             length=buf.length;
@@ -276,6 +299,8 @@ public class Message implements Streamable {
      */
     final public Message setBuffer(byte[] b, int offset, int length) {
         buf=b;
+        nio_buf=null;
+        nio_array=null;
         if(buf != null) {
             if(offset < 0 || offset > buf.length)
                 throw new ArrayIndexOutOfBoundsException(offset);
@@ -301,10 +326,52 @@ public class Message implements Streamable {
             this.buf=buf.getBuf();
             this.offset=buf.getOffset();
             this.length=buf.getLength();
+            this.nio_buf=null;
+            this.nio_array=null;
         }
         return this;
     }
 
+    /**
+     * Sets the payload to the bytes between position and limit of a ByteBuffer, e.g. a direct or memory-mapped
+     * buffer. The bytes are not copied onto the heap: they're written directly to the wire by transports supporting
+     * this, and fragmented (FRAG2) or compressed (COMPRESS) without an intermediate copy.<p/>
+     * <em>
+     * Neither the contents nor the position or limit of the buffer must be changed after this call, for the same
+     * reason as for {@link #setBuffer(byte[])}
+     * </em>
+     * @param b The buffer. If null, the payload is reset to null
+     */
+    final public Message setBuffer(ByteBuffer b) {
+        buf=null;
+        offset=0;
+        nio_buf=b;
+        nio_array=null;
+        length=b != null? b.remaining() : 0;
+        return this;
+    }
+
+    /**
+     * Returns the payload as a ByteBuffer whose position and limit delimit the payload, or null if the message
+     * has no payload. If the payload is a byte[] array, it is wrapped. The returned buffer can be consumed
+     * (e.g. by a channel write) without affecting the message, but its contents must not be modified.
+     */
+    public ByteBuffer getByteBuffer() {
+        if(nio_buf != null)
+            return nio_buf.duplicate();
+        return buf != null? ByteBuffer.wrap(buf, offset, length) : null;
+    }
+
+    /** Returns true if the payload was set with {@link #setBuffer(java.nio.ByteBuffer)}, false otherwise */
+    public boolean hasByteBuffer() {
+        return nio_buf != null;
+    }
+
+    /** Returns true if the message has a payload (byte[] array or ByteBuffer), false otherwise */
+    public boolean hasPayload() {
+        return buf != null || nio_buf != null;
+    }
+
     /**
      *
      * Returns the offset into the buffer at which the data starts
@@ -370,6 +437,8 @@ public class Message implements Streamable {
      */
     final public Object getObject() {
         try {
+            if(nio_buf != null)
+                return Util.objectFromByteBuffer(getRawBuffer());
             return Util.objectFromByteBuffer(buf, offset, length);
         }
         catch(Exception ex) {
@@ -489,7 +558,11 @@ public class Message implements Streamable {
 
     /*---------------------- Used by protocol layers ----------------------*/
 
-    /** Puts a header given an ID into the hashmap. Overwrites potential existing entry. */
+    /**
+     * Puts a header given an ID into the hashmap. Overwrites potential existing entry. The header must not be
+     * modified after this call, as its size is cached and it is shared by copies of this message; call putHeader()
+     * with a new header instead
+     */
     public Message putHeader(short id, Header hdr) {
         if(id < 0)
             throw new IllegalArgumentException("An ID of " + id + " is invalid");
@@ -498,7 +571,8 @@ public class Message implements Streamable {
     }
 
    /**
-    * Puts a header given a key into the map, only if the key doesn't exist yet
+    * Puts a header given a key into the map, only if the key doesn't exist yet. As with
+    * {@link #putHeader(short,Header)}, the header must not be modified after it has been added
     *
     * @param id
     * @param hdr
@@ -519,6 +593,31 @@ public class Message implements Streamable {
                                                  "getHeader() to jg-protocol-ids.xml");
         return headers.getHeader(id);
     }
+
+    /**
+     * Returns the buffer with the marshalled headers of a message which was read from the network, or null. Used with
+     * {@link #getRawHeaderOffset(short)} to peek at a header without unmarshalling it (see {@link Headers})
+     */
+    public byte[] getRawHeaderBuffer() {
+        return headers.getRawBuffer();
+    }
+
+    /**
+     * Returns the offset of the marshalled header with the given ID in {@link #getRawHeaderBuffer()}, or -1 if the
+     * message doesn't have the header, or the header was added after the message had been read from the network
+     */
+    public int getRawHeaderOffset(short id) {
+        return headers.getRawOffset(id);
+    }
+
+    /**
+     * Unmarshals all headers which are still in marshalled form. Not needed for thread safety, as headers are
+     * unmarshalled safely when accessed concurrently (see {@link Headers})
+     */
+    public Message unmarshalHeaders() {
+        headers.unmarshal();
+        return this;
+    }
     /*---------------------------------------------------------------------*/
 
 
@@ -558,7 +657,9 @@ public class Message implements Streamable {
         retval.flags=flags;
         retval.transient_flags=transient_flags;
 
-        if(copy_buffer && buf != null) {
+        if(copy_buffer && nio_buf != null)
+            retval.setBuffer(nio_buf); // we never change nio_buf, so it can be shared
+        else if(copy_buffer && buf != null) {
 
             // change bela Feb 26 2004: we don't resolve the reference
             retval.setBuffer(buf, offset, length);
@@ -568,6 +669,17 @@ public class Message implements Streamable {
         return retval;
     }
 
+    /**
+     * Copies the message like {@link #copy(boolean,boolean)}, but the copy doesn't share the header instances with
+     * this message: it gets the headers in marshalled form, and unmarshals its own instances when they're accessed.
+     * Copies made from the returned message share the marshalled form, but not the instances either
+     */
+    public Message copyWithMarshalledHeaders(boolean copy_buffer) throws Exception {
+        Message retval=copy(copy_buffer, false);
+        retval.headers=headers.marshalledCopy();
+        return retval;
+    }
+
    /**
     * Doesn't copy any headers except for those with ID >= copy_headers_above
     *
@@ -588,11 +700,7 @@ public class Message implements Streamable {
      */
     public Message copy(boolean copy_buffer, short starting_id, short ... copy_only_ids) {
         Message retval=copy(copy_buffer, false);
-        for(Map.Entry<Short,Header> entry: getHeaders().entrySet()) {
-            short id=entry.getKey();
-            if(id >= starting_id || Util.containsId(id, copy_only_ids))
-                retval.putHeader(id, entry.getValue());
-        }
+        retval.headers=headers.copy(starting_id, copy_only_ids);
         return retval;
     }
 
@@ -623,7 +731,7 @@ public class Message implements Streamable {
             ret.append(" (").append(size).append(" headers)");
 
         ret.append(", size=");
-        if(buf != null && length > 0)
+        if(hasPayload() && length > 0)
             ret.append(length);
         else
             ret.append('0');
@@ -641,7 +749,7 @@ public class Message implements Streamable {
 
     /** Tries to read an object from the message's buffer and prints it */
     public String toStringAsObject() {
-        if(buf == null) return null;
+        if(!hasPayload()) return null;
         try {
             Object obj=getObject();
             return obj != null ? obj.toString() : "";
@@ -669,6 +777,15 @@ public class Message implements Streamable {
      * @throws Exception
      */
     public void writeTo(DataOutput out) throws Exception {
+        writeTo(out, true);
+    }
+
+    /**
+     * Streams all members to the output stream. If write_payload is false, the length of the payload is written, but
+     * not the payload itself: the caller then has to send the payload right after the marshalled message, e.g. with
+     * a gathering write
+     */
+    public void writeTo(DataOutput out, boolean write_payload) throws Exception {
         byte leading=0;
 
         if(dest_addr != null)
@@ -677,7 +794,7 @@ public class Message implements Streamable {
         if(src_addr != null)
             leading=Util.setFlag(leading, SRC_SET);
 
-        if(buf != null)
+        if(hasPayload())
             leading=Util.setFlag(leading, BUF_SET);
 
         // 1. write the leading byte first
@@ -695,21 +812,18 @@ public class Message implements Streamable {
             Util.writeAddress(src_addr, out);
 
         // 5. headers
-        int size=headers.size();
-        out.writeShort(size);
-        final short[]  ids=headers.getRawIDs();
-        final Header[] hdrs=headers.getRawHeaders();
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0) {
-                out.writeShort(ids[i]);
-                writeHeader(hdrs[i], out);
-            }
-        }
+        headers.writeTo(out);
 
         // 6. buf
         if(buf != null) {
             out.writeInt(length);
-            out.write(buf, offset, length);
+            if(write_payload)
+                out.write(buf, offset, length);
+        }
+        else if(nio_buf != null) {
+            out.writeInt(length);
+            if(write_payload)
+                Util.writeBytes(nio_buf, out);
         }
     }
 
@@ -723,6 +837,13 @@ public class Message implements Streamable {
     * @throws Exception
     */
     public void writeToNoAddrs(Address src, DataOutputStream out, short ... excluded_headers) throws Exception {
+        writeToNoAddrs(src, out, true, excluded_headers);
+    }
+
+    /** Same as {@link #writeToNoAddrs(Address,java.io.DataOutputStream,short...)}, but doesn't write the payload if
+     * write_payload is false (see {@link #writeTo(java.io.DataOutput,boolean)}) */
+    public void writeToNoAddrs(Address src, DataOutputStream out, boolean write_payload,
+                               short ... excluded_headers) throws Exception {
         byte leading=0;
 
         boolean write_src_addr=src == null || src_addr != null && !src_addr.equals(src);
@@ -730,7 +851,7 @@ public class Message implements Streamable {
         if(write_src_addr)
             leading=Util.setFlag(leading, SRC_SET);
 
-        if(buf != null)
+        if(hasPayload())
             leading=Util.setFlag(leading, BUF_SET);
 
         // 1. write the leading byte first
@@ -744,23 +865,18 @@ public class Message implements Streamable {
             Util.writeAddress(src_addr, out);
 
         // 5. headers
-        int size=headers.size(excluded_headers);
-        out.writeShort(size);
-        final short[]  ids=headers.getRawIDs();
-        final Header[] hdrs=headers.getRawHeaders();
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0) {
-                if(excluded_headers != null && Util.containsId(ids[i], excluded_headers))
-                    continue;
-                out.writeShort(ids[i]);
-                writeHeader(hdrs[i], out);
-            }
-        }
+        headers.writeTo(out, excluded_headers);
 
         // 6. buf
         if(buf != null) {
             out.writeInt(length);
-            out.write(buf, offset, length);
+            if(write_payload)
+                out.write(buf, offset, length);
+        }
+        else if(nio_buf != null) {
+            out.writeInt(length);
+            if(write_payload)
+                Util.writeBytes(nio_buf, out);
         }
     }
 
@@ -781,23 +897,12 @@ public class Message implements Streamable {
         if(Util.isFlagSet(leading, SRC_SET))
             src_addr=Util.readAddress(in);
 
-        // 5. headers
-        int len=in.readShort();
-        headers=createHeaders(len);
-
-        short[]  ids=headers.getRawIDs();
-        Header[] hdrs=headers.getRawHeaders();
-
-        for(int i=0; i < len; i++) {
-            short id=in.readShort();
-            Header hdr=readHeader(in);
-            ids[i]=id;
-            hdrs[i]=hdr;
-        }
+        // 5. headers (unmarshalled lazily)
+        headers=Headers.readFrom(in);
 
         // 6. buf
         if(Util.isFlagSet(leading, BUF_SET)) {
-            len=in.readInt();
+            int len=in.readInt();
             buf=new byte[len];
             in.readFully(buf, 0, len);
             length=len;
@@ -823,19 +928,8 @@ public class Message implements Streamable {
         if(Util.isFlagSet(leading, SRC_SET))
             src_addr=Util.readAddress(in);
 
-        // 5. headers
-        int len=in.readShort();
-        headers=createHeaders(len);
-
-        short[]  ids=headers.getRawIDs();
-        Header[] hdrs=headers.getRawHeaders();
-
-        for(int i=0; i < len; i++) {
-            short id=in.readShort();
-            Header hdr=readHeader(in);
-            ids[i]=id;
-            hdrs[i]=hdr;
-        }
+        // 5. headers (unmarshalled lazily)
+        headers=Headers.readFrom(in);
 
         // 6. buf
         if(!Util.isFlagSet(leading, BUF_SET))
@@ -866,7 +960,7 @@ public class Message implements Streamable {
         retval+=Global.SHORT_SIZE;  // number of headers
         retval+=headers.marshalledSize();
 
-        if(buf != null)
+        if(hasPayload())
             retval+=Global.INT_SIZE // length (integer)
               + length;       // number of bytes in the buffer
         return retval;
@@ -911,23 +1005,18 @@ public class Message implements Streamable {
         return sb.toString();
     }
 
-    protected static void writeHeader(Header hdr, DataOutput out) throws Exception {
-        short magic_number=ClassConfigurator.getMagicNumber(hdr.getClass());
-        out.writeShort(magic_number);
-        hdr.writeTo(out);
+    /** Copies the bytes between position and limit of b into a new array, without changing b's position */
+    protected static byte[] copyOf(ByteBuffer b) {
+        byte[] retval=new byte[b.remaining()];
+        b.duplicate().get(retval);
+        return retval;
     }
 
-
-
-    protected static Header readHeader(DataInput in) throws Exception {
-        short magic_number=in.readShort();
-        Class clazz=ClassConfigurator.get(magic_number);
-        if(clazz == null)
-            throw new IllegalArgumentException("magic number " + magic_number + " is not available in magic map");
-
-        Header hdr=(Header)clazz.newInstance();
-        hdr.readFrom(in);
-        return hdr;
+    /** Returns the backing array of b if the bytes between position and limit span all of it, otherwise a copy */
+    protected static byte[] arrayOf(ByteBuffer b) {
+        if(b.hasArray() && b.arrayOffset() + b.position() == 0 && b.remaining() == b.array().length)
+            return b.array();
+        return copyOf(b);
     }
 
     protected static Headers createHeaders(int size) {
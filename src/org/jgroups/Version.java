@@ -20,7 +20,7 @@ import org.jgroups.annotations.Immutable;
 @Immutable
 public class Version {
     public static final short  major = 3;
-    public static final short  minor = 5;
+    public static final short  minor = 6;
     public static final short  micro = 0;
     public static final String description=major + "." + minor + "." + micro + ".Alpha1";
 
@@ -0,0 +1,229 @@
+package org.jgroups.blocks;
+
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.protocols.relay.SiteAddress;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Sends a message to a number of members and folds their responses into a single result with a
+ * {@link RspAggregator}, as they are received. Contrary to {@link GroupRequest}, no {@link org.jgroups.util.Rsp} is
+ * kept per member: only the (sorted) targets and a state byte per target.
+ * <p/>
+ * The request completes as soon as the aggregator has decided the result (or when all targets have responded or
+ * are missing). The members whose responses are outstanding at that time are sent a cancellation, so that they
+ * don't send their responses (see {@link RequestCorrelator#sendCancellation(long, Collection)}).
+ * @author agent
+ * @since 3.6
+ */
+public class AggregatingRequest<R> extends Request {
+    protected static final byte        PENDING=0, RECEIVED=1, MISSING=2;
+
+    protected final RspAggregator<R>   aggregator;
+
+    /** The targets, sorted so that a sender can be looked up with a binary search */
+    protected final Address[]          targets;
+
+    @GuardedBy("lock")
+    protected final byte[]             states;
+
+    @GuardedBy("lock")
+    protected int                      num_received; // number of targets which responded or are missing
+
+    @GuardedBy("lock")
+    protected boolean                  decided;      // set when the aggregator has decided the result
+
+
+
+    public AggregatingRequest(Message msg, RequestCorrelator corr, Collection<Address> targets,
+                              RequestOptions options, RspAggregator<R> aggregator) {
+        super(msg, corr, options);
+        this.aggregator=aggregator;
+        this.targets=targets.toArray(new Address[targets.size()]);
+        Arrays.sort(this.targets);
+        this.states=new byte[this.targets.length];
+        aggregator.init(this.targets.length);
+    }
+
+
+    public RspAggregator<R> getAggregator() {return aggregator;}
+
+    public void sendRequest() throws Exception {
+        try {
+            corr.sendRequest(req_id, Arrays.asList(targets), request_msg, this, options);
+        }
+        catch(Exception ex) {
+            corr.done(req_id);
+            throw ex;
+        }
+    }
+
+    /* ---------------------- Interface RspCollector -------------------------- */
+
+    public void receiveResponse(Object response_value, Address sender, boolean is_exception) {
+        if(done)
+            return;
+        int index=indexOf(sender);
+        if(index < 0)
+            return;
+        List<Address> outstanding=null;
+        lock.lock();
+        try {
+            if(states[index] != PENDING)
+                return;
+            states[index]=RECEIVED;
+            num_received++;
+            if(!decided && aggregator.add(response_value, sender, is_exception)) {
+                decided=true;
+                outstanding=outstandingTargets();
+            }
+            completeIfDone();
+        }
+        finally {
+            lock.unlock();
+        }
+        if(outstanding != null && !outstanding.isEmpty())
+            corr.sendCancellation(req_id, outstanding);
+        checkCompletion(this);
+    }
+
+    public void suspect(Address mbr) {
+        if(mbr != null)
+            setMissing(mbr);
+    }
+
+    public void siteUnreachable(String site) {
+        for(Address target: targets)
+            if(target instanceof SiteAddress && ((SiteAddress)target).getSite().equals(site))
+                setMissing(target);
+    }
+
+    /** Any target not in the new view is marked as missing */
+    public void viewChange(View new_view) {
+        List<Address> mbrs=new_view != null? new_view.getMembers() : null;
+        if(mbrs == null)
+            return;
+        for(Address target: targets) {
+            // SiteAddresses are not checked as they might be in a different cluster
+            if(!(target instanceof SiteAddress) && !mbrs.contains(target))
+                setMissing(target);
+        }
+    }
+
+    public void transportClosed() {
+        for(Address target: targets)
+            setMissing(target);
+    }
+
+    /* -------------------- End of Interface RspCollector ----------------------------------- */
+
+
+
+    /** Returns the aggregated result. If the request hasn't completed (e.g. timed out), this may be a partial result */
+    public R getResult() {
+        lock.lock();
+        try {
+            return aggregator.getResult();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public R get() throws InterruptedException, ExecutionException {
+        lock.lock();
+        try {
+            waitForResults(0);
+            return aggregator.getResult();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public R get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        lock.lock();
+        try {
+            if(!waitForResults(unit.toMillis(timeout)))
+                throw new TimeoutException();
+            return aggregator.getResult();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder(super.toString());
+        lock.lock();
+        try {
+            sb.append(", received ").append(num_received).append(" of ").append(targets.length).append(" responses")
+              .append(decided? " (decided)" : "").append(", aggregator: ").append(aggregator);
+        }
+        finally {
+            lock.unlock();
+        }
+        return sb.toString();
+    }
+
+
+    @GuardedBy("lock")
+    protected boolean responsesComplete() {
+        return done || decided || num_received >= targets.length;
+    }
+
+    protected void setMissing(Address mbr) {
+        if(done)
+            return;
+        int index=indexOf(mbr);
+        if(index < 0)
+            return;
+        lock.lock();
+        try {
+            if(states[index] != PENDING)
+                return;
+            states[index]=MISSING;
+            num_received++;
+            if(!decided && aggregator.missing(mbr))
+                decided=true;
+            completeIfDone();
+        }
+        finally {
+            lock.unlock();
+        }
+        checkCompletion(this);
+    }
+
+    @GuardedBy("lock")
+    protected void completeIfDone() {
+        if(responsesComplete()) {
+            done=true;
+            corr.done(req_id);
+        }
+        completed.signalAll(); // wakes up execute()
+    }
+
+    @GuardedBy("lock")
+    protected List<Address> outstandingTargets() {
+        List<Address> retval=new ArrayList<Address>(targets.length - num_received);
+        for(int i=0; i < targets.length; i++)
+            if(states[i] == PENDING)
+                retval.add(targets[i]);
+        return retval;
+    }
+
+    protected int indexOf(Address mbr) {
+        return Arrays.binarySearch(targets, mbr);
+    }
+}
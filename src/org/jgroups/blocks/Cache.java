@@ -6,16 +6,25 @@ import org.jgroups.annotations.Experimental;
 import org.jgroups.annotations.Unsupported;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.util.MappedStore;
+import org.jgroups.util.SizeStreamable;
 import org.jgroups.util.Util;
 
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.*;
 import java.io.*;
 
 /**
  * Simple cache which maintains keys and value. A reaper can be enabled which periodically evicts expired entries.
- * Also, when the cache is configured to be bounded, entries in excess of the max size will be evicted on put().
+ * Also, when the cache is configured to be bounded (by number of entries and/or by the estimated size of keys and
+ * values), entries in excess of the max size will be evicted by put(). The entries to be evicted are selected by an
+ * {@link EvictionPolicy} (LRU by default).<p/>
+ * Optionally, the values can be stored off heap in a {@link MappedStore} (see {@link #setStore(MappedStore)}); only the
+ * keys and the locations of the values are then kept on the heap.
  * @author Bela Ban
  */
 @Experimental
@@ -24,8 +33,16 @@ public class Cache<K,V> {
     private static final Log log=LogFactory.getLog(Cache.class);
     private final ConcurrentMap<K,Value<V>> map=Util.createConcurrentMap();
     private ScheduledThreadPoolExecutor timer=new ScheduledThreadPoolExecutor(1);
-    private Future task=null;
-    private final AtomicBoolean is_reaping=new AtomicBoolean(false);
+    private Future<?> task=null;
+
+    /** Guards the eviction policy and num_bytes, and serializes all modifications of the map */
+    private final Lock lock=new ReentrantLock();
+    private EvictionPolicy<K> eviction_policy=EvictionPolicies.lru();
+    private Sizer<K,V> sizer=new DefaultSizer<K,V>();
+    private long num_bytes;
+
+    /** Stores the values off heap if set */
+    private MappedStore store;
 
     private Set<ChangeListener> change_listeners=new HashSet<ChangeListener>();
 
@@ -35,6 +52,13 @@ public class Cache<K,V> {
     @ManagedAttribute(writable=true)
     private int max_num_entries=0;
 
+    /** The maximum (estimated) size of all keys and values in bytes. When exceeded, entries are evicted until we
+     * drop below this mark again. A value of 0 means don't bound the cache */
+    @ManagedAttribute(writable=true)
+    private long max_num_bytes=0;
+
+    private final AtomicLong num_hits=new AtomicLong(0), num_misses=new AtomicLong(0), num_evictions=new AtomicLong(0);
+
     public int getMaxNumberOfEntries() {
         return max_num_entries;
     }
@@ -43,6 +67,106 @@ public class Cache<K,V> {
         this.max_num_entries=max_num_entries;
     }
 
+    public long getMaxNumberOfBytes() {
+        return max_num_bytes;
+    }
+
+    public void setMaxNumberOfBytes(long max_num_bytes) {
+        this.max_num_bytes=max_num_bytes;
+    }
+
+    @ManagedAttribute(description="The eviction policy")
+    public String getEvictionPolicyName() {
+        return eviction_policy.toString();
+    }
+
+    /** Sets the eviction policy; the keys of the cache are added to it */
+    public void setEvictionPolicy(EvictionPolicy<K> policy) {
+        lock.lock();
+        try {
+            policy.clear();
+            for(K key: map.keySet())
+                policy.added(key);
+            eviction_policy=policy;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Sets the eviction policy by name ("fifo", "lru" or "tinylfu") */
+    @ManagedOperation(description="Sets the eviction policy (\"fifo\", \"lru\" or \"tinylfu\")")
+    public void setEvictionPolicy(String name) {
+        setEvictionPolicy(EvictionPolicies.<K>create(name));
+    }
+
+    public MappedStore getStore() {
+        return store;
+    }
+
+    /**
+     * Stores the values of subsequently added entries in store, and starts it. The store is closed by {@link #stop()}.
+     * The store should not be persistent, as the entries are not recovered. When the cache is bounded by the number of
+     * bytes, only the keys count towards the bound (the {@link Sizer} is passed a null value)
+     */
+    public void setStore(MappedStore store) throws IOException {
+        store.setRelocator(new MappedStore.Relocator() {
+            public boolean relocate(byte[] key, long old_location, long new_location) {
+                return Cache.this.relocate(key, old_location, new_location);
+            }
+        });
+        store.start();
+        this.store=store;
+    }
+
+    public Sizer<K,V> getSizer() {
+        return sizer;
+    }
+
+    /** Sets the function estimating the size of entries. Needs to be set before entries are added */
+    public void setSizer(Sizer<K,V> sizer) {
+        this.sizer=sizer;
+    }
+
+    @ManagedAttribute(description="Estimated size of all keys and values in bytes")
+    public long getNumberOfBytes() {
+        lock.lock();
+        try {
+            return num_bytes;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    @ManagedAttribute(description="Number of reads which found an entry")
+    public long getNumHits() {
+        return num_hits.get();
+    }
+
+    @ManagedAttribute(description="Number of reads which didn't find an entry, or found an expired one")
+    public long getNumMisses() {
+        return num_misses.get();
+    }
+
+    @ManagedAttribute(description="Number of entries evicted because the cache exceeded its bounds")
+    public long getNumEvictions() {
+        return num_evictions.get();
+    }
+
+    @ManagedAttribute(description="Ratio of hits to all reads")
+    public double getHitRatio() {
+        long hits=num_hits.get(), total=hits + num_misses.get();
+        return total == 0? 0.0 : hits / (double)total;
+    }
+
+    @ManagedOperation
+    public void resetStats() {
+        num_hits.set(0);
+        num_misses.set(0);
+        num_evictions.set(0);
+    }
+
     public void addChangeListener(ChangeListener l) {
         change_listeners.add(l);
     }
@@ -88,6 +212,8 @@ public class Cache<K,V> {
         if(timer != null)
             timer.shutdown();
         timer=null;
+        if(store != null)
+            store.close();
     }
 
     /**
@@ -103,53 +229,58 @@ public class Cache<K,V> {
     public V put(K key, V val, long caching_time) {
         if(log.isTraceEnabled())
             log.trace("put(" + key + ", " + val + ", " + caching_time + ")");
-        Value<V> value=new Value<V>(val, caching_time);
-        Value<V> retval=map.put(key, value);
-
-        if(max_num_entries > 0 && map.size() > max_num_entries) {
-            boolean rc=is_reaping.compareAndSet(false, true);
-            if(rc) {
-                if(log.isTraceEnabled())
-                    log.trace("reaping: max_num_entries=" + max_num_entries + ", size=" + map.size());
-                timer.execute(new Runnable() {
-                    public void run() {
-                        if(max_num_entries > 0) {
-                            try {
-                                if(map.size() > max_num_entries) {
-                                    evict(); // see if we can gracefully evict expired items
-                                }
-                                if(map.size() > max_num_entries) {
-                                    // still too many entries: now evict entries based on insertion time: oldest first
-                                    int diff=map.size() - max_num_entries; // we have to evict diff entries
-                                    SortedMap<Long,K> tmp=new TreeMap<Long,K>();
-                                    for(Map.Entry<K,Value<V>> entry: map.entrySet()) {
-                                        tmp.put(entry.getValue().insertion_time, entry.getKey());
-                                    }
-
-                                    Collection<K> vals=tmp.values();
-                                    for(K k: vals) {
-                                        if(diff-- > 0) {
-                                            Value<V> v=map.remove(k);
-                                            if(log.isTraceEnabled())
-                                                log.trace("evicting " + k + ": " + v.value);
-                                        }
-                                        else
-                                            break;
-                                    }
-                                }
-                                if(log.isTraceEnabled())
-                                    log.trace("done reaping (size=" + map.size() + ")");
-                            }
-                            finally {
-                                is_reaping.set(false);
-                            }
-                        }
-                    }
-                });
+        Value<V> value=createValue(key, val, caching_time);
+        Value<V> retval;
+        V old_value=null;
+        boolean evicted;
+        lock.lock();
+        try {
+            retval=map.put(key, value);
+            if(retval == null)
+                eviction_policy.added(key);
+            else {
+                eviction_policy.accessed(key);
+                num_bytes-=retval.size;
+                old_value=retval.getValue();
+                retval.free();
             }
+            num_bytes+=value.size;
+            evicted=evictExcessEntries();
+        }
+        finally {
+            lock.unlock();
         }
+        if(evicted)
+            notifyChangeListeners();
+        return old_value;
+    }
 
-        return retval != null? retval.value : null;
+    /**
+     * Adds a key/value if the key is not present. The check and the addition are atomic with respect to all other
+     * modifications of the cache
+     * @return True if the value was added, false if the key was already present
+     */
+    public boolean putIfAbsent(K key, V val, long caching_time) {
+        if(log.isTraceEnabled())
+            log.trace("putIfAbsent(" + key + ", " + val + ", " + caching_time + ")");
+        Value<V> value=createValue(key, val, caching_time);
+        boolean added, evicted=false;
+        lock.lock();
+        try {
+            if((added=map.putIfAbsent(key, value) == null)) {
+                eviction_policy.added(key);
+                num_bytes+=value.size;
+                evicted=evictExcessEntries();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        if(!added)
+            value.free();
+        if(evicted)
+            notifyChangeListeners();
+        return added;
     }
 
     @ManagedOperation
@@ -157,14 +288,18 @@ public class Cache<K,V> {
         if(log.isTraceEnabled())
             log.trace("get(" + key + ")");
         Value<V> val=map.get(key);
-        if(val == null)
+        if(val == null) {
+            num_misses.incrementAndGet();
             return null;
+        }
         if(val.timeout == -1 ||
                 (val.timeout > 0 && val.timeout < System.currentTimeMillis())) {
-            map.remove(key);
+            remove(key, val);
+            num_misses.incrementAndGet();
             return null;
         }
-        return val.value;
+        accessed(key);
+        return val.getValue();
     }
 
     /**
@@ -179,14 +314,31 @@ public class Cache<K,V> {
     public Value<V> getEntry(K key) {
         if(log.isTraceEnabled())
             log.trace("getEntry(" + key + ")");
-        return map.get(key);
+        Value<V> val=map.get(key);
+        if(val == null)
+            num_misses.incrementAndGet();
+        else
+            accessed(key);
+        return val;
     }
 
     public V remove(K key) {
         if(log.isTraceEnabled())
             log.trace("remove(" + key + ")");
-        Value<V> val=map.remove(key);
-        return val != null? val.value : null;
+        lock.lock();
+        try {
+            Value<V> val=map.remove(key);
+            if(val == null)
+                return null;
+            eviction_policy.removed(key);
+            num_bytes-=val.size;
+            V retval=val.getValue();
+            val.free();
+            return retval;
+        }
+        finally {
+            lock.unlock();
+        }
     }
 
     public Set<Map.Entry<K,Value<V>>> entrySet() {
@@ -230,15 +382,13 @@ public class Cache<K,V> {
 
     private void evict() {
         boolean evicted=false;
-        for(Iterator<Map.Entry<K,Value<V>>> it=map.entrySet().iterator(); it.hasNext();) {
-            Map.Entry<K,Value<V>> entry=it.next();
+        for(Map.Entry<K,Value<V>> entry: map.entrySet()) {
             Value<V> val=entry.getValue();
             if(val != null) {
                 if(val.timeout == -1 || (val.timeout > 0 && System.currentTimeMillis() > val.insertion_time + val.timeout)) {
                     if(log.isTraceEnabled())
                         log.trace("evicting " + entry.getKey() + ": " + entry.getValue().value);
-                    it.remove();
-                    evicted=true;
+                    evicted|=remove(entry.getKey(), val);
                 }
             }
         }
@@ -246,6 +396,91 @@ public class Cache<K,V> {
             notifyChangeListeners();
     }
 
+    /** Removes key only if it is still mapped to val */
+    private boolean remove(K key, Value<V> val) {
+        lock.lock();
+        try {
+            if(!map.remove(key, val))
+                return false;
+            eviction_policy.removed(key);
+            num_bytes-=val.size;
+            val.free();
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Updates the location of a value which was moved by a compaction of the store */
+    @SuppressWarnings("unchecked")
+    private boolean relocate(byte[] key, long old_location, long new_location) {
+        K tmp;
+        try {
+            tmp=(K)Util.objectFromByteBuffer(key);
+        }
+        catch(Exception e) {
+            log.error("failed deserializing key", e);
+            return false;
+        }
+        lock.lock();
+        try {
+            Value<V> val=map.get(tmp);
+            if(val == null || val.location != old_location)
+                return false;
+            val.location=new_location;
+            return true;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /** Creates the value for key; if a store is set, the value is written to it */
+    private Value<V> createValue(K key, V val, long caching_time) {
+        Value<V> value=new Value<V>(val, caching_time);
+        MappedStore tmp_store=store;
+        if(tmp_store != null)
+            value.store(tmp_store, key);
+        value.size=sizer.size(key, tmp_store != null? null : val);
+        return value;
+    }
+
+    /** Records a hit. The access is not recorded if the lock is held by someone else, so reads never block */
+    private void accessed(K key) {
+        num_hits.incrementAndGet();
+        if(lock.tryLock()) {
+            try {
+                eviction_policy.accessed(key);
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** Evicts entries selected by the eviction policy until the cache is within its bounds */
+    @GuardedBy("lock")
+    private boolean evictExcessEntries() {
+        boolean evicted=false;
+        while((max_num_entries > 0 && eviction_policy.size() > max_num_entries)
+          || (max_num_bytes > 0 && num_bytes > max_num_bytes)) {
+            K key=eviction_policy.evict();
+            if(key == null)
+                break;
+            Value<V> val=map.remove(key);
+            if(val == null)
+                continue;
+            num_bytes-=val.size;
+            val.free();
+            num_evictions.incrementAndGet();
+            evicted=true;
+            if(log.isTraceEnabled())
+                log.trace("evicting " + key + ": " + val.value + " (size=" + map.size() + ", bytes=" + num_bytes + ")");
+        }
+        return evicted;
+    }
+
     private void notifyChangeListeners() {
         for(ChangeListener l: change_listeners) {
             try {
@@ -266,6 +501,13 @@ public class Cache<K,V> {
         
         /** When the value can be reaped (in ms) */
         private transient long timeout;
+
+        /** The estimated size of key and value, computed by the {@link Sizer} */
+        private transient long size;
+
+        /** If the value is stored off heap: the store and the location of the value in it */
+        private transient MappedStore store;
+        private transient volatile long location;
         private static final long serialVersionUID=-3445944261826378608L;
 
 
@@ -277,15 +519,54 @@ public class Cache<K,V> {
         public Value() {
         }
 
-        public V getValue() {return value;}
+        @SuppressWarnings("unchecked")
+        public V getValue() {
+            if(store == null)
+                return value;
+            for(;;) {
+                long loc=location;
+                byte[] buf=store.getValue(loc);
+                if(buf != null) {
+                    try {
+                        return (V)Util.objectFromByteBuffer(buf);
+                    }
+                    catch(Exception e) {
+                        throw new IllegalStateException("failed deserializing value", e);
+                    }
+                }
+                if(loc == location)
+                    return null; // removed from the cache, and its segment has been compacted
+                // the value was relocated by a compaction
+            }
+        }
+
         public long getInsertionTime() {return insertion_time;}
         public long getTimeout() {return timeout;}
 
         public void writeExternal(ObjectOutput out) throws IOException {
             out.writeLong(timeout);
-            out.writeObject(value);
+            out.writeObject(getValue());
+        }
+
+        /** Moves the value to the store */
+        private void store(MappedStore store, Object key) {
+            try {
+                location=store.put(Util.objectToByteBuffer(key), Util.objectToByteBuffer(value));
+            }
+            catch(Exception e) {
+                throw new IllegalArgumentException("failed storing value of " + key, e);
+            }
+            this.store=store;
+            value=null;
+        }
+
+        /** Marks the stored value as garbage */
+        private void free() {
+            if(store != null)
+                store.free(location);
         }
 
+        @SuppressWarnings("unchecked")
         public void readExternal(ObjectInput in) throws IOException, ClassNotFoundException {
             insertion_time=System.currentTimeMillis();
             timeout=in.readLong();
@@ -305,4 +586,38 @@ public class Cache<K,V> {
         void changed();
     }
 
+    /** Estimates the number of bytes used by an entry */
+    public interface Sizer<K,V> {
+        long size(K key, V value);
+    }
+
+    /**
+     * Estimates the size of byte arrays, strings, primitive wrappers, {@link SizeStreamable}s and
+     * {@link ReplCache.Value}s; all other objects are counted as OBJECT_SIZE bytes. Set a custom {@link Sizer} if
+     * the cache contains other objects
+     */
+    public static class DefaultSizer<K,V> implements Sizer<K,V> {
+        protected static final int OBJECT_SIZE=16, ENTRY_OVERHEAD=64; // overhead of map entry, Value and policy
+
+        public long size(K key, V value) {
+            return ENTRY_OVERHEAD + sizeOf(key) + sizeOf(value);
+        }
+
+        protected static long sizeOf(Object obj) {
+            if(obj == null)
+                return 0;
+            if(obj instanceof byte[])
+                return OBJECT_SIZE + ((byte[])obj).length;
+            if(obj instanceof String)
+                return OBJECT_SIZE + ((String)obj).length() * 2;
+            if(obj instanceof Number || obj instanceof Boolean || obj instanceof Character)
+                return OBJECT_SIZE;
+            if(obj instanceof SizeStreamable)
+                return OBJECT_SIZE + ((SizeStreamable)obj).size();
+            if(obj instanceof ReplCache.Value)
+                return OBJECT_SIZE + sizeOf(((ReplCache.Value)obj).getVal());
+            return OBJECT_SIZE;
+        }
+    }
+
 }
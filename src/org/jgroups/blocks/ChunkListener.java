@@ -0,0 +1,14 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+/**
+ * Receives the chunks of streamed responses (see {@link ResponseStream}). Called by the thread which delivers the
+ * chunk, so implementations must not block. The chunks from a given member are received in the order in which they
+ * were sent, but chunks from different members may be received concurrently.
+ * @author agent
+ * @since 3.6
+ */
+public interface ChunkListener<T> {
+    void chunkReceived(T chunk, Address sender);
+}
@@ -0,0 +1,445 @@
+package org.jgroups.blocks;
+
+import org.jgroups.util.*;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.util.*;
+
+/**
+ * Marshaller which encodes objects with a registry of {@link Codec}s. Each registered type has an ID, which is written
+ * as a varint instead of a class name or magic number, followed by the codec's encoding of the object. Lengths
+ * (strings, arrays, collections, number of args of a {@link MethodCall}) are written as varints, too.
+ * <p/>
+ * Codecs for null, the primitive wrappers, String, byte[], Object[], ArrayList, HashMap, HashSet, {@link MethodCall},
+ * {@link MethodCallBatch} and {@link Cache.Value} are built in. Applications register codecs for their own types with
+ * {@link #register(int,Class,Codec)}; the ID has to be the same in all members and must be >= {@link #MIN_USER_ID}.
+ * All other objects are written with {@link Util#objectToStream(Object,java.io.DataOutput)}, ie. as Streamable or
+ * by Java serialization.
+ * <p/>
+ * Codecs are looked up by the exact class of an object (no instanceof checks, no reflection). Marshalling writes to a
+ * per-thread output buffer which is reused across calls; only the final byte[] is allocated per call. Reentrant calls
+ * (e.g. a codec marshalling a nested object into a byte[]) use a new buffer.
+ * <p/>
+ * This is the default request and response marshaller of {@link RpcDispatcher}.
+ * @author agent
+ * @since 3.6
+ */
+public class CodecMarshaller implements RpcDispatcher.Marshaller {
+
+    /** Encodes and decodes instances of a given type. Implementations must be stateless (or thread-safe) */
+    public interface Codec<T> {
+        /** Writes obj (never null). Nested objects can be written with {@link CodecMarshaller#writeObject(Object,java.io.DataOutput)} */
+        void write(T obj, DataOutput out, CodecMarshaller marshaller) throws Exception;
+
+        /** Reads an instance. Nested objects can be read with {@link CodecMarshaller#readObject(java.io.DataInput)} */
+        T read(DataInput in, CodecMarshaller marshaller) throws Exception;
+    }
+
+    public static final int    MIN_USER_ID=64;
+    public static final int    MAX_ID=Short.MAX_VALUE;
+
+    protected static final int NULL=0, OTHER=1, BOOLEAN=2, BYTE=3, SHORT=4, INT=5, LONG=6, FLOAT=7, DOUBLE=8,
+      CHAR=9, STRING=10, BYTE_ARRAY=11, OBJECT_ARRAY=12, ARRAY_LIST=13, HASH_MAP=14, METHOD_CALL=15, CACHE_VALUE=16,
+      HASH_SET=17, METHOD_CALL_BATCH=18, BATCH_RESULTS=19;
+
+    /** The output buffers are reused, unless they grew bigger than this */
+    protected static final int MAX_RETAINED_BUFFER_SIZE=64 * 1024;
+
+    protected static final ThreadLocal<Output> output=new ThreadLocal<Output>() {
+        protected Output initialValue() {
+            return new Output();
+        }
+    };
+
+    // copy-on-write: registration is rare, lookups are on every (un)marshalling
+    protected volatile Map<Class<?>,Entry<?>> by_class=new HashMap<Class<?>,Entry<?>>();
+    protected volatile Entry<?>[]             by_id=new Entry<?>[MIN_USER_ID];
+
+
+    public CodecMarshaller() {
+        registerBuiltins();
+    }
+
+
+    /**
+     * Registers a codec for a type. Objects are matched by their exact class, so subclasses need to be registered
+     * separately. Must be done in all members before the type is sent
+     * @param id The ID of the type, needs to be the same in all members. Must be in range [{@link #MIN_USER_ID} ..
+     *           {@link #MAX_ID}]
+     * @param clazz The type
+     * @param codec The codec to encode and decode instances of clazz
+     */
+    public <T> CodecMarshaller register(int id, Class<? super T> clazz, Codec<T> codec) {
+        if(id < MIN_USER_ID || id > MAX_ID)
+            throw new IllegalArgumentException("id " + id + " needs to be in range [" + MIN_USER_ID + " .. " + MAX_ID + "]");
+        return add(id, clazz, codec);
+    }
+
+    /** Removes the codec registered for clazz. Objects of that type are subsequently written as Streamable or Serializable */
+    public synchronized CodecMarshaller unregister(Class<?> clazz) {
+        Entry<?> entry=by_class.get(clazz);
+        if(entry == null || entry.id < MIN_USER_ID)
+            return this;
+        Map<Class<?>,Entry<?>> tmp_class=new HashMap<Class<?>,Entry<?>>(by_class);
+        tmp_class.remove(clazz);
+        Entry<?>[] tmp_id=by_id.clone();
+        tmp_id[entry.id]=null;
+        by_id=tmp_id;
+        by_class=tmp_class;
+        return this;
+    }
+
+    public boolean isRegistered(Class<?> clazz) {return by_class.containsKey(clazz);}
+
+
+    public Buffer objectToBuffer(Object obj) throws Exception {
+        Output tmp=output.get();
+        if(tmp.in_use) { // called from a codec or writeTo() while the thread's buffer is being written to
+            ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(128);
+            writeObject(obj, new ExposedDataOutputStream(out_stream));
+            return new Buffer(out_stream.getRawBuffer(), 0, out_stream.size());
+        }
+        ExposedByteArrayOutputStream out_stream=tmp.out_stream;
+        out_stream.reset();
+        tmp.out.reset();
+        tmp.in_use=true;
+        try {
+            writeObject(obj, tmp.out);
+            // the buffer is reused, so we have to copy: the returned buffer may get retransmitted
+            return new Buffer(Arrays.copyOf(out_stream.getRawBuffer(), out_stream.size()));
+        }
+        finally {
+            tmp.in_use=false;
+            if(out_stream.getCapacity() > MAX_RETAINED_BUFFER_SIZE)
+                out_stream.reset(128);
+        }
+    }
+
+    public Object objectFromBuffer(byte[] buf, int offset, int length) throws Exception {
+        if(buf == null)
+            return null;
+        return readObject(new DataInputStream(new ExposedByteArrayInputStream(buf, offset, length)));
+    }
+
+
+    /** Writes the ID of the object's type, followed by the object */
+    public void writeObject(Object obj, DataOutput out) throws Exception {
+        if(obj == null) {
+            out.write(NULL);
+            return;
+        }
+        Entry<?> entry=by_class.get(obj.getClass());
+        if(entry == null) {
+            out.write(OTHER);
+            Util.objectToStream(obj, out);
+            return;
+        }
+        Bits.writeVarInt(entry.id, out);
+        entry.write(obj, out, this);
+    }
+
+    public Object readObject(DataInput in) throws Exception {
+        int id=Bits.readVarInt(in);
+        switch(id) {
+            case NULL:
+                return null;
+            case OTHER:
+                return Util.objectFromStream(in);
+        }
+        Entry<?>[] tmp=by_id;
+        Entry<?> entry=id < tmp.length? tmp[id] : null;
+        if(entry == null)
+            throw new IllegalStateException("no codec registered for type ID " + id);
+        return entry.codec.read(in, this);
+    }
+
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        for(Entry<?> entry: by_id)
+            if(entry != null && entry.id >= MIN_USER_ID)
+                sb.append(entry.id).append(": ").append(entry.clazz.getName()).append("\n");
+        return sb.toString();
+    }
+
+
+    /** Registers codec for clazz. A supertype of T, so that the built-in codecs of generic types can be registered */
+    protected synchronized <T> CodecMarshaller add(int id, Class<? super T> clazz, Codec<T> codec) {
+        if(clazz == null || codec == null)
+            throw new IllegalArgumentException("class and codec must not be null");
+        Entry<?> existing=by_class.get(clazz);
+        if(existing != null && existing.id != id)
+            throw new IllegalArgumentException(clazz.getName() + " is already registered with id " + existing.id);
+        if(id < by_id.length && by_id[id] != null && by_id[id].clazz != clazz)
+            throw new IllegalArgumentException("id " + id + " is already used by " + by_id[id].clazz.getName());
+
+        Entry<T> entry=new Entry<T>(id, clazz, codec);
+        Map<Class<?>,Entry<?>> tmp_class=new HashMap<Class<?>,Entry<?>>(by_class);
+        tmp_class.put(clazz, entry);
+        Entry<?>[] tmp_id=Arrays.copyOf(by_id, Math.max(by_id.length, id+1));
+        tmp_id[id]=entry;
+        by_id=tmp_id;
+        by_class=tmp_class;
+        return this;
+    }
+
+
+    protected void registerBuiltins() {
+        add(BOOLEAN, Boolean.class, new Codec<Boolean>() {
+            public void write(Boolean obj, DataOutput out, CodecMarshaller m) throws Exception {out.writeBoolean(obj);}
+            public Boolean read(DataInput in, CodecMarshaller m) throws Exception {return in.readBoolean();}
+        });
+        add(BYTE, Byte.class, new Codec<Byte>() {
+            public void write(Byte obj, DataOutput out, CodecMarshaller m) throws Exception {out.writeByte(obj);}
+            public Byte read(DataInput in, CodecMarshaller m) throws Exception {return in.readByte();}
+        });
+        add(SHORT, Short.class, new Codec<Short>() {
+            public void write(Short obj, DataOutput out, CodecMarshaller m) throws Exception {Bits.writeVarInt(Bits.zigZag((int)obj), out);}
+            public Short read(DataInput in, CodecMarshaller m) throws Exception {return (short)Bits.unZigZag(Bits.readVarInt(in));}
+        });
+        add(INT, Integer.class, new Codec<Integer>() {
+            public void write(Integer obj, DataOutput out, CodecMarshaller m) throws Exception {Bits.writeVarInt(Bits.zigZag((int)obj), out);}
+            public Integer read(DataInput in, CodecMarshaller m) throws Exception {return Bits.unZigZag(Bits.readVarInt(in));}
+        });
+        add(LONG, Long.class, new Codec<Long>() {
+            public void write(Long obj, DataOutput out, CodecMarshaller m) throws Exception {Bits.writeVarLong(Bits.zigZag((long)obj), out);}
+            public Long read(DataInput in, CodecMarshaller m) throws Exception {return Bits.unZigZag(Bits.readVarLong(in));}
+        });
+        add(FLOAT, Float.class, new Codec<Float>() {
+            public void write(Float obj, DataOutput out, CodecMarshaller m) throws Exception {out.writeFloat(obj);}
+            public Float read(DataInput in, CodecMarshaller m) throws Exception {return in.readFloat();}
+        });
+        add(DOUBLE, Double.class, new Codec<Double>() {
+            public void write(Double obj, DataOutput out, CodecMarshaller m) throws Exception {out.writeDouble(obj);}
+            public Double read(DataInput in, CodecMarshaller m) throws Exception {return in.readDouble();}
+        });
+        add(CHAR, Character.class, new Codec<Character>() {
+            public void write(Character obj, DataOutput out, CodecMarshaller m) throws Exception {Bits.writeVarInt(obj, out);}
+            public Character read(DataInput in, CodecMarshaller m) throws Exception {return (char)Bits.readVarInt(in);}
+        });
+        add(STRING, String.class, new Codec<String>() {
+            public void write(String obj, DataOutput out, CodecMarshaller m) throws Exception {writeString(obj, out);}
+            public String read(DataInput in, CodecMarshaller m) throws Exception {return readString(in);}
+        });
+        add(BYTE_ARRAY, byte[].class, new Codec<byte[]>() {
+            public void write(byte[] obj, DataOutput out, CodecMarshaller m) throws Exception {
+                Bits.writeVarInt(obj.length, out);
+                out.write(obj, 0, obj.length);
+            }
+            public byte[] read(DataInput in, CodecMarshaller m) throws Exception {
+                byte[] retval=new byte[Bits.readVarInt(in)];
+                in.readFully(retval);
+                return retval;
+            }
+        });
+        add(OBJECT_ARRAY, Object[].class, new Codec<Object[]>() {
+            public void write(Object[] obj, DataOutput out, CodecMarshaller m) throws Exception {
+                Bits.writeVarInt(obj.length, out);
+                for(Object el: obj)
+                    m.writeObject(el, out);
+            }
+            public Object[] read(DataInput in, CodecMarshaller m) throws Exception {
+                Object[] retval=new Object[Bits.readVarInt(in)];
+                for(int i=0; i < retval.length; i++)
+                    retval[i]=m.readObject(in);
+                return retval;
+            }
+        });
+        add(ARRAY_LIST, ArrayList.class, new Codec<ArrayList<?>>() {
+            public void write(ArrayList<?> obj, DataOutput out, CodecMarshaller m) throws Exception {
+                int size=obj.size();
+                Bits.writeVarInt(size, out);
+                for(int i=0; i < size; i++)
+                    m.writeObject(obj.get(i), out);
+            }
+            public ArrayList<?> read(DataInput in, CodecMarshaller m) throws Exception {
+                int size=Bits.readVarInt(in);
+                ArrayList<Object> retval=new ArrayList<Object>(size);
+                for(int i=0; i < size; i++)
+                    retval.add(m.readObject(in));
+                return retval;
+            }
+        });
+        add(HASH_MAP, HashMap.class, new Codec<HashMap<?,?>>() {
+            public void write(HashMap<?,?> obj, DataOutput out, CodecMarshaller m) throws Exception {
+                Bits.writeVarInt(obj.size(), out);
+                for(Map.Entry<?,?> entry: obj.entrySet()) {
+                    m.writeObject(entry.getKey(), out);
+                    m.writeObject(entry.getValue(), out);
+                }
+            }
+            public HashMap<?,?> read(DataInput in, CodecMarshaller m) throws Exception {
+                int size=Bits.readVarInt(in);
+                HashMap<Object,Object> retval=new HashMap<Object,Object>(Math.max(16, (int)(size / .75f) + 1));
+                for(int i=0; i < size; i++)
+                    retval.put(m.readObject(in), m.readObject(in));
+                return retval;
+            }
+        });
+        add(HASH_SET, HashSet.class, new Codec<HashSet<?>>() {
+            public void write(HashSet<?> obj, DataOutput out, CodecMarshaller m) throws Exception {
+                Bits.writeVarInt(obj.size(), out);
+                for(Object el: obj)
+                    m.writeObject(el, out);
+            }
+            public HashSet<?> read(DataInput in, CodecMarshaller m) throws Exception {
+                int size=Bits.readVarInt(in);
+                HashSet<Object> retval=new HashSet<Object>(Math.max(16, (int)(size / .75f) + 1));
+                for(int i=0; i < size; i++)
+                    retval.add(m.readObject(in));
+                return retval;
+            }
+        });
+        add(METHOD_CALL, MethodCall.class, new Codec<MethodCall>() {
+            public void write(MethodCall call, DataOutput out, CodecMarshaller m) throws Exception {
+                out.write(call.mode);
+                switch(call.mode) {
+                    case MethodCall.ID:
+                        Bits.writeVarInt(call.method_id & 0xffff, out);
+                        break;
+                    case MethodCall.METHOD:
+                        writeString(call.method_name, out);
+                        call.writeMethod(out);
+                        break;
+                    case MethodCall.TYPES:
+                        writeString(call.method_name, out);
+                        call.writeTypes(out);
+                        break;
+                    default:
+                        throw new IllegalStateException("mode " + call.mode + " unknown");
+                }
+                Object[] args=call.args;
+                int num_args=args != null? args.length : 0;
+                Bits.writeVarInt(num_args, out);
+                for(int i=0; i < num_args; i++)
+                    m.writeObject(args[i], out);
+            }
+
+            public MethodCall read(DataInput in, CodecMarshaller m) throws Exception {
+                MethodCall call=new MethodCall();
+                call.mode=in.readByte();
+                switch(call.mode) {
+                    case MethodCall.ID:
+                        call.method_id=(short)Bits.readVarInt(in);
+                        break;
+                    case MethodCall.METHOD:
+                        call.method_name=readString(in);
+                        call.readMethod(in);
+                        break;
+                    case MethodCall.TYPES:
+                        call.method_name=readString(in);
+                        call.readTypes(in);
+                        break;
+                    default:
+                        throw new IllegalStateException("mode " + call.mode + " unknown");
+                }
+                int num_args=Bits.readVarInt(in);
+                if(num_args > 0) {
+                    call.args=new Object[num_args];
+                    for(int i=0; i < num_args; i++)
+                        call.args[i]=m.readObject(in);
+                }
+                return call;
+            }
+        });
+        add(METHOD_CALL_BATCH, MethodCallBatch.class, new Codec<MethodCallBatch>() {
+            public void write(MethodCallBatch batch, DataOutput out, CodecMarshaller m) throws Exception {
+                out.writeBoolean(batch.parallel);
+                Bits.writeVarInt(batch.size(), out);
+                for(int i=0; i < batch.size(); i++)
+                    m.writeObject(batch.calls[i], out);
+            }
+            public MethodCallBatch read(DataInput in, CodecMarshaller m) throws Exception {
+                boolean parallel=in.readBoolean();
+                MethodCall[] calls=new MethodCall[Bits.readVarInt(in)];
+                for(int i=0; i < calls.length; i++)
+                    calls[i]=(MethodCall)m.readObject(in);
+                return new MethodCallBatch(calls, parallel);
+            }
+        });
+        add(BATCH_RESULTS, MethodCallBatch.Results.class, new Codec<MethodCallBatch.Results>() {
+            public void write(MethodCallBatch.Results results, DataOutput out, CodecMarshaller m) throws Exception {
+                Bits.writeVarInt(results.size(), out);
+                for(int i=0; i < results.size(); i++) {
+                    out.writeBoolean(results.exceptions[i]);
+                    m.writeObject(results.values[i], out);
+                }
+            }
+            public MethodCallBatch.Results read(DataInput in, CodecMarshaller m) throws Exception {
+                MethodCallBatch.Results results=new MethodCallBatch.Results(Bits.readVarInt(in));
+                for(int i=0; i < results.size(); i++) {
+                    results.exceptions[i]=in.readBoolean();
+                    results.values[i]=m.readObject(in);
+                }
+                return results;
+            }
+        });
+        add(CACHE_VALUE, Cache.Value.class, new Codec<Cache.Value<?>>() {
+            public void write(Cache.Value<?> obj, DataOutput out, CodecMarshaller m) throws Exception {
+                Bits.writeVarLong(Bits.zigZag(obj.getTimeout()), out);
+                m.writeObject(obj.getValue(), out);
+            }
+            public Cache.Value<?> read(DataInput in, CodecMarshaller m) throws Exception {
+                long timeout=Bits.unZigZag(Bits.readVarLong(in));
+                return new Cache.Value<Object>(m.readObject(in), timeout);
+            }
+        });
+    }
+
+
+    /** Writes the length as varint, followed by each char as varint (ASCII chars need 1 byte) */
+    protected static void writeString(String str, DataOutput out) throws Exception {
+        if(str == null) {
+            out.write(0);
+            return;
+        }
+        int len=str.length();
+        Bits.writeVarInt(len+1, out);
+        for(int i=0; i < len; i++) {
+            char ch=str.charAt(i);
+            if(ch < 0x80)
+                out.write(ch);
+            else
+                Bits.writeVarInt(ch, out);
+        }
+    }
+
+    protected static String readString(DataInput in) throws Exception {
+        int len=Bits.readVarInt(in);
+        if(len == 0)
+            return null;
+        char[] chars=new char[len-1];
+        for(int i=0; i < chars.length; i++)
+            chars[i]=(char)Bits.readVarInt(in);
+        return new String(chars);
+    }
+
+
+    /** The per-thread output buffer; in_use is only accessed by the owning thread */
+    protected static class Output {
+        protected final ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(128);
+        protected final ExposedDataOutputStream      out=new ExposedDataOutputStream(out_stream);
+        protected boolean                            in_use;
+    }
+
+
+    protected static class Entry<T> {
+        protected final int      id;
+        protected final Class<?> clazz;
+        protected final Codec<T> codec;
+
+        public Entry(int id, Class<?> clazz, Codec<T> codec) {
+            this.id=id;
+            this.clazz=clazz;
+            this.codec=codec;
+        }
+
+        /** The entry was looked up by the exact class of obj, so obj is a T */
+        @SuppressWarnings("unchecked")
+        protected void write(Object obj, DataOutput out, CodecMarshaller marshaller) throws Exception {
+            codec.write((T)obj, out, marshaller);
+        }
+    }
+}
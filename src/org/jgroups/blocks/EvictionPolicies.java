@@ -0,0 +1,211 @@
+package org.jgroups.blocks;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Implementations of {@link EvictionPolicy}
+ * @author agent
+ * @since 3.6
+ */
+public class EvictionPolicies {
+
+    /** Evicts the key which was added first */
+    public static <K> EvictionPolicy<K> fifo() {return new Fifo<K>();}
+
+    /** Evicts the key which was accessed least recently */
+    public static <K> EvictionPolicy<K> lru()  {return new Lru<K>();}
+
+    /** Window TinyLFU: evicts recently added keys which are accessed less frequently than the keys already cached */
+    public static <K> EvictionPolicy<K> tinyLfu() {return new TinyLfu<K>(TinyLfu.DEFAULT_WINDOW_RATIO);}
+
+    /** Creates a policy by name ("fifo", "lru" or "tinylfu") */
+    public static <K> EvictionPolicy<K> create(String name) {
+        if(name.equalsIgnoreCase("fifo"))
+            return fifo();
+        if(name.equalsIgnoreCase("lru"))
+            return lru();
+        if(name.equalsIgnoreCase("tinylfu") || name.equalsIgnoreCase("lfu"))
+            return tinyLfu();
+        throw new IllegalArgumentException("eviction policy \"" + name + "\" not known");
+    }
+
+
+
+    /** Base class for policies which keep the keys in a linked hash map, and evict the eldest one */
+    protected abstract static class LinkedPolicy<K> implements EvictionPolicy<K> {
+        protected final LinkedHashMap<K,Boolean> keys;
+
+        protected LinkedPolicy(boolean access_order) {
+            keys=new LinkedHashMap<K,Boolean>(16, 0.75f, access_order);
+        }
+
+        public void added(K key)   {keys.put(key, Boolean.TRUE);}
+        public void accessed(K key){keys.get(key);}
+        public void removed(K key) {keys.remove(key);}
+        public K    evict()        {return poll(keys);}
+        public int  size()         {return keys.size();}
+        public void clear()        {keys.clear();}
+    }
+
+    public static class Fifo<K> extends LinkedPolicy<K> {
+        public Fifo() {super(false);}
+        public String toString() {return "FIFO";}
+    }
+
+    public static class Lru<K> extends LinkedPolicy<K> {
+        public Lru() {super(true);}
+        public String toString() {return "LRU";}
+    }
+
+
+    /**
+     * Window TinyLFU (see "TinyLFU: A Highly Efficient Cache Admission Policy", Einziger and Friedman). New keys are
+     * added to a small LRU window; a key which is evicted from the window has to compete with the least recently used
+     * key of the main LRU: the key with the lower access frequency (estimated by a {@link FrequencySketch}) is
+     * evicted. Keys which are accessed only once (e.g. by a scan) are therefore evicted quickly, without pushing the
+     * frequently accessed keys out of the cache.
+     */
+    public static class TinyLfu<K> implements EvictionPolicy<K> {
+        protected static final double DEFAULT_WINDOW_RATIO=0.01;
+
+        protected final LinkedHashMap<K,Boolean> window=new LinkedHashMap<K,Boolean>(16, 0.75f, true);
+        protected final LinkedHashMap<K,Boolean> main=new LinkedHashMap<K,Boolean>(16, 0.75f, true);
+        protected final FrequencySketch          sketch=new FrequencySketch();
+        protected final double                   window_ratio; // the size of the window relative to all keys
+
+        public TinyLfu(double window_ratio) {
+            this.window_ratio=window_ratio;
+        }
+
+        public void added(K key) {
+            sketch.increment(key);
+            window.put(key, Boolean.TRUE);
+            sketch.ensureCapacity(size());
+        }
+
+        public void accessed(K key) {
+            sketch.increment(key);
+            if(window.get(key) == null)
+                main.get(key);
+        }
+
+        public void removed(K key) {
+            if(window.remove(key) == null)
+                main.remove(key);
+        }
+
+        public K evict() {
+            int max_window=Math.max(1, (int)(size() * window_ratio));
+
+            // keys added while the cache had room don't need to compete for admission
+            while(window.size() > max_window+1)
+                main.put(poll(window), Boolean.TRUE);
+
+            if(window.size() <= max_window || main.isEmpty())
+                return !main.isEmpty()? poll(main) : poll(window);
+
+            K candidate=poll(window), victim=main.keySet().iterator().next();
+            if(sketch.frequency(candidate) > sketch.frequency(victim)) {
+                main.remove(victim);
+                main.put(candidate, Boolean.TRUE);
+                return victim;
+            }
+            return candidate;
+        }
+
+        public int size() {
+            return window.size() + main.size();
+        }
+
+        public void clear() {
+            window.clear();
+            main.clear();
+        }
+
+        public String toString() {
+            return "TinyLFU (window=" + window.size() + ", main=" + main.size() + ")";
+        }
+    }
+
+
+    /**
+     * Count-min sketch estimating how often a key was accessed, with 4 rows of 4-bit counters. The counters are halved
+     * after a number of increments proportional to the width, so that the frequencies of keys which are not accessed
+     * anymore decay. The width grows with the number of keys
+     */
+    protected static class FrequencySketch {
+        protected static final int   DEPTH=4, MAX_COUNT=15, MIN_WIDTH=64;
+        protected static final int[] SEEDS={0x97cb3127, 0xc1b6c1c7, 0x5b3a7d2f, 0x2f1bdf85};
+
+        protected byte[] table;  // DEPTH rows of width counters
+        protected int    mask;   // width - 1
+        protected int    increments, sample_size;
+
+        public FrequencySketch() {
+            resize(MIN_WIDTH);
+        }
+
+        public void increment(Object key) {
+            int hash=spread(key.hashCode());
+            boolean incremented=false;
+            for(int i=0; i < DEPTH; i++) {
+                int index=indexOf(hash, i);
+                if(table[index] < MAX_COUNT) {
+                    table[index]++;
+                    incremented=true;
+                }
+            }
+            if(incremented && ++increments >= sample_size)
+                reset();
+        }
+
+        public int frequency(Object key) {
+            int hash=spread(key.hashCode()), min=MAX_COUNT;
+            for(int i=0; i < DEPTH; i++)
+                min=Math.min(min, table[indexOf(hash, i)]);
+            return min;
+        }
+
+        /** Doubles the width (dropping the frequencies) when there are more keys than counters per row */
+        public void ensureCapacity(int num_keys) {
+            if(num_keys > mask + 1)
+                resize((mask + 1) * 2);
+        }
+
+        protected void resize(int width) {
+            table=new byte[width * DEPTH];
+            mask=width - 1;
+            sample_size=width * 10;
+            increments=0;
+        }
+
+        /** Halves all counters */
+        protected void reset() {
+            for(int i=0; i < table.length; i++)
+                table[i]=(byte)(table[i] >>> 1);
+            increments/=2;
+        }
+
+        protected int indexOf(int hash, int row) {
+            int h=(hash ^ SEEDS[row]) * 0x9E3779B9;
+            h^=h >>> 16;
+            return row * (mask + 1) + (h & mask);
+        }
+
+        protected static int spread(int h) {
+            h^=(h >>> 20) ^ (h >>> 12);
+            return h ^ (h >>> 7) ^ (h >>> 4);
+        }
+    }
+
+
+    protected static <K> K poll(LinkedHashMap<K,Boolean> map) {
+        Iterator<K> it=map.keySet().iterator();
+        if(!it.hasNext())
+            return null;
+        K key=it.next();
+        it.remove();
+        return key;
+    }
+}
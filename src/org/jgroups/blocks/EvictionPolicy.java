@@ -0,0 +1,30 @@
+package org.jgroups.blocks;
+
+/**
+ * Decides which key a bounded {@link Cache} evicts next. The cache calls the policy for every key it adds, accesses
+ * or removes, so that the policy can keep its bookkeeping up to date; all methods are O(1).
+ * <p/>
+ * Implementations don't need to be thread safe: the cache serializes all calls. Reads are recorded on a best-effort
+ * basis: a read which cannot acquire the cache's lock immediately is not recorded.
+ * @author agent
+ * @since 3.6
+ * @see EvictionPolicies
+ */
+public interface EvictionPolicy<K> {
+    /** Called when a key was added to the cache */
+    void added(K key);
+
+    /** Called when a key was read or its value was replaced. Must not add the key if it isn't tracked */
+    void accessed(K key);
+
+    /** Called when a key was removed from the cache (but not when it was returned by {@link #evict()}) */
+    void removed(K key);
+
+    /** Selects the next key to be evicted and stops tracking it. Returns null if no key is tracked */
+    K evict();
+
+    /** The number of tracked keys */
+    int size();
+
+    void clear();
+}
@@ -0,0 +1,242 @@
+package org.jgroups.blocks;
+
+import org.jgroups.util.MappedStore;
+import org.jgroups.util.Util;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A {@link ConcurrentMap} which keeps its keys and the locations of their values in an in-heap index, and the
+ * serialized keys and values in a {@link MappedStore}, so the map can hold more data than fits into the heap.
+ * Every read deserializes the value; writes are serialized by a lock. Keys and values have to be serializable (see
+ * {@link Util#objectToByteBuffer(Object)}).
+ * <p/>
+ * The map can be passed to {@link ReplicatedHashMap}, which then sends and receives the state without deserializing
+ * and re-serializing the values. If the store is persistent, the index is rebuilt from the store on creation.
+ * @author agent
+ * @since 3.6
+ */
+public class MappedMap<K,V> extends AbstractMap<K,V> implements ConcurrentMap<K,V> {
+    protected final MappedStore         store;
+    protected final ConcurrentMap<K,Long> index=Util.createConcurrentMap();
+    protected Set<Map.Entry<K,V>>       entry_set;
+
+
+    /** Creates the map and starts the store; the index is rebuilt if the store is persistent */
+    public MappedMap(MappedStore store) throws IOException {
+        this.store=store;
+        store.setRelocator(new MappedStore.Relocator() {
+            public boolean relocate(byte[] key, long old_location, long new_location) {
+                synchronized(MappedMap.this) {
+                    return index.replace(MappedMap.<K>unmarshal(key), old_location, new_location);
+                }
+            }
+        });
+        store.start();
+        if(store.isPersistent())
+            recover();
+    }
+
+    public MappedStore getStore() {return store;}
+
+    /** Closes the store. The map cannot be used afterwards */
+    public void close() {
+        store.close();
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    public boolean containsKey(Object key) {
+        return index.containsKey(key);
+    }
+
+    public V get(Object key) {
+        byte[] value=getSerializedValue(key);
+        return value != null? MappedMap.<V>unmarshal(value) : null;
+    }
+
+    /** Returns the serialized value of key, or null if key is not present */
+    public byte[] getSerializedValue(Object key) {
+        for(;;) {
+            Long location=index.get(key);
+            if(location == null)
+                return null;
+            byte[] value=store.getValue(location);
+            if(value != null)
+                return value;
+            if(location.equals(index.get(key)))
+                return null; // the store was closed
+            // the segment was compacted and the record relocated, or the key was removed: look it up again
+        }
+    }
+
+    public V put(K key, V value) {
+        byte[] tmp=putSerialized(key, marshal(value));
+        return tmp != null? MappedMap.<V>unmarshal(tmp) : null;
+    }
+
+    /** Adds a value which was serialized with {@link Util#objectToByteBuffer(Object)}, returns the previous value */
+    public synchronized byte[] putSerialized(K key, byte[] value) {
+        Long old_location=index.get(key);
+        byte[] retval=old_location != null? store.getValue(old_location) : null;
+        try {
+            index.put(key, store.put(marshal(key), value));
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+        if(old_location != null)
+            store.free(old_location);
+        return retval;
+    }
+
+    public synchronized V putIfAbsent(K key, V value) {
+        V retval=get(key);
+        if(retval == null)
+            put(key, value);
+        return retval;
+    }
+
+    public synchronized V remove(Object key) {
+        Long location=index.remove(key);
+        if(location == null)
+            return null;
+        byte[] value=store.getValue(location);
+        delete(key, location);
+        return unmarshal(value);
+    }
+
+    public synchronized boolean remove(Object key, Object value) {
+        V tmp=get(key);
+        if(tmp == null || !tmp.equals(value))
+            return false;
+        delete(key, index.remove(key));
+        return true;
+    }
+
+    public synchronized boolean replace(K key, V old_value, V new_value) {
+        V tmp=get(key);
+        if(tmp == null || !tmp.equals(old_value))
+            return false;
+        put(key, new_value);
+        return true;
+    }
+
+    public synchronized V replace(K key, V value) {
+        return containsKey(key)? put(key, value) : null;
+    }
+
+    public synchronized void clear() {
+        for(Iterator<Map.Entry<K,Long>> it=index.entrySet().iterator(); it.hasNext();) {
+            Map.Entry<K,Long> entry=it.next();
+            it.remove();
+            delete(entry.getKey(), entry.getValue());
+        }
+    }
+
+    public Set<Map.Entry<K,V>> entrySet() {
+        if(entry_set == null) {
+            entry_set=new AbstractSet<Map.Entry<K,V>>() {
+                public Iterator<Map.Entry<K,V>> iterator() {return new EntryIterator();}
+                public int size()                          {return MappedMap.this.size();}
+                public void clear()                        {MappedMap.this.clear();}
+            };
+        }
+        return entry_set;
+    }
+
+    public String toString() {
+        return size() + " entries (" + store + ")";
+    }
+
+
+    protected void delete(Object key, long location) {
+        try {
+            store.remove(marshal(key), location);
+        }
+        catch(IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /** Rebuilds the index from the records of a persistent store */
+    protected synchronized void recover() {
+        store.replay(new MappedStore.Visitor() {
+            public void put(byte[] key, long location) {
+                Long old_location=index.put(MappedMap.<K>unmarshal(key), location);
+                if(old_location != null)
+                    store.free(old_location);
+            }
+
+            public void remove(byte[] key) {
+                Long old_location=index.remove(unmarshal(key));
+                if(old_location != null)
+                    store.free(old_location);
+            }
+        });
+    }
+
+    protected static byte[] marshal(Object obj) {
+        try {
+            return Util.objectToByteBuffer(obj);
+        }
+        catch(Exception e) {
+            throw new IllegalArgumentException("failed serializing " + obj, e);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    protected static <T> T unmarshal(byte[] buf) {
+        try {
+            return (T)Util.objectFromByteBuffer(buf);
+        }
+        catch(Exception e) {
+            throw new IllegalStateException("failed deserializing entry", e);
+        }
+    }
+
+
+    /** Iterates over the index; the values are read when {@link Map.Entry#getValue()} is called */
+    protected class EntryIterator implements Iterator<Map.Entry<K,V>> {
+        protected final Iterator<K> it=index.keySet().iterator();
+        protected K                 current;
+
+        public boolean hasNext() {
+            return it.hasNext();
+        }
+
+        public Map.Entry<K,V> next() {
+            final K key=current=it.next();
+            return new Map.Entry<K,V>() {
+                public K getKey()              {return key;}
+                public V getValue()            {return get(key);}
+                public V setValue(V value)     {return put(key, value);}
+                public String toString()       {return key + "=" + getValue();}
+
+                public int hashCode() {
+                    V value=getValue();
+                    return key.hashCode() ^ (value == null? 0 : value.hashCode());
+                }
+
+                public boolean equals(Object obj) {
+                    if(!(obj instanceof Map.Entry))
+                        return false;
+                    Map.Entry<?,?> entry=(Map.Entry<?,?>)obj;
+                    V value=getValue();
+                    return key.equals(entry.getKey()) && (value == null? entry.getValue() == null : value.equals(entry.getValue()));
+                }
+            };
+        }
+
+        public void remove() {
+            if(current == null)
+                throw new IllegalStateException();
+            MappedMap.this.remove(current);
+            current=null;
+        }
+    }
+}
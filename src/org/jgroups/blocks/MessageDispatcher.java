@@ -63,6 +63,14 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
     }
 
     public MessageDispatcher(Channel channel, MessageListener l, MembershipListener l2) {
+        this(channel, l, l2, (RpcDispatcher.Marshaller)null);
+    }
+
+    /**
+     * Creates a dispatcher whose request correlator uses marshaller. Subclasses pass their marshaller here, as their
+     * fields are not yet initialized when start() is called by this constructor
+     */
+    protected MessageDispatcher(Channel channel, MessageListener l, MembershipListener l2, RpcDispatcher.Marshaller marshaller) {
         this.channel=channel;
         prot_adapter=new ProtocolAdapter();
         if(channel != null) {
@@ -73,6 +81,10 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
         setMembershipListener(l2);
         if(channel != null)
             installUpHandler(prot_adapter, true);
+        if(marshaller != null) {
+            corr=createRequestCorrelator(prot_adapter, this, local_addr).asyncDispatching(async_dispatching);
+            corr.setMarshaller(marshaller);
+        }
         start();
     }
 
@@ -141,6 +153,7 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
                 corr.registerProbeHandler(transport);
             }
             TP transport=channel.getProtocolStack().getTransport();
+            corr.setTimer(transport.getTimer());
             hardware_multicast_supported=transport.supportsMulticasting();
             transport.registerProbeHandler(probe_handler);
         }
@@ -262,7 +275,9 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
      * @param dests A list of group members from which to expect responses (if the call is blocking).
      * @param msg The message to be sent
      * @param options A set of options that govern the call. See {@link org.jgroups.blocks.RequestOptions} for details
-     * @param listener A FutureListener which will be registered (if non null) with the future <em>before</em> the call is invoked
+     * @param listener A FutureListener which will be registered (if non null) with the future <em>before</em> the call
+     *                 is invoked. It is notified once, by the thread which receives the last response, or by the timer
+     *                 when the timeout defined in options (if > 0) elapses, so it must not block
      * @return NotifyingFuture<T> A future from which the results (RspList) can be retrieved
      * @throws Exception If the request cannot be sent
      */
@@ -271,7 +286,15 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
                                                                  RequestOptions options,
                                                                  FutureListener<T> listener) throws Exception {
         GroupRequest<T> req=cast(dests,msg,options,false, listener);
-        return req != null? req : new NullFuture<RspList>(new RspList());
+        if(req != null)
+            return future(req);
+        NotifyingFuture<RspList<T>> retval=new NullFuture<RspList<T>>(new RspList<T>());
+        if(listener != null) {
+            @SuppressWarnings("unchecked") // the listener is notified with the future, so T is really RspList<T>
+            FutureListener<RspList<T>> l=(FutureListener<RspList<T>>)(FutureListener<?>)listener;
+            retval.setListener(l);
+        }
+        return retval;
     }
 
     /**
@@ -290,50 +313,129 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
 
 
 
-    protected <T> GroupRequest<T> cast(final Collection<Address> dests, Message msg, RequestOptions options,
-                                       boolean block_for_results, FutureListener<T> listener) throws Exception {
+    /**
+     * Sends a message to all members and folds the responses from members in dests (or all members if dests is null)
+     * into a single result, using an aggregator. The call returns as soon as the aggregator has decided the result,
+     * and the members whose responses are still outstanding are told not to send them.
+     * @param dests A list of group members from which to expect responses
+     * @param msg The message to be sent
+     * @param options A set of options that govern the call. The response mode and response filter are ignored
+     * @param aggregator The aggregator which is fed the responses. Must not be reused for other calls
+     * @return The result of the aggregator. If the call timed out, this may be a partial result
+     * @throws Exception If the request cannot be sent
+     * @since 3.6
+     */
+    public <R> R castMessageAggregated(final Collection<Address> dests, Message msg, RequestOptions options,
+                                       RspAggregator<R> aggregator) throws Exception {
+        AggregatingRequest<R> req=aggregate(dests, msg, options, aggregator, true, null);
+        return req != null? req.getResult() : aggregator.getResult();
+    }
+
+    /**
+     * Same as {@link #castMessageAggregated(java.util.Collection, org.jgroups.Message, RequestOptions, RspAggregator)},
+     * but returns a future. The listener (if non-null) is notified by the thread which decides the result, so it
+     * must not block
+     * @since 3.6
+     */
+    public <R> NotifyingFuture<R> castMessageAggregatedWithFuture(final Collection<Address> dests, Message msg,
+                                                                  RequestOptions options, RspAggregator<R> aggregator,
+                                                                  FutureListener<R> listener) throws Exception {
+        AggregatingRequest<R> req=aggregate(dests, msg, options, aggregator, false, listener);
+        if(req != null)
+            return future(req);
+        NotifyingFuture<R> retval=new NullFuture<R>(aggregator.getResult());
+        if(listener != null)
+            retval.setListener(listener);
+        return retval;
+    }
+
+
+    /**
+     * Sends a message to all members and receives streamed responses from members in dests (or all members if dests
+     * is null): each member returns a {@link ResponseStream}, whose chunks are passed to the listener as they are
+     * received. The future completes when all members have ended their streams; cancelling it tells the members to
+     * stop streaming.
+     * @param dests A list of group members from which to expect responses
+     * @param msg The message to be sent
+     * @param options A set of options that govern the call, e.g. the timeout. The response mode is ignored
+     * @param listener The listener which receives the chunks. Called by the thread which delivers a chunk, so it must
+     *                 not block
+     * @return A future whose result is the number of chunks received per member (or the exception with which a
+     *         member ended its stream)
+     * @throws Exception If the request cannot be sent
+     * @since 3.6
+     */
+    public <T> NotifyingFuture<RspList<Integer>> castMessageStreaming(final Collection<Address> dests, Message msg,
+                                                                      RequestOptions options,
+                                                                      ChunkListener<T> listener) throws Exception {
         if(msg.getDest() != null && !(msg.getDest() instanceof AnycastAddress))
             throw new IllegalArgumentException("message destination is non-null, cannot send message");
-        List<Address> real_dests;
-        // we need to clone because we don't want to modify the original
-        if(dests != null) {
-            real_dests=new ArrayList<Address>();
-            for(Address dest: dests) {
-                if(dest instanceof SiteAddress || this.members.contains(dest)) {
-                    if(!real_dests.contains(dest))
-                        real_dests.add(dest);
-                }
-            }
-        }
+        List<Address> real_dests=getRealDestinations(dests, options);
+        if(real_dests.isEmpty())
+            return new NullFuture<RspList<Integer>>(new RspList<Integer>());
+
+        RequestOptions opts=options != null? new RequestOptions(options) : new RequestOptions();
+        opts.setMode(ResponseMode.GET_ALL).setRspFilter(null);
+        if(opts.getAnycasting())
+            sync_anycasts.incrementAndGet();
         else
-            real_dests=new ArrayList<Address>(members);
+            sync_multicasts.incrementAndGet();
 
-        // if local delivery is off, then we should not wait for the message from the local member.
-        // therefore remove it from the membership
-        Channel tmp=channel;
-        if(tmp != null && tmp.getDiscardOwnMessages()) {
-            if(local_addr == null)
-                local_addr=tmp.getAddress();
-            if(local_addr != null)
-                real_dests.remove(local_addr);
-        }
-
-        if(options != null && options.hasExclusionList()) {
-            Address[] exclusion_list=options.exclusionList();
-            for(Address excluding: exclusion_list)
-                real_dests.remove(excluding);
-        }
+        StreamingRequest<T> req=new StreamingRequest<T>(msg, corr, real_dests, opts, listener);
+        msg.setFlag(opts.getFlags());
+        if(opts.getScope() > 0)
+            msg.setScope(opts.getScope());
+        req.setBlockForResults(false);
+        req.execute();
+        return future(req);
+    }
 
-        // don't even send the message if the destination list is empty
-        if(log.isTraceEnabled())
-            log.trace("real_dests=" + real_dests);
 
+    protected <R> AggregatingRequest<R> aggregate(final Collection<Address> dests, Message msg, RequestOptions options,
+                                                  RspAggregator<R> aggregator, boolean block_for_results,
+                                                  FutureListener<R> listener) throws Exception {
+        if(msg.getDest() != null && !(msg.getDest() instanceof AnycastAddress))
+            throw new IllegalArgumentException("message destination is non-null, cannot send message");
+        List<Address> real_dests=getRealDestinations(dests, options);
         if(real_dests.isEmpty()) {
-            if(log.isTraceEnabled())
-                log.trace("destination list is empty, won't send message");
+            aggregator.init(0);
             return null;
         }
 
+        // the aggregator rather than the response mode decides when the request is done
+        RequestOptions opts=options != null? new RequestOptions(options) : new RequestOptions();
+        opts.setMode(ResponseMode.GET_ALL).setRspFilter(null);
+        if(opts.getAnycasting())
+            sync_anycasts.incrementAndGet();
+        else
+            sync_multicasts.incrementAndGet();
+
+        AggregatingRequest<R> req=new AggregatingRequest<R>(msg, corr, real_dests, opts, aggregator);
+        if(listener != null)
+            req.setListener(listener);
+        msg.setFlag(opts.getFlags());
+        if(opts.getScope() > 0)
+            msg.setScope(opts.getScope());
+        req.setBlockForResults(block_for_results);
+        req.execute();
+        return req;
+    }
+
+
+    /** Returns a request as the future of its result: {@link Request} implements the raw NotifyingFuture */
+    @SuppressWarnings("unchecked")
+    protected static <T> NotifyingFuture<T> future(Request req) {
+        return req;
+    }
+
+    protected <T> GroupRequest<T> cast(final Collection<Address> dests, Message msg, RequestOptions options,
+                                       boolean block_for_results, FutureListener<T> listener) throws Exception {
+        if(msg.getDest() != null && !(msg.getDest() instanceof AnycastAddress))
+            throw new IllegalArgumentException("message destination is non-null, cannot send message");
+        List<Address> real_dests=getRealDestinations(dests, options);
+        if(real_dests.isEmpty())
+            return null;
+
         if(options != null) {
             boolean async=options.getMode() == ResponseMode.GET_NONE;
             if(options.getAnycasting()) {
@@ -367,6 +469,50 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
     }
 
 
+    /**
+     * Returns the members of dests (or all members if null) which are part of the cluster (or in a different site),
+     * minus the local member (if own messages are discarded) and the members of the exclusion list
+     */
+    protected List<Address> getRealDestinations(final Collection<Address> dests, RequestOptions options) {
+        List<Address> real_dests;
+        // we need to clone because we don't want to modify the original
+        if(dests != null) {
+            real_dests=new ArrayList<Address>();
+            for(Address dest: dests) {
+                if(dest instanceof SiteAddress || this.members.contains(dest)) {
+                    if(!real_dests.contains(dest))
+                        real_dests.add(dest);
+                }
+            }
+        }
+        else
+            real_dests=new ArrayList<Address>(members);
+
+        // if local delivery is off, then we should not wait for the message from the local member.
+        // therefore remove it from the membership
+        Channel tmp=channel;
+        if(tmp != null && tmp.getDiscardOwnMessages()) {
+            if(local_addr == null)
+                local_addr=tmp.getAddress();
+            if(local_addr != null)
+                real_dests.remove(local_addr);
+        }
+
+        if(options != null && options.hasExclusionList()) {
+            Address[] exclusion_list=options.exclusionList();
+            for(Address excluding: exclusion_list)
+                real_dests.remove(excluding);
+        }
+
+        if(log.isTraceEnabled())
+            log.trace("real_dests=" + real_dests);
+
+        // don't even send the message if the destination list is empty
+        if(real_dests.isEmpty() && log.isTraceEnabled())
+            log.trace("destination list is empty, won't send message");
+        return real_dests;
+    }
+
     public void done(long req_id) {
         corr.done(req_id);
     }
@@ -426,7 +572,9 @@ public class MessageDispatcher implements AsyncRequestHandler, ChannelListener {
      * Sends a unicast message to the target defined by msg.getDest() and returns a future
      * @param msg The unicast message to be sent. msg.getDest() must not be null
      * @param options
-     * @param listener A FutureListener which will be registered (if non null) with the future <em>before</em> the call is invoked
+     * @param listener A FutureListener which will be registered (if non null) with the future <em>before</em> the call
+     *                 is invoked. It is notified once, by the thread which receives the response, or by the timer
+     *                 when the timeout defined in options (if > 0) elapses, so it must not block
      * @return NotifyingFuture<T> A future from which the result can be fetched
      * @throws Exception If there was problem sending the request, processing it at the receiver, or processing
      *                   it at the sender. {@link java.util.concurrent.Future#get()} will throw this exception
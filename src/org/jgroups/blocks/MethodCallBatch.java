@@ -0,0 +1,103 @@
+package org.jgroups.blocks;
+
+import org.jgroups.util.Bits;
+import org.jgroups.util.Streamable;
+import org.jgroups.util.Util;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A number of {@link MethodCall}s which are sent in a single request message and invoked by the receiver(s) either
+ * sequentially (in the order in which they were added) or in parallel. The receiver returns a single {@link Results}
+ * with a return value or exception per call.
+ * @author agent
+ * @since 3.6
+ * @see RpcDispatcher#callRemoteMethodsBatch(java.util.Collection, java.util.List, boolean, RequestOptions)
+ */
+public class MethodCallBatch implements Streamable {
+    protected MethodCall[] calls;
+    protected boolean      parallel;
+
+
+    public MethodCallBatch() { // needed for deserialization
+    }
+
+    public MethodCallBatch(List<MethodCall> calls, boolean parallel) {
+        this(calls.toArray(new MethodCall[calls.size()]), parallel);
+    }
+
+    public MethodCallBatch(MethodCall[] calls, boolean parallel) {
+        this.calls=calls;
+        this.parallel=parallel;
+    }
+
+    public MethodCall[] getCalls()   {return calls;}
+    public int          size()       {return calls != null? calls.length : 0;}
+    public boolean      isParallel() {return parallel;}
+
+    public void writeTo(DataOutput out) throws Exception {
+        out.writeBoolean(parallel);
+        Bits.writeVarInt(size(), out);
+        for(int i=0; i < size(); i++)
+            calls[i].writeTo(out);
+    }
+
+    public void readFrom(DataInput in) throws Exception {
+        parallel=in.readBoolean();
+        calls=new MethodCall[Bits.readVarInt(in)];
+        for(int i=0; i < calls.length; i++) {
+            calls[i]=new MethodCall();
+            calls[i].readFrom(in);
+        }
+    }
+
+    public String toString() {
+        return size() + " calls" + (parallel? " (parallel)" : "") + ": " + Arrays.toString(calls);
+    }
+
+
+    /** The results of a batch: for each call, its return value or the exception it threw */
+    public static class Results implements Streamable {
+        protected Object[]  values;
+        protected boolean[] exceptions;
+
+        public Results() { // needed for deserialization
+        }
+
+        public Results(int size) {
+            values=new Object[size];
+            exceptions=new boolean[size];
+        }
+
+        public int     size()                             {return values.length;}
+        public Object  get(int index)                     {return values[index];}
+        public boolean isException(int index)             {return exceptions[index];}
+        public void    setValue(int index, Object value)  {values[index]=value; exceptions[index]=false;}
+        public void    setException(int index, Throwable t) {values[index]=t; exceptions[index]=true;}
+
+        public void writeTo(DataOutput out) throws Exception {
+            Bits.writeVarInt(values.length, out);
+            for(int i=0; i < values.length; i++) {
+                out.writeBoolean(exceptions[i]);
+                Util.objectToStream(values[i], out);
+            }
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            int size=Bits.readVarInt(in);
+            values=new Object[size];
+            exceptions=new boolean[size];
+            for(int i=0; i < size; i++) {
+                exceptions[i]=in.readBoolean();
+                values[i]=Util.objectFromStream(in);
+            }
+        }
+
+        public String toString() {
+            return Arrays.toString(values);
+        }
+    }
+}
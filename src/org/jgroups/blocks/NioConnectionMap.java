@@ -0,0 +1,1012 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Version;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.*;
+
+import java.io.*;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Manages TCP connections between members with a small, fixed number of selector threads ({@link Reactor}s),
+ * instead of the 2 threads per connection used by {@link TCPConnectionMap}. All channels are non-blocking.
+ * <p/>
+ * The wire format is the same as that of TCPConnectionMap: a connection starts with a handshake (cookie, version
+ * and the address of the connecting member), followed by frames, each consisting of the length (int) and the data.
+ * <p/>
+ * A sender writes a frame directly to the channel if no other frames are queued. Whatever cannot be written
+ * without blocking is copied into the connection's write queue and written by the reactor when the channel becomes
+ * writable again. A sender blocks when more than send_queue_size frames are queued.
+ * <p/>
+ * Frames are read into a per-connection buffer, which is reused for the next frames. By default, every frame is
+ * copied before it is passed to the receiver. A receiver which doesn't retain the data after its callback returns
+ * (e.g. TP with buffer_pool.receive, which then copies the data it keeps) can disable the copy with {@link #copyFrames(boolean)},
+ * and is then passed the data directly from the read buffer.
+ * <p/>
+ * Note that a {@link SocketFactory} cannot be used, as it creates blocking sockets rather than channels.
+ * @author agent
+ * @since 3.6
+ */
+public class NioConnectionMap {
+    protected final Mapper                    mapper;
+    protected final InetAddress               bind_addr;
+    protected InetAddress                     client_bind_addr;
+    protected int                             client_bind_port;
+    protected boolean                         defer_client_binding;
+    protected final Address                   local_addr; // bind_addr + port of srv_channel
+    protected final ServerSocketChannel       srv_channel;
+    protected TCPConnectionMap.Receiver       recvr;
+    protected final long                      conn_expire_time;
+    protected Log                             log=LogFactory.getLog(getClass());
+    protected int                             recv_buf_size=120000;
+    protected int                             send_buf_size=60000;
+    protected int                             send_queue_size=2000; // max number of frames queued per connection
+    protected int                             sock_conn_timeout=1000;      // max time in millis for a connect()
+    protected int                             peer_addr_read_timeout=2000; // max time in millis to complete the handshake
+    protected boolean                         tcp_nodelay=false;
+    protected int                             linger=-1;
+    protected int                             read_buf_size=8192; // initial size of the read buffer of a connection
+    protected final Reactor[]                 reactors;
+    protected final AtomicInteger             next_reactor=new AtomicInteger(0);
+    protected final AtomicBoolean             running=new AtomicBoolean(false);
+    protected TimeService                     time_service;
+    protected BufferPool                      buffer_pool; // if set, used for frames in the write queues
+    protected boolean                         copy_frames=true; // copies frames before passing them to the receiver
+
+    protected static final byte[]             COOKIE={'b', 'e', 'l', 'a'};
+    protected static final int                HANDSHAKE_PREFIX=COOKIE.length + Global.SHORT_SIZE + Global.BYTE_SIZE;
+    protected static final int                MAX_BUFS_PER_WRITE=16;  // max number of queued frames per write()
+    protected static final int                MAX_READS=16;           // max number of reads per readable event
+
+
+    public NioConnectionMap(ThreadFactory f,
+                            TCPConnectionMap.Receiver r,
+                            InetAddress bind_addr,
+                            InetAddress external_addr,
+                            int external_port,
+                            int srv_port,
+                            int max_port,
+                            long reaper_interval,
+                            long conn_expire_time,
+                            int num_reactors) throws Exception {
+        this.mapper=new Mapper(f, reaper_interval);
+        this.recvr=r;
+        this.bind_addr=bind_addr;
+        this.conn_expire_time=conn_expire_time;
+        this.srv_channel=createServerSocketChannel(bind_addr, srv_port, max_port);
+        int local_port=srv_channel.socket().getLocalPort();
+
+        if(external_addr != null)
+            local_addr=new IpAddress(external_addr, external_port <= 0? local_port : external_port);
+        else if(bind_addr != null)
+            local_addr=new IpAddress(bind_addr, local_port);
+        else
+            local_addr=new IpAddress(local_port);
+
+        reactors=new Reactor[Math.max(1, num_reactors)];
+        for(int i=0; i < reactors.length; i++)
+            reactors[i]=new Reactor(f, "NioConnectionMap.Reactor-" + (i+1) + " [" + local_addr + "]");
+    }
+
+    public Address          getLocalAddress()                       {return local_addr;}
+    public TCPConnectionMap.Receiver getReceiver()                  {return recvr;}
+    public void             setReceiver(TCPConnectionMap.Receiver r){this.recvr=r;}
+    public InetAddress      clientBindAddress()                     {return client_bind_addr;}
+    public NioConnectionMap clientBindAddress(InetAddress addr)     {this.client_bind_addr=addr; return this;}
+    public int              clientBindPort()                        {return client_bind_port;}
+    public NioConnectionMap clientBindPort(int port)                {this.client_bind_port=port; return this;}
+    public boolean          deferClientBinding()                    {return defer_client_binding;}
+    public NioConnectionMap deferClientBinding(boolean defer)       {this.defer_client_binding=defer; return this;}
+    public NioConnectionMap receiveBufferSize(int size)             {this.recv_buf_size=size; return this;}
+    public NioConnectionMap sendBufferSize(int size)                {this.send_buf_size=size; return this;}
+    public NioConnectionMap sendQueueSize(int size)                 {this.send_queue_size=size; return this;}
+    public int              sendQueueSize()                         {return send_queue_size;}
+    public NioConnectionMap socketConnectionTimeout(int timeout)    {this.sock_conn_timeout=timeout; return this;}
+    public NioConnectionMap peerAddressReadTimeout(int timeout)     {this.peer_addr_read_timeout=timeout; return this;}
+    public NioConnectionMap tcpNodelay(boolean nodelay)             {this.tcp_nodelay=nodelay; return this;}
+    public NioConnectionMap linger(int linger)                      {this.linger=linger; return this;}
+    public NioConnectionMap readBufferSize(int size)                {this.read_buf_size=size; return this;}
+    public NioConnectionMap timeService(TimeService ts)             {this.time_service=ts; return this;}
+    public BufferPool       bufferPool()                            {return buffer_pool;}
+    public NioConnectionMap bufferPool(BufferPool pool)             {this.buffer_pool=pool; return this;}
+    public boolean          copyFrames()                            {return copy_frames;}
+    public NioConnectionMap copyFrames(boolean copy)                {this.copy_frames=copy; return this;}
+    public NioConnectionMap log(Log new_log)                        {this.log=new_log; return this;}
+    public int              getNumReactors()                        {return reactors.length;}
+    public int              getNumConnections()                     {return mapper.getNumConnections();}
+    public int              getNumOpenConnections()                 {return mapper.getNumOpenConnections();}
+    public boolean          connectionEstablishedTo(Address addr)   {return mapper.connectionEstablishedTo(addr);}
+    public String           printConnections()                      {return mapper.printConnections();}
+    public void             retainAll(Collection<Address> members)  {mapper.retainAll(members);}
+    public long             getConnectionExpiryTimeout()            {return conn_expire_time;}
+
+    /** Returns the number of frames in all write queues */
+    public int getNumQueuedFrames() {
+        int retval=0;
+        mapper.getLock().lock();
+        try {
+            for(NioConnection conn: mapper.conns.values())
+                retval+=conn.queuedFrames();
+            return retval;
+        }
+        finally {
+            mapper.getLock().unlock();
+        }
+    }
+
+    public void addConnectionMapListener(AbstractConnectionMap.ConnectionMapListener<NioConnection> l) {
+        mapper.addConnectionMapListener(l);
+    }
+
+    public void removeConnectionMapListener(AbstractConnectionMap.ConnectionMapListener<NioConnection> l) {
+        mapper.removeConnectionMapListener(l);
+    }
+
+    /**
+     * Calls the receiver callback. This is called concurrently by the reactor threads, so the receiver needs to be
+     * reentrant. If copy_frames is false, the data is only valid until the callback returns.
+     */
+    public void receive(Address sender, byte[] data, int offset, int length) {
+        recvr.receive(sender, data, offset, length);
+    }
+
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(dest == null) {
+            log.error(local_addr + ": destination is null");
+            return;
+        }
+        if(data == null) {
+            log.warn(local_addr + ": data is null; discarding message to " + dest);
+            return;
+        }
+        if(!running.get()) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": connection table is not running, discarding message to " + dest);
+            return;
+        }
+        if(dest.equals(local_addr)) {
+            receive(local_addr, data, offset, length);
+            return;
+        }
+
+        NioConnection conn=getConnectionTo(dest);
+        if(conn != null) {
+            try {
+                conn.send(data, offset, length);
+            }
+            catch(Exception ex) {
+                mapper.removeConnectionIfPresent(dest, conn);
+                throw ex;
+            }
+        }
+    }
+
+    /** Sends the buffers as a single frame. The buffers are only copied if they cannot be written right away */
+    public void send(Address dest, Buffers data) throws Exception {
+        if(dest == null) {
+            log.error(local_addr + ": destination is null");
+            return;
+        }
+        if(!running.get()) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": connection table is not running, discarding message to " + dest);
+            return;
+        }
+        if(dest.equals(local_addr)) {
+            byte[] tmp=data.copy();
+            receive(local_addr, tmp, 0, tmp.length);
+            return;
+        }
+
+        NioConnection conn=getConnectionTo(dest);
+        if(conn != null) {
+            try {
+                conn.send(data);
+            }
+            catch(Exception ex) {
+                mapper.removeConnectionIfPresent(dest, conn);
+                throw ex;
+            }
+        }
+    }
+
+    /** Returns the connection to dest, creating it if not yet existent. Returns null if not possible */
+    protected NioConnection getConnectionTo(Address dest) {
+        NioConnection conn=null;
+        try {
+            conn=mapper.getConnection(dest);
+        }
+        catch(Throwable t) {
+        }
+
+        if(conn != null && !conn.isConnected()) { // perhaps not connected because of concurrent connections (JGRP-1549)
+            Util.sleepRandom(1, 50);
+            try {
+                conn=mapper.getConnection(dest); // try one more time
+            }
+            catch(Throwable t) {
+            }
+        }
+        return conn;
+    }
+
+    public void start() throws Exception {
+        if(running.compareAndSet(false, true)) {
+            reactors[0].register(srv_channel, SelectionKey.OP_ACCEPT, null);
+            for(Reactor reactor: reactors)
+                reactor.start();
+            mapper.start();
+        }
+    }
+
+    public void stop() {
+        if(running.compareAndSet(true, false)) {
+            Util.close(srv_channel);
+            mapper.stop();
+            for(Reactor reactor: reactors)
+                reactor.stop();
+        }
+    }
+
+    public String toString() {
+        StringBuilder ret=new StringBuilder();
+        ret.append("local_addr=" + local_addr).append("\n");
+        ret.append("connections (" + mapper.size() + "):\n");
+        ret.append(mapper.toString());
+        ret.append('\n');
+        return ret.toString();
+    }
+
+
+    protected static ServerSocketChannel createServerSocketChannel(InetAddress bind_addr, int start_port,
+                                                                   int end_port) throws Exception {
+        int original_start_port=start_port;
+        while(true) {
+            ServerSocketChannel ch=ServerSocketChannel.open();
+            try {
+                ch.socket().setReuseAddress(true);
+                ch.socket().bind(new InetSocketAddress(bind_addr, start_port), 50);
+                ch.configureBlocking(false);
+                return ch;
+            }
+            catch(SocketException bind_ex) {
+                Util.close(ch);
+                if(start_port == end_port || start_port == 0)
+                    throw new BindException("No available port to bind to in range [" + original_start_port + " .. " + end_port + "]");
+                if(bind_addr != null && !bind_addr.isLoopbackAddress()) {
+                    NetworkInterface nic=NetworkInterface.getByInetAddress(bind_addr);
+                    if(nic == null)
+                        throw new BindException("bind_addr " + bind_addr + " is not a valid interface: " + bind_ex);
+                }
+                start_port++;
+            }
+        }
+    }
+
+    protected void setSocketParameters(Socket client_sock) throws SocketException {
+        try {
+            client_sock.setSendBufferSize(send_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            log.error(local_addr + ": exception setting send buffer size to " + send_buf_size + " bytes", ex);
+        }
+        try {
+            client_sock.setReceiveBufferSize(recv_buf_size);
+        }
+        catch(IllegalArgumentException ex) {
+            log.error(local_addr + ": exception setting receive buffer size to " + recv_buf_size + " bytes", ex);
+        }
+
+        client_sock.setKeepAlive(true);
+        client_sock.setTcpNoDelay(tcp_nodelay);
+        if(linger > 0)
+            client_sock.setSoLinger(true, linger);
+        else
+            client_sock.setSoLinger(false, -1);
+    }
+
+    protected Reactor nextReactor() {
+        int index=next_reactor.getAndIncrement() & Integer.MAX_VALUE;
+        return reactors[index % reactors.length];
+    }
+
+    protected long getTimestamp() {
+        return time_service != null? time_service.timestamp() : System.currentTimeMillis();
+    }
+
+    /** Accepts all pending connections and assigns them to the reactors (round robin) */
+    protected void handleAccept() {
+        for(;;) {
+            SocketChannel ch=null;
+            try {
+                if((ch=srv_channel.accept()) == null)
+                    return;
+                setSocketParameters(ch.socket());
+                ch.configureBlocking(false);
+                NioConnection conn=new NioConnection(ch, null);
+                conn.reactor=nextReactor();
+                conn.reactor.register(ch, SelectionKey.OP_READ, conn);
+            }
+            catch(Exception ex) {
+                Util.close(ch);
+                if(!running.get() || !srv_channel.isOpen())
+                    return;
+                log.warn(Util.getMessage("AcceptError"), ex);
+                return;
+            }
+        }
+    }
+
+    /** Called by a reactor when the handshake of an accepted connection has completed */
+    protected void handleHandshake(NioConnection conn) {
+        Address peer_addr=conn.peer_addr;
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": " + peer_addr + " trying to connect to me");
+        mapper.getLock().lock();
+        try {
+            boolean conn_exists=mapper.hasConnection(peer_addr),
+              replace=conn_exists && local_addr.compareTo(peer_addr) < 0; // bigger conn wins
+
+            if(!conn_exists || replace) {
+                mapper.addConnection(peer_addr, conn); // closes old conn
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": accepted connection from " + peer_addr +
+                                TCPConnectionMap.explanation(conn_exists, replace));
+            }
+            else {
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": rejected connection from " + peer_addr +
+                                TCPConnectionMap.explanation(conn_exists, replace));
+                conn.close(false); // keep our existing conn, reject the accepted channel
+            }
+        }
+        finally {
+            mapper.getLock().unlock();
+        }
+    }
+
+
+    /**
+     * A selector loop. Handles accept (first reactor only), read and write events of the channels registered with
+     * it. Registrations from other threads are passed to the loop as tasks.
+     */
+    protected class Reactor implements Runnable {
+        protected final Selector        selector;
+        protected final Thread          thread;
+        protected final java.util.Queue<Runnable> tasks=new ConcurrentLinkedQueue<Runnable>();
+        // the earliest time at which the handshake of an accepted connection expires. Only accessed by the reactor
+        // thread, so that the connections are only checked for expired handshakes when one can have expired
+        protected long                  handshake_deadline=Long.MAX_VALUE;
+
+        public Reactor(ThreadFactory f, String name) throws IOException {
+            selector=Selector.open();
+            thread=f.newThread(this, name);
+        }
+
+        public void start() {
+            thread.start();
+        }
+
+        public void stop() {
+            selector.wakeup();
+            Util.interruptAndWaitToDie(thread);
+            for(SelectionKey key: keys()) {
+                Object attachment=key.attachment();
+                if(attachment instanceof NioConnection)
+                    Util.close((NioConnection)attachment);
+            }
+            try {
+                selector.close();
+            }
+            catch(IOException e) {
+            }
+        }
+
+        /** Registers ch with this reactor. The registration is done by the reactor thread */
+        public void register(final SelectableChannel ch, final int ops, final NioConnection conn) {
+            tasks.add(new Runnable() {
+                public void run() {
+                    try {
+                        SelectionKey key=ch.register(selector, ops, conn);
+                        if(conn != null) {
+                            conn.registered(key);
+                            if(conn.peer_addr == null) // accepted, handshake not yet received
+                                handshake_deadline=Math.min(handshake_deadline, conn.created + peer_addr_read_timeout);
+                        }
+                    }
+                    catch(Exception ex) {
+                        if(conn != null) {
+                            if(running.get() && !conn.closed) // the conn might have been replaced meanwhile
+                                log.warn(local_addr + ": failed registering " + conn + ": " + ex);
+                            Util.close(conn);
+                        }
+                        else
+                            Util.close(ch);
+                    }
+                }
+            });
+            selector.wakeup();
+        }
+
+        public void run() {
+            while(running.get() && !Thread.currentThread().isInterrupted()) {
+                try {
+                    selector.select(peer_addr_read_timeout);
+                    runTasks();
+                    Set<SelectionKey> selected=selector.selectedKeys();
+                    for(Iterator<SelectionKey> it=selected.iterator(); it.hasNext();) {
+                        SelectionKey key=it.next();
+                        it.remove();
+                        handle(key);
+                    }
+                    if(handshake_deadline != Long.MAX_VALUE && getTimestamp() >= handshake_deadline)
+                        expireHandshakes();
+                }
+                catch(ClosedSelectorException ex) {
+                    break;
+                }
+                catch(Throwable t) {
+                    if(running.get())
+                        log.warn(local_addr + ": failure in " + Thread.currentThread().getName(), t);
+                }
+            }
+        }
+
+        protected void runTasks() {
+            Runnable task;
+            while((task=tasks.poll()) != null)
+                task.run();
+        }
+
+        protected void handle(SelectionKey key) {
+            if(!key.isValid())
+                return;
+            if(key.isAcceptable()) {
+                handleAccept();
+                return;
+            }
+            NioConnection conn=(NioConnection)key.attachment();
+            try {
+                if(key.isReadable())
+                    conn.read();
+                if(key.isValid() && key.isWritable())
+                    conn.write();
+            }
+            catch(Throwable t) {
+                if(log.isTraceEnabled() && !(t instanceof IOException))
+                    log.trace(local_addr + ": closing " + conn + ": " + t);
+                if(conn.peer_addr != null)
+                    mapper.removeConnectionIfPresent(conn.peer_addr, conn);
+                Util.close(conn);
+            }
+        }
+
+        /**
+         * Closes accepted connections which didn't complete the handshake within peer_addr_read_timeout ms and sets
+         * handshake_deadline to the expiry time of the earliest remaining handshake
+         */
+        protected void expireHandshakes() {
+            long now=getTimestamp(), next_deadline=Long.MAX_VALUE;
+            for(SelectionKey key: selector.keys()) {
+                Object attachment=key.attachment();
+                if(attachment instanceof NioConnection) {
+                    NioConnection conn=(NioConnection)attachment;
+                    if(conn.peer_addr != null || conn.closed)
+                        continue;
+                    long deadline=conn.created + peer_addr_read_timeout;
+                    if(now >= deadline) {
+                        log.warn(local_addr + ": closing " + conn + " as the peer address was not received within " +
+                                   peer_addr_read_timeout + " ms");
+                        Util.close(conn);
+                    }
+                    else
+                        next_deadline=Math.min(next_deadline, deadline);
+                }
+            }
+            handshake_deadline=next_deadline;
+        }
+
+        protected Set<SelectionKey> keys() {
+            try {
+                return new HashSet<SelectionKey>(selector.keys());
+            }
+            catch(Throwable t) { // keys() may throw ClosedSelectorException, or fail on concurrent registration
+                return Collections.emptySet();
+            }
+        }
+    }
+
+
+    public class NioConnection implements Connection {
+        protected final SocketChannel       channel;
+        protected final ReentrantLock       send_lock=new ReentrantLock(); // guards write_queue, header and write_bufs
+        protected final Condition           not_full=send_lock.newCondition();
+        protected final Deque<ByteBuffer>   write_queue=new ArrayDeque<ByteBuffer>(); // frames not yet written
+        protected final ByteBuffer          header=ByteBuffer.allocate(Global.INT_SIZE);
+        protected final ByteBuffer[]        write_bufs=new ByteBuffer[MAX_BUFS_PER_WRITE];
+        protected ByteBuffer                in; // read buffer, only accessed by the reactor thread
+        protected volatile Address          peer_addr; // address of the 'other end' of the connection
+        protected volatile Reactor          reactor;
+        protected volatile SelectionKey     key;
+        protected volatile boolean          established; // set when the handshake has been sent or received
+        protected volatile boolean          closed;
+        protected final long                created=getTimestamp();
+        protected volatile long             last_access=created; // last time a message was sent or received
+
+
+        public NioConnection(SocketChannel channel, Address peer_addr) {
+            this.channel=channel;
+            this.peer_addr=peer_addr;
+        }
+
+        public Address getPeerAddress() {return peer_addr;}
+
+        public int queuedFrames() {
+            send_lock.lock();
+            try {
+                return write_queue.size();
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        protected void updateLastAccessed() {
+            if(conn_expire_time > 0)
+                last_access=getTimestamp();
+        }
+
+        /** Connects to dest in blocking mode, sends the handshake and registers with a reactor */
+        protected void connect(SocketAddress dest) throws Exception {
+            Socket sock=channel.socket();
+            try {
+                setSocketParameters(sock);
+                if(!defer_client_binding)
+                    sock.bind(new InetSocketAddress(client_bind_addr, client_bind_port));
+                if(sock.getLocalSocketAddress() != null && sock.getLocalSocketAddress().equals(dest))
+                    throw new IllegalStateException("socket's bind and connect address are the same: " + dest);
+                sock.connect(dest, sock_conn_timeout);
+
+                ByteBuffer handshake=createHandshake(local_addr);
+                while(handshake.hasRemaining())
+                    channel.write(handshake);
+                updateLastAccessed();
+                channel.configureBlocking(false);
+                established=true;
+                reactor=nextReactor();
+                reactor.register(channel, SelectionKey.OP_READ, this);
+            }
+            catch(Exception ex) {
+                Util.close(channel);
+                throw ex;
+            }
+        }
+
+        /** Called by the reactor thread once the channel has been registered */
+        protected void registered(SelectionKey k) {
+            send_lock.lock();
+            try {
+                if(closed) {
+                    k.cancel();
+                    return;
+                }
+                key=k;
+                if(!write_queue.isEmpty())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        protected void send(byte[] data, int offset, int length) throws Exception {
+            send_lock.lock();
+            try {
+                header.clear();
+                header.putInt(length).flip();
+                ByteBuffer body=ByteBuffer.wrap(data, offset, length);
+                write_bufs[0]=header;
+                write_bufs[1]=body;
+                try {
+                    send(write_bufs, 2);
+                }
+                finally {
+                    write_bufs[0]=write_bufs[1]=null;
+                }
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /** Sends the buffers as a single frame. Positions of the buffers in data are not changed */
+        protected void send(Buffers data) throws Exception {
+            ByteBuffer[] bufs=new ByteBuffer[data.size() + 1];
+            for(int i=0; i < data.size(); i++)
+                bufs[i+1]=data.get(i).duplicate();
+            send_lock.lock();
+            try {
+                header.clear();
+                header.putInt(data.length()).flip();
+                bufs[0]=header;
+                send(bufs, bufs.length);
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /**
+         * Writes as much of the frame in bufs as possible without blocking, and copies the rest into the write
+         * queue. If frames are already queued, the entire frame is queued. Needs to be called with send_lock held
+         */
+        protected void send(ByteBuffer[] bufs, int num) throws Exception {
+            if(closed)
+                throw new ClosedChannelException();
+            if(write_queue.isEmpty()) {
+                long remaining=0;
+                for(int i=0; i < num; i++)
+                    remaining+=bufs[i].remaining();
+                while(remaining > 0) {
+                    long written=channel.write(bufs, 0, num);
+                    if(written <= 0)
+                        break;
+                    remaining-=written;
+                }
+                updateLastAccessed();
+                if(remaining == 0)
+                    return;
+            }
+            ByteBuffer copy=copy(bufs, num); // bufs may be reused by other senders while we wait for space
+            boolean added=false;
+            try {
+                if(!waitForSpace())
+                    return;
+                boolean was_empty=write_queue.isEmpty();
+                added=write_queue.add(copy);
+                if(was_empty && key != null) { // if key is null, registered() will set OP_WRITE
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                    key.selector().wakeup();
+                }
+            }
+            finally {
+                if(!added)
+                    release(copy);
+            }
+        }
+
+        /** Blocks until the write queue has room for another frame, or sock_conn_timeout ms have elapsed */
+        protected boolean waitForSpace() throws Exception {
+            long timeout=TimeUnit.NANOSECONDS.convert(sock_conn_timeout, TimeUnit.MILLISECONDS);
+            int max=Math.max(1, send_queue_size);
+            while(write_queue.size() >= max) {
+                if(closed)
+                    throw new ClosedChannelException();
+                if(timeout <= 0) {
+                    log.warn("Discarding message because TCP send_queue is full and hasn't been releasing for " +
+                               sock_conn_timeout + " ms");
+                    return false;
+                }
+                timeout=not_full.awaitNanos(timeout);
+            }
+            return true;
+        }
+
+        /** Copies the remaining bytes of the buffers into a single (possibly pooled) buffer */
+        protected ByteBuffer copy(ByteBuffer[] bufs, int num) {
+            int length=0;
+            for(int i=0; i < num; i++)
+                length+=bufs[i].remaining();
+            BufferPool pool=buffer_pool;
+            ByteBuffer copy=ByteBuffer.wrap(pool != null? pool.acquire(length) : new byte[length], 0, length);
+            for(int i=0; i < num; i++)
+                copy.put(bufs[i]);
+            copy.flip();
+            return copy;
+        }
+
+        /** Called by the reactor when the channel is writable: writes queued frames until the channel is full */
+        protected void write() throws IOException {
+            send_lock.lock();
+            try {
+                while(!write_queue.isEmpty()) {
+                    int num=0;
+                    for(Iterator<ByteBuffer> it=write_queue.iterator(); it.hasNext() && num < write_bufs.length;)
+                        write_bufs[num++]=it.next();
+                    long written=channel.write(write_bufs, 0, num);
+                    Arrays.fill(write_bufs, 0, num, null);
+                    ByteBuffer buf;
+                    while((buf=write_queue.peek()) != null && !buf.hasRemaining()) {
+                        write_queue.poll();
+                        release(buf);
+                    }
+                    if(written <= 0 || (buf != null && buf.position() > 0))
+                        break; // channel is full
+                }
+                if(write_queue.isEmpty())
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                updateLastAccessed();
+                not_full.signalAll();
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
+        /** Called by the reactor when the channel is readable: reads frames and passes them to the receiver */
+        protected void read() throws Exception {
+            if(in == null)
+                in=ByteBuffer.allocate(read_buf_size);
+            for(int i=0; i < MAX_READS && !closed; i++) {
+                int num=channel.read(in);
+                if(num < 0)
+                    throw new EOFException("connection to " + peer_addr + " was closed by the peer");
+                if(num == 0)
+                    break;
+                updateLastAccessed();
+                in.flip();
+                int required;
+                try {
+                    required=peer_addr == null? readPeerAddress() : 0;
+                    if(required == 0)
+                        required=readFrames();
+                }
+                finally {
+                    in.compact();
+                }
+                if(required > in.capacity())
+                    in=grow(in, required);
+            }
+        }
+
+        /**
+         * Passes all complete frames in the read buffer to the receiver. Returns 0 or - if the buffer contains an
+         * incomplete frame - the number of bytes required to read it
+         */
+        protected int readFrames() throws IOException {
+            byte[] buf=in.array();
+            while(in.remaining() >= Global.INT_SIZE && !closed) {
+                int pos=in.position(), len=in.getInt(pos);
+                if(len < 0)
+                    throw new StreamCorruptedException("invalid frame length " + len + " from " + peer_addr);
+                if(in.remaining() < Global.INT_SIZE + len)
+                    return Global.INT_SIZE + len;
+                in.position(pos + Global.INT_SIZE + len);
+                int offset=in.arrayOffset() + pos + Global.INT_SIZE;
+                try {
+                    if(copy_frames) // buf is overwritten by the next frames
+                        receive(peer_addr, Arrays.copyOfRange(buf, offset, offset + len), 0, len);
+                    else
+                        receive(peer_addr, buf, offset, len);
+                }
+                catch(Throwable t) {
+                    log.error(local_addr + ": failed handling frame from " + peer_addr, t);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Reads the cookie, version and address of the peer. Returns 0 if the handshake is complete, or else the
+         * number of bytes required to read it
+         */
+        protected int readPeerAddress() throws Exception {
+            int available=in.remaining(), pos=in.position();
+            for(int i=0; i < COOKIE.length && i < available; i++)
+                if(in.get(pos + i) != COOKIE[i])
+                    throw new SocketException("cookie read by " + local_addr + " does not match own cookie; " +
+                                                "terminating connection");
+            if(available < HANDSHAKE_PREFIX)
+                return HANDSHAKE_PREFIX;
+            int addr_len=in.get(pos + HANDSHAKE_PREFIX - 1);
+            int required=HANDSHAKE_PREFIX + addr_len + (addr_len == Global.IPV6_SIZE? Global.INT_SIZE : 0) + Global.SHORT_SIZE;
+            if(available < required)
+                return required;
+
+            DataInputStream dis=new DataInputStream(new ExposedByteArrayInputStream(in.array(), in.arrayOffset() + pos, required));
+            dis.skipBytes(COOKIE.length);
+            short version=dis.readShort();
+            if(!Version.isBinaryCompatible(version))
+                throw new IOException("packet from " + channel.socket().getRemoteSocketAddress() + " has different version (" +
+                                        Version.print(version) + ") from ours (" + Version.printVersion() + "); discarding it");
+            IpAddress addr=new IpAddress();
+            addr.readFrom(dis);
+            in.position(pos + required);
+            peer_addr=addr;
+            established=true;
+            handleHandshake(this);
+            return 0;
+        }
+
+        protected void release(ByteBuffer buf) {
+            BufferPool pool=buffer_pool;
+            if(pool != null)
+                pool.release(buf.array());
+        }
+
+        public boolean isConnected() {
+            return established && !closed && channel.isOpen();
+        }
+
+        public boolean isOpen() {
+            return isConnected();
+        }
+
+        public boolean isExpired(long now) {
+            return getConnectionExpiryTimeout() > 0 && now - last_access >= getConnectionExpiryTimeout();
+        }
+
+        public void close() throws IOException {
+            close(true);
+        }
+
+        /**
+         * Closes the connection. Listeners are only notified if notify is true: a duplicate connection which is
+         * rejected in favor of an existing one must not make listeners believe that the connection to the peer closed
+         */
+        protected void close(boolean notify) {
+            send_lock.lock();
+            try {
+                if(closed)
+                    return;
+                closed=true;
+                if(key != null)
+                    key.cancel();
+                Util.close(channel);
+                ByteBuffer buf;
+                while((buf=write_queue.poll()) != null)
+                    release(buf);
+                not_full.signalAll();
+            }
+            finally {
+                send_lock.unlock();
+            }
+            if(notify && peer_addr != null)
+                mapper.notifyConnectionClosed(peer_addr);
+        }
+
+        public String toString() {
+            Socket sock=channel.socket();
+            InetAddress local=sock.getLocalAddress(), remote=sock.getInetAddress();
+            String local_str=local != null? Util.shortName(local) : "<null>";
+            String remote_str=remote != null? Util.shortName(remote) : "<null>";
+            return String.format("<%s:%d --> %s:%d> (%d secs old) [%s] (%d frames queued)",
+                                 local_str, sock.getLocalPort(), remote_str, sock.getPort(),
+                                 (getTimestamp() - last_access) / 1000, isOpen()? "open" : "closed", queuedFrames());
+        }
+    }
+
+
+    protected static ByteBuffer createHandshake(Address local_addr) throws Exception {
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(HANDSHAKE_PREFIX + local_addr.size());
+        DataOutputStream out=new DataOutputStream(out_stream);
+        out.write(COOKIE, 0, COOKIE.length);
+        out.writeShort(Version.version);
+        local_addr.writeTo(out);
+        out.flush();
+        return ByteBuffer.wrap(out_stream.getRawBuffer(), 0, out_stream.size());
+    }
+
+    protected static ByteBuffer grow(ByteBuffer buf, int capacity) {
+        ByteBuffer retval=ByteBuffer.allocate(Util.getNextHigherPowerOfTwo(capacity));
+        buf.flip();
+        retval.put(buf);
+        return retval;
+    }
+
+
+    protected class Mapper extends AbstractConnectionMap<NioConnection> {
+
+        public Mapper(ThreadFactory factory, long reaper_interval) {
+            super(factory, reaper_interval);
+        }
+
+        public NioConnection getConnection(Address dest) throws Exception {
+            NioConnection conn;
+            getLock().lock();
+            try {
+                if((conn=conns.get(dest)) != null && conn.isOpen()) // keep FAST path on the most common case
+                    return conn;
+            }
+            finally {
+                getLock().unlock();
+            }
+
+            Exception connect_exception=null; // set if connect() throws an exception
+            sock_creation_lock.lockInterruptibly();
+            try {
+                getLock().lock();
+                try {
+                    conn=conns.get(dest); // check again after obtaining sock_creation_lock
+                    if(conn != null && conn.isOpen())
+                        return conn;
+
+                    // create conn stub
+                    conn=new NioConnection(SocketChannel.open(), dest);
+                    addConnection(dest, conn);
+                }
+                finally {
+                    getLock().unlock();
+                }
+
+                // now connect to dest:
+                try {
+                    if(log.isTraceEnabled())
+                        log.trace(local_addr + ": connecting to " + dest);
+                    conn.connect(new InetSocketAddress(((IpAddress)dest).getIpAddress(), ((IpAddress)dest).getPort()));
+                    if(log.isTraceEnabled())
+                        log.trace(local_addr + ": connected to " + dest);
+                }
+                catch(Exception connect_ex) {
+                    connect_exception=connect_ex;
+                }
+
+                getLock().lock();
+                try {
+                    NioConnection existing_conn=conns.get(dest); // check again after obtaining sock_creation_lock
+                    if(existing_conn != null && existing_conn.isOpen() // added by a successful accept
+                      && existing_conn != conn) {
+                        if(log.isTraceEnabled())
+                            log.trace(local_addr + ": found existing connection to " + dest +
+                                        ", using it and deleting own conn-stub");
+                        conn.close(false);
+                        return existing_conn;
+                    }
+
+                    if(connect_exception != null) {
+                        if(log.isTraceEnabled())
+                            log.trace(local_addr + ": failed connecting to " + dest + ": " + connect_exception);
+                        removeConnectionIfPresent(dest, conn); // removes and closes the conn
+                        throw connect_exception;
+                    }
+                    return conn;
+                }
+                finally {
+                    getLock().unlock();
+                }
+            }
+            finally {
+                sock_creation_lock.unlock();
+            }
+        }
+
+        public boolean connectionEstablishedTo(Address address) {
+            lock.lock();
+            try {
+                NioConnection conn=conns.get(address);
+                return conn != null && conn.isConnected();
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+
+        public int size() {return conns.size();}
+
+        public String toString() {
+            StringBuilder sb=new StringBuilder();
+            getLock().lock();
+            try {
+                for(Map.Entry<Address,NioConnection> entry: conns.entrySet())
+                    sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
+                return sb.toString();
+            }
+            finally {
+                getLock().unlock();
+            }
+        }
+    }
+}
@@ -5,32 +5,40 @@ import org.jgroups.JChannel;
 import org.jgroups.MembershipListener;
 import org.jgroups.View;
 import org.jgroups.annotations.Experimental;
+import org.jgroups.annotations.GuardedBy;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.annotations.Unsupported;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
-import org.jgroups.util.Buffer;
 import org.jgroups.util.Util;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.lang.reflect.Method;
 import java.util.*;
-
-/** Hashmap which distributes its keys and values across the cluster. A PUT/GET/REMOVE computes the cluster node to which
- * or from which to get/set the key/value from a hash of the key and then forwards the request to the remote cluster node.
- * We also maintain a local cache (L1 cache) which is a bounded cache that caches retrieved keys/values. <br/>
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Hashmap which distributes its keys and values across the cluster. The key space is split into a fixed number of
+ * segments; a key is mapped to a segment by its hash code, and every segment is owned by num_owners members (the
+ * first of which is the primary owner). A PUT/REMOVE is sent to all owners of the key's segment, a GET to the primary
+ * owner (or the next owner if the primary fails).<br/>
+ * The owners of a segment are computed from the view with rendezvous hashing ({@link ConsistentHash}), so all members
+ * compute the same owners without any coordination, and a view change moves only the segments whose owners changed.
+ * On a view change, the entries of those segments are transferred to their new owners in the background, in batches
+ * of transfer_batch_size entries (with transfer_delay ms between batches), and then evicted from the members which
+ * don't own them anymore. Until the transfer has completed, a GET which misses at the new owner is retried at the
+ * previous owner. A transferred entry doesn't overwrite a key which was put or removed after the view change: every
+ * member records the keys it writes or removes until all members have completed their transfers for the view.<br/>
+ * We also maintain a local cache (L1 cache) which is a bounded cache that caches retrieved keys/values. If
+ * l1_invalidation is enabled, a PUT or REMOVE removes the key from the L1 caches of all members.<br/>
  * Todos:<br/>
  * <ol>
  * <li>Use MarshalledValue to keep track of byte[] buffers, and be able to compute the exact size of the cache. This is
  *     good for maintaining a bounded cache (rather than using the number of entries)
- * <li>Provide a better consistent hashing algorithm than ConsistentHashFunction as default
  * <li>GUI (showing at least the topology and L1 and L2 caches)
  * <li>Notifications (puts, removes, gets etc)
- * <li>Invalidation of L1 caches (if used) on removal/put of item
  * <li>Benchmarks, comparison to memcached
  * <li>Documentation, comparison to memcached
  * </ol>
@@ -58,18 +66,64 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     private long call_timeout=1000L;
     @ManagedAttribute(writable=true)
     private long caching_time=30000L; // in milliseconds. -1 means don't cache, 0 means cache forever (or until changed)
-    private HashFunction<K> hash_function=null;
     private Set<MembershipListener> membership_listeners=new HashSet<MembershipListener>();
 
-    /** On a view change, if a member P1 detects that for any given key K, P1 is not the owner of K, then
-     * it will compute the new owner P2 and transfer ownership for all Ks for which P2 is the new owner. P1
-     * will then also evict those keys from its L2 cache */
+    @ManagedAttribute(description="Number of segments the key space is split into. Must be the same on all members")
+    private int num_segments=256;
+
+    @ManagedAttribute(description="Number of members which store each segment (1 = no replication). " +
+      "Must be the same on all members")
+    private int num_owners=2;
+
+    /** On a view change, the entries of the segments whose owners changed are transferred to their new owners, and
+     * evicted from the members which don't own them anymore. On stop(), the entries are transferred as well */
     @ManagedAttribute(writable=true)
-    private boolean migrate_data=false;
+    private boolean migrate_data=true;
+
+    @ManagedAttribute(description="Max number of entries transferred in a single message",writable=true)
+    private int transfer_batch_size=100;
+
+    @ManagedAttribute(description="Time (ms) to wait between two batches of a transfer, to throttle it",writable=true)
+    private long transfer_delay=0;
+
+    @ManagedAttribute(description="Whether a PUT or REMOVE removes the key from the L1 caches of all members",writable=true)
+    private boolean l1_invalidation=false;
+
+    @ManagedAttribute(description="Number of entries transferred to other members on view changes")
+    private final AtomicInteger num_transferred_entries=new AtomicInteger(0);
+
+    /** The owners of the segments in the current view */
+    private volatile ConsistentHash<K> hash;
+
+    /** The owners according to which the entries are located, ie. the hash of the last completed transfer */
+    private volatile ConsistentHash<K> balanced_hash;
+
+    /** Incremented on every view change; a transfer is aborted when a newer view has been installed */
+    private final AtomicInteger topology_id=new AtomicInteger(0);
 
-    private static final short PUT     = 1;
-    private static final short GET     = 2;
-    private static final short REMOVE  = 3;
+    private ExecutorService transfer_executor;
+
+    /** Keys put or removed since a view change, whose transferred values are stale and are not applied. Null when
+     * all members have completed their transfers */
+    @GuardedBy("transfer_lock")
+    private Set<K> updated_keys;
+
+    /** The view for which keys are recorded in updated_keys */
+    @GuardedBy("transfer_lock")
+    private View tracked_view;
+
+    /** The members which completed their transfers, keyed by view ID */
+    @GuardedBy("transfer_lock")
+    private final Map<Long,Set<Address>> completed_transfers=new HashMap<Long,Set<Address>>();
+
+    private final Object transfer_lock=new Object();
+
+    private static final short PUT        = 1;
+    private static final short GET        = 2;
+    private static final short REMOVE     = 3;
+    private static final short TRANSFER   = 4;
+    private static final short INVALIDATE = 5;
+    private static final short TRANSFER_DONE = 6;
 
     protected static final Map<Short,Method> methods=Util.createConcurrentMap(8);
 
@@ -82,6 +136,9 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
             methods.put(GET, PartitionedHashMap.class.getMethod("_get",
                                                                Object.class));
             methods.put(REMOVE, PartitionedHashMap.class.getMethod("_remove", Object.class));
+            methods.put(TRANSFER, PartitionedHashMap.class.getMethod("_transfer", Object[].class, Object[].class));
+            methods.put(INVALIDATE, PartitionedHashMap.class.getMethod("_invalidate", Object.class));
+            methods.put(TRANSFER_DONE, PartitionedHashMap.class.getMethod("_transferDone", long.class, Address.class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -89,22 +146,6 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     }
 
 
-    public interface HashFunction<K> {
-        /**
-         * Defines a hash function to pick the right node from the list of cluster nodes. Ideally, this function uses
-         * consistent hashing, so that the same key maps to the same node despite cluster view changes. If a view change
-         * causes all keys to hash to different nodes, then PartitionedHashMap will redirect requests to different nodes
-         * and this causes unnecessary overhead.
-         * @param key The object to be hashed
-         * @param membership The membership. This value can be ignored for example if the hash function keeps
-         * track of the membership itself, e.g. by registering as a membership
-         * listener ({@link PartitionedHashMap#addMembershipListener(org.jgroups.MembershipListener)} ) 
-         * @return
-         */
-        Address hash(K key, List<Address> membership);
-    }
-
-
     public PartitionedHashMap(String props, String cluster_name) {
         this.props=props;
         this.cluster_name=cluster_name;
@@ -137,6 +178,11 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         return l1_cache != null;
     }
 
+    @ManagedAttribute(description="Whether entries are being transferred to their new owners")
+    public boolean isRebalancing() {
+        return balanced_hash != hash;
+    }
+
     public String getClusterName() {
         return cluster_name;
     }
@@ -169,12 +215,58 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         this.migrate_data=migrate_data;
     }
 
-    public HashFunction getHashFunction() {
-        return hash_function;
+    public int getNumSegments() {
+        return num_segments;
+    }
+
+    /** Sets the number of segments. Needs to be called before {@link #start()} */
+    public void setNumSegments(int num_segments) {
+        if(num_segments < 1)
+            throw new IllegalArgumentException("num_segments (" + num_segments + ") must be > 0");
+        this.num_segments=num_segments;
+    }
+
+    public int getNumOwners() {
+        return num_owners;
+    }
+
+    /** Sets the number of owners per segment. Needs to be called before {@link #start()} */
+    public void setNumOwners(int num_owners) {
+        if(num_owners < 1)
+            throw new IllegalArgumentException("num_owners (" + num_owners + ") must be > 0");
+        this.num_owners=num_owners;
+    }
+
+    public int getTransferBatchSize() {
+        return transfer_batch_size;
+    }
+
+    public void setTransferBatchSize(int transfer_batch_size) {
+        this.transfer_batch_size=transfer_batch_size;
+    }
+
+    public long getTransferDelay() {
+        return transfer_delay;
+    }
+
+    public void setTransferDelay(long transfer_delay) {
+        this.transfer_delay=transfer_delay;
+    }
+
+    public boolean isL1Invalidation() {
+        return l1_invalidation;
+    }
+
+    public void setL1Invalidation(boolean l1_invalidation) {
+        this.l1_invalidation=l1_invalidation;
+    }
+
+    public int getNumTransferredEntries() {
+        return num_transferred_entries.get();
     }
 
-    public void setHashFunction(HashFunction<K> hash_function) {
-        this.hash_function=hash_function;
+    public ConsistentHash<K> getConsistentHash() {
+        return hash;
     }
 
     public void addMembershipListener(MembershipListener l) {
@@ -208,13 +300,15 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
 
     @ManagedOperation
     public void start() throws Exception {
-        hash_function=new ConsistentHashFunction<K>();
-        addMembershipListener((MembershipListener)hash_function);
+        transfer_executor=Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread thread=new Thread(r, "PartitionedHashMap-transfer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
         ch=new JChannel(props);
         disp=new RpcDispatcher(ch, null, this, this);
-        RpcDispatcher.Marshaller marshaller=new CustomMarshaller();
-        disp.setRequestMarshaller(marshaller);
-        disp.setResponseMarshaller(marshaller);
         disp.setMethodLookup(new MethodLookup() {
             public Method findMethod(short id) {
                 return methods.get(id);
@@ -224,26 +318,20 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         ch.connect(cluster_name);
         local_addr=ch.getAddress();
         view=ch.getView();
+        installView(view);
     }
 
     @ManagedOperation
     public void stop() {
         if(l1_cache != null)
             l1_cache.stop();
-        if(migrate_data) {
+        transfer_executor.shutdownNow();
+        if(migrate_data && view != null) {
             List<Address> members_without_me=new ArrayList<Address>(view.getMembers());
             members_without_me.remove(local_addr);
-
-            for(Map.Entry<K,Cache.Value<V>> entry: l2_cache.entrySet()) {
-                K key=entry.getKey();
-                Address node=hash_function.hash(key, members_without_me);
-                if(!node.equals(local_addr)) {
-                    Cache.Value<V> val=entry.getValue();
-                    sendPut(node, key, val.getValue(), val.getTimeout(), true);
-                    if(log.isTraceEnabled())
-                        log.trace("migrated " + key + " from " + local_addr + " to " + node);
-                }
-            }
+            ConsistentHash<K> old_hash=balanced_hash != null? balanced_hash : hash;
+            if(!members_without_me.isEmpty() && old_hash != null)
+                transfer(old_hash, new ConsistentHash<K>(members_without_me, num_segments, num_owners), -1);
         }
         l2_cache.stop();
         disp.stop();
@@ -256,7 +344,8 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     }
 
     /**
-     * Adds a key/value to the cache, replacing a previous item if there was one
+     * Adds a key/value to the cache, replacing a previous item if there was one. The key/value is stored at all
+     * owners of the key's segment
      * @param key The key
      * @param val The value
      * @param caching_time Time to live. -1 means never cache, 0 means cache forever. All other (positive) values
@@ -264,13 +353,19 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
      */
     @ManagedOperation
     public void put(K key, V val, long caching_time) {
-        Address dest_node=getNode(key);
-        if(dest_node.equals(local_addr)) {
-            l2_cache.put(key, val, caching_time);
-        }
-        else {
-            sendPut(dest_node, key, val, caching_time, false);
+        Address[] owners=hash.owners(key);
+        List<Address> remote_owners=new ArrayList<Address>(owners.length);
+        for(Address owner: owners) {
+            if(owner.equals(local_addr)) {
+                updated(key);
+                l2_cache.put(key, val, caching_time);
+            }
+            else
+                remote_owners.add(owner);
         }
+        if(!remote_owners.isEmpty())
+            sendPut(remote_owners, key, val, caching_time, false);
+        invalidateL1Caches(key);
         if(l1_cache != null && caching_time >= 0)
             l1_cache.put(key, val, caching_time);
     }
@@ -286,45 +381,45 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
             }
         }
 
-        Cache.Value<V> val;
-        try {
-            Address dest_node=getNode(key);
-            // if we are the destination, don't invoke an RPC but return the item from our L2 cache directly !
-            if(dest_node.equals(local_addr)) {
-                val=l2_cache.getEntry(key);
-            }
-            else {
-                val=(Cache.Value<V>)disp.callRemoteMethod(dest_node,
-                                                          new MethodCall(GET, key),
-                                                          new RequestOptions(ResponseMode.GET_FIRST,
-                                                          call_timeout));
+        ConsistentHash<K> tmp=hash, old_hash=balanced_hash;
+        Cache.Value<V> val=get(key, tmp.owners(key));
+        // the entry may not yet have been transferred to the new owners: ask the previous owners
+        if(val == null && old_hash != null && old_hash != tmp) {
+            Address[] old_owners=old_hash.owners(key);
+            if(!Arrays.equals(old_owners, tmp.owners(key))) {
+                List<Address> alive=new ArrayList<Address>(old_owners.length);
+                for(Address owner: old_owners)
+                    if(tmp.getMembers().contains(owner))
+                        alive.add(owner);
+                val=get(key, alive.toArray(new Address[alive.size()]));
             }
-            if(val != null) {
-                V retval=val.getValue();
-                if(l1_cache != null && val.getTimeout() >= 0)
-                    l1_cache.put(key, retval, val.getTimeout());
-                return retval;
-            }
-            return null;
         }
-        catch(Throwable t) {
-            if(log.isWarnEnabled())
-                log.warn("_get() failed", t);
-            return null;
+        if(val != null) {
+            V retval=val.getValue();
+            if(l1_cache != null && val.getTimeout() >= 0)
+                l1_cache.put(key, retval, val.getTimeout());
+            return retval;
         }
+        return null;
     }
 
     @ManagedOperation
     public void remove(K key) {
-        Address dest_node=getNode(key);
-
+        Address[] owners=hash.owners(key);
         try {
-            if(dest_node.equals(local_addr)) {
-                l2_cache.remove(key);
-            }
-            else {
-                disp.callRemoteMethod(dest_node, new MethodCall(REMOVE, key), new RequestOptions(ResponseMode.GET_NONE, call_timeout));
+            List<Address> remote_owners=new ArrayList<Address>(owners.length);
+            for(Address owner: owners) {
+                if(owner.equals(local_addr)) {
+                    updated(key);
+                    l2_cache.remove(key);
+                }
+                else
+                    remote_owners.add(owner);
             }
+            if(!remote_owners.isEmpty())
+                disp.callRemoteMethods(remote_owners, new MethodCall(REMOVE, key),
+                                       new RequestOptions(ResponseMode.GET_NONE, call_timeout).setAnycasting(true));
+            invalidateL1Caches(key);
             if(l1_cache != null)
                 l1_cache.remove(key);
         }
@@ -333,11 +428,12 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
                 log.warn("_remove() failed", t);
         }
     }
-    
+
 
     public V _put(K key, V val, long caching_time) {
         if(log.isTraceEnabled())
             log.trace("_put(" + key + ", " + val + ", " + caching_time + ")");
+        updated(key);
         return l2_cache.put(key, val, caching_time);
     }
 
@@ -350,23 +446,56 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
     public V _remove(K key) {
         if(log.isTraceEnabled())
             log.trace("_remove(" + key + ")");
+        updated(key);
         return l2_cache.remove(key);
     }
 
+    /** Receives a batch of transferred entries. Entries whose keys were put or removed after the view change are
+     * skipped, and entries which are already present are not overwritten */
+    @SuppressWarnings("unchecked")
+    public void _transfer(Object[] keys, Object[] values) {
+        if(log.isTraceEnabled())
+            log.trace("_transfer(" + keys.length + " entries)");
+        for(int i=0; i < keys.length; i++) {
+            K key=(K)keys[i];
+            Cache.Value<V> val=(Cache.Value<V>)values[i];
+            synchronized(transfer_lock) { // a concurrent remove of key is recorded either before or after the put
+                if(updated_keys == null || !updated_keys.contains(key))
+                    l2_cache.putIfAbsent(key, val.getValue(), val.getTimeout());
+            }
+        }
+    }
+
+    /** Called by every member when it has completed its transfers for the view with the given ID */
+    public void _transferDone(long view_id, Address sender) {
+        if(log.isTraceEnabled())
+            log.trace("_transferDone(" + view_id + ", " + sender + ")");
+        synchronized(transfer_lock) {
+            if(tracked_view != null && view_id < tracked_view.getViewId().getId())
+                return;
+            Set<Address> mbrs=completed_transfers.get(view_id);
+            if(mbrs == null)
+                completed_transfers.put(view_id, mbrs=new HashSet<Address>());
+            mbrs.add(sender);
+            checkTransfersCompleted();
+        }
+    }
+
+    public void _invalidate(K key) {
+        if(l1_cache != null)
+            l1_cache.remove(key);
+    }
+
 
 
 
 
     public void viewAccepted(View new_view) {
-        System.out.println("view = " + new_view);
         this.view=new_view;
         for(MembershipListener l: membership_listeners) {
             l.viewAccepted(new_view);
         }
-
-        if(migrate_data) {
-            migrateData();
-        }
+        installView(new_view);
     }
 
     public void suspect(Address suspected_mbr) {
@@ -398,179 +527,321 @@ public class PartitionedHashMap<K,V> implements MembershipListener {
         return sb.toString();
     }
 
+    @ManagedOperation(description="Dumps the segments owned by this member")
+    public String dumpSegments() {
+        ConsistentHash<K> tmp=hash;
+        if(tmp == null)
+            return "n/a";
+        StringBuilder sb=new StringBuilder();
+        int primary=0, backup=0;
+        for(int i=0; i < tmp.getNumSegments(); i++) {
+            Address[] owners=tmp.owners(i);
+            if(owners[0].equals(local_addr))
+                primary++;
+            else if(ConsistentHash.contains(owners, local_addr))
+                backup++;
+        }
+        sb.append(primary).append(" primary and ").append(backup).append(" backup segments of ").append(tmp.getNumSegments());
+        return sb.toString();
+    }
 
-    private void migrateData() {
-        for(Map.Entry<K,Cache.Value<V>> entry: l2_cache.entrySet()) {
-            K key=entry.getKey();
-            Address node=getNode(key);
-            if(!node.equals(local_addr)) {
-                Cache.Value<V> val=entry.getValue();
-                put(key, val.getValue(), val.getTimeout());
-                l2_cache.remove(key);
-                if(log.isTraceEnabled())
-                    log.trace("migrated " + key + " from " + local_addr + " to " + node);
+
+    /** Computes the owners for the new view and - if migrate_data is true - transfers the affected segments */
+    private synchronized void installView(View new_view) {
+        if(new_view == null || new_view.getMembers() == null || new_view.getMembers().isEmpty())
+            return;
+        ConsistentHash<K> new_hash=new ConsistentHash<K>(new_view.getMembers(), num_segments, num_owners);
+        if(!migrate_data) {
+            hash=balanced_hash=new_hash;
+            return;
+        }
+        final long view_id=new_view.getViewId().getId();
+        startTracking(new_view);
+        if(hash == null) { // we don't have any entries yet
+            hash=balanced_hash=new_hash;
+            sendTransferDone(view_id);
+            return;
+        }
+        hash=new_hash;
+        final int id=topology_id.incrementAndGet();
+        final ConsistentHash<K> tmp=new_hash;
+        transfer_executor.execute(new Runnable() {
+            public void run() {
+                ConsistentHash<K> old_hash=balanced_hash;
+                if(transfer(old_hash, tmp, id)) {
+                    synchronized(PartitionedHashMap.this) {
+                        if(topology_id.get() == id)
+                            balanced_hash=tmp;
+                    }
+                    sendTransferDone(view_id);
+                }
             }
+        });
+    }
+
+    /** Records the keys which are put or removed from now on, until all members of view have completed their
+     * transfers. Done notifications of older views are discarded */
+    protected void startTracking(View view) {
+        synchronized(transfer_lock) {
+            tracked_view=view;
+            if(updated_keys == null)
+                updated_keys=new HashSet<K>();
+            long view_id=view.getViewId().getId();
+            for(Iterator<Long> it=completed_transfers.keySet().iterator(); it.hasNext();)
+                if(it.next() < view_id)
+                    it.remove();
+            checkTransfersCompleted();
+        }
+    }
+
+    /** Stops recording updated keys when all members of the tracked view have completed their transfers */
+    @GuardedBy("transfer_lock")
+    private void checkTransfersCompleted() {
+        if(updated_keys == null || tracked_view == null)
+            return;
+        Set<Address> mbrs=completed_transfers.get(tracked_view.getViewId().getId());
+        if(mbrs != null && mbrs.containsAll(tracked_view.getMembers())) {
+            updated_keys=null;
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": all members completed their transfers for view " + tracked_view.getViewId());
         }
     }
 
-    private void sendPut(Address dest, K key, V val, long caching_time, boolean synchronous) {
+    /** Records that key was put or removed, so that a transferred (older) value of key is not applied */
+    private void updated(K key) {
+        synchronized(transfer_lock) {
+            if(updated_keys != null)
+                updated_keys.add(key);
+        }
+    }
+
+    /** Tells all members (including ourself) that we have completed our transfers for the given view */
+    private void sendTransferDone(long view_id) {
         try {
-            ResponseMode mode=synchronous? ResponseMode.GET_ALL : ResponseMode.GET_NONE;
-            disp.callRemoteMethod(dest, new MethodCall(PUT, key, val, caching_time),
-                                  new RequestOptions(mode, call_timeout));
+            disp.callRemoteMethods(null, new MethodCall(TRANSFER_DONE, view_id, local_addr),
+                                   new RequestOptions(ResponseMode.GET_NONE, call_timeout));
         }
         catch(Throwable t) {
             if(log.isWarnEnabled())
-                log.warn("_put() failed", t);
+                log.warn("_transferDone() failed", t);
         }
     }
 
-    private Address getNode(K key) {
-        return hash_function.hash(key, null);
-    }
-
-
-    public static class ConsistentHashFunction<K> implements MembershipListener, HashFunction<K> {
-        private SortedMap<Short,Address> nodes=new TreeMap<Short,Address>();
-        private final static int HASH_SPACE=2048; // must be > max number of nodes in a cluster, and a power of 2
-
-        public Address hash(K key, List<Address> members) {
-            int index=Math.abs(key.hashCode() & (HASH_SPACE - 1));
-            if(members != null && !members.isEmpty()) {
-                SortedMap<Short,Address> tmp=new TreeMap<Short,Address>(nodes);
-                for(Iterator<Map.Entry<Short,Address>> it=tmp.entrySet().iterator(); it.hasNext();) {
-                    Map.Entry<Short, Address> entry=it.next();
-                    if(!members.contains(entry.getValue())) {
-                        it.remove();
-                    }
-                }
-                return findFirst(tmp, index);
+    /**
+     * Transfers the entries of all segments whose owners differ between old_hash and new_hash to their new owners,
+     * and evicts the entries we don't own anymore. For each segment, only the first owner in old_hash which is still
+     * a member sends the entries; entries we hold without being an owner in old_hash (e.g. left over from an
+     * aborted transfer) are always sent.
+     * @param id The topology ID, the transfer is aborted when a new view is installed. -1 never aborts
+     * @return True if the transfer completed, false if it was aborted
+     */
+    private boolean transfer(ConsistentHash<K> old_hash, ConsistentHash<K> new_hash, int id) {
+        Map<Address,List<Object>> keys=new HashMap<Address,List<Object>>(), values=new HashMap<Address,List<Object>>();
+        List<K> to_evict=new ArrayList<K>();
+        Set<Address> failed=new HashSet<Address>();
+        for(Map.Entry<K,Cache.Value<V>> entry: l2_cache.entrySet()) {
+            if(id >= 0 && topology_id.get() != id) {
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": transfer aborted, new view was installed");
+                return false;
             }
-            return findFirst(nodes, index);
-        }
-
-        public void viewAccepted(View new_view) {
-            nodes.clear();
-            for(Address node: new_view.getMembers()) {
-                int hash=Math.abs(node.hashCode() & (HASH_SPACE - 1));
-                for(int i=hash; i < hash + HASH_SPACE; i++) {
-                    short new_index=(short)(i & (HASH_SPACE - 1));
-                    if(!nodes.containsKey(new_index)) {
-                        nodes.put(new_index, node);
-                        break;
+            K key=entry.getKey();
+            int segment=new_hash.segmentOf(key);
+            Address[] old_owners=old_hash.owners(segment), new_owners=new_hash.owners(segment);
+            boolean old_owner=ConsistentHash.contains(old_owners, local_addr),
+              new_owner=ConsistentHash.contains(new_owners, local_addr);
+            if(old_owner && Arrays.equals(old_owners, new_owners))
+                continue;
+
+            boolean sender=!old_owner || local_addr.equals(firstMember(old_owners, new_hash.getMembers()));
+            if(sender) {
+                for(Address dest: new_owners) {
+                    if(dest.equals(local_addr) || (old_owner && ConsistentHash.contains(old_owners, dest)))
+                        continue;
+                    List<Object> k=keys.get(dest), v=values.get(dest);
+                    if(k == null) {
+                        keys.put(dest, k=new ArrayList<Object>(transfer_batch_size));
+                        values.put(dest, v=new ArrayList<Object>(transfer_batch_size));
                     }
+                    k.add(key);
+                    v.add(entry.getValue());
+                    if(k.size() >= transfer_batch_size)
+                        sendBatch(dest, k, v, failed);
                 }
             }
+            if(!new_owner)
+                to_evict.add(key);
+        }
+        for(Map.Entry<Address,List<Object>> entry: keys.entrySet()) {
+            Address dest=entry.getKey();
+            sendBatch(dest, entry.getValue(), values.get(dest), failed);
+        }
 
-            if(log.isTraceEnabled()) {
-                StringBuilder sb=new StringBuilder("node mappings:\n");
-                for(Map.Entry<Short,Address> entry: nodes.entrySet()) {
-                    sb.append(entry.getKey() + ": " + entry.getValue()).append("\n");
-                }
-                log.trace(sb);
-            }
+        if(!failed.isEmpty()) { // keep the entries, they'll be transferred with the next view
+            if(log.isWarnEnabled())
+                log.warn(local_addr + ": transfer to " + failed + " failed, won't evict entries");
+            return false;
         }
+        for(K key: to_evict)
+            l2_cache.remove(key);
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": transfer completed, evicted " + to_evict.size() + " entries");
+        return true;
+    }
 
-        public void suspect(Address suspected_mbr) {
+    private void sendBatch(Address dest, List<Object> keys, List<Object> values, Set<Address> failed) {
+        if(keys.isEmpty() || failed.contains(dest))
+            return;
+        try {
+            disp.callRemoteMethod(dest, new MethodCall(TRANSFER, keys.toArray(), values.toArray()),
+                                  new RequestOptions(ResponseMode.GET_ALL, call_timeout));
+            num_transferred_entries.addAndGet(keys.size());
+            if(transfer_delay > 0)
+                Util.sleep(transfer_delay);
         }
+        catch(Throwable t) {
+            failed.add(dest);
+            if(log.isWarnEnabled())
+                log.warn(local_addr + ": failed transferring " + keys.size() + " entries to " + dest + ": " + t);
+        }
+        finally {
+            keys.clear();
+            values.clear();
+        }
+    }
 
-        public void block() {
+    /** Gets the entry from the first owner which responds */
+    private Cache.Value<V> get(K key, Address[] owners) {
+        for(Address owner: owners) {
+            if(owner.equals(local_addr)) {
+                Cache.Value<V> val=l2_cache.getEntry(key);
+                if(val != null)
+                    return val;
+                continue;
+            }
+            try {
+                Cache.Value<V> val=disp.callRemoteMethod(owner, new MethodCall(GET, key),
+                                                         new RequestOptions(ResponseMode.GET_FIRST, call_timeout));
+                if(val != null)
+                    return val;
+                if(!isRebalancing())
+                    return null; // the primary owner doesn't have the key: the backup owners won't have it either
+            }
+            catch(Throwable t) {
+                if(log.isWarnEnabled())
+                    log.warn("_get() from " + owner + " failed: " + t);
+            }
         }
+        return null;
+    }
 
-        public void unblock() {
+    private void sendPut(Collection<Address> dests, K key, V val, long caching_time, boolean synchronous) {
+        try {
+            ResponseMode mode=synchronous? ResponseMode.GET_ALL : ResponseMode.GET_NONE;
+            disp.callRemoteMethods(dests, new MethodCall(PUT, key, val, caching_time),
+                                   new RequestOptions(mode, call_timeout).setAnycasting(true));
+        }
+        catch(Throwable t) {
+            if(log.isWarnEnabled())
+                log.warn("_put() failed", t);
         }
+    }
 
-        private static Address findFirst(Map<Short,Address> map, int index) {
-            Address retval;
-            for(int i=index; i < index + HASH_SPACE; i++) {
-                short new_index=(short)(i & (HASH_SPACE - 1));
-                retval=map.get(new_index);
-                if(retval != null)
-                    return retval;
-            }
-            return null;
+    private void invalidateL1Caches(K key) {
+        if(!l1_invalidation)
+            return;
+        try {
+            disp.callRemoteMethods(null, new MethodCall(INVALIDATE, key), new RequestOptions(ResponseMode.GET_NONE, call_timeout));
+        }
+        catch(Throwable t) {
+            if(log.isWarnEnabled())
+                log.warn("_invalidate() failed", t);
         }
     }
 
+    private static Address firstMember(Address[] owners, List<Address> members) {
+        for(Address owner: owners)
+            if(members.contains(owner))
+                return owner;
+        return null;
+    }
 
 
+    /**
+     * Maps keys to segments, and segments to their owners. The owners of a segment are the num_owners members with
+     * the highest weight for the segment, where the weight is a hash of member and segment (rendezvous hashing).
+     * Every member computes the same owners for the same membership, and when a member joins or leaves, only the
+     * segments for which it is (or was) one of the owners get different owners.
+     */
+    public static class ConsistentHash<K> {
+        private final List<Address> members;
+        private final int           num_segments;
+        private final Address[][]   owners; // the owners of each segment, the primary owner first
+
+        public ConsistentHash(List<Address> members, int num_segments, int num_owners) {
+            this.members=new ArrayList<Address>(members);
+            this.num_segments=num_segments;
+            int num=Math.min(num_owners, members.size());
+            owners=new Address[num_segments][];
+            long[] weights=new long[num];
+            for(int segment=0; segment < num_segments; segment++) {
+                Address[] tmp=new Address[num];
+                int size=0;
+                for(Address mbr: this.members) { // insertion sort of the num members with the highest weights
+                    long weight=weight(mbr, segment);
+                    int pos=size;
+                    while(pos > 0 && (weights[pos-1] < weight || (weights[pos-1] == weight && tmp[pos-1].compareTo(mbr) > 0)))
+                        pos--;
+                    if(pos >= num)
+                        continue;
+                    int last=Math.min(size, num-1);
+                    System.arraycopy(tmp, pos, tmp, pos+1, last - pos);
+                    System.arraycopy(weights, pos, weights, pos+1, last - pos);
+                    tmp[pos]=mbr;
+                    weights[pos]=weight;
+                    if(size < num)
+                        size++;
+                }
+                owners[segment]=tmp;
+            }
+        }
 
+        public List<Address> getMembers()     {return members;}
+        public int           getNumSegments() {return num_segments;}
 
-    private static class CustomMarshaller implements RpcDispatcher.Marshaller {
-        static final byte NULL        = 0;
-        static final byte OBJ         = 1;
-        static final byte METHOD_CALL = 2;
-        static final byte VALUE       = 3;
-        
+        public int segmentOf(Object key) {
+            int h=key.hashCode();
+            h^=(h >>> 20) ^ (h >>> 12); // spreads the bits, as HashMap does
+            h^=(h >>> 7) ^ (h >>> 4);
+            return (h & Integer.MAX_VALUE) % num_segments;
+        }
 
-        public Buffer objectToBuffer(Object obj) throws Exception {
+        public Address[] owners(int segment) {return owners[segment];}
+        public Address[] owners(K key)       {return owners[segmentOf(key)];}
+        public Address   primary(K key)      {return owners[segmentOf(key)][0];}
 
-            ByteArrayOutputStream out_stream=new ByteArrayOutputStream(35);
-            DataOutputStream out=new DataOutputStream(out_stream);
-            try {
-                if(obj == null) {
-                    out_stream.write(NULL);
-                    out_stream.flush();
-                    return new Buffer(out_stream.toByteArray());
-                }
-                if(obj instanceof MethodCall) {
-                    out.writeByte(METHOD_CALL);
-                    MethodCall call=(MethodCall)obj;
-                    out.writeShort(call.getId());
-                    Object[] args=call.getArgs();
-                    if(args == null || args.length == 0) {
-                        out.writeShort(0);
-                    }
-                    else {
-                        out.writeShort(args.length);
-                        for(int i=0; i < args.length; i++) {
-                            Util.objectToStream(args[i], out);
-                        }
-                    }
-                }
-                else if(obj instanceof Cache.Value) {
-                    Cache.Value value=(Cache.Value)obj;
-                    out.writeByte(VALUE);
-                    out.writeLong(value.getTimeout());
-                    Util.objectToStream(value.getValue(), out);
-                }
-                else {
-                    out.writeByte(OBJ);
-                    Util.objectToStream(obj, out);
-                }
-                out.flush();
-                return new Buffer(out_stream.toByteArray());
-            }
-            finally {
-                Util.close(out);
-            }
+        public String toString() {
+            StringBuilder sb=new StringBuilder();
+            for(int i=0; i < owners.length; i++)
+                sb.append(i).append(": ").append(Arrays.toString(owners[i])).append("\n");
+            return sb.toString();
         }
 
-        public Object objectFromBuffer(byte[] buf, int offset, int length) throws Exception {
-            if(buf == null)
-                return null;
-
-            DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf));
-            byte type=in.readByte();
-            if(type == NULL)
-                return null;
-            if(type == METHOD_CALL) {
-                short id=in.readShort();
-                short len=in.readShort();
-                Object[] args=len > 0? new Object[len] : null;
-                if(args != null) {
-                    for(int i=0; i < args.length; i++)
-                        args[i]=Util.objectFromStream(in);
-                }
-                return new MethodCall(id, args);
-            }
-            else if(type == VALUE) {
-                long expiration_time=in.readLong();
-                Object obj=Util.objectFromStream(in);
-                return new Cache.Value(obj, expiration_time);
-            }
-            else
-                return Util.objectFromStream(in);
+        protected static long weight(Address mbr, int segment) {
+            long h=mbr.hashCode() * 0x9E3779B97F4A7C15L + segment; // fmix64 of MurmurHash3
+            h^=h >>> 33;
+            h*=0xff51afd7ed558ccdL;
+            h^=h >>> 33;
+            h*=0xc4ceb9fe1a85ec53L;
+            h^=h >>> 33;
+            return h;
+        }
+
+        protected static boolean contains(Address[] owners, Address mbr) {
+            for(Address owner: owners)
+                if(owner.equals(mbr))
+                    return true;
+            return false;
         }
     }
 }
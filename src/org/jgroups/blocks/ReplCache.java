@@ -75,6 +75,9 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     private static final short REMOVE      = 4;
     private static final short REMOVE_MANY = 5;
 
+    /** ID of {@link Value} in the codec registry of the dispatcher */
+    protected static final int VALUE_ID    = CodecMarshaller.MIN_USER_ID;
+
     protected static final Map<Short, Method> methods=Util.createConcurrentMap(8);
     private TimeScheduler timer;
 
@@ -269,9 +272,7 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
 
         ch=new JChannel(props);
         disp=new RpcDispatcher(ch, null, this, this);
-        RpcDispatcher.Marshaller marshaller=new CustomMarshaller();
-        disp.setRequestMarshaller(marshaller);
-        disp.setResponseMarshaller(marshaller);
+        disp.getCodecs().register(VALUE_ID, Value.class, new ValueCodec());
         disp.setMethodLookup(new MethodLookup() {
             public Method findMethod(short id) {
                 return methods.get(id);
@@ -862,81 +863,15 @@ public class ReplCache<K,V> implements MembershipListener, Cache.ChangeListener
     }
 
 
-    private static class CustomMarshaller implements RpcDispatcher.Marshaller {
-        static final byte NULL        = 0;
-        static final byte OBJ         = 1;
-        static final byte METHOD_CALL = 2;
-        static final byte VALUE       = 3;
-        
-
-        public Buffer objectToBuffer(Object obj) throws Exception {
-            ByteArrayOutputStream out_stream=new ByteArrayOutputStream(35);
-            DataOutputStream out=new DataOutputStream(out_stream);
-            try {
-                if(obj == null) {
-                    out_stream.write(NULL);
-                    out_stream.flush();
-                    return new Buffer(out_stream.toByteArray());
-                }
-
-                if(obj instanceof MethodCall) {
-                    out.writeByte(METHOD_CALL);
-                    MethodCall call=(MethodCall)obj;
-                    out.writeShort(call.getId());
-                    Object[] args=call.getArgs();
-                    if(args == null || args.length == 0) {
-                        out.writeShort(0);
-                    }
-                    else {
-                        out.writeShort(args.length);
-                        for(int i=0; i < args.length; i++) {
-                            Util.objectToStream(args[i], out);
-                        }
-                    }
-                }
-                else if(obj instanceof Cache.Value) {
-                    Cache.Value value=(Cache.Value)obj;
-                    out.writeByte(VALUE);
-                    out.writeLong(value.getTimeout());
-                    Util.objectToStream(value.getValue(), out);
-                }
-                else {
-                    out.writeByte(OBJ);
-                    Util.objectToStream(obj, out);
-                }
-                out.flush();
-                return new Buffer(out_stream.toByteArray());
-            }
-            finally {
-                Util.close(out);
-            }
+    protected static class ValueCodec implements CodecMarshaller.Codec<Value<?>> {
+        public void write(Value<?> obj, DataOutput out, CodecMarshaller marshaller) throws Exception {
+            out.writeShort(obj.getReplicationCount());
+            marshaller.writeObject(obj.getVal(), out);
         }
 
-        public Object objectFromBuffer(byte[] buf, int offset, int length) throws Exception {
-            if(buf == null)
-                return null;
-
-            DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf, offset, length));
-            byte type=in.readByte();
-            if(type == NULL)
-                return null;
-            if(type == METHOD_CALL) {
-                short id=in.readShort();
-                short len=in.readShort();
-                Object[] args=len > 0? new Object[len] : null;
-                if(args != null) {
-                    for(int i=0; i < args.length; i++)
-                        args[i]=Util.objectFromStream(in);
-                }
-                return new MethodCall(id, args);
-            }
-            else if(type == VALUE) {
-                long expiration_time=in.readLong();
-                Object obj=Util.objectFromStream(in);
-                return new Cache.Value(obj, expiration_time);
-            }
-            else
-                return Util.objectFromStream(in);
+        public Value<?> read(DataInput in, CodecMarshaller marshaller) throws Exception {
+            short replication_count=in.readShort();
+            return new Value<Object>(marshaller.readObject(in), replication_count);
         }
     }
 }
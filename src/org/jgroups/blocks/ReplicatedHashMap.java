@@ -4,7 +4,7 @@ import org.jgroups.*;
 import org.jgroups.annotations.Unsupported;
 import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.*;
 import java.lang.reflect.Method;
@@ -12,6 +12,7 @@ import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Implementation of a {@link java.util.concurrent.ConcurrentMap} with replication of the contents across a cluster.
@@ -23,6 +24,13 @@ import java.util.concurrent.CopyOnWriteArraySet;
  * A <code>ReplicatedHashMap</code> allows one to implement a distributed naming service in just a couple of lines.
  * <p>
  * An instance of this class will contact an existing member of the group to fetch its initial state.
+ * <p>
+ * To hold more data than fits into the heap, pass a {@link MappedMap} to the constructor: the values are then kept
+ * in memory-mapped files, and the state is transferred without deserializing them.
+ * <p>
+ * The state is split into segments by the hashCode() of the keys, and a failed state transfer is resumed by fetching
+ * the missing segments from a different member. Keys therefore need a hashCode() which is the same in all JVMs,
+ * e.g. one computed from their contents, like that of String, and must not use the identity hash code.
  *
  * @author Bela Ban
  */
@@ -50,6 +58,7 @@ public class ReplicatedHashMap<K, V> extends
     private static final short REPLACE_IF_EXISTS=6;
     private static final short REPLACE_IF_EQUALS=7;
     private static final short CLEAR=8;
+    private static final short GET_STATE=9;
 
     protected static Map<Short,Method> methods;
 
@@ -75,6 +84,7 @@ public class ReplicatedHashMap<K, V> extends
                                                                              Object.class,
                                                                              Object.class));
             methods.put(CLEAR, ReplicatedHashMap.class.getMethod("_clear"));
+            methods.put(GET_STATE, ReplicatedHashMap.class.getMethod("_getState", int.class, int[].class));
         }
         catch(NoSuchMethodException e) {
             throw new RuntimeException(e);
@@ -95,6 +105,25 @@ public class ReplicatedHashMap<K, V> extends
     /** wrapped map instance */
     protected ConcurrentMap<K,V> map=null;
 
+    /** The max number of entries in a batch of the state */
+    protected int state_batch_size=1000;
+
+    /** The number of segments into which the keys are split for state transfer */
+    protected int num_state_segments=16;
+
+    /** Guards updated_keys, state_cleared, state_num_segments and received_segments */
+    protected final Object state_lock=new Object();
+
+    /** The keys updated by live updates while the state is received, null if no state is being received */
+    protected volatile Set<Object> updated_keys;
+
+    /** Set when the map was cleared while the state is received: the remaining entries of the state are outdated */
+    protected boolean state_cleared;
+
+    /** The number of segments of the state being received, and the segments which have been received */
+    protected int state_num_segments;
+    protected final BitSet received_segments=new BitSet();
+
 
 
 
@@ -162,12 +191,43 @@ public class ReplicatedHashMap<K, V> extends
         call_options.setTimeout(timeout);
     }
 
+    public int getStateBatchSize() {
+        return state_batch_size;
+    }
+
+    /** Sets the max number of entries in a batch of the state */
+    public void setStateBatchSize(int state_batch_size) {
+        this.state_batch_size=state_batch_size;
+    }
+
+    public int getNumStateSegments() {
+        return num_state_segments;
+    }
+
+    /** Sets the number of segments of the state: if a state transfer fails, the segments which have been received
+     * completely don't need to be fetched again */
+    public void setNumStateSegments(int num_state_segments) {
+        this.num_state_segments=num_state_segments;
+    }
+
     /**
-     * Fetches the state
+     * Fetches the state. If the state transfer fails (e.g. because the state provider crashed), the entries received
+     * so far are kept, and the missing segments are fetched from the other members
      * @param state_timeout
      */
     public final void start(long state_timeout) throws Exception {
-        channel.getState(null, state_timeout);
+        beginStateTransfer();
+        try {
+            channel.getState(null, state_timeout);
+        }
+        catch(Exception ex) {
+            if(missingSegments() == null)
+                throw ex;
+            resumeStateTransfer(state_timeout, ex);
+        }
+        finally {
+            endStateTransfer();
+        }
     }
 
     public Address getLocalAddress() {
@@ -374,6 +434,7 @@ public class ReplicatedHashMap<K, V> extends
     /*------------------------ Callbacks -----------------------*/
 
     public V _put(K key, V value) {
+        updated(key);
         V retval=map.put(key, value);
         for(Notification notif:notifs)
             notif.entrySet(key, value);
@@ -381,6 +442,7 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     public V _putIfAbsent(K key, V value) {
+        updated(key);
         V retval=map.putIfAbsent(key, value);
         for(Notification notif:notifs)
             notif.entrySet(key, value);
@@ -402,6 +464,7 @@ public class ReplicatedHashMap<K, V> extends
 
         // That said let's do it the stupid way:
         for(Map.Entry<? extends K,? extends V> entry:map.entrySet()) {
+            updated(entry.getKey());
             this.map.put(entry.getKey(), entry.getValue());
         }
 
@@ -412,12 +475,18 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     public void _clear() {
+        if(updated_keys != null) {
+            synchronized(state_lock) {
+                state_cleared=true;
+            }
+        }
         map.clear();
         for(Notification notif:notifs)
             notif.contentsCleared();
     }
 
     public V _remove(Object key) {
+        updated(key);
         V retval=map.remove(key);
         if(retval != null) {
             for(Notification notif:notifs)
@@ -428,6 +497,7 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     public boolean _remove(Object key, Object value) {
+        updated(key);
         boolean removed=map.remove(key, value);
         if(removed) {
             for(Notification notif:notifs)
@@ -437,6 +507,7 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     public boolean _replace(K key, V oldValue, V newValue) {
+        updated(key);
         boolean replaced=map.replace(key, oldValue, newValue);
         if(replaced) {
             for(Notification notif:notifs)
@@ -446,6 +517,7 @@ public class ReplicatedHashMap<K, V> extends
     }
 
     public V _replace(K key, V value) {
+        updated(key);
         V retval=map.replace(key, value);
         for(Notification notif:notifs)
             notif.entrySet(key, value);
@@ -460,43 +532,270 @@ public class ReplicatedHashMap<K, V> extends
 
     
 
+    /**
+     * Writes the state as a sequence of batches of at most state_batch_size serialized entries, so the requester can
+     * apply the state incrementally. The keys are split into num_state_segments segments, which are written one after
+     * the other; if the transfer fails, the requester fetches only the segments it hasn't received from another member.
+     * If the map is a {@link MappedMap}, the values are written as stored, without deserializing them.
+     */
     public void getState(OutputStream ostream) throws Exception {
-        K key;
-        V val;
-        HashMap<K,V> copy=new HashMap<K,V>();
-        ObjectOutputStream oos=null;
-
-        for(Map.Entry<K,V> entry:entrySet()) {
-            key=entry.getKey();
-            val=entry.getValue();
-            copy.put(key, val);
-        }
+        final DataOutputStream out=new DataOutputStream(new BufferedOutputStream(ostream, 8192));
         try {
-            oos=new ObjectOutputStream(new BufferedOutputStream(ostream, 1024));
-            oos.writeObject(copy);
+            out.writeInt(num_state_segments);
+            writeState(num_state_segments, null, new BatchWriter() {
+                public boolean write(byte[] batch, int length) throws Exception {
+                    out.write(batch, 0, length);
+                    out.flush();
+                    return true;
+                }
+            });
+            out.writeInt(-1);
+            out.flush();
         }
         finally {
-            Util.close(oos);
+            Util.close(out);
         }
     }
 
+    /**
+     * Applies the batches of the state as they are received. Live updates which are received while the state is
+     * being read take precedence over the entries of the state, as they are more recent
+     */
     public void setState(InputStream istream) throws Exception {
-        HashMap<K,V> new_copy=null;
-        ObjectInputStream ois=null;
+        DataInputStream in=new DataInputStream(istream);
+        boolean started=beginStateTransfer();
         try {
-            ois=new ObjectInputStream(istream);
-            new_copy=(HashMap<K,V>)ois.readObject();
+            int num_segments=in.readInt();
+            synchronized(state_lock) {
+                state_num_segments=num_segments;
+            }
+            int segment;
+            while((segment=in.readInt()) >= 0)
+                readBatch(segment, in);
         }
         finally {
-            Util.close(ois);
+            Util.close(in);
+            if(started)
+                endStateTransfer();
         }
-        if(new_copy != null)
-            _putAll(new_copy);
-
         if(log.isDebugEnabled())
             log.debug("state received successfully");
     }
 
+    /** Streams the batches of the given segments to the caller. Used to resume a state transfer which failed */
+    public ResponseStream<byte[]> _getState(final int num_segments, final int[] segments) {
+        final ResponseStream<byte[]> stream=new ResponseStream<byte[]>();
+        final BitSet requested=new BitSet(num_segments);
+        for(int segment: segments)
+            requested.set(segment);
+        Thread thread=channel.getProtocolStack().getTransport().getThreadFactory().newThread(new Runnable() {
+            public void run() {
+                try {
+                    writeState(num_segments, requested, new BatchWriter() {
+                        public boolean write(byte[] batch, int length) throws Exception {
+                            return stream.send(Arrays.copyOf(batch, length));
+                        }
+                    });
+                    stream.close();
+                }
+                catch(Throwable t) {
+                    stream.close(t);
+                }
+            }
+        }, "ReplicatedHashMap-state");
+        thread.setDaemon(true); // must not prevent the JVM from exiting if the requester is gone
+        thread.start();
+        return stream;
+    }
+
+
+    /** Writes the batches of all segments (or of the segments in requested), segment by segment */
+    protected void writeState(int num_segments, BitSet requested, BatchWriter writer) throws Exception {
+        MappedMap<K,V> mapped_map=map instanceof MappedMap? (MappedMap<K,V>)map : null;
+        // the keys of each segment, collected in a single pass over the map
+        List<List<K>> segments=new ArrayList<List<K>>(num_segments);
+        for(int i=0; i < num_segments; i++)
+            segments.add(requested == null || requested.get(i)? new ArrayList<K>() : null);
+        for(K key: map.keySet()) {
+            List<K> keys=segments.get(segmentOf(key, num_segments));
+            if(keys != null)
+                keys.add(key);
+        }
+
+        ExposedByteArrayOutputStream batch=new ExposedByteArrayOutputStream(8192);
+        DataOutputStream out=new DataOutputStream(batch);
+        for(int segment=0; segment < num_segments; segment++) {
+            List<K> keys=segments.get(segment);
+            if(keys == null)
+                continue;
+            segments.set(segment, null); // the keys of the written segments can be collected
+            int count=0;
+            batch.reset();
+            out.writeInt(segment);
+            out.writeInt(0); // the number of entries, overwritten when the batch is complete
+            for(K key: keys) {
+                byte[] val=mapped_map != null? mapped_map.getSerializedValue(key) : marshal(map.get(key));
+                if(val == null) // removed meanwhile
+                    continue;
+                Util.writeByteBuffer(Util.objectToByteBuffer(key), out);
+                Util.writeByteBuffer(val, out);
+                if(++count >= state_batch_size) {
+                    if(!writeBatch(batch, count, writer))
+                        return;
+                    count=0;
+                    batch.reset();
+                    out.writeInt(segment);
+                    out.writeInt(0);
+                }
+            }
+            if(count > 0 && !writeBatch(batch, count, writer))
+                return;
+            batch.reset(); // an empty batch marks the end of the segment
+            out.writeInt(segment);
+            out.writeInt(0);
+            if(!writer.write(batch.getRawBuffer(), batch.size()))
+                return;
+        }
+    }
+
+    protected static boolean writeBatch(ExposedByteArrayOutputStream batch, int count, BatchWriter writer) throws Exception {
+        byte[] buf=batch.getRawBuffer(); // overwrites the count, which follows the segment
+        for(int i=0; i < Global.INT_SIZE; i++)
+            buf[Global.INT_SIZE + i]=(byte)(count >>> (24 - i * 8));
+        return writer.write(batch.getRawBuffer(), batch.size());
+    }
+
+    /** Reads and applies a batch of entries of segment; an empty batch marks the segment as received */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    protected void readBatch(int segment, DataInput in) throws Exception {
+        int count=in.readInt();
+        if(count == 0) {
+            synchronized(state_lock) {
+                received_segments.set(segment);
+            }
+            return;
+        }
+        MappedMap<K,V> mapped_map=map instanceof MappedMap? (MappedMap<K,V>)map : null;
+        Map<K,V> applied=notifs.isEmpty()? null : new HashMap<K,V>(count);
+        for(int i=0; i < count; i++) {
+            K key=(K)Util.objectFromByteBuffer(Util.readByteBuffer(in));
+            byte[] buf=Util.readByteBuffer(in);
+            V val=mapped_map == null || applied != null? (V)Util.objectFromByteBuffer(buf) : null;
+            synchronized(state_lock) {
+                if(state_cleared || (updated_keys != null && updated_keys.contains(key)))
+                    continue; // a live update is more recent than the state
+                if(mapped_map != null)
+                    mapped_map.putSerialized(key, buf);
+                else
+                    map.put(key, val);
+            }
+            if(applied != null)
+                applied.put(key, val);
+        }
+        if(applied != null && !applied.isEmpty()) {
+            for(Notification notif:notifs)
+                notif.contentsSet(applied);
+        }
+    }
+
+    /**
+     * Fetches the segments which haven't been received from the other members, one after the other, until all
+     * segments have been received
+     */
+    protected void resumeStateTransfer(long timeout, Exception cause) throws Exception {
+        List<Address> providers=new ArrayList<Address>(channel.getView().getMembers());
+        providers.remove(channel.getAddress());
+        for(Address provider: providers) {
+            int[] missing=missingSegments();
+            if(missing == null || missing.length == 0)
+                return;
+            log.warn("%s: state transfer failed (%s), fetching %d missing segments from %s",
+                     channel.getAddress(), cause, missing.length, provider);
+            try {
+                int num_segments;
+                synchronized(state_lock) {
+                    num_segments=state_num_segments;
+                }
+                NotifyingFuture<RspList<Integer>> future=disp.callRemoteMethodsStreaming(
+                  Collections.singletonList(provider), new MethodCall(GET_STATE, num_segments, missing),
+                  new RequestOptions(ResponseMode.GET_ALL, timeout), new ChunkListener<byte[]>() {
+                    public void chunkReceived(byte[] chunk, Address sender) {
+                        try {
+                            DataInputStream in=new DataInputStream(new ByteArrayInputStream(chunk));
+                            readBatch(in.readInt(), in);
+                        }
+                        catch(Exception e) {
+                            log.error("failed reading state from " + sender, e);
+                        }
+                    }
+                });
+                Rsp<Integer> rsp=future.get(timeout, TimeUnit.MILLISECONDS).get(provider);
+                if(rsp != null && rsp.hasException())
+                    cause=(Exception)rsp.getException();
+            }
+            catch(Exception ex) {
+                cause=ex;
+            }
+        }
+        int[] missing=missingSegments();
+        if(missing != null && missing.length > 0)
+            throw new StateTransferException(missing.length + " segments of the state could not be fetched", cause);
+    }
+
+    /** Returns the segments which haven't been received, or null if no state has been received at all */
+    protected int[] missingSegments() {
+        synchronized(state_lock) {
+            if(state_num_segments <= 0)
+                return null;
+            int[] retval=new int[state_num_segments - received_segments.cardinality()];
+            for(int i=0, index=0; i < state_num_segments; i++)
+                if(!received_segments.get(i))
+                    retval[index++]=i;
+            return retval;
+        }
+    }
+
+    /** Starts tracking the keys which are updated while the state is received. Returns false if already tracking */
+    protected boolean beginStateTransfer() {
+        synchronized(state_lock) {
+            if(updated_keys != null)
+                return false;
+            updated_keys=new HashSet<Object>();
+            state_cleared=false;
+            return true;
+        }
+    }
+
+    protected void endStateTransfer() {
+        synchronized(state_lock) {
+            updated_keys=null;
+            state_cleared=false;
+        }
+    }
+
+    /** Called before a live update of key is applied; the state will not overwrite key afterwards */
+    protected void updated(Object key) {
+        if(updated_keys == null)
+            return;
+        synchronized(state_lock) {
+            if(updated_keys != null)
+                updated_keys.add(key);
+        }
+    }
+
+    protected static int segmentOf(Object key, int num_segments) {
+        return (key.hashCode() & Integer.MAX_VALUE) % num_segments;
+    }
+
+    protected static byte[] marshal(Object obj) throws Exception {
+        return obj != null? Util.objectToByteBuffer(obj) : null;
+    }
+
+    protected interface BatchWriter {
+        /** Writes a batch; returns false if the requester isn't interested in more batches */
+        boolean write(byte[] batch, int length) throws Exception;
+    }
+
     /*------------------- Membership Changes ----------------------*/
 
     public void viewAccepted(View new_view) {
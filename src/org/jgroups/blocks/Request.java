@@ -9,9 +9,11 @@ import org.jgroups.logging.Log;
 import org.jgroups.logging.LogFactory;
 import org.jgroups.util.FutureListener;
 import org.jgroups.util.NotifyingFuture;
+import org.jgroups.util.TimeScheduler;
 
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
@@ -19,7 +21,12 @@ import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
- * Abstract class for a unicast or multicast request
+ * Abstract class for a unicast or multicast request.
+ * <p/>
+ * A non-blocking request (see {@link #setBlockForResults(boolean)}) is completed by the thread which delivers the
+ * last response (or view change), or - if the options define a timeout - by a task scheduled on the timer of the
+ * {@link RequestCorrelator}, so no thread needs to wait for the results. The {@link FutureListener} is notified
+ * exactly once, by the thread which completed the request, so it must not block.
  *
  * @author Bela Ban
  */
@@ -45,6 +52,11 @@ public abstract class Request implements RspCollector, NotifyingFuture {
 
     protected volatile FutureListener listener;
 
+    protected final AtomicBoolean     listener_notified=new AtomicBoolean(false);
+
+    /** Completes a non-blocking request when the timeout kicks in, cancelled when the request completes before */
+    protected volatile Future<?>      timeout_task;
+
 
     
     public Request(Message request, RequestCorrelator corr, RequestOptions options) {
@@ -70,7 +82,7 @@ public abstract class Request implements RspCollector, NotifyingFuture {
     public NotifyingFuture setListener(FutureListener listener) {
         this.listener=listener;
         if(done)
-            listener.futureDone(this);
+            notifyListener();
         return this;
     }
 
@@ -81,8 +93,12 @@ public abstract class Request implements RspCollector, NotifyingFuture {
         }
 
         sendRequest();
-        if(!block_for_results || options.getMode() == ResponseMode.GET_NONE)
+        if(options.getMode() == ResponseMode.GET_NONE)
+            return true;
+        if(!block_for_results) {
+            scheduleTimeout();
             return true;
+        }
 
         lock.lock();
         try {
@@ -91,6 +107,7 @@ public abstract class Request implements RspCollector, NotifyingFuture {
         finally {
             done=true;
             lock.unlock();
+            notifyListener();
         }
     }
 
@@ -119,18 +136,21 @@ public abstract class Request implements RspCollector, NotifyingFuture {
 
 
     public boolean cancel(boolean mayInterruptIfRunning) {
+        boolean retval;
         lock.lock();
         try {
-            boolean retval=!done;
+            retval=!done;
             done=true;
             if(corr != null)
                 corr.done(req_id);
             completed.signalAll();
-            return retval;
         }
         finally {
             lock.unlock();
         }
+        cancelTimeout();
+        notifyListener();
+        return retval;
     }
 
     public boolean isCancelled() {
@@ -160,9 +180,61 @@ public abstract class Request implements RspCollector, NotifyingFuture {
     /* --------------------------------- Private Methods -------------------------------------*/
 
 
+    /** Notifies the listener if the request is done, either because all responses were received or because the
+     * {@link RspFilter} didn't need more responses */
     protected void checkCompletion(Future future) {
-        if(listener != null && responsesComplete())
-            listener.futureDone(future);
+        if(done || responsesComplete()) {
+            cancelTimeout();
+            notifyListener();
+        }
+    }
+
+    /** Notifies the listener (if set) exactly once */
+    @SuppressWarnings("unchecked")
+    protected void notifyListener() {
+        FutureListener<Object> tmp=listener;
+        if(tmp != null && listener_notified.compareAndSet(false, true))
+            tmp.futureDone(this);
+    }
+
+    /** Schedules completion of a non-blocking request after the timeout defined in the options */
+    protected void scheduleTimeout() {
+        long timeout=options.getTimeout();
+        TimeScheduler timer=corr != null? corr.getTimer() : null;
+        if(timeout <= 0 || timer == null || done)
+            return;
+        timeout_task=timer.schedule(new Runnable() {
+            public void run() {timeout();}
+            public String toString() {return Request.this.getClass().getSimpleName() + ": timeout (req_id=" + req_id + ")";}
+        }, timeout, TimeUnit.MILLISECONDS);
+        if(done) // completed while we were scheduling the task
+            cancelTimeout();
+    }
+
+    protected void cancelTimeout() {
+        Future<?> tmp=timeout_task;
+        if(tmp != null) {
+            timeout_task=null;
+            tmp.cancel(false);
+        }
+    }
+
+    /** Completes the request with the responses received so far. Called by the timer */
+    protected void timeout() {
+        lock.lock();
+        try {
+            if(done)
+                return;
+            done=true;
+            if(corr != null)
+                corr.done(req_id);
+            completed.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+        timeout_task=null;
+        notifyListener();
     }
 
     /** Generates a new unique request ID */
@@ -9,15 +9,18 @@ import org.jgroups.protocols.TP;
 import org.jgroups.protocols.relay.SiteMaster;
 import org.jgroups.stack.DiagnosticsHandler;
 import org.jgroups.stack.Protocol;
-import org.jgroups.util.Bits;
-import org.jgroups.util.Buffer;
-import org.jgroups.util.Util;
+import org.jgroups.util.*;
 
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.NotSerializableException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -42,8 +45,8 @@ public class RequestCorrelator {
     /** The protocol layer to use to pass up/down messages. Can be either a Protocol or a Transport */
     protected Protocol                               transport;
 
-    /** The table of pending requests (keys=Long (request IDs), values=<tt>RequestEntry</tt>) */
-    protected final ConcurrentMap<Long,RspCollector> requests=Util.createConcurrentMap();
+    /** The table of pending requests (keys=request IDs, values=<tt>RspCollector</tt>) */
+    protected final StripedLongMap<RspCollector>     requests=new StripedLongMap<RspCollector>();
 
 
     /** The handler for the incoming requests. It is called from inside the dispatcher thread */
@@ -65,6 +68,34 @@ public class RequestCorrelator {
     /** Whether or not to use async dispatcher */
     protected boolean                                async_dispatching=false;
 
+    /** Used to time out non-blocking requests (futures). If null, futures only time out in get(timeout) */
+    protected TimeScheduler                          timer;
+
+    /** The requests being processed for each sender. Senders which left are removed on a view change */
+    protected final ConcurrentMap<Address,SenderRequests> senders=new ConcurrentHashMap<Address,SenderRequests>();
+
+    /** Cancellations of requests which haven't been received yet, in the order in which they were received. Also
+     * used as the lock for recording cancellations */
+    protected final Map<RequestKey,Boolean>          cancelled_requests=new LinkedHashMap<RequestKey,Boolean>() {
+        protected boolean removeEldestEntry(Map.Entry<RequestKey,Boolean> eldest) {
+            if(size() <= max_cancelled_requests)
+                return false;
+            num_cancelled_requests.decrementAndGet();
+            return true;
+        }
+    };
+
+    /** The number of cancellations in cancelled_requests and in the running requests. Read without locking, so that
+     * requests and responses don't look up cancellations when there are none (the common case) */
+    protected final AtomicInteger                    num_cancelled_requests=new AtomicInteger(0);
+
+    /** Max number of cancellations of requests which haven't been received yet. When a request is never received
+     * (e.g. because its sender reordered it behind a later OOB request), the oldest cancellations are evicted */
+    protected volatile int                           max_cancelled_requests=1000;
+
+    /** Number of requests which were dropped, or whose responses were not sent, because they had been cancelled */
+    protected final AtomicInteger                    num_skipped_responses=new AtomicInteger(0);
+
     private final MyProbeHandler                     probe_handler=new MyProbeHandler(requests);
 
     protected static final Log                       log=LogFactory.getLog(RequestCorrelator.class);
@@ -112,6 +143,12 @@ public class RequestCorrelator {
     public void                     setMarshaller(RpcDispatcher.Marshaller marshaller) {this.marshaller=marshaller;}
     public boolean                  asyncDispatching() {return async_dispatching;}
     public RequestCorrelator        asyncDispatching(boolean flag) {async_dispatching=flag; return this;}
+    public TimeScheduler            getTimer() {return timer;}
+    public RequestCorrelator        setTimer(TimeScheduler timer) {this.timer=timer; return this;}
+    public int                      getMaxCancelledRequests() {return max_cancelled_requests;}
+    public RequestCorrelator        setMaxCancelledRequests(int max) {this.max_cancelled_requests=max; return this;}
+    public int                      getNumCancelledRequests() {return num_cancelled_requests.get();}
+    public int                      getNumSkippedResponses() {return num_skipped_responses.get();}
 
     public void sendRequest(long id, List<Address> dest_mbrs, Message msg, RspCollector coll) throws Exception {
         sendRequest(id, dest_mbrs, msg, coll, new RequestOptions().setAnycasting(false));
@@ -206,6 +243,37 @@ public class RequestCorrelator {
 
 
 
+    /**
+     * Tells the given members that the responses to a request are not needed anymore, e.g. because the result of the
+     * request has already been decided. A member which hasn't yet invoked the request drops it, a member which is
+     * currently invoking it doesn't send the response. Cancellations are sent as OOB messages and are best effort.
+     * A cancellation to more than one member is sent as a single multicast, which the other members of the view
+     * discard (like a request with an exclusion list).
+     */
+    public void sendCancellation(long req_id, Collection<Address> mbrs) {
+        if(transport == null || mbrs == null || mbrs.isEmpty())
+            return;
+        Message msg;
+        if(mbrs.size() == 1)
+            msg=new Message(mbrs.iterator().next()).putHeader(this.id, new Header(Header.CANCEL, req_id, false, this.id));
+        else {
+            View tmp_view=view;
+            List<Address> excluded=new ArrayList<Address>();
+            if(tmp_view != null)
+                for(Address mbr: tmp_view.getMembers())
+                    if(!mbrs.contains(mbr))
+                        excluded.add(mbr);
+            msg=new Message(null).putHeader(this.id, new MultiDestinationHeader(Header.CANCEL, req_id, false, this.id,
+                                                                                excluded.isEmpty()? null :
+                                                                                  excluded.toArray(new Address[excluded.size()])));
+        }
+        msg.setFlag(Message.Flag.OOB, Message.Flag.DONT_BUNDLE);
+        if(log.isTraceEnabled())
+            log.trace(local_addr + ": sending cancellation of request " + req_id + " to " + mbrs);
+        transport.down(new Event(Event.MSG, msg));
+    }
+
+
     /**
      * Used to signal that a certain request may be garbage collected as all responses have been received.
      */
@@ -266,6 +334,11 @@ public class RequestCorrelator {
         for(RspCollector coll: requests.values())
             coll.transportClosed();
         requests.clear();
+        synchronized(cancelled_requests) {
+            cancelled_requests.clear();
+            senders.clear();
+            num_cancelled_requests.set(0);
+        }
     }
 
 
@@ -292,15 +365,27 @@ public class RequestCorrelator {
     public void receiveSuspect(Address mbr) {
         if(mbr == null) return;
         if(log.isDebugEnabled()) log.debug("suspect=" + mbr);
+        cancelRequests(mbr);
+    }
 
-        // copy so we don't run into bug #761804 - Bela June 27 2003
-        // copy=new ArrayList(requests.values()); // removed because ConcurrentReaderHashMap can tolerate concurrent mods (bela May 8 2006)
-        for(RspCollector coll: requests.values()) {
-            if(coll != null)
-                coll.suspect(mbr);
-        }
+    /**
+     * Marks the responses from the given members as suspected in all pending requests, so the requests don't wait
+     * for them. All members are handled in a single pass over the pending requests
+     */
+    public void cancelRequests(final Address ... mbrs) {
+        if(mbrs == null || mbrs.length == 0)
+            return;
+        requests.forEach(new StripedLongMap.Visitor<RspCollector>() {
+            public void visit(long key, RspCollector coll) {
+                for(Address mbr: mbrs)
+                    coll.suspect(mbr);
+            }
+        });
     }
 
+    /** Returns the number of pending requests */
+    public int getNumPendingRequests() {return requests.size();}
+
 
     /** An entire site is down; mark all requests that point to that site as unreachable (used by RELAY2) */
     public void setSiteUnreachable(String site) {
@@ -319,14 +404,30 @@ public class RequestCorrelator {
      *
      */
     public void receiveView(View new_view) {
-        // ArrayList    copy;
-        // copy so we don't run into bug #761804 - Bela June 27 2003
-        // copy=new ArrayList(requests.values());  // removed because ConcurrentHashMap can tolerate concurrent mods (bela May 8 2006)
         view=new_view; // move this before the iteration (JGRP-1428)
+        // values() is a snapshot, so collectors can remove themselves (done()) while we iterate
         for(RspCollector coll: requests.values()) {
             if(coll != null)
                 coll.viewChange(new_view);
         }
+        List<Address> mbrs=new_view.getMembers();
+        synchronized(cancelled_requests) { // cancellations are recorded under this lock, too
+            for(Iterator<Map.Entry<Address,SenderRequests>> it=senders.entrySet().iterator(); it.hasNext();) {
+                Map.Entry<Address,SenderRequests> entry=it.next();
+                if(!mbrs.contains(entry.getKey())) {
+                    it.remove();
+                    entry.getValue().clear(); // the responses to its requests won't be sent anyway
+                }
+            }
+            if(num_cancelled_requests.get() > 0) {
+                for(Iterator<RequestKey> it=cancelled_requests.keySet().iterator(); it.hasNext();) {
+                    if(!mbrs.contains(it.next().sender)) {
+                        it.remove();
+                        num_cancelled_requests.decrementAndGet();
+                    }
+                }
+            }
+        }
     }
 
 
@@ -376,6 +477,7 @@ public class RequestCorrelator {
 
             case Header.RSP:
             case Header.EXC_RSP:
+            case Header.RSP_CHUNK:
                 RspCollector coll=requests.get(hdr.id);
                 if(coll != null) {
                     boolean is_exception=hdr.type == Header.EXC_RSP;
@@ -392,10 +494,19 @@ public class RequestCorrelator {
                         retval=e;
                         is_exception=true;
                     }
-                    coll.receiveResponse(retval, sender, is_exception);
+                    if(hdr.type == Header.RSP_CHUNK && !is_exception) {
+                        if(coll instanceof StreamingRequest)
+                            ((StreamingRequest<?>)coll).receiveChunk(retval, sender);
+                    }
+                    else
+                        coll.receiveResponse(retval, sender, is_exception);
                 }
                 break;
 
+            case Header.CANCEL:
+                receiveCancellation(hdr.id, msg.getSrc());
+                break;
+
             default:
                 msg.getHeader(this.id);
                 if(log.isErrorEnabled()) log.error("header's type is neither REQ nor RSP !");
@@ -447,6 +558,17 @@ public class RequestCorrelator {
         Object        retval;
         boolean       threw_exception=false;
 
+        if(hdr.rsp_expected) {
+            requestStarted(hdr.id, req.getSrc());
+            if(wasCancelled(hdr.id, req.getSrc())) {
+                requestDone(hdr.id, req.getSrc());
+                num_skipped_responses.incrementAndGet();
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": dropped request " + hdr.id + " from " + req.getSrc() + " as it was cancelled");
+                return;
+            }
+        }
+
         if(log.isTraceEnabled()) {
             log.trace(new StringBuilder("calling (").append((request_handler != null? request_handler.getClass().getName() : "null")).
                       append(") with request ").append(hdr.id));
@@ -477,7 +599,124 @@ public class RequestCorrelator {
     }
 
 
+    /**
+     * Records a cancellation of a request. The cancellation is only kept if the request is still running, or if it
+     * hasn't been received yet. A cancellation of a request which was already answered is discarded
+     */
+    protected void receiveCancellation(long req_id, Address sender) {
+        if(sender == null)
+            return;
+        synchronized(cancelled_requests) {
+            SenderRequests reqs=senders.get(sender);
+            // incremented before looking up the request, so that requestStarted() either sees the increment, or
+            // the request is found in the running requests
+            num_cancelled_requests.incrementAndGet();
+            boolean received=reqs != null && req_id <= reqs.highest.get(); // read before looking up the request
+            if(reqs != null && reqs.running.replace(req_id, Boolean.FALSE, Boolean.TRUE))
+                return;
+            if(received || (reqs != null && reqs.running.containsKey(req_id))
+              || cancelled_requests.put(new RequestKey(sender, req_id), Boolean.TRUE) != null) {
+                num_cancelled_requests.decrementAndGet(); // answered, or cancelled already
+                if(log.isTraceEnabled())
+                    log.trace(local_addr + ": discarded cancellation of request " + req_id + " from " + sender);
+            }
+        }
+    }
+
+    /** Adds a request to the running requests of its sender. If the request was cancelled before it was received,
+     * it is marked as cancelled */
+    protected void requestStarted(long req_id, Address sender) {
+        if(sender == null)
+            return;
+        SenderRequests reqs=senders.get(sender);
+        if(reqs == null) {
+            SenderRequests tmp=senders.putIfAbsent(sender, reqs=new SenderRequests(req_id));
+            if(tmp != null)
+                reqs=tmp;
+        }
+        reqs.running.putIfAbsent(req_id, Boolean.FALSE);
+        for(long id; (id=reqs.highest.get()) < req_id && !reqs.highest.compareAndSet(id, req_id);)
+            ;
+        if(num_cancelled_requests.get() == 0)
+            return;
+        synchronized(cancelled_requests) {
+            // the count stays, as the cancellation moves to the running requests
+            if(cancelled_requests.remove(new RequestKey(sender, req_id)) != null)
+                reqs.running.replace(req_id, Boolean.FALSE, Boolean.TRUE);
+        }
+    }
+
+    /** Removes a request from the running requests when its final response was sent, or was dropped because the
+     * request was cancelled */
+    protected void requestDone(long req_id, Address sender) {
+        SenderRequests reqs=sender != null? senders.get(sender) : null;
+        if(reqs != null && reqs.running.remove(req_id) == Boolean.TRUE)
+            num_cancelled_requests.decrementAndGet();
+    }
+
+    /** Checks whether a running request was cancelled by its sender. Doesn't look up the request when there are no
+     * cancellations */
+    protected boolean wasCancelled(long req_id, Address sender) {
+        if(num_cancelled_requests.get() == 0 || sender == null)
+            return false;
+        SenderRequests reqs=senders.get(sender);
+        return reqs != null && reqs.running.get(req_id) == Boolean.TRUE;
+    }
+
+    /**
+     * Sends the reply to a request. If the reply is a {@link NotifyingFuture}, the reply is sent when the future
+     * completes. If it is a {@link ResponseStream}, its chunks are sent as they are added to the stream
+     */
     protected void sendReply(final Message req, final long req_id, Object reply, boolean is_exception) {
+        if(wasCancelled(req_id, req.getSrc())) {
+            requestDone(req_id, req.getSrc());
+            num_skipped_responses.incrementAndGet();
+            if(log.isTraceEnabled())
+                log.trace(local_addr + ": not sending response to " + req_id + " as the request was cancelled");
+            return;
+        }
+        if(!is_exception) {
+            if(reply instanceof NotifyingFuture) {
+                sendReplyWhenDone(req, req_id, (NotifyingFuture<?>)reply);
+                return;
+            }
+            if(reply instanceof ResponseStream) {
+                ((ResponseStream<?>)reply).attach(new StreamSink(req, req_id));
+                return;
+            }
+        }
+        sendReply(req, req_id, reply, is_exception? Header.EXC_RSP : Header.RSP, false);
+    }
+
+    /** Sends the value (or exception) of the future when it completes; the current thread doesn't wait for it */
+    protected <T> void sendReplyWhenDone(final Message req, final long req_id, NotifyingFuture<T> future) {
+        future.setListener(new FutureListener<T>() {
+            public void futureDone(Future<T> f) {
+                Object retval;
+                boolean is_exception=false;
+                try {
+                    retval=f.get();
+                }
+                catch(ExecutionException ex) {
+                    retval=ex.getCause() != null? ex.getCause() : ex;
+                    is_exception=true;
+                }
+                catch(Throwable t) { // e.g. CancellationException
+                    retval=t;
+                    is_exception=true;
+                }
+                sendReply(req, req_id, retval, is_exception);
+            }
+        });
+    }
+
+    /**
+     * Marshals the reply and sends it in a message with a header of the given type. The messages of a stream are
+     * sent as regular messages (even if the request was OOB), so that the caller receives them in order
+     */
+    protected void sendReply(final Message req, final long req_id, Object reply, byte type, boolean stream) {
+        if(type != Header.RSP_CHUNK)
+            requestDone(req_id, req.getSrc());
         Object rsp_buf; // either byte[] or Buffer
         try {  // retval could be an exception, or a real value
             rsp_buf=marshaller != null? marshaller.objectToBuffer(reply) : Util.objectToByteBuffer(reply);
@@ -485,7 +724,7 @@ public class RequestCorrelator {
         catch(Throwable t) {
             try {  // this call should succeed (all exceptions are serializable)
                 rsp_buf=marshaller != null? marshaller.objectToBuffer(t) : Util.objectToByteBuffer(t);
-                is_exception=true;
+                type=Header.EXC_RSP;
             }
             catch(NotSerializableException not_serializable) {
                 if(log.isErrorEnabled()) log.error("failed marshalling rsp (" + reply + "): not serializable");
@@ -498,17 +737,23 @@ public class RequestCorrelator {
         }
 
         Message rsp=req.makeReply().setFlag(req.getFlags()).clearFlag(Message.Flag.RSVP, Message.Flag.SCOPED);
+        if(stream)
+            rsp.clearFlag(Message.Flag.OOB);
         if(rsp_buf instanceof Buffer)
             rsp.setBuffer((Buffer)rsp_buf);
         else if(rsp_buf instanceof byte[])
             rsp.setBuffer((byte[])rsp_buf);
 
-       sendResponse(rsp, req_id, is_exception);
+       sendResponse(rsp, req_id, type);
     }
 
     protected void sendResponse(Message rsp, long req_id, boolean is_exception) {
+        sendResponse(rsp, req_id, is_exception? Header.EXC_RSP : Header.RSP);
+    }
+
+    protected void sendResponse(Message rsp, long req_id, byte type) {
         prepareResponse(rsp);
-        Header rsp_hdr=new Header(is_exception? Header.EXC_RSP : Header.RSP, req_id, false, id);
+        Header rsp_hdr=new Header(type, req_id, false, id);
         rsp.putHeader(id, rsp_hdr);
         if(log.isTraceEnabled())
             log.trace(new StringBuilder("sending rsp for ").append(rsp_hdr.id).append(" to ").append(rsp.getDest()));
@@ -524,6 +769,37 @@ public class RequestCorrelator {
     // .......................................................................
 
 
+    /** Sends the chunks of a {@link ResponseStream} as RSP_CHUNK messages, and the end of the stream as RSP/EXC_RSP */
+    protected class StreamSink implements ResponseStream.Sink {
+        protected final Message req;
+        protected final long    req_id;
+
+        public StreamSink(Message req, long req_id) {
+            this.req=req;
+            this.req_id=req_id;
+        }
+
+        public boolean sendChunk(Object chunk) {
+            if(wasCancelled(req_id, req.getSrc())) { // the stream is cancelled and won't call close()
+                requestDone(req_id, req.getSrc());
+                num_skipped_responses.incrementAndGet();
+                return false;
+            }
+            sendReply(req, req_id, chunk, Header.RSP_CHUNK, true);
+            return true;
+        }
+
+        public void close(Throwable t) {
+            if(!wasCancelled(req_id, req.getSrc()))
+                sendReply(req, req_id, t, t != null? Header.EXC_RSP : Header.RSP, true);
+            else {
+                requestDone(req_id, req.getSrc());
+                num_skipped_responses.incrementAndGet();
+            }
+        }
+    }
+
+
     protected class ResponseImpl implements Response {
         protected final Message req;
         protected final long    req_id;
@@ -538,7 +814,66 @@ public class RequestCorrelator {
         }
 
         public void send(Message reply, boolean is_exception) {
-            sendResponse(reply, req_id, is_exception);
+            boolean cancelled=wasCancelled(req_id, req.getSrc());
+            requestDone(req_id, req.getSrc());
+            if(!cancelled)
+                sendResponse(reply, req_id, is_exception);
+            else
+                num_skipped_responses.incrementAndGet();
+        }
+    }
+
+
+    /**
+     * The requests of a sender which are being processed and whose responses are expected, mapped to whether they
+     * were cancelled (see {@link Header#CANCEL}). Keyed by request ID, so that tracking a request doesn't allocate
+     * anything
+     */
+    protected class SenderRequests {
+        protected final StripedLongMap<Boolean> running=new StripedLongMap<Boolean>(4, 8);
+        /** The highest request ID received. Request IDs increase per sender, so a cancellation of a request which is
+         * not running and whose ID is not higher was already answered, and is discarded */
+        protected final AtomicLong              highest;
+
+        protected SenderRequests(long req_id) {
+            highest=new AtomicLong(req_id);
+        }
+
+        /** Removes all requests; the cancellations among them are not counted anymore */
+        protected void clear() {
+            running.forEach(new StripedLongMap.Visitor<Boolean>() {
+                public void visit(long req_id, Boolean cancelled) {
+                    if(running.remove(req_id) == Boolean.TRUE)
+                        num_cancelled_requests.decrementAndGet();
+                }
+            });
+        }
+    }
+
+
+    /** Identifies a request by its sender and request ID; request IDs are only unique per sender */
+    protected static class RequestKey {
+        protected final Address sender;
+        protected final long    req_id;
+
+        public RequestKey(Address sender, long req_id) {
+            this.sender=sender;
+            this.req_id=req_id;
+        }
+
+        public int hashCode() {
+            return sender.hashCode() * 31 + (int)(req_id ^ (req_id >>> 32));
+        }
+
+        public boolean equals(Object obj) {
+            if(!(obj instanceof RequestKey))
+                return false;
+            RequestKey other=(RequestKey)obj;
+            return req_id == other.req_id && sender.equals(other.sender);
+        }
+
+        public String toString() {
+            return sender + "::" + req_id;
         }
     }
 
@@ -550,6 +885,8 @@ public class RequestCorrelator {
         public static final byte REQ     = 0;
         public static final byte RSP     = 1;
         public static final byte EXC_RSP = 2; // exception
+        public static final byte CANCEL  = 3; // the response to request id is not needed anymore
+        public static final byte RSP_CHUNK = 4; // a chunk of a streamed response, the stream is ended by RSP or EXC_RSP
 
         /** Type of header: request or reply */
         public byte    type;
@@ -594,6 +931,10 @@ public class RequestCorrelator {
                     break;
                 case EXC_RSP: ret.append("EXC_RSP");
                     break;
+                case CANCEL: ret.append("CANCEL");
+                    break;
+                case RSP_CHUNK: ret.append("RSP_CHUNK");
+                    break;
                 default: ret.append("<unknown>");
             }
             ret.append(", id=" + id);
@@ -664,9 +1005,9 @@ public class RequestCorrelator {
 
 
     private static class MyProbeHandler implements DiagnosticsHandler.ProbeHandler {
-        private final ConcurrentMap<Long,RspCollector> requests;
+        private final StripedLongMap<RspCollector> requests;
 
-        private MyProbeHandler(ConcurrentMap<Long,RspCollector> requests) {
+        private MyProbeHandler(StripedLongMap<RspCollector> requests) {
             this.requests=requests;
         }
 
@@ -676,11 +1017,7 @@ public class RequestCorrelator {
             Map<String,String> retval=new HashMap<String,String>();
             for(String key: keys) {
                 if(key.equals("requests")) {
-                    StringBuilder sb=new StringBuilder();
-                    for(Map.Entry<Long,RspCollector> entry: requests.entrySet()) {
-                        sb.append(entry.getKey()).append(": ").append(entry.getValue()).append("\n");
-                    }
-                    retval.put("requests", sb.toString());
+                    retval.put("requests", requests.toString());
                     break;
                 }
             }
@@ -5,6 +5,12 @@ package org.jgroups.blocks;
 import org.jgroups.Message;
 
 
+/**
+ * Handles a request and returns the response. The response can be completed later, from any thread, by returning
+ * a {@link org.jgroups.util.NotifyingFuture} (e.g. a {@link org.jgroups.util.SettableFuture}), or streamed in chunks
+ * by returning a {@link ResponseStream}; in both cases the thread which delivered the request is not blocked.
+ * @author Bela Ban
+ */
 public interface RequestHandler {
     Object handle(Message msg) throws Exception;
 }
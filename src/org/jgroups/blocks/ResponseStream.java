@@ -0,0 +1,99 @@
+package org.jgroups.blocks;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A response which consists of multiple chunks. A method invoked by an {@link RpcDispatcher} (or a
+ * {@link RequestHandler}) returns a ResponseStream and then - from any thread - adds chunks with {@link #send(Object)}
+ * and ends the stream with {@link #close()} or {@link #close(Throwable)}. Each chunk is sent to the caller as a
+ * separate message, and passed to the caller's {@link ChunkListener} in the order in which it was sent.
+ * <p/>
+ * Chunks sent before the stream was returned are buffered until the stream is attached to the request. If the
+ * caller cancels the request, {@link #isCancelled()} returns true and further chunks are discarded, so long-running
+ * producers should check it.
+ * @author agent
+ * @since 3.6
+ * @see RpcDispatcher#callRemoteMethodsStreaming(java.util.Collection, MethodCall, RequestOptions, ChunkListener)
+ */
+public class ResponseStream<T> {
+    protected Sink               sink;
+    protected List<T>            pending;   // chunks sent before the sink was attached
+    protected boolean            closed;
+    protected Throwable          exception; // set when the stream was closed with an exception
+    protected volatile boolean   cancelled;
+
+
+    /** Sends the chunks of a stream to the caller. Implemented by {@link RequestCorrelator} */
+    protected interface Sink {
+        /** Sends a chunk. Returns false if the request has been cancelled by the caller */
+        boolean sendChunk(Object chunk);
+
+        /** Ends the stream, with an exception if t is non-null. Not called if the stream was cancelled */
+        void close(Throwable t);
+    }
+
+
+    /**
+     * Sends a chunk to the caller. Chunks are received in the order in which they were sent
+     * @return False if the stream is closed or cancelled, and the chunk was discarded
+     */
+    public synchronized boolean send(T chunk) {
+        if(closed || cancelled)
+            return false;
+        if(sink == null) {
+            if(pending == null)
+                pending=new ArrayList<T>();
+            pending.add(chunk);
+            return true;
+        }
+        if(!sink.sendChunk(chunk)) {
+            cancelled=true;
+            return false;
+        }
+        return true;
+    }
+
+    /** Ends the stream. Subsequent calls are ignored */
+    public void close() {
+        close(null);
+    }
+
+    /** Ends the stream with an exception, which is passed to the caller. Subsequent calls are ignored */
+    public synchronized void close(Throwable t) {
+        if(closed)
+            return;
+        closed=true;
+        exception=t;
+        if(sink != null && !cancelled)
+            sink.close(t);
+    }
+
+    public synchronized boolean isClosed() {return closed;}
+
+    /** Returns true if the caller is not interested in (further) chunks, e.g. because it cancelled the request */
+    public boolean isCancelled() {return cancelled;}
+
+    public synchronized String toString() {
+        return (closed? "closed" : "open") + (cancelled? " (cancelled)" : "")
+          + (sink == null && pending != null? ", " + pending.size() + " pending chunks" : "");
+    }
+
+
+    /** Attaches the sink and sends the chunks which were sent before */
+    protected synchronized void attach(Sink sink) {
+        this.sink=sink;
+        if(pending != null) {
+            List<T> tmp=pending;
+            pending=null;
+            for(T chunk: tmp) {
+                if(cancelled || !sink.sendChunk(chunk)) {
+                    cancelled=true;
+                    break;
+                }
+            }
+        }
+        if(closed && !cancelled)
+            sink.close(exception);
+    }
+}
@@ -7,6 +7,9 @@ import org.jgroups.util.*;
 
 import java.lang.reflect.Method;
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 
 /**
@@ -22,21 +25,37 @@ import java.util.*;
  */
 public class RpcDispatcher extends MessageDispatcher {
     protected Object        server_obj=null;
+
+    /** The default request and response marshaller. Codecs for application types can be registered with it */
+    protected final CodecMarshaller codecs;
+
     /** Marshaller to marshall requests at the caller and unmarshal requests at the receiver(s) */
-    protected Marshaller    req_marshaller=null;
+    protected Marshaller    req_marshaller;
 
     /** Marshaller to marshal responses at the receiver(s) and unmarshal responses at the caller */
-    protected Marshaller    rsp_marshaller=null;
+    protected Marshaller    rsp_marshaller;
 
     protected MethodLookup  method_lookup=null;
 
+    /** Used to invoke the calls of a parallel {@link MethodCallBatch}. If null, batches are always invoked sequentially */
+    protected Executor      batch_executor;
+
 
     public RpcDispatcher() {
+        codecs=new CodecMarshaller();
+        req_marshaller=rsp_marshaller=codecs;
     }
 
 
     public RpcDispatcher(Channel channel, MessageListener l, MembershipListener l2, Object server_obj) {
-        super(channel, l, l2);
+        this(channel, l, l2, server_obj, new CodecMarshaller());
+    }
+
+    /** The correlator is created and started by super(), so the codecs have to be handed to it from there */
+    protected RpcDispatcher(Channel channel, MessageListener l, MembershipListener l2, Object server_obj, CodecMarshaller codecs) {
+        super(channel, l, l2, codecs);
+        this.codecs=codecs;
+        req_marshaller=rsp_marshaller=codecs;
         this.server_obj=server_obj;
     }
 
@@ -86,6 +105,9 @@ public class RpcDispatcher extends MessageDispatcher {
     }
 
     public Marshaller getMarshaller() {return req_marshaller;}
+
+    /** Returns the default marshaller, e.g. to register codecs for application types */
+    public CodecMarshaller getCodecs() {return codecs;}
     
     public void setMarshaller(Marshaller m) {setRequestMarshaller(m);}
 
@@ -95,6 +117,9 @@ public class RpcDispatcher extends MessageDispatcher {
         this.server_obj=server_obj;
     }
 
+    public Executor      getBatchExecutor()           {return batch_executor;}
+    public RpcDispatcher setBatchExecutor(Executor e) {this.batch_executor=e; return this;}
+
     public MethodLookup getMethodLookup() {
         return method_lookup;
     }
@@ -148,25 +173,134 @@ public class RpcDispatcher extends MessageDispatcher {
             log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
               append(", options=").append(options));
 
-        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(method_call) : Util.objectToByteBuffer(method_call);
+        RspList<T> retval=super.castMessage(dests, createMessage(null, method_call, options), options);
+        if(log.isTraceEnabled()) log.trace("responses: " + retval);
+        return retval;
+    }
 
-        Message msg=new Message();
-        if(buf instanceof Buffer)
-            msg.setBuffer((Buffer)buf);
-        else
-            msg.setBuffer((byte[])buf);
 
-        if(options != null) {
-            msg.setFlag(options.getFlags());
-            if(options.getScope() > 0)
-                msg.setScope(options.getScope());
+    /**
+     * Invokes a method in all members and folds the responses from members contained in dests (or all members if
+     * dests is null) into a single result as they are received, e.g. the first N responses or the value returned by
+     * a majority (see {@link RspAggregators}). The call returns as soon as the aggregator has decided the result, and
+     * members whose responses are still outstanding don't send them.
+     * @param dests A list of addresses. If null, we'll wait for responses from all cluster members
+     * @param method_call The method (plus args) to be invoked
+     * @param options A collection of call options, e.g. timeout. The response mode and response filter are ignored
+     * @param aggregator The aggregator. Must not be reused for other calls
+     * @return The result of the aggregator. If the call timed out, this may be a partial result
+     * @throws Exception If the sending of the message threw an exception
+     * @since 3.6
+     */
+    public <R> R callRemoteMethodsAggregated(Collection<Address> dests, MethodCall method_call, RequestOptions options,
+                                             RspAggregator<R> aggregator) throws Exception {
+        if(dests != null && dests.isEmpty()) { // don't send if dest list is empty
+            if(log.isTraceEnabled())
+                log.trace("destination list of " + method_call.getName() + "() is empty: no need to send message");
+            aggregator.init(0);
+            return aggregator.getResult();
         }
 
-        RspList<T> retval=super.castMessage(dests, msg, options);
-        if(log.isTraceEnabled()) log.trace("responses: " + retval);
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
+              append(", options=").append(options).append(", aggregator=").append(aggregator));
+
+        R retval=super.castMessageAggregated(dests, createMessage(null, method_call, options), options, aggregator);
+        if(log.isTraceEnabled()) log.trace("result: " + retval);
         return retval;
     }
 
+    /**
+     * Same as {@link #callRemoteMethodsAggregated(java.util.Collection, MethodCall, RequestOptions, RspAggregator)},
+     * but returns a future. The listener (if non-null) is notified by the thread which decides the result, so it
+     * must not block
+     * @since 3.6
+     */
+    public <R> NotifyingFuture<R> callRemoteMethodsAggregatedWithFuture(Collection<Address> dests, MethodCall method_call,
+                                                                        RequestOptions options, RspAggregator<R> aggregator,
+                                                                        FutureListener<R> listener) throws Exception {
+        if(dests != null && dests.isEmpty()) { // don't send if dest list is empty
+            if(log.isTraceEnabled())
+                log.trace("destination list of " + method_call.getName() + "() is empty: no need to send message");
+            aggregator.init(0);
+            NotifyingFuture<R> retval=new NullFuture<R>(aggregator.getResult());
+            if(listener != null)
+                retval.setListener(listener);
+            return retval;
+        }
+
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
+              append(", options=").append(options).append(", aggregator=").append(aggregator));
+
+        return super.castMessageAggregatedWithFuture(dests, createMessage(null, method_call, options), options, aggregator, listener);
+    }
+
+
+    /**
+     * Invokes a method which returns a {@link ResponseStream} in all members contained in dests (or all members if
+     * dests is null). The chunks of the streams are passed to the listener as they are received.
+     * @param dests A list of addresses. If null, we'll wait for responses from all cluster members
+     * @param method_call The method (plus args) to be invoked
+     * @param options A collection of call options, e.g. timeout. The response mode is ignored
+     * @param listener The listener which receives the chunks. Must not block
+     * @return A future whose result is the number of chunks received per member (or the exception with which a
+     *         member ended its stream). Cancelling the future tells the members to stop streaming
+     * @throws Exception If the sending of the message threw an exception
+     * @since 3.6
+     */
+    public <T> NotifyingFuture<RspList<Integer>> callRemoteMethodsStreaming(Collection<Address> dests, MethodCall method_call,
+                                                                            RequestOptions options,
+                                                                            ChunkListener<T> listener) throws Exception {
+        if(dests != null && dests.isEmpty()) { // don't send if dest list is empty
+            if(log.isTraceEnabled())
+                log.trace("destination list of " + method_call.getName() + "() is empty: no need to send message");
+            return new NullFuture<RspList<Integer>>(new RspList<Integer>());
+        }
+
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
+              append(", options=").append(options));
+        return super.castMessageStreaming(dests, createMessage(null, method_call, options), options, listener);
+    }
+
+
+    /**
+     * Invokes a number of methods in all members with a single request message, and expects responses from members
+     * contained in dests (or all members if dests is null). Each member invokes the calls sequentially (in list order),
+     * or - if parallel is true and the member has a batch executor (see {@link #setBatchExecutor(Executor)}) - in
+     * parallel, and returns all results in a single response.
+     * @param dests A list of addresses. If null, we'll wait for responses from all cluster members
+     * @param calls The methods (plus args) to be invoked
+     * @param parallel Whether the receivers may invoke the calls in parallel
+     * @param options A collection of call options, e.g. sync versus async, timeout etc. A response filter is applied
+     *                to the responses to the entire batch ({@link MethodCallBatch.Results})
+     * @return A list with one RspList per call, in the same order as calls
+     * @throws Exception If the sending of the message threw an exception. Note that <em>no</em> exception will be
+     *                   thrown if any of the target members threw an exception, but this exception will be in the Rsp
+     *                   object for the particular call and member
+     * @since 3.6
+     */
+    public <T> List<RspList<T>> callRemoteMethodsBatch(Collection<Address> dests, List<MethodCall> calls, boolean parallel,
+                                                       RequestOptions options) throws Exception {
+        if(calls == null || calls.isEmpty())
+            return new ArrayList<RspList<T>>(0);
+        if(dests != null && dests.isEmpty()) { // don't send if dest list is empty
+            if(log.isTraceEnabled())
+                log.trace("destination list of batch is empty: no need to send message");
+            return unbatch(new RspList<Object>(), calls.size());
+        }
+
+        MethodCallBatch batch=new MethodCallBatch(calls, parallel);
+        if(log.isTraceEnabled())
+            log.trace(new StringBuilder("dests=").append(dests).append(", batch=").append(batch).
+              append(", options=").append(options));
+
+        RspList<Object> rsps=super.castMessage(dests, createMessage(null, batch, options), options);
+        if(log.isTraceEnabled()) log.trace("responses: " + rsps);
+        return unbatch(rsps, batch.size());
+    }
+
 
     /**
      * Invokes a method in all members and expects responses from members contained in dests (or all members if dests is null).
@@ -194,20 +328,8 @@ public class RpcDispatcher extends MessageDispatcher {
             log.trace(new StringBuilder("dests=").append(dests).append(", method_call=").append(method_call).
                     append(", options=").append(options));
 
-        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(method_call) : Util.objectToByteBuffer(method_call);
-
-        Message msg=new Message();
-        if(buf instanceof Buffer)
-            msg.setBuffer((Buffer)buf);
-        else
-            msg.setBuffer((byte[])buf);
-        if(options != null) {
-            msg.setFlag(options.getFlags());
-            if(options.getScope() > 0)
-                msg.setScope(options.getScope());
-        }
-        
-        NotifyingFuture<RspList<T>>  retval=super.castMessageWithFuture(dests, msg, options, listener);
+        NotifyingFuture<RspList<T>>  retval=super.castMessageWithFuture(dests, createMessage(null, method_call, options),
+                                                                      options, listener);
         if(log.isTraceEnabled()) log.trace("responses: " + retval);
         return retval;
     }
@@ -259,19 +381,7 @@ public class RpcDispatcher extends MessageDispatcher {
         if(log.isTraceEnabled())
             log.trace("dest=" + dest + ", method_call=" + call + ", options=" + options);
 
-        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(call) : Util.objectToByteBuffer(call);
-        Message msg=new Message(dest, null, null);
-        if(buf instanceof Buffer)
-            msg.setBuffer((Buffer)buf);
-        else
-            msg.setBuffer((byte[])buf);
-        if(options != null) {
-            msg.setFlag(options.getFlags());
-            if(options.getScope() > 0)
-                msg.setScope(options.getScope());
-        }
-
-        T retval=(T)super.sendMessage(msg, options);
+        T retval=(T)super.sendMessage(createMessage(dest, call, options), options);
         if(log.isTraceEnabled()) log.trace("retval: " + retval);
         return retval;
     }
@@ -292,18 +402,7 @@ public class RpcDispatcher extends MessageDispatcher {
         if(log.isTraceEnabled())
             log.trace("dest=" + dest + ", method_call=" + call + ", options=" + options);
 
-        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(call) : Util.objectToByteBuffer(call);
-        Message msg=new Message(dest, null, null);
-        if(buf instanceof Buffer)
-            msg.setBuffer((Buffer)buf);
-        else
-            msg.setBuffer((byte[])buf);
-        if(options != null) {
-            msg.setFlag(options.getFlags());
-            if(options.getScope() > 0)
-                msg.setScope(options.getScope());
-        }
-        return super.sendMessageWithFuture(msg, options, listener);
+        return super.sendMessageWithFuture(createMessage(dest, call, options), options, listener);
     }
 
     /**
@@ -321,7 +420,7 @@ public class RpcDispatcher extends MessageDispatcher {
 
 
     protected void correlatorStarted() {
-        if(corr != null)
+        if(corr != null && rsp_marshaller != null) // null when called from super(): the marshaller was already set
             corr.setMarshaller(rsp_marshaller);
     }
 
@@ -344,6 +443,12 @@ public class RpcDispatcher extends MessageDispatcher {
         Object body=req_marshaller != null?
           req_marshaller.objectFromBuffer(req.getRawBuffer(), req.getOffset(), req.getLength()) : req.getObject();
 
+        if(body instanceof MethodCallBatch) {
+            if(log.isTraceEnabled())
+                log.trace("[sender=" + req.getSrc() + "], batch: " + body);
+            return invoke((MethodCallBatch)body);
+        }
+
         if(!(body instanceof MethodCall))
             throw new IllegalArgumentException("message does not contain a MethodCall object") ;
 
@@ -351,7 +456,27 @@ public class RpcDispatcher extends MessageDispatcher {
 
         if(log.isTraceEnabled())
             log.trace("[sender=" + req.getSrc() + "], method_call: " + method_call);
+        return invoke(method_call);
+    }
 
+
+    /** Creates a message to dest (null for all members) with the marshalled method call (or batch) as payload */
+    protected Message createMessage(Address dest, Object method_call, RequestOptions options) throws Exception {
+        Object buf=req_marshaller != null? req_marshaller.objectToBuffer(method_call) : Util.objectToByteBuffer(method_call);
+        Message msg=new Message(dest);
+        if(buf instanceof Buffer)
+            msg.setBuffer((Buffer)buf);
+        else
+            msg.setBuffer((byte[])buf);
+        if(options != null) {
+            msg.setFlag(options.getFlags());
+            if(options.getScope() > 0)
+                msg.setScope(options.getScope());
+        }
+        return msg;
+    }
+
+    protected Object invoke(MethodCall method_call) throws Exception {
         if(method_call.getMode() == MethodCall.ID) {
             if(method_lookup == null)
                 throw new Exception("MethodCall uses ID=" + method_call.getId() + ", but method_lookup has not been set");
@@ -364,5 +489,87 @@ public class RpcDispatcher extends MessageDispatcher {
         return method_call.invoke(server_obj);
     }
 
+    /**
+     * Invokes all calls of a batch and returns their results. A parallel batch is invoked by the batch executor
+     * (if set), with the first call run by the caller's thread
+     */
+    protected MethodCallBatch.Results invoke(MethodCallBatch batch) throws InterruptedException {
+        final MethodCall[] calls=batch.getCalls();
+        final MethodCallBatch.Results results=new MethodCallBatch.Results(batch.size());
+        Executor executor=batch_executor;
+        if(!batch.isParallel() || executor == null || calls.length < 2) {
+            for(int i=0; i < calls.length; i++)
+                invoke(calls[i], i, results);
+            return results;
+        }
+
+        final CountDownLatch latch=new CountDownLatch(calls.length-1);
+        for(int i=1; i < calls.length; i++) {
+            final int index=i;
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            invoke(calls[index], index, results);
+                        }
+                        finally {
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+            catch(RejectedExecutionException ex) { // run it ourselves
+                invoke(calls[i], i, results);
+                latch.countDown();
+            }
+        }
+        invoke(calls[0], 0, results);
+        latch.await(); // makes the results written by the executor's threads visible to us
+        return results;
+    }
+
+    protected void invoke(MethodCall call, int index, MethodCallBatch.Results results) {
+        try {
+            results.setValue(index, invoke(call));
+        }
+        catch(Throwable t) {
+            results.setException(index, t);
+        }
+    }
+
+    /** Converts the responses to a batch of num_calls calls into a RspList per call */
+    @SuppressWarnings("unchecked")
+    protected static <T> List<RspList<T>> unbatch(RspList<Object> rsps, int num_calls) {
+        List<RspList<T>> retval=new ArrayList<RspList<T>>(num_calls);
+        for(int i=0; i < num_calls; i++)
+            retval.add(new RspList<T>());
+        for(Rsp<Object> rsp: rsps.values()) {
+            Address sender=rsp.getSender();
+            Object value=rsp.getValue();
+            for(int i=0; i < num_calls; i++) {
+                Rsp<T> tmp=new Rsp<T>(sender);
+                if(rsp.hasException())
+                    tmp.setException(rsp.getException());
+                else if(rsp.wasReceived()) {
+                    if(value instanceof MethodCallBatch.Results) {
+                        MethodCallBatch.Results results=(MethodCallBatch.Results)value;
+                        if(results.isException(i))
+                            tmp.setException((Throwable)results.get(i));
+                        else
+                            tmp.setValue((T)results.get(i));
+                    }
+                    else
+                        tmp.setException(new IllegalStateException("response to batch is not a Results object: " + value));
+                }
+                if(rsp.wasSuspected())
+                    tmp.setSuspected();
+                if(rsp.wasUnreachable())
+                    tmp.setUnreachable();
+                retval.get(i).put(sender, tmp);
+            }
+        }
+        return retval;
+    }
+
 
 }
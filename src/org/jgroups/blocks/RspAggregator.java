@@ -0,0 +1,42 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+/**
+ * Folds the responses to a group request into a single result as they arrive, instead of collecting all responses
+ * in an {@link org.jgroups.util.RspList} first. As soon as the aggregator has decided the result, the request
+ * completes and members whose responses are still outstanding are told not to send them.
+ * <p/>
+ * All methods are called by the thread which delivers the response (or view change), with the lock of the request
+ * held, so an implementation need not be thread-safe, but it must not block. An aggregator holds the state of a
+ * single request and must not be reused. See {@link RspAggregators} for common implementations.
+ * @author agent
+ * @since 3.6
+ */
+public interface RspAggregator<R> {
+
+    /**
+     * Called once before the request is sent
+     * @param num_targets The number of members from which responses are expected
+     */
+    void init(int num_targets);
+
+    /**
+     * Folds a response into the result
+     * @param response The response value, or the exception thrown by the member
+     * @param sender The sender of the response
+     * @param is_exception True if response is an exception
+     * @return True if the result is decided and no further responses are needed, false otherwise
+     */
+    boolean add(Object response, Address sender, boolean is_exception);
+
+    /**
+     * Called when a response won't be received, e.g. because the member was suspected or left the cluster
+     * @param mbr The member
+     * @return True if the result is decided, false otherwise
+     */
+    boolean missing(Address mbr);
+
+    /** Returns the result. Called after the request completed (or timed out) */
+    R getResult();
+}
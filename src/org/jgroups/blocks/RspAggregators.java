@@ -0,0 +1,153 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Common {@link RspAggregator} implementations
+ * @author agent
+ * @since 3.6
+ */
+public class RspAggregators {
+
+    /** Returns the first n (non-exception) responses */
+    public static <T> FirstN<T> firstN(int n) {return new FirstN<T>(n);}
+
+    /** Returns the response returned by a majority of the targets, or null if there is no such response */
+    public static <T> Majority<T> majority() {return new Majority<T>();}
+
+
+    /**
+     * Collects the first n non-exception responses. The result is decided when n responses have been received, or
+     * when n responses cannot be reached anymore; in the latter case the result has less than n elements
+     */
+    public static class FirstN<T> implements RspAggregator<List<T>> {
+        protected final int     n;
+        protected final List<T> values;
+        protected int           remaining; // number of responses which may still be received
+
+        public FirstN(int n) {
+            if(n < 1)
+                throw new IllegalArgumentException("n (" + n + ") needs to be > 0");
+            this.n=n;
+            this.values=new ArrayList<T>(n);
+        }
+
+        public void init(int num_targets) {remaining=num_targets;}
+
+        @SuppressWarnings("unchecked")
+        public boolean add(Object response, Address sender, boolean is_exception) {
+            remaining--;
+            if(!is_exception)
+                values.add((T)response);
+            return isDecided();
+        }
+
+        public boolean missing(Address mbr) {
+            remaining--;
+            return isDecided();
+        }
+
+        public List<T> getResult() {return values;}
+
+        protected boolean isDecided() {
+            return values.size() >= n || values.size() + remaining < n;
+        }
+
+        public String toString() {
+            return "first " + n + ": " + values;
+        }
+    }
+
+
+    /**
+     * Quorum read: the result is the first response (compared with equals()) returned by a majority of the targets.
+     * The result is decided as soon as a response has a majority, or when no response can get a majority anymore,
+     * in which case the result is null. Exceptions count as responses which don't agree with any other response
+     */
+    public static class Majority<T> implements RspAggregator<T> {
+        protected final Map<Object,Integer> votes=new HashMap<Object,Integer>(4);
+        protected int                       majority;
+        protected int                       remaining;
+        protected int                       max_votes;
+        protected T                         result;
+
+        public void init(int num_targets) {
+            majority=num_targets / 2 + 1;
+            remaining=num_targets;
+        }
+
+        @SuppressWarnings("unchecked")
+        public boolean add(Object response, Address sender, boolean is_exception) {
+            remaining--;
+            if(!is_exception) {
+                Integer tmp=votes.get(response);
+                int num=tmp == null? 1 : tmp + 1;
+                votes.put(response, num);
+                max_votes=Math.max(max_votes, num);
+                if(num >= majority) {
+                    result=(T)response;
+                    return true;
+                }
+            }
+            return max_votes + remaining < majority;
+        }
+
+        public boolean missing(Address mbr) {
+            remaining--;
+            return max_votes + remaining < majority;
+        }
+
+        public T getResult() {return result;}
+
+        public String toString() {
+            return "majority (" + majority + "): " + votes;
+        }
+    }
+
+
+    /**
+     * Reduces all (non-exception) responses to a single value, e.g. a sum or a max. Subclasses implement
+     * {@link #reduce(Object, Object, Address)}, and can override {@link #isDecided(Object)} to complete the request
+     * before all responses have been received
+     */
+    public abstract static class Reduce<T,R> implements RspAggregator<R> {
+        protected R   value;
+        protected int num_exceptions;
+
+        protected Reduce(R initial_value) {
+            this.value=initial_value;
+        }
+
+        /** Folds a response into the value reduced so far and returns the new value */
+        protected abstract R reduce(R value, T response, Address sender);
+
+        /** Whether the result is decided given the value reduced so far. Returns false by default */
+        protected boolean isDecided(R value) {return false;}
+
+        public void init(int num_targets) {}
+
+        @SuppressWarnings("unchecked")
+        public boolean add(Object response, Address sender, boolean is_exception) {
+            if(is_exception) {
+                num_exceptions++;
+                return false;
+            }
+            value=reduce(value, (T)response, sender);
+            return isDecided(value);
+        }
+
+        public boolean missing(Address mbr) {return false;}
+
+        public R   getResult()         {return value;}
+        public int getNumExceptions()  {return num_exceptions;}
+
+        public String toString() {
+            return "reduce: " + value;
+        }
+    }
+}
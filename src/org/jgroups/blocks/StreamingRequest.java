@@ -0,0 +1,289 @@
+package org.jgroups.blocks;
+
+
+import org.jgroups.Address;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.protocols.relay.SiteAddress;
+import org.jgroups.util.Rsp;
+import org.jgroups.util.RspList;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+
+/**
+ * Sends a request to a number of members, each of which streams its response as a number of chunks (see
+ * {@link ResponseStream}). Chunks are passed to a {@link ChunkListener} as they are received, and not kept. The
+ * request completes when all targets have ended their streams (or are missing).
+ * <p/>
+ * The result is an {@link RspList} with the number of chunks received from each member, or the exception with which
+ * a member ended its stream. A member which returns a regular value instead of a stream sends a single chunk.
+ * Cancelling the request tells the members whose streams are still open to stop streaming.
+ * @author agent
+ * @since 3.6
+ */
+public class StreamingRequest<T> extends Request {
+    protected final ChunkListener<T> listener;
+
+    /** The targets, sorted so that a sender can be looked up with a binary search */
+    protected final Address[]        targets;
+
+    @GuardedBy("lock")
+    protected final Rsp<Integer>[]   rsps;
+
+    @GuardedBy("lock")
+    protected final int[]            num_chunks;
+
+    @GuardedBy("lock")
+    protected int                    num_received; // number of targets which ended their streams or are missing
+
+
+
+    @SuppressWarnings("unchecked")
+    public StreamingRequest(Message msg, RequestCorrelator corr, Collection<Address> targets,
+                            RequestOptions options, ChunkListener<T> listener) {
+        super(msg, corr, options);
+        this.listener=listener;
+        this.targets=targets.toArray(new Address[targets.size()]);
+        Arrays.sort(this.targets);
+        this.rsps=(Rsp<Integer>[])new Rsp<?>[this.targets.length];
+        for(int i=0; i < rsps.length; i++)
+            rsps[i]=new Rsp<Integer>(this.targets[i]);
+        this.num_chunks=new int[this.targets.length];
+    }
+
+
+    public void sendRequest() throws Exception {
+        try {
+            corr.sendRequest(req_id, Arrays.asList(targets), request_msg, this, options);
+        }
+        catch(Exception ex) {
+            corr.done(req_id);
+            throw ex;
+        }
+    }
+
+    /** Called by the {@link RequestCorrelator} when a chunk has been received */
+    @SuppressWarnings("unchecked")
+    public void receiveChunk(Object chunk, Address sender) {
+        if(done)
+            return;
+        int index=indexOf(sender);
+        if(index < 0)
+            return;
+        lock.lock();
+        try {
+            if(done || isComplete(rsps[index]))
+                return;
+            num_chunks[index]++;
+        }
+        finally {
+            lock.unlock();
+        }
+        if(listener != null) {
+            try {
+                listener.chunkReceived((T)chunk, sender);
+            }
+            catch(Throwable t) {
+                log.error("failed passing chunk from " + sender + " to listener", t);
+            }
+        }
+    }
+
+
+    /* ---------------------- Interface RspCollector -------------------------- */
+
+    /** Ends the stream of sender. A non-null value (from a member which returned a regular value) is a last chunk */
+    public void receiveResponse(Object response_value, Address sender, boolean is_exception) {
+        if(done)
+            return;
+        if(!is_exception && response_value != null)
+            receiveChunk(response_value, sender);
+        int index=indexOf(sender);
+        if(index < 0)
+            return;
+        lock.lock();
+        try {
+            Rsp<Integer> rsp=rsps[index];
+            if(isComplete(rsp))
+                return;
+            num_received++;
+            if(is_exception && response_value instanceof Throwable)
+                rsp.setException((Throwable)response_value);
+            else
+                rsp.setValue(num_chunks[index]);
+            completeIfDone();
+        }
+        finally {
+            lock.unlock();
+        }
+        checkCompletion(this);
+    }
+
+    public void suspect(Address mbr) {
+        if(mbr == null)
+            return;
+        int index=indexOf(mbr);
+        if(index >= 0)
+            setMissing(index, false);
+    }
+
+    public void siteUnreachable(String site) {
+        for(int i=0; i < targets.length; i++)
+            if(targets[i] instanceof SiteAddress && ((SiteAddress)targets[i]).getSite().equals(site))
+                setMissing(i, true);
+    }
+
+    /** Any target not in the new view is marked as suspected */
+    public void viewChange(View new_view) {
+        List<Address> mbrs=new_view != null? new_view.getMembers() : null;
+        if(mbrs == null)
+            return;
+        for(int i=0; i < targets.length; i++) {
+            // SiteAddresses are not checked as they might be in a different cluster
+            if(!(targets[i] instanceof SiteAddress) && !mbrs.contains(targets[i]))
+                setMissing(i, false);
+        }
+    }
+
+    public void transportClosed() {
+        lock.lock();
+        try {
+            for(Rsp<Integer> rsp: rsps) {
+                if(!isComplete(rsp)) {
+                    rsp.setException(new IllegalStateException("transport was closed"));
+                    num_received++;
+                }
+            }
+            completeIfDone();
+        }
+        finally {
+            lock.unlock();
+        }
+        checkCompletion(this);
+    }
+
+    /* -------------------- End of Interface RspCollector ----------------------------------- */
+
+
+    /** Cancels the request and tells the members whose streams are still open to stop streaming */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        List<Address> open_streams=new ArrayList<Address>();
+        lock.lock();
+        try {
+            if(!done)
+                for(Rsp<Integer> rsp: rsps)
+                    if(!isComplete(rsp))
+                        open_streams.add(rsp.getSender());
+        }
+        finally {
+            lock.unlock();
+        }
+        boolean retval=super.cancel(mayInterruptIfRunning);
+        if(!open_streams.isEmpty())
+            corr.sendCancellation(req_id, open_streams);
+        return retval;
+    }
+
+    /** Returns the number of chunks received per member, or the exceptions with which members ended their streams */
+    public RspList<Integer> getResults() {
+        lock.lock();
+        try {
+            for(int i=0; i < rsps.length; i++) // streams which are still open
+                if(!isComplete(rsps[i]) && num_chunks[i] > 0)
+                    rsps[i].setValue(num_chunks[i]);
+            return new RspList<Integer>(Arrays.asList(rsps));
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public RspList<Integer> get() throws InterruptedException, ExecutionException {
+        lock.lock();
+        try {
+            waitForResults(0);
+        }
+        finally {
+            lock.unlock();
+        }
+        return getResults();
+    }
+
+    public RspList<Integer> get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        boolean ok;
+        lock.lock();
+        try {
+            ok=waitForResults(unit.toMillis(timeout));
+        }
+        finally {
+            lock.unlock();
+        }
+        if(!ok)
+            throw new TimeoutException();
+        return getResults();
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder(super.toString());
+        lock.lock();
+        try {
+            sb.append(", ").append(num_received).append(" of ").append(targets.length).append(" streams ended");
+        }
+        finally {
+            lock.unlock();
+        }
+        return sb.toString();
+    }
+
+
+    @GuardedBy("lock")
+    protected boolean responsesComplete() {
+        return done || num_received >= targets.length;
+    }
+
+    protected void setMissing(int index, boolean unreachable) {
+        if(done)
+            return;
+        lock.lock();
+        try {
+            Rsp<Integer> rsp=rsps[index];
+            if(isComplete(rsp))
+                return;
+            if(unreachable)
+                rsp.setUnreachable();
+            else
+                rsp.setSuspected();
+            num_received++;
+            completeIfDone();
+        }
+        finally {
+            lock.unlock();
+        }
+        checkCompletion(this);
+    }
+
+    @GuardedBy("lock")
+    protected void completeIfDone() {
+        if(responsesComplete()) {
+            done=true;
+            corr.done(req_id);
+        }
+        completed.signalAll(); // wakes up execute()
+    }
+
+    protected static boolean isComplete(Rsp<Integer> rsp) {
+        return rsp.wasReceived() || rsp.wasSuspected() || rsp.wasUnreachable();
+    }
+
+    protected int indexOf(Address mbr) {
+        return Arrays.binarySearch(targets, mbr);
+    }
+}
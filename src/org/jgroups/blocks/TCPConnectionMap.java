@@ -45,6 +45,8 @@ public class TCPConnectionMap {
     protected volatile boolean    use_send_queues=true;
     protected SocketFactory       socket_factory=new DefaultSocketFactory();
     protected TimeService         time_service;
+    protected BufferPool          buffer_pool; // if set, used for the frames queued to the Senders
+    protected boolean             pool_frames; // reads frames into pooled buffers; recvr must not retain the data
 
 
     public TCPConnectionMap(String service_name,
@@ -123,6 +125,10 @@ public class TCPConnectionMap {
     public void             setSocketConnectionTimeout(int timeout) {this.sock_conn_timeout = timeout;}
     public TCPConnectionMap peerAddressReadTimeout(int timeout)     {this.peer_addr_read_timeout=timeout; return this;}
     public TCPConnectionMap timeService(TimeService ts)             {this.time_service=ts; return this;}
+    public BufferPool       bufferPool()                            {return buffer_pool;}
+    public TCPConnectionMap bufferPool(BufferPool pool)             {this.buffer_pool=pool; return this;}
+    public boolean          poolFrames()                            {return pool_frames;}
+    public TCPConnectionMap poolFrames(boolean flag)                {this.pool_frames=flag; return this;}
     public void             setSendBufferSize(int send_buf_size)    {this.send_buf_size = send_buf_size;}
     public void             setLinger(int linger)                   {this.linger = linger;}
     public void             setTcpNodelay(boolean tcp_nodelay)      {this.tcp_nodelay = tcp_nodelay;}
@@ -178,26 +184,47 @@ public class TCPConnectionMap {
         }
 
         // 1. Try to obtain correct Connection (or create one if not yet existent)
-        TCPConnection conn=null;
-        try {
-            conn=mapper.getConnection(dest);
-        }
-        catch(Throwable t) {
-        }
+        TCPConnection conn=getConnectionTo(dest);
 
         // 2. Send the message using that connection
-        if(conn != null && !conn.isConnected()) { // perhaps not connected because of concurrent connections (JGRP-1549)
-            Util.sleepRandom(1, 50);
+        if(conn != null) {
             try {
-                conn=mapper.getConnection(dest); // try one more time
+                conn.send(data, offset, length);
             }
-            catch(Throwable t) {
+            catch(Exception ex) {
+                mapper.removeConnectionIfPresent(dest,conn);
+                throw ex;
             }
         }
+    }
 
+    /**
+     * Sends the buffers as a single frame. Payloads referenced by data are written directly to the socket, unless
+     * a send queue is used
+     */
+    public void send(Address dest, Buffers data) throws Exception {
+        if(dest == null) {
+            if(log.isErrorEnabled())
+                log.error(local_addr +  ": destination is null");
+            return;
+        }
+
+        if(!running.get() ) {
+            if(log.isDebugEnabled())
+                log.debug(local_addr + ": connection table is not running, discarding message to " + dest);
+            return;
+        }
+
+        if(dest.equals(local_addr)) {
+            byte[] tmp=data.copy();
+            receive(local_addr, tmp, 0, tmp.length);
+            return;
+        }
+
+        TCPConnection conn=getConnectionTo(dest);
         if(conn != null) {
             try {
-                conn.send(data, offset, length);
+                conn.send(data);
             }
             catch(Exception ex) {
                 mapper.removeConnectionIfPresent(dest,conn);
@@ -206,6 +233,26 @@ public class TCPConnectionMap {
         }
     }
 
+    /** Returns the connection to dest, creating it if not yet existent. Returns null if not possible */
+    protected TCPConnection getConnectionTo(Address dest) {
+        TCPConnection conn=null;
+        try {
+            conn=mapper.getConnection(dest);
+        }
+        catch(Throwable t) {
+        }
+
+        if(conn != null && !conn.isConnected()) { // perhaps not connected because of concurrent connections (JGRP-1549)
+            Util.sleepRandom(1, 50);
+            try {
+                conn=mapper.getConnection(dest); // try one more time
+            }
+            catch(Throwable t) {
+            }
+        }
+        return conn;
+    }
+
     /** Flushes the TCPConnection associated with destination */
     public void flush(Address destination) throws Exception {
         TCPConnection conn=mapper.getConnection(destination);
@@ -451,14 +498,37 @@ public class TCPConnectionMap {
         protected void send(byte[] data, int offset, int length) throws Exception {
             if (sender != null) {
                 // we need to copy the byte[] buffer here because the original buffer might get changed meanwhile
-                byte[] tmp = new byte[length];
-                System.arraycopy(data, offset, tmp, 0, length);
-                sender.addToQueue(tmp);
+                sender.addToQueue(RefCountedBuffer.copyOf(data, offset, length, buffer_pool));
             }
             else
                 _send(data, offset, length, true, true);
         }
 
+        /**
+         * Sends the buffers as a single frame. If a send queue is used, the frame has to be copied, as the caller
+         * reuses data
+         */
+        protected void send(Buffers data) throws Exception {
+            if(sender != null) {
+                int length=data.length();
+                byte[] tmp=buffer_pool != null? buffer_pool.acquire(length) : new byte[length];
+                data.copyTo(tmp, 0);
+                sender.addToQueue(new RefCountedBuffer(tmp, 0, length, buffer_pool));
+                return;
+            }
+            send_lock.lock();
+            try {
+                out.writeInt(data.length());
+                data.write(out); // large heap buffers bypass the BufferedOutputStream
+                if(!send_lock.hasQueuedThreads())
+                    out.flush();
+                updateLastAccessed();
+            }
+            finally {
+                send_lock.unlock();
+            }
+        }
+
         /**
          * Sends data using the 'out' output stream of the socket
          * 
@@ -587,10 +657,17 @@ public class TCPConnectionMap {
                     while(!Thread.currentThread().isInterrupted() && canRun()) {
                         try {                    
                             int len=in.readInt();
-                            byte[] buf=new byte[len];
-                            in.readFully(buf, 0, len);
-                            updateLastAccessed();
-                            TCPConnectionMap.this.recvr.receive(peer_addr,buf,0,len);
+                            BufferPool pool=pool_frames? buffer_pool : null;
+                            byte[] buf=pool != null? pool.acquire(len) : new byte[len];
+                            try {
+                                in.readFully(buf, 0, len);
+                                updateLastAccessed();
+                                TCPConnectionMap.this.recvr.receive(peer_addr,buf,0,len);
+                            }
+                            finally {
+                                if(pool != null) // the receiver copies the data it needs to keep
+                                    pool.release(buf);
+                            }
                         }
                         catch(OutOfMemoryError mem_ex) {
                             break; // continue;
@@ -609,20 +686,28 @@ public class TCPConnectionMap {
         }
         
         protected class Sender implements Runnable {
-            protected final BlockingQueue<byte[]> send_queue;
-            protected final Thread                runner;
-            protected volatile boolean            started=true;
+            protected final BlockingQueue<RefCountedBuffer> send_queue;
+            protected final Thread                          runner;
+            protected volatile boolean                      started=true;
 
 
             public Sender(ThreadFactory tf, int send_queue_size) {
                 this.runner=tf.newThread(this, "Connection.Sender [" + getSockAddress() + "]");
-                this.send_queue=new LinkedBlockingQueue<byte[]>(send_queue_size);
+                this.send_queue=new LinkedBlockingQueue<RefCountedBuffer>(send_queue_size);
             }
             
-            public void addToQueue(byte[] data) throws Exception{
-                if(canRun())
-                    if (!send_queue.offer(data, sock_conn_timeout, TimeUnit.MILLISECONDS))
-                        log.warn("Discarding message because TCP send_queue is full and hasn't been releasing for " + sock_conn_timeout + " ms");
+            public void addToQueue(RefCountedBuffer data) throws Exception{
+                boolean added=false;
+                try {
+                    if(canRun()) {
+                        if(!(added=send_queue.offer(data, sock_conn_timeout, TimeUnit.MILLISECONDS)))
+                            log.warn("Discarding message because TCP send_queue is full and hasn't been releasing for " + sock_conn_timeout + " ms");
+                    }
+                }
+                finally {
+                    if(!added)
+                        data.release();
+                }
             }
 
             public Sender start() {
@@ -648,7 +733,7 @@ public class TCPConnectionMap {
             public void run() {
                 try {
                     while(!Thread.currentThread().isInterrupted() && canRun()) {
-                        byte[] data=null;
+                        RefCountedBuffer data=null;
                         try {
                             data=send_queue.take();
                         }
@@ -659,10 +744,13 @@ public class TCPConnectionMap {
     
                         if(data != null) {                        
                             try {
-                                _send(data, 0, data.length, false, send_queue.isEmpty());
+                                _send(data.getBuf(), data.getOffset(), data.getLength(), false, send_queue.isEmpty());
                             }
                             catch(Throwable ignored) {
                             }
+                            finally {
+                                data.release();
+                            }
                         }
                     }    
                 }
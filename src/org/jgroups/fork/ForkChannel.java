@@ -182,13 +182,7 @@ public class ForkChannel extends JChannel implements ChannelListener {
 
     public void send(Message msg) throws Exception {
         checkClosedOrNotConnected();
-        FORK.ForkHeader hdr=(FORK.ForkHeader)msg.getHeader(FORK.ID);
-        if(hdr != null)
-            hdr.setForkChannelId(fork_channel_id);
-        else {
-            hdr=new FORK.ForkHeader(null, fork_channel_id);
-            msg.putHeader(FORK.ID, hdr);
-        }
+        setHeader(msg);
         prot_stack.down(new Event(Event.MSG, msg));
     }
 
@@ -248,10 +242,8 @@ public class ForkChannel extends JChannel implements ChannelListener {
 
     protected void setHeader(Message msg) {
         FORK.ForkHeader hdr=(FORK.ForkHeader)msg.getHeader(FORK.ID);
-        if(hdr != null)
-            hdr.setForkChannelId(fork_channel_id);
-        else
-            msg.putHeader(FORK.ID, new FORK.ForkHeader(null, fork_channel_id));
+        // headers must not be modified once they have been added
+        msg.putHeader(FORK.ID, new FORK.ForkHeader(hdr != null? hdr.getForkStackId() : null, fork_channel_id));
     }
 
 
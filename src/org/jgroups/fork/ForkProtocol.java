@@ -30,10 +30,8 @@ public class ForkProtocol extends Protocol {
             case Event.MSG:
                 Message msg=(Message)evt.getArg();
                 FORK.ForkHeader hdr=(FORK.ForkHeader)msg.getHeader(FORK.ID);
-                if(hdr == null)
-                    msg.putHeader(FORK.ID, hdr=new FORK.ForkHeader(fork_stack_id, null));
-                else
-                    hdr.setForkStackId(fork_stack_id);
+                // replaces the header rather than modifying it, which would make its cached size stale (see Headers)
+                msg.putHeader(FORK.ID, new FORK.ForkHeader(fork_stack_id, hdr != null? hdr.getForkChannelId() : null));
                 break;
             case Event.SET_LOCAL_ADDRESS:
             case Event.VIEW_CHANGE:
@@ -6,6 +6,7 @@ import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.annotations.LocalAddress;
 import org.jgroups.annotations.Property;
+import org.jgroups.util.Buffers;
 
 import java.net.InetAddress;
 import java.util.Collection;
@@ -110,6 +111,15 @@ public abstract class BasicTCP extends TP {
         send(dest, data, offset, length);
     }
 
+    public void sendMulticast(Buffers data) throws Exception {
+        sendToAllPhysicalAddresses(data);
+    }
+
+    public void sendUnicast(PhysicalAddress dest, Buffers data) throws Exception {
+        if(log.isTraceEnabled()) log.trace("dest=" + dest + " (" + data.length() + " bytes)");
+        send(dest, data);
+    }
+
     public String getInfo() {
         StringBuilder sb=new StringBuilder();
         sb.append("connections: ").append(printConnections()).append("\n");
@@ -121,6 +131,12 @@ public abstract class BasicTCP extends TP {
 
     public abstract void send(Address dest, byte[] data, int offset, int length) throws Exception;
 
+    /** Sends data to dest. The default implementation copies data into a single buffer */
+    public void send(Address dest, Buffers data) throws Exception {
+        byte[] tmp=data.copy();
+        send(dest, tmp, 0, tmp.length);
+    }
+
     public abstract void retainAll(Collection<Address> members);
 
     /** ConnectionMap.Receiver interface */
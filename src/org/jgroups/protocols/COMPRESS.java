@@ -12,6 +12,7 @@ import org.jgroups.util.Util;
 
 import java.io.DataInput;
 import java.io.DataOutput;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.zip.DataFormatException;
@@ -82,16 +83,21 @@ public class COMPRESS extends Protocol {
             Message msg=(Message)evt.getArg();
             int length=msg.getLength(); // takes offset/length (if set) into account
             if(length >= min_size) {
-                byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
                 byte[] compressed_payload=new byte[length];
                 Deflater deflater=null;
                 try {
                     deflater=deflater_pool.take();
                     deflater.reset();
-                    deflater.setInput(payload, msg.getOffset(), length);
-                    deflater.finish();
-                    deflater.deflate(compressed_payload);
-                    int compressed_size=deflater.getTotalOut();
+                    int compressed_size;
+                    if(msg.hasByteBuffer())
+                        compressed_size=deflate(deflater, msg.getByteBuffer(), compressed_payload);
+                    else {
+                        byte[] payload=msg.getRawBuffer(); // here we get the ref so we can avoid copying
+                        deflater.setInput(payload, msg.getOffset(), length);
+                        deflater.finish();
+                        deflater.deflate(compressed_payload);
+                        compressed_size=deflater.getTotalOut();
+                    }
 
                     if(compressed_size < length ) { // JGRP-1000
                         byte[] new_payload=new byte[compressed_size];
@@ -159,6 +165,30 @@ public class COMPRESS extends Protocol {
             up_prot.up(batch);
     }
 
+    /**
+     * Compresses a ByteBuffer payload (e.g. off-heap) by feeding it to the deflater in chunks, so it doesn't need to
+     * be copied onto the heap as a whole
+     * @return The number of compressed bytes, or output.length if the compressed payload doesn't fit into output
+     */
+    protected static int deflate(Deflater deflater, ByteBuffer payload, byte[] output) {
+        byte[] chunk=new byte[Math.min(payload.remaining(), 8192)];
+        int out_pos=0;
+        while(payload.hasRemaining()) {
+            int len=Math.min(payload.remaining(), chunk.length);
+            payload.get(chunk, 0, len);
+            deflater.setInput(chunk, 0, len);
+            while(!deflater.needsInput()) {
+                if(out_pos >= output.length)
+                    return output.length;
+                out_pos+=deflater.deflate(output, out_pos, output.length - out_pos);
+            }
+        }
+        deflater.finish();
+        while(!deflater.finished() && out_pos < output.length)
+            out_pos+=deflater.deflate(output, out_pos, output.length - out_pos);
+        return deflater.finished()? out_pos : output.length;
+    }
+
     /** Returns a new message as a result of uncompressing msg, or null if msg couldn't be uncompressed */
     protected Message uncompress(Message msg, int original_size) {
         byte[] compressed_payload=msg.getRawBuffer();
@@ -10,6 +10,7 @@ import org.jgroups.util.MessageBatch;
 import org.jgroups.util.Range;
 import org.jgroups.util.Util;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicLong;
@@ -221,8 +222,11 @@ public class FRAG2 extends Protocol {
      */
     protected void fragment(Message msg) {
         try {
-            byte[] buffer=msg.getRawBuffer();
-            final List<Range> fragments=Util.computeFragOffsets(msg.getOffset(), msg.getLength(), frag_size);
+            boolean nio=msg.hasByteBuffer(); // don't copy off-heap payloads onto the heap, but slice them
+            byte[] buffer=nio? null : msg.getRawBuffer();
+            ByteBuffer nio_buffer=nio? msg.getByteBuffer() : null;
+            final List<Range> fragments=Util.computeFragOffsets(nio? nio_buffer.position() : msg.getOffset(),
+                                                                msg.getLength(), frag_size);
             int num_frags=fragments.size();
             num_frags_sent.addAndGet(num_frags);
 
@@ -237,7 +241,13 @@ public class FRAG2 extends Protocol {
                 Range r=fragments.get(i);
                 // don't copy the buffer, only src, dest and headers. Only copy the headers one time !
                 Message frag_msg=msg.copy(false, i == 0);
-                frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
+                if(nio) {
+                    ByteBuffer slice=nio_buffer.duplicate();
+                    slice.limit((int)(r.low + r.high)).position((int)r.low);
+                    frag_msg.setBuffer(slice);
+                }
+                else
+                    frag_msg.setBuffer(buffer, (int)r.low, (int)r.high);
                 FragHeader hdr=new FragHeader(frag_id, i, num_frags);
                 frag_msg.putHeader(this.id, hdr);
                 down_prot.down(new Event(Event.MSG, frag_msg));
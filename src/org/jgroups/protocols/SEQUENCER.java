@@ -460,11 +460,11 @@ public class SEQUENCER extends Protocol {
         }
         else {
             SequencerHeader new_hdr=new SequencerHeader(SequencerHeader.WRAPPED_BCAST, seqno);
+            if(resend)
+                new_hdr.flush_ack=true; // before putting the header, as headers must not be modified once added
             bcast_msg=new Message(null, msg.getRawBuffer(), msg.getOffset(), msg.getLength()).putHeader(this.id, new_hdr);
-            if(resend) {
-                new_hdr.flush_ack=true;
+            if(resend)
                 bcast_msg.setFlag(Message.Flag.DONT_BUNDLE);
-            }
         }
 
         if(log.isTraceEnabled())
@@ -2,25 +2,39 @@ package org.jgroups.protocols;
 
 import org.jgroups.Address;
 import org.jgroups.Event;
+import org.jgroups.Message;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
 
-import java.util.Map;
-import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.*;
+import java.util.concurrent.*;
 
 
 /**
  * Loopback transport shared by all channels within the same VM. Property for testing is that no messages are lost. Allows
  * us to test various protocols (with ProtocolTester) at maximum speed.
+ * <p/>
+ * If pass_references is true, payloads are not serialized: every receiver gets a copy of the message which shares the
+ * payload with the sent message, and the messages sent to the same member are passed up as message batches. Only the
+ * headers are marshalled (once per message), and every receiver unmarshals its own header instances, so receivers
+ * don't share headers with the sender or with each other. This measures the protocol stack rather than serialization,
+ * but note that the receivers must not modify the payloads of received messages.
  * @author Bela Ban
  */
 public class SHARED_LOOPBACK extends TP {
+
+    @Property(description="If true, messages are passed to the other members by reference instead of being " +
+      "serialized and deserialized. The receivers get copies sharing the payload with the sent message",
+      writable=false)
+    protected boolean pass_references=false;
+
     private PhysicalAddress physical_addr=null;
 
     /** Map of cluster names and address-protocol mappings. Used for routing messages to all or single members */
-    private static final ConcurrentMap<String,Map<Address,SHARED_LOOPBACK>> routing_table=new ConcurrentHashMap<String,Map<Address,SHARED_LOOPBACK>>();
+    protected static final ConcurrentMap<String,Map<Address,SHARED_LOOPBACK>> routing_table=new ConcurrentHashMap<String,Map<Address,SHARED_LOOPBACK>>();
 
 
     public boolean supportsMulticasting() {
@@ -102,6 +116,194 @@ public class SHARED_LOOPBACK extends TP {
         return physical_addr;
     }
 
+    public void start() throws Exception {
+        if(pass_references && bundler == null)
+            bundler=new ReferenceBundler(bundler_capacity);
+        super.start();
+    }
+
+    /** Passes a copy of msg to the bundler if pass_references is true, or sends messages flagged DONT_BUNDLE right away */
+    protected void send(Message msg, Address dest, boolean multicast) throws Exception {
+        if(!pass_references) {
+            super.send(msg, dest, multicast);
+            return;
+        }
+        // the sender may modify msg afterwards (e.g. when retransmitting it), so we queue a copy. Its headers are
+        // marshalled, so that every receiver gets its own header instances
+        Message copy=msg.copyWithMarshalledHeaders(true).clearTransientFlag(Message.TransientFlag.values());
+        if(!msg.isFlagSet(Message.Flag.DONT_BUNDLE)) {
+            bundler.send(copy);
+            return;
+        }
+        if(stats) {
+            num_msgs_sent++;
+            num_single_msgs_sent++;
+        }
+        List<SHARED_LOOPBACK> targets=receivers(dest);
+        for(int i=0; i < targets.size(); i++) // the last receiver gets copy, all others get copies of it
+            targets.get(i).receive(i < targets.size() - 1? copy.copy(true, true) : copy);
+    }
+
+    /** Receives a message passed by reference */
+    protected void receive(Message msg) {
+        boolean oob=msg.isFlagSet(Message.Flag.OOB), internal=msg.isFlagSet(Message.Flag.INTERNAL);
+        if(oob)
+            num_oob_msgs_received++;
+        else if(internal)
+            num_internal_msgs_received++;
+        else
+            num_incoming_msgs_received++;
+        try {
+            pickThreadPool(oob, internal).execute(new SingleMessageHandler(msg));
+        }
+        catch(RejectedExecutionException ex) {
+            num_rejected_msgs++;
+        }
+    }
+
+    /** Receives messages (from the same sender) passed by reference, and passes them up as message batches */
+    protected void receive(Address sender, List<Message> msgs, boolean multicast) {
+        MessageBatch[] batches=new MessageBatch[4];
+        for(Message msg: msgs) {
+            int index=batchIndex(msg);
+            if(batches[index] == null)
+                batches[index]=new MessageBatch(multicast? null : local_addr, sender, channel_name, multicast,
+                                                BATCH_MODES[index], msgs.size());
+            batches[index].add(msg);
+        }
+        dispatch(batches);
+    }
+
+    /**
+     * Returns the members to which a message to dest (null: all members) is passed. Excludes ourself if the message
+     * was looped back already
+     */
+    protected List<SHARED_LOOPBACK> receivers(Address dest) {
+        Collection<SHARED_LOOPBACK> targets=targets(dest);
+        List<SHARED_LOOPBACK> retval=new ArrayList<SHARED_LOOPBACK>(targets.size());
+        for(SHARED_LOOPBACK target: targets) {
+            if(dest == null && loopback && target.local_addr != null && target.local_addr.equals(local_addr))
+                continue; // we already looped back the message
+            retval.add(target);
+        }
+        return retval;
+    }
+
+    /** Returns the members of our cluster which are the destination of a message to dest (null: all members) */
+    protected Collection<SHARED_LOOPBACK> targets(Address dest) {
+        Map<Address,SHARED_LOOPBACK> dests=routing_table.get(channel_name);
+        if(dests == null) {
+            if(log.isTraceEnabled())
+                log.trace("no destination found for " + channel_name);
+            return Collections.emptyList();
+        }
+        if(dest == null)
+            return dests.values();
+        SHARED_LOOPBACK target=dests.get(dest);
+        if(target == null) {
+            if(log.isTraceEnabled())
+                log.trace("destination address " + dest + " not found");
+            return Collections.emptyList();
+        }
+        return Collections.singletonList(target);
+    }
+
+
+    /**
+     * Bundler which doesn't serialize messages: a thread drains the queued messages, groups them by destination and
+     * passes every group to the destination(s), which pass them up as message batches
+     */
+    protected class ReferenceBundler implements Bundler, Runnable {
+        protected final        BlockingQueue<Message>        queue;
+        protected final        Map<Address,List<Message>>    msgs=new LinkedHashMap<Address,List<Message>>();
+        protected final        List<Message>                 drained=new ArrayList<Message>();
+        protected volatile     Thread                        bundler_thread;
+        protected static final String                        THREAD_NAME="ReferenceBundler";
+
+        protected ReferenceBundler(int capacity) {
+            if(capacity <=0) throw new IllegalArgumentException("bundler capacity cannot be " + capacity);
+            queue=new LinkedBlockingQueue<Message>(capacity);
+        }
+
+        public synchronized void start() {
+            if(bundler_thread != null)
+                stop();
+            bundler_thread=getThreadFactory().newThread(this, THREAD_NAME);
+            bundler_thread.start();
+        }
+
+        public synchronized void stop() {
+            Thread tmp=bundler_thread;
+            bundler_thread=null;
+            if(tmp != null) {
+                tmp.interrupt();
+                if(tmp.isAlive()) {
+                    try {tmp.join(500);} catch(InterruptedException e) {}
+                }
+            }
+            queue.clear();
+        }
+
+        public void send(Message msg) throws Exception {
+            if(bundler_thread != null)
+                queue.put(msg);
+        }
+
+        public void run() {
+            while(Thread.currentThread() == bundler_thread) {
+                try {
+                    drained.add(queue.take());
+                    queue.drainTo(drained);
+                    for(Message msg: drained) {
+                        List<Message> list=msgs.get(msg.getDest());
+                        if(list == null)
+                            msgs.put(msg.getDest(), list=new ArrayList<Message>());
+                        list.add(msg);
+                    }
+                    drained.clear();
+                    for(Map.Entry<Address,List<Message>> entry: msgs.entrySet())
+                        if(!entry.getValue().isEmpty())
+                            send(entry.getKey(), entry.getValue());
+                    msgs.clear();
+                }
+                catch(InterruptedException e) {
+                }
+                catch(Throwable t) {
+                    log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, t);
+                }
+            }
+        }
+
+        protected void send(Address dest, List<Message> list) {
+            boolean multicast=dest == null;
+            if(stats) {
+                num_msgs_sent+=list.size();
+                if(list.size() > 1)
+                    num_batches_sent++;
+                else
+                    num_single_msgs_sent++;
+            }
+            List<SHARED_LOOPBACK> targets=receivers(dest);
+            for(int i=0; i < targets.size(); i++) {
+                SHARED_LOOPBACK target=targets.get(i);
+                List<Message> tmp=list;
+                // every receiver needs its own copies, as it might add or remove headers. The copies are made before
+                // list is passed to the last receiver, which might access (unmarshal) the headers of its messages
+                if(i < targets.size() - 1) {
+                    tmp=new ArrayList<Message>(list.size());
+                    for(Message msg: list)
+                        tmp.add(msg.copy(true, true));
+                }
+                try {
+                    target.receive(local_addr, tmp, multicast);
+                }
+                catch(Throwable t) {
+                    log.error("failed passing messages to " + target.local_addr, t);
+                }
+            }
+        }
+    }
+
     /*------------------------------ Protocol interface ------------------------------ */
 
 
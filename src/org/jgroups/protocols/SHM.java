@@ -0,0 +1,115 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Event;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+
+/**
+ * UDP based transport, which sends messages to members on the same host through shared memory instead of loopback
+ * UDP, avoiding the copies into and out of the kernel. Every member reads messages from a memory-mapped ring buffer
+ * (in /dev/shm by default), into which the other members on the same host write directly; messages to members on
+ * other hosts are sent via UDP. See {@link ShmPeers} for details.
+ * <p/>
+ * Multicasts are sent through the rings only if all members of the view are on the same host; otherwise they're sent
+ * via IP multicast (or, if ip_mcast is false, as unicasts, which are sent through the rings to local members). If a
+ * ring is full for more than max_offer_time, the message is sent via UDP.
+ * <p/>
+ * Shared memory is used only if the JVM supports {@link org.jgroups.util.ShmRingBuffer}s; otherwise SHM behaves
+ * like UDP.
+ * @author agent
+ * @since 3.6
+ */
+public class SHM extends UDP {
+
+    /* ------------------------------------------ Properties ------------------------------------------ */
+
+    @Property(description="Directory in which the ring buffers are created. Defaults to /dev/shm if present, else " +
+      "to the temp directory")
+    protected String shm_dir;
+
+    @Property(description="Size (in bytes) of the ring buffer of this member. Messages bigger than half of it are " +
+      "sent via UDP")
+    protected int    ring_size=4 * 1024 * 1024;
+
+    @Property(description="Time (ms) after which the ring buffer of a member which didn't update its heartbeat " +
+      "is considered dead")
+    protected long   liveness_timeout=3000;
+
+    @Property(description="Max time (us) the receiver thread parks when its ring buffer is empty. Higher values use " +
+      "less CPU when idle, but add latency to the first message after an idle period")
+    protected long   max_park_time=100;
+
+    @Property(description="Max time (us) a sender waits for space in a full ring buffer before it sends the " +
+      "message via UDP")
+    protected long   max_offer_time=1000;
+
+    /* --------------------------------------------- Fields ------------------------------------------------ */
+
+    protected ShmPeers shm;
+
+
+    @ManagedAttribute(description="Number of packets (single messages or message batches) sent through shared memory")
+    public long getNumShmPacketsSent() {return shm != null? shm.getNumSent() : 0;}
+
+    @ManagedAttribute(description="Number of packets (single messages or message batches) received through shared memory")
+    public long getNumShmPacketsReceived() {return shm != null? shm.getNumReceived() : 0;}
+
+    @ManagedAttribute(description="True if all members are on this host and multicasts are sent through shared memory")
+    public boolean isAllMembersLocal() {return shm != null && shm.allLocal();}
+
+    @ManagedOperation(description="Prints the ring buffers of this member and of the members on this host")
+    public String printRings() {return shm != null? shm.printRings() : "n/a";}
+
+
+    public void sendMulticast(byte[] data, int offset, int length) throws Exception {
+        if(ip_mcast && shm != null && shm.allLocal())
+            sendToAllPhysicalAddresses(data, offset, length);
+        else
+            super.sendMulticast(data, offset, length);
+    }
+
+    public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+        if(shm == null || !shm.send(dest, data, offset, length))
+            super.sendUnicast(dest, data, offset, length);
+    }
+
+
+    protected void handleConnect() throws Exception {
+        if(!isSingleton() || connect_count == 0)
+            startShm();
+        super.handleConnect();
+    }
+
+    protected void handleDisconnect() {
+        super.handleDisconnect();
+        if(!isSingleton() || connect_count == 0)
+            stopShm();
+    }
+
+    protected Object handleDownEvent(Event evt) {
+        Object retval=super.handleDownEvent(evt);
+        if(evt.getType() == Event.VIEW_CHANGE && shm != null)
+            shm.updateLocalMembers();
+        return retval;
+    }
+
+    protected void startShm() throws Exception {
+        if(!ShmPeers.isSupported()) {
+            log.warn("%s: shared memory is not supported by this JVM, falling back to UDP", local_addr);
+            return;
+        }
+        ShmPeers tmp=new ShmPeers(this, shm_dir, ring_size).livenessTimeout(liveness_timeout)
+          .maxParkTime(max_park_time).maxOfferTime(max_offer_time);
+        tmp.start(isSingleton()? singleton_name : channel_name);
+        shm=tmp;
+    }
+
+    protected void stopShm() {
+        ShmPeers tmp=shm;
+        shm=null;
+        if(tmp != null)
+            tmp.stop();
+    }
+}
@@ -0,0 +1,383 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.ShmRingBuffer;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Exchanges messages with members on the same host through {@link ShmRingBuffer}s; used by {@link SHM} and
+ * {@link SHM_TCP}. Every member creates a ring in the shared memory directory, named after the cluster and its
+ * physical address, and reads it with a receiver thread, which passes the messages to
+ * {@link TP#receive(Address,byte[],int,int)}. A sender looks up the ring of a destination by the destination's
+ * physical address; {@link #send(PhysicalAddress,byte[],int,int)} returns false if there is no ring (the destination
+ * is on a different host), the ring is stale or stays full, and the caller then sends the message via the network.
+ * <p/>
+ * The receiver thread cannot be woken up by a sender in a different process, so it spins, then yields and then parks
+ * for increasing times (up to max_park_time) while the ring is empty. While running, it updates the heartbeat of the
+ * ring, which senders use to detect rings of crashed members.
+ * <p/>
+ * The rings of other members are mapped when they're first used, and unmapped when they're found to be stale or when
+ * this member is stopped. Senders hold a reference to a ring ({@link ShmRingBuffer#acquire()}) while they access it,
+ * so that it isn't unmapped by a concurrent eviction.
+ * @author agent
+ * @since 3.6
+ */
+public class ShmPeers implements Runnable {
+    protected static final int    SPINS=100, YIELDS=100;
+    protected static final long   HEARTBEAT_INTERVAL=100; // ms
+
+    protected final TP            transport;
+    protected final Log           log;
+    protected final File          dir;
+    protected final int           ring_size;
+    protected long                liveness_timeout=3000;    // ms
+    protected long                max_park_time=100000;     // ns
+    protected long                max_offer_time=1000000;   // ns
+
+    protected String              file_prefix;  // "jgroups-<hash of cluster name>-"
+    protected IpAddress           local_addr;
+    protected byte[]              local_prefix; // the physical address of this member, prepended to every record
+    protected ShmRingBuffer       ring;
+    protected volatile Thread     runner;
+    protected Future<?>           refresher;
+
+    /** Rings of members on the same host */
+    protected final ConcurrentMap<PhysicalAddress,ShmRingBuffer> rings=new ConcurrentHashMap<PhysicalAddress,ShmRingBuffer>();
+
+    /** Members without (live) rings and the time (ms) of the last lookup, so we don't look them up on every send */
+    protected final ConcurrentMap<PhysicalAddress,Long>          not_local=new ConcurrentHashMap<PhysicalAddress,Long>();
+
+    /** True if all members of the current view are on this host, so that multicasts can be sent through the rings */
+    protected volatile boolean    all_local;
+
+    protected final AtomicLong    num_sent=new AtomicLong();
+    protected volatile long       num_received;
+
+
+    /**
+     * @param transport The transport which receives the messages
+     * @param dir The directory in which the rings are created. If null, /dev/shm is used if present, else the temp dir
+     * @param ring_size The size (in bytes) of the ring of this member
+     */
+    public ShmPeers(TP transport, String dir, int ring_size) {
+        this.transport=transport;
+        this.log=LogFactory.getLog(ShmPeers.class);
+        this.dir=dir != null? new File(dir) : defaultDir();
+        this.ring_size=ring_size;
+    }
+
+    public ShmPeers livenessTimeout(long timeout)  {this.liveness_timeout=timeout; return this;}
+    public ShmPeers maxParkTime(long time_us)      {this.max_park_time=TimeUnit.NANOSECONDS.convert(time_us, TimeUnit.MICROSECONDS); return this;}
+    public ShmPeers maxOfferTime(long time_us)     {this.max_offer_time=TimeUnit.NANOSECONDS.convert(time_us, TimeUnit.MICROSECONDS); return this;}
+    public long     getNumSent()                   {return num_sent.get();}
+    public long     getNumReceived()               {return num_received;}
+    public boolean  allLocal()                     {return all_local;}
+    public File     getFile()                      {return ring != null? ring.getFile() : null;}
+
+    public static boolean isSupported() {return ShmRingBuffer.isSupported();}
+
+
+    /** Creates the ring of this member and starts the receiver thread */
+    public void start(String cluster_name) throws Exception {
+        local_addr=(IpAddress)transport.getPhysicalAddress();
+        file_prefix="jgroups-" + Integer.toHexString(cluster_name.hashCode()) + "-";
+        local_prefix=prefix(local_addr);
+        if(!dir.isDirectory() && !dir.mkdirs())
+            throw new IllegalStateException("failed creating shared memory directory " + dir);
+        deleteStaleRings();
+        ring=ShmRingBuffer.create(fileOf(local_addr), ring_size).claimTimeout(liveness_timeout);
+        runner=transport.getThreadFactory().newThread(this, "shm receiver");
+        runner.setDaemon(true);
+        runner.start();
+        refresher=transport.getTimer().scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                updateLocalMembers();
+            }
+            public String toString() {
+                return ShmPeers.class.getSimpleName() + ": refresher (interval=" + liveness_timeout + " ms)";
+            }
+        }, liveness_timeout, liveness_timeout, TimeUnit.MILLISECONDS);
+        if(log.isDebugEnabled())
+            log.debug("%s: created ring %s", transport.local_addr, ring);
+    }
+
+    /**
+     * Closes the ring (senders will fall back to the network), stops the receiver thread, deletes the ring file and
+     * unmaps all rings
+     */
+    public void stop() {
+        if(refresher != null)
+            refresher.cancel(false);
+        Thread tmp=runner;
+        runner=null;
+        if(ring != null)
+            ring.close();
+        if(tmp != null) {
+            LockSupport.unpark(tmp);
+            try {
+                tmp.join(500);
+            }
+            catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(ring != null) {
+            if(!ring.getFile().delete())
+                log.warn("%s: failed deleting %s", transport.local_addr, ring.getFile());
+            ring.release(); // unmapped when the receiver thread (if still running) has released it, too
+            ring=null;
+        }
+        for(Map.Entry<PhysicalAddress,ShmRingBuffer> entry: rings.entrySet())
+            evict(entry.getKey(), entry.getValue());
+        not_local.clear();
+        all_local=false;
+    }
+
+
+    /**
+     * Adds a message to the ring of dest
+     * @return True if the message was added, false if dest has no live ring, or the ring stayed full for max_offer_time
+     */
+    public boolean send(PhysicalAddress dest, byte[] data, int offset, int length) {
+        ShmRingBuffer dest_ring=ringOf(dest);
+        if(dest_ring == null || !dest_ring.acquire())
+            return false;
+        try {
+            if(!dest_ring.isAlive(liveness_timeout)) {
+                evict(dest, dest_ring);
+                not_local.put(dest, System.currentTimeMillis());
+                return false;
+            }
+            if(!dest_ring.offer(local_prefix, data, offset, length, max_offer_time))
+                return false;
+            num_sent.incrementAndGet();
+            return true;
+        }
+        finally {
+            dest_ring.release();
+        }
+    }
+
+    /** Returns true if dest has a live ring on this host */
+    public boolean isLocal(PhysicalAddress dest) {
+        ShmRingBuffer dest_ring=ringOf(dest);
+        if(dest_ring == null || !dest_ring.acquire())
+            return false;
+        try {
+            return dest_ring.isAlive(liveness_timeout);
+        }
+        finally {
+            dest_ring.release();
+        }
+    }
+
+    /** Recomputes whether all members of the transport are on this host; called on a view change and periodically */
+    public void updateLocalMembers() {
+        if(runner == null)
+            return;
+        boolean local=!transport.members.isEmpty();
+        for(Address mbr: transport.members) {
+            PhysicalAddress physical_addr=transport.getPhysicalAddressFromCache(mbr);
+            if(physical_addr == null || !isLocal(physical_addr)) {
+                local=false;
+                break;
+            }
+        }
+        all_local=local;
+    }
+
+    public String printRings() {
+        StringBuilder sb=new StringBuilder();
+        sb.append("local: ").append(ring);
+        for(Map.Entry<PhysicalAddress,ShmRingBuffer> entry: rings.entrySet())
+            sb.append("\n").append(entry.getKey()).append(": ").append(entry.getValue());
+        return sb.toString();
+    }
+
+    public String toString() {
+        return ring != null? ring.toString() : "n/a";
+    }
+
+
+    /** The receiver thread: takes records off the ring and passes them to the transport */
+    public void run() {
+        final ShmRingBuffer local_ring=ring;
+        if(local_ring == null || !local_ring.acquire()) // released by stop() already
+            return;
+        try {
+            receive(local_ring);
+        }
+        finally {
+            local_ring.release();
+        }
+    }
+
+    protected void receive(ShmRingBuffer local_ring) {
+        final byte[] buf=new byte[local_ring.maxRecordSize()];
+        byte[] sender_prefix=null;
+        IpAddress sender=null;
+        long last_heartbeat=0;
+        int idle=0;
+        boolean closed=false;
+
+        while(runner == Thread.currentThread()) {
+            int length=local_ring.take(buf);
+            if(length > 0) {
+                idle=0;
+                int prefix_length=buf[2] + 3;
+                if(sender == null || !samePrefix(sender_prefix, buf)) {
+                    sender_prefix=new byte[prefix_length];
+                    System.arraycopy(buf, 0, sender_prefix, 0, prefix_length);
+                    sender=sender(sender_prefix);
+                }
+                try {
+                    transport.receive(sender, buf, prefix_length, length - prefix_length);
+                }
+                catch(Throwable t) {
+                    log.error("%s: failed handling message from %s: %s", transport.local_addr, sender, t);
+                }
+                if((++num_received & 1023) != 0)
+                    continue;
+            }
+            long now=System.currentTimeMillis();
+            if(now - last_heartbeat >= HEARTBEAT_INTERVAL) {
+                local_ring.touch();
+                if(!closed && local_ring.isClosed() && runner == Thread.currentThread()) {
+                    closed=true; // by the ring itself, as it couldn't skip the record of a dead sender
+                    log.warn("%s: ring %s was closed, members on this host will send messages over the network",
+                             transport.local_addr, local_ring);
+                }
+                last_heartbeat=now;
+            }
+            if(length == 0)
+                backoff(++idle);
+        }
+    }
+
+
+    /** Spins, then yields, then parks for exponentially increasing times, capped at max_park_time */
+    protected void backoff(int idle) {
+        if(idle <= SPINS)
+            return;
+        if(idle <= SPINS + YIELDS) {
+            Thread.yield();
+            return;
+        }
+        long park_time=Math.min(max_park_time, 1000L << Math.min(idle - SPINS - YIELDS, 20));
+        LockSupport.parkNanos(park_time);
+    }
+
+    /** Removes the ring of dest and releases the reference held by the map; the ring is unmapped when unused */
+    protected void evict(PhysicalAddress dest, ShmRingBuffer dest_ring) {
+        if(rings.remove(dest, dest_ring))
+            dest_ring.release();
+    }
+
+    protected ShmRingBuffer ringOf(PhysicalAddress dest) {
+        ShmRingBuffer dest_ring=rings.get(dest);
+        if(dest_ring != null || !(dest instanceof IpAddress) || runner == null)
+            return dest_ring;
+        long now=System.currentTimeMillis();
+        Long last_lookup=not_local.get(dest);
+        if(last_lookup != null && now - last_lookup < liveness_timeout)
+            return null;
+
+        File file=fileOf((IpAddress)dest);
+        try {
+            if(file.exists() && ShmRingBuffer.isAlive(file, liveness_timeout)) {
+                dest_ring=ShmRingBuffer.open(file);
+                ShmRingBuffer existing=rings.putIfAbsent(dest, dest_ring);
+                not_local.remove(dest);
+                if(existing == null)
+                    return dest_ring;
+                dest_ring.release(); // another thread was faster
+                return existing;
+            }
+        }
+        catch(Exception ex) {
+            log.trace("%s: failed opening ring %s: %s", transport.local_addr, file, ex);
+        }
+        not_local.put(dest, now);
+        return null;
+    }
+
+    /**
+     * Deletes the rings of this cluster which haven't been updated for 10 times the liveness timeout. Their headers
+     * are read with plain file I/O, so the (possibly many) stale rings are not mapped
+     */
+    protected void deleteStaleRings() {
+        File[] files=dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.startsWith(file_prefix) && name.endsWith(".ring");
+            }
+        });
+        if(files == null)
+            return;
+        long stale_timeout=liveness_timeout * 10;
+        for(File file: files) {
+            boolean stale;
+            try {
+                stale=!ShmRingBuffer.isAlive(file, stale_timeout);
+            }
+            catch(Exception ex) {
+                stale=System.currentTimeMillis() - file.lastModified() >= stale_timeout;
+            }
+            if(stale && file.delete())
+                log.debug("%s: deleted stale ring %s", transport.local_addr, file);
+        }
+    }
+
+    protected File fileOf(IpAddress addr) {
+        String host=addr.getIpAddress().getHostAddress().replace(':', '-').replace('%', '-');
+        return new File(dir, file_prefix + host + "_" + addr.getPort() + ".ring");
+    }
+
+    /** Returns the prefix of a record: [short port][byte length of IP address][IP address] */
+    protected static byte[] prefix(IpAddress addr) {
+        byte[] ip=addr.getIpAddress().getAddress();
+        byte[] retval=new byte[ip.length + 3];
+        retval[0]=(byte)(addr.getPort() >>> 8);
+        retval[1]=(byte)addr.getPort();
+        retval[2]=(byte)ip.length;
+        System.arraycopy(ip, 0, retval, 3, ip.length);
+        return retval;
+    }
+
+    protected static IpAddress sender(byte[] prefix) {
+        int port=((prefix[0] & 0xff) << 8) | (prefix[1] & 0xff);
+        byte[] ip=new byte[prefix[2]];
+        System.arraycopy(prefix, 3, ip, 0, ip.length);
+        try {
+            return new IpAddress(InetAddress.getByAddress(ip), port);
+        }
+        catch(Exception ex) {
+            throw new IllegalArgumentException("invalid IP address in record prefix", ex);
+        }
+    }
+
+    protected static boolean samePrefix(byte[] prefix, byte[] buf) {
+        for(int i=0; i < prefix.length; i++)
+            if(prefix[i] != buf[i])
+                return false;
+        return true;
+    }
+
+    protected static File defaultDir() {
+        File shm=new File("/dev/shm");
+        return shm.isDirectory() && shm.canWrite()? shm : new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -6,6 +6,7 @@ import org.jgroups.PhysicalAddress;
 import org.jgroups.annotations.ManagedAttribute;
 import org.jgroups.annotations.ManagedOperation;
 import org.jgroups.blocks.TCPConnectionMap;
+import org.jgroups.util.Buffers;
 import org.jgroups.util.SocketFactory;
 
 import java.net.InetAddress;
@@ -56,6 +57,13 @@ public class TCP extends BasicTCP implements TCPConnectionMap.Receiver {
             ct.send(dest, data, offset, length);
     }
 
+    public boolean supportsGatheringWrites() {return true;}
+
+    public void send(Address dest, Buffers data) throws Exception {
+        if(ct != null)
+            ct.send(dest, data);
+    }
+
     public void retainAll(Collection<Address> members) {
         ct.retainAll(members);
     }
@@ -67,7 +75,7 @@ public class TCP extends BasicTCP implements TCPConnectionMap.Receiver {
                               external_addr,
                               external_port,
                               bind_port,
-                              bind_port+port_range).log(log).timeService(time_service);
+                              bind_port+port_range).log(log).timeService(time_service).bufferPool(createBufferPool());
         ct.setReceiveBufferSize(recv_buf_size);      
         ct.setSendQueueSize(send_queue_size);
         ct.setUseSendQueues(use_send_queues);
@@ -77,6 +85,7 @@ public class TCP extends BasicTCP implements TCPConnectionMap.Receiver {
         ct.setTcpNodelay(tcp_nodelay);
         ct.setLinger(linger);
         ct.setSocketFactory(getSocketFactory());
+        ct.poolFrames(reusesReceiveBuffers());
 
         // we first start threads in TP (http://jira.jboss.com/jira/browse/JGRP-626)
         super.start();
@@ -0,0 +1,119 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.annotations.ManagedAttribute;
+import org.jgroups.annotations.ManagedOperation;
+import org.jgroups.annotations.Property;
+import org.jgroups.blocks.NioConnectionMap;
+import org.jgroups.blocks.TCPConnectionMap;
+import org.jgroups.util.Buffers;
+
+import java.util.Collection;
+
+/**
+ * TCP based protocol which uses non-blocking channels. Contrary to {@link TCP}, which uses a receiver thread (and
+ * possibly a sender thread) per connection, all connections are handled by a small, fixed number of selector
+ * threads ({@link NioConnectionMap}), so the number of threads doesn't grow with the cluster size.
+ * <p/>
+ * The wire format is the same as TCP's, so TCP_NIO2 can be swapped for TCP in a configuration by changing the
+ * protocol name. The send_queue_size property defines the max number of frames queued per connection; use_send_queues
+ * is ignored, as frames are always queued when they cannot be written right away.
+ * @author agent
+ * @since 3.6
+ */
+public class TCP_NIO2 extends BasicTCP implements TCPConnectionMap.Receiver {
+
+    @Property(name="reactor_threads",description="Number of selector threads handling the connections")
+    protected int              reactor_threads=2;
+
+    @Property(description="Initial size (in bytes) of the read buffer of a connection. Grows to the largest frame received")
+    protected int              read_buf_size=8192;
+
+    protected NioConnectionMap ct;
+
+
+    public TCP_NIO2() {}
+
+
+    @ManagedAttribute(description="Number of connections")
+    public int getOpenConnections() {
+        return ct.getNumConnections();
+    }
+
+    @ManagedAttribute(description="Number of frames in all write queues")
+    public int getNumQueuedFrames() {
+        return ct != null? ct.getNumQueuedFrames() : 0;
+    }
+
+    @ManagedOperation
+    public String printConnections() {
+        return ct.printConnections();
+    }
+
+    public void send(Address dest, byte[] data, int offset, int length) throws Exception {
+        if(ct != null)
+            ct.send(dest, data, offset, length);
+    }
+
+    public boolean supportsGatheringWrites() {return true;}
+
+    public void send(Address dest, Buffers data) throws Exception {
+        if(ct != null)
+            ct.send(dest, data);
+    }
+
+    public void retainAll(Collection<Address> members) {
+        ct.retainAll(members);
+    }
+
+    public void start() throws Exception {
+        ct=new NioConnectionMap(getThreadFactory(), this, bind_addr, external_addr, external_port, bind_port,
+                                bind_port+port_range, reaper_interval, conn_expire_time, reactor_threads)
+          .clientBindAddress(client_bind_addr).clientBindPort(client_bind_port).deferClientBinding(defer_client_bind_addr)
+          .receiveBufferSize(recv_buf_size).sendBufferSize(send_buf_size).sendQueueSize(send_queue_size)
+          .socketConnectionTimeout(sock_conn_timeout).peerAddressReadTimeout(peer_addr_read_timeout)
+          .tcpNodelay(tcp_nodelay).linger(linger).readBufferSize(read_buf_size)
+          .log(log).timeService(time_service).bufferPool(createBufferPool());
+        // A message handed to a thread pool is copied by receive(), and so is a message run on a DirectExecutor if
+        // buffer_pool.receive is set (see reusesReceiveBuffers()). Otherwise, the message would refer to the read
+        // buffer, which is overwritten by the next frames, so the frames have to be copied
+        ct.copyFrames(!reusesReceiveBuffers());
+
+        // we first start threads in TP (http://jira.jboss.com/jira/browse/JGRP-626)
+        super.start();
+    }
+
+    public void stop() {
+        if(log.isDebugEnabled()) log.debug("closing sockets and stopping threads");
+        ct.stop(); //not needed, but just in case
+        super.stop();
+    }
+
+
+    protected void handleConnect() throws Exception {
+        if(isSingleton()) {
+            if(connect_count == 0) {
+                ct.start();
+            }
+            super.handleConnect();
+        }
+        else
+            ct.start();
+    }
+
+    protected void handleDisconnect() {
+        if(isSingleton()) {
+            super.handleDisconnect();
+            if(connect_count == 0) {
+                ct.stop();
+            }
+        }
+        else
+            ct.stop();
+    }
+
+    protected PhysicalAddress getPhysicalAddress() {
+        return ct != null? (PhysicalAddress)ct.getLocalAddress() : null;
+    }
+}
@@ -19,10 +19,12 @@ import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.NetworkInterface;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.text.NumberFormat;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantLock;
 
 
@@ -174,6 +176,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
               description="Thread rejection policy. Possible values are Abort, Discard, DiscardOldest and Run")
     protected String oob_thread_pool_rejection_policy="discard";
 
+    @Property(name="oob_thread_pool.use_virtual_threads",description="Runs every OOB message (batch) in a new virtual " +
+      "thread instead of using a bounded pool; min/max threads, queue and rejection policy are ignored. Falls back " +
+      "to the regular pool if the JVM doesn't support virtual threads",writable=false)
+    protected boolean oob_thread_pool_use_virtual_threads=false;
+
     @Property(name="thread_pool.min_threads",description="Minimum thread pool size for the regular thread pool")
     protected int thread_pool_min_threads=2;
 
@@ -197,6 +204,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
               description="Thread rejection policy. Possible values are Abort, Discard, DiscardOldest and Run")
     protected String thread_pool_rejection_policy="Discard";
 
+    @Property(name="thread_pool.use_virtual_threads",description="Runs every regular message (batch) in a new virtual " +
+      "thread instead of using a bounded pool; min/max threads, queue and rejection policy are ignored. Falls back " +
+      "to the regular pool if the JVM doesn't support virtual threads",writable=false)
+    protected boolean thread_pool_use_virtual_threads=false;
+
 
     @Property(name="internal_thread_pool.enabled",description="Switch for enabling thread pool for internal messages",
               writable=false)
@@ -221,6 +233,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
               description="Thread rejection policy. Possible values are Abort, Discard, DiscardOldest and Run")
     protected String internal_thread_pool_rejection_policy="discard";
 
+    @Property(name="internal_thread_pool.use_virtual_threads",description="Runs every internal message (batch) in a " +
+      "new virtual thread instead of using a bounded pool; min/max threads, queue and rejection policy are ignored. " +
+      "Falls back to the regular pool if the JVM doesn't support virtual threads",writable=false)
+    protected boolean internal_thread_pool_use_virtual_threads=false;
+
 
 
     @Property(description="Type of timer to be used. Valid values are \"old\" (DefaultTimeScheduler, used up to 2.10), " +
@@ -341,13 +358,48 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @Property(name="max_bundle_timeout", description="Max number of milliseconds until queued messages are sent")
     protected long max_bundle_timeout=20;
 
-    @Property(description="The type of bundler used. Has to be \"sender-sends-with-timer\", \"transfer-queue\" (default) " +
-      "or \"sender-sends\"")
+    @Property(description="The type of bundler used. Has to be \"sender-sends-with-timer\", \"transfer-queue\" (default), " +
+      "\"sender-sends\", \"ring-buffer\" or \"adaptive\"")
     protected String bundler_type="transfer-queue";
 
+    @Property(description="The 99th percentile of the time (in microseconds) a message may spend in the adaptive " +
+      "bundler (from send() until it has been sent). The bundler adapts the time it waits for more messages to this " +
+      "target. Only used if bundler_type is \"adaptive\"")
+    protected long bundler_latency_target=1000;
+
     @Property(description="The max number of elements in a bundler if the bundler supports size limitations")
     protected int bundler_capacity=20000;
 
+    @Property(description="If true, the bundler marshals only the headers of messages into its buffer and passes the " +
+      "payloads to the transport as separate buffers, which are sent with a gathering write instead of being copied. " +
+      "Ignored if the transport doesn't support gathering writes")
+    protected boolean gathering_writes=false;
+
+    @Property(description="Min size (bytes) of a payload to be sent as a separate buffer with gathering_writes. " +
+      "Smaller payloads are copied into the bundler's buffer. Payloads backed by a ByteBuffer are never copied")
+    protected int gathering_threshold=1024;
+
+    @Property(name="buffer_pool.enabled",description="If true, the buffers holding the messages queued for sending " +
+      "by TCP and TCP_NIO2 are taken from a pool and returned when they have been written, instead of being " +
+      "allocated for every message")
+    protected boolean buffer_pool_enabled=true;
+
+    @Property(name="buffer_pool.receive",description="If true (and buffer_pool.enabled is true), TCP reads frames into " +
+      "pooled buffers and TCP_NIO2 passes frames in its read buffer, instead of allocating a new buffer for every " +
+      "frame. The buffer is reused when the frame has been handled, so a message is then also copied if it is " +
+      "processed by a DirectExecutor (as it may be retained, e.g. until it is stable)")
+    protected boolean buffer_pool_receive=false;
+
+    @Property(name="buffer_pool.min_size",description="Size (bytes) of the smallest buffer size class of the buffer pool")
+    protected int buffer_pool_min_size=512;
+
+    @Property(name="buffer_pool.max_size",description="Size (bytes) of the biggest buffer size class of the buffer pool. " +
+      "Bigger buffers are allocated and not pooled")
+    protected int buffer_pool_max_size=65536;
+
+    @Property(name="buffer_pool.max_buffers",description="Max number of free buffers kept per size class")
+    protected int buffer_pool_max_buffers=128;
+
 
     public void setMaxBundleSize(int size) {
         if(size <= 0)
@@ -369,9 +421,37 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     @ManagedAttribute public int getBundlerBufferSize() {
         if(bundler instanceof TransferQueueBundler)
             return ((TransferQueueBundler)bundler).getBufferSize();
+        if(bundler instanceof RingBufferBundler)
+            return ((RingBufferBundler)bundler).getBufferSize();
+        if(bundler instanceof AdaptiveBundler)
+            return ((AdaptiveBundler)bundler).getBufferSize();
         return 0;
     }
 
+    @ManagedAttribute(description="Average number of bytes in a bundle sent by the adaptive bundler, in percent of " +
+      "max_bundle_size")
+    public double getBundleFillRatio() {
+        return bundler instanceof AdaptiveBundler? ((AdaptiveBundler)bundler).avg_fill_ratio.getAverage() : 0;
+    }
+
+    @ManagedAttribute(description="The number of bundles the adaptive bundler sent because of max_bundle_size, the " +
+      "latency budget, an idle destination or a full queue")
+    public String getBundlerFlushReasons() {
+        return bundler instanceof AdaptiveBundler? ((AdaptiveBundler)bundler).printFlushReasons() : "n/a";
+    }
+
+    @ManagedAttribute(description="The 99th percentile of the latency (in microseconds) of recent messages sent by " +
+      "the adaptive bundler")
+    public long getBundlerLatencyP99() {
+        return bundler instanceof AdaptiveBundler? TimeUnit.NANOSECONDS.toMicros(((AdaptiveBundler)bundler).p99) : 0;
+    }
+
+    @ManagedAttribute(description="The max time (in microseconds) the adaptive bundler currently waits for more " +
+      "messages to a destination")
+    public long getBundlerWaitBudget() {
+        return bundler instanceof AdaptiveBundler? TimeUnit.NANOSECONDS.toMicros(((AdaptiveBundler)bundler).wait_budget) : 0;
+    }
+
     @ManagedAttribute(description="Returns the average batch size of received batches")
     public double getAvgBatchSize() {
         return avg_batch_size.getAverage();
@@ -514,6 +594,27 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         return timer != null? timer.getClass().getSimpleName() : "null";
     }
 
+    @ManagedAttribute(description="Stats of the buffer pool")
+    public String getBufferPoolStats() {
+        return buffer_pool != null? buffer_pool.toString() : "n/a";
+    }
+
+    @ManagedAttribute(description="Number of buffers acquired from the buffer pool")
+    public long getBufferPoolAcquired() {
+        return buffer_pool instanceof DefaultBufferPool? ((DefaultBufferPool)buffer_pool).getNumAcquired() : 0;
+    }
+
+    @ManagedAttribute(description="Number of buffers which had to be allocated as the buffer pool had no free buffer " +
+      "of the requested size class")
+    public long getBufferPoolCreated() {
+        return buffer_pool instanceof DefaultBufferPool? ((DefaultBufferPool)buffer_pool).getNumCreated() : 0;
+    }
+
+    @ManagedAttribute(description="Number of free buffers in the buffer pool")
+    public int getBufferPoolSize() {
+        return buffer_pool instanceof DefaultBufferPool? ((DefaultBufferPool)buffer_pool).size() : 0;
+    }
+
     @ManagedAttribute(description="Number of messages from members in a different cluster")
     public int getDifferentClusterMessages() {
         return suppress_log_different_cluster != null? suppress_log_different_cluster.getCache().size() : 0;
@@ -587,6 +688,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     /** Factory which is used by internal_thread_pool */
     protected ThreadFactory           internal_thread_factory;
 
+    /** Whether the thread pools were created by TP (and are shut down by it), or set by the user, who owns them */
+    protected boolean                 oob_thread_pool_owned, thread_pool_owned, internal_thread_pool_owned;
+
     /** Used if thread_pool is a ThreadPoolExecutor and thread_pool_queue_enabled is true */
     protected BlockingQueue<Runnable> internal_thread_pool_queue;
 
@@ -606,6 +710,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     protected Bundler                 bundler;
 
+    /** Pool of the buffers holding messages queued for sending, and of the frames read if buffer_pool.receive is true
+     * (see {@link #createBufferPool()}). Null if buffer_pool.enabled is false, or if the transport doesn't use it */
+    protected BufferPool              buffer_pool;
+
     protected DiagnosticsHandler      diag_handler;
     protected final List<DiagnosticsHandler.ProbeHandler> preregistered_probe_handlers=new LinkedList<DiagnosticsHandler.ProbeHandler>();
 
@@ -678,6 +786,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     public boolean isMulticastCapable() {return supportsMulticasting();}
 
+    /** Whether or not the transport can send a {@link Buffers} instance without copying it into a single buffer */
+    public boolean supportsGatheringWrites() {return false;}
+
     public String toString() {
         if(!isSingleton())
             return local_addr != null? name + "(local address: " + local_addr + ')' : name;
@@ -689,6 +800,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         num_msgs_sent=num_msgs_received=num_single_msgs_received=num_batches_received=num_bytes_sent=num_bytes_received=0;
         num_oob_msgs_received=num_incoming_msgs_received=num_internal_msgs_received=num_single_msgs_sent=num_batches_sent=0;
         avg_batch_size.clear();
+        if(bundler instanceof AdaptiveBundler)
+            ((AdaptiveBundler)bundler).resetStats();
     }
 
     public void registerProbeHandler(DiagnosticsHandler.ProbeHandler handler) {
@@ -727,10 +840,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         return thread_pool;
     }
 
+    /** Sets the regular thread pool. The pool is owned by the caller: TP doesn't shut it down */
     public void setDefaultThreadPool(Executor thread_pool) {
-        if(this.thread_pool != null)
+        if(this.thread_pool != null && thread_pool_owned)
             shutdownThreadPool(this.thread_pool);
         this.thread_pool=thread_pool;
+        thread_pool_owned=false;
     }
 
     public ThreadFactory getDefaultThreadPoolThreadFactory() {
@@ -741,17 +856,20 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         default_thread_factory=factory;
         if(thread_pool instanceof ThreadPoolExecutor)
             ((ThreadPoolExecutor)thread_pool).setThreadFactory(factory);
+        else if(thread_pool instanceof ThreadPerTaskExecutor)
+            ((ThreadPerTaskExecutor)thread_pool).setThreadFactory(factory);
     }
 
     public Executor getOOBThreadPool() {
         return oob_thread_pool;
     }
 
+    /** Sets the OOB thread pool. The pool is owned by the caller: TP doesn't shut it down */
     public void setOOBThreadPool(Executor oob_thread_pool) {
-        if(this.oob_thread_pool != null) {
+        if(this.oob_thread_pool != null && oob_thread_pool_owned)
             shutdownThreadPool(this.oob_thread_pool);
-        }
         this.oob_thread_pool=oob_thread_pool;
+        oob_thread_pool_owned=false;
     }
 
     public ThreadFactory getOOBThreadPoolThreadFactory() {
@@ -762,6 +880,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         oob_thread_factory=factory;
         if(oob_thread_pool instanceof ThreadPoolExecutor)
             ((ThreadPoolExecutor)oob_thread_pool).setThreadFactory(factory);
+        else if(oob_thread_pool instanceof ThreadPerTaskExecutor)
+            ((ThreadPerTaskExecutor)oob_thread_pool).setThreadFactory(factory);
     }
 
     public ThreadFactory getInternalThreadPoolThreadFactory() {
@@ -772,6 +892,8 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         internal_thread_factory=factory;
         if(internal_thread_pool instanceof ThreadPoolExecutor)
             ((ThreadPoolExecutor)internal_thread_pool).setThreadFactory(factory);
+        else if(internal_thread_pool instanceof ThreadPerTaskExecutor)
+            ((ThreadPerTaskExecutor)internal_thread_pool).setThreadFactory(factory);
     }
 
     public ThreadFactory getTimerThreadFactory() {
@@ -796,6 +918,27 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     public TimeService getTimeService() {return time_service;}
 
+    public BufferPool getBufferPool() {return buffer_pool;}
+
+    /** Sets a custom buffer pool. Needs to be called before {@link #start()}, otherwise the transports which use a
+     * pool create a {@link DefaultBufferPool} */
+    public void setBufferPool(BufferPool pool) {this.buffer_pool=pool;}
+
+    /** Creates the buffer pool if buffer_pool.enabled is true and none has been set. Called by the transports which
+     * use the pool */
+    protected BufferPool createBufferPool() {
+        if(buffer_pool == null && buffer_pool_enabled)
+            buffer_pool=new DefaultBufferPool(buffer_pool_min_size, buffer_pool_max_size, buffer_pool_max_buffers);
+        return buffer_pool;
+    }
+
+    /** Returns true if the buffers passed to {@link #receive(Address,byte[],int,int)} are reused once it returns
+     * (see buffer_pool.receive), so that the data of a message has to be copied even if it is processed on the
+     * receiver's thread */
+    protected boolean reusesReceiveBuffers() {
+        return buffer_pool_receive && buffer_pool != null;
+    }
+
     public void setTimeService(TimeService ts) {
         if(ts == null)
             return;
@@ -865,12 +1008,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     
     @ManagedAttribute(description="Current number of threads in the OOB thread pool")
     public int getOOBPoolSize() {
-        return oob_thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)oob_thread_pool).getPoolSize() : 0;
+        return getPoolSize(oob_thread_pool);
     }
 
     @ManagedAttribute(description="Current number of active threads in the OOB thread pool")
     public int getOOBPoolSizeActive() {
-        return oob_thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)oob_thread_pool).getActiveCount() : 0;
+        return getActiveCount(oob_thread_pool);
     }
 
     public long getOOBMessages() {
@@ -896,12 +1039,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     @ManagedAttribute(description="Current number of threads in the default thread pool")
     public int getRegularPoolSize() {
-        return thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)thread_pool).getPoolSize() : 0;
+        return getPoolSize(thread_pool);
     }
 
     @ManagedAttribute(description="Current number of active threads in the default thread pool")
     public int getRegularPoolSizeActive() {
-        return thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)thread_pool).getActiveCount() : 0;
+        return getActiveCount(thread_pool);
     }
 
     public long getRegularMessages() {
@@ -920,12 +1063,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
     @ManagedAttribute(description="Current number of threads in the internal thread pool")
     public int getInternalPoolSize() {
-        return internal_thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)internal_thread_pool).getPoolSize() : 0;
+        return getPoolSize(internal_thread_pool);
     }
 
     @ManagedAttribute(description="Current number of active threads in the internal thread pool")
     public int getInternalPoolSizeActive() {
-        return internal_thread_pool instanceof ThreadPoolExecutor? ((ThreadPoolExecutor)internal_thread_pool).getActiveCount() : 0;
+        return getActiveCount(internal_thread_pool);
     }
 
     public long getInternalMessages() {
@@ -942,6 +1085,11 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    @ManagedAttribute(description="Whether the JVM supports virtual threads (needed by the *.use_virtual_threads properties)")
+    public boolean isVirtualThreadsSupported() {
+        return ThreadPerTaskExecutor.virtualThreadsSupported();
+    }
+
     @ManagedAttribute(name="timer_tasks",description="Number of timer tasks queued up for execution")
     public int getNumTimerTasks() {
         return timer != null? timer.size() : -1;
@@ -1015,6 +1163,27 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      */
     public abstract void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception;
 
+    /**
+     * Sends to all members in the group. The default implementation copies data into a single buffer; transports
+     * supporting gathering writes override this
+     * @param data The buffers to be sent. The caller reuses them, so they need to be copied if queued
+     */
+    public void sendMulticast(Buffers data) throws Exception {
+        byte[] tmp=data.copy();
+        sendMulticast(tmp, 0, tmp.length);
+    }
+
+    /**
+     * Sends a unicast to 1 member. The default implementation copies data into a single buffer; transports supporting
+     * gathering writes override this
+     * @param dest Must be a non-null unicast address
+     * @param data The buffers to be sent. The caller reuses them, so they need to be copied if queued
+     */
+    public void sendUnicast(PhysicalAddress dest, Buffers data) throws Exception {
+        byte[] tmp=data.copy();
+        sendUnicast(dest, tmp, 0, tmp.length);
+    }
+
     public abstract String getInfo();
 
     /* ------------------------------------------------------------------------------- */
@@ -1093,9 +1262,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
         // ========================================== OOB thread pool ==============================
 
-        if(oob_thread_pool == null
-          || (oob_thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)oob_thread_pool).isShutdown())) {
-            if(oob_thread_pool_enabled) {
+        if(oob_thread_pool == null || isShutdown(oob_thread_pool)) {
+            if(oob_thread_pool_enabled && useVirtualThreads(oob_thread_pool_use_virtual_threads, "oob_thread_pool"))
+                oob_thread_pool=ThreadPerTaskExecutor.newVirtualThreadExecutor(oob_thread_factory, "OOB");
+            else if(oob_thread_pool_enabled) {
                 if(oob_thread_pool_queue_enabled)
                     oob_thread_pool_queue=new LinkedBlockingQueue<Runnable>(oob_thread_pool_queue_max_size);
                 else
@@ -1106,13 +1276,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             else { // otherwise use the caller's thread to unmarshal the byte buffer into a message
                 oob_thread_pool=new DirectExecutor();
             }
+            oob_thread_pool_owned=true;
         }
 
         // ====================================== Regular thread pool ===========================
 
-        if(thread_pool == null
-          || (thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)thread_pool).isShutdown())) {
-            if(thread_pool_enabled) {
+        if(thread_pool == null || isShutdown(thread_pool)) {
+            if(thread_pool_enabled && useVirtualThreads(thread_pool_use_virtual_threads, "thread_pool"))
+                thread_pool=ThreadPerTaskExecutor.newVirtualThreadExecutor(default_thread_factory, "Incoming");
+            else if(thread_pool_enabled) {
                 if(thread_pool_queue_enabled)
                     thread_pool_queue=new LinkedBlockingQueue<Runnable>(thread_pool_queue_max_size);
                 else
@@ -1123,14 +1295,16 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             else { // otherwise use the caller's thread to unmarshal the byte buffer into a message
                 thread_pool=new DirectExecutor();
             }
+            thread_pool_owned=true;
         }
 
 
         // ========================================== Internal thread pool ==============================
 
-        if(internal_thread_pool == null
-          || (internal_thread_pool instanceof ThreadPoolExecutor && ((ThreadPoolExecutor)internal_thread_pool).isShutdown())) {
-            if(internal_thread_pool_enabled) {
+        if(internal_thread_pool == null || isShutdown(internal_thread_pool)) {
+            if(internal_thread_pool_enabled && useVirtualThreads(internal_thread_pool_use_virtual_threads, "internal_thread_pool"))
+                internal_thread_pool=ThreadPerTaskExecutor.newVirtualThreadExecutor(internal_thread_factory, "INT");
+            else if(internal_thread_pool_enabled) {
                 if(internal_thread_pool_queue_enabled)
                     internal_thread_pool_queue=new LinkedBlockingQueue<Runnable>(internal_thread_pool_queue_max_size);
                 else
@@ -1139,6 +1313,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                                                  internal_thread_pool_rejection_policy, internal_thread_pool_queue, internal_thread_factory);
             }
             // if the internal thread pool is disabled, we won't create it (not even a DirectExecutor)
+            internal_thread_pool_owned=true;
         }
 
 
@@ -1184,14 +1359,14 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         if(timer != null)
             timer.stop();
 
-        // 3. Stop the thread pools
-        if(oob_thread_pool instanceof ThreadPoolExecutor)
+        // 3. Stop the thread pools we created; the ones set by the user are shut down by the user
+        if(oob_thread_pool_owned)
             shutdownThreadPool(oob_thread_pool);
 
-        if(thread_pool instanceof ThreadPoolExecutor)
+        if(thread_pool_owned)
             shutdownThreadPool(thread_pool);
 
-        if(internal_thread_pool instanceof ThreadPoolExecutor)
+        if(internal_thread_pool_owned)
             shutdownThreadPool(internal_thread_pool);
     }
 
@@ -1221,6 +1396,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             else if(bundler_type.startsWith("sender-sends")) {
                 bundler=new SenderSendsBundler();
             }
+            else if(bundler_type.startsWith("ring-buffer")) {
+                bundler=new RingBufferBundler(bundler_capacity);
+            }
+            else if(bundler_type.startsWith("adaptive")) {
+                bundler=new AdaptiveBundler(bundler_capacity);
+            }
             else
                 log.warn(Util.getMessage("UnknownBundler"), bundler_type);
             if(bundler == null)
@@ -1538,7 +1719,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     public void receive(Address sender, byte[] data, int offset, int length) {
         if(data == null) return;
 
-        byte flags=data[Global.SHORT_SIZE];
+        byte flags=data[offset + Global.SHORT_SIZE];
         boolean is_message_list=(flags & LIST) == LIST;
 
         if(is_message_list) // used if message bundling is enabled
@@ -1560,7 +1741,19 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             byte flags=dis.readByte();
             final boolean multicast=(flags & MULTICAST) == MULTICAST;
 
-            final MessageBatch[] batches=readMessageBatch(dis, multicast);
+            dispatch(readMessageBatch(dis, multicast));
+        }
+        catch(Throwable t) {
+            log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
+        }
+        finally {
+            Util.close(dis);
+        }
+    }
+
+    /** Passes the 4 batches returned by {@link #readMessageBatch(java.io.DataInputStream,boolean)} to the thread pools */
+    protected void dispatch(MessageBatch[] batches) {
+        try {
             final MessageBatch batch=batches[0], oob_batch=batches[1], internal_batch_oob=batches[2], internal_batch=batches[3];
 
             removeAndDispatchNonBundledMessages(oob_batch, internal_batch_oob);
@@ -1587,12 +1780,6 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         catch(RejectedExecutionException rejected) {
             num_rejected_msgs++;
         }
-        catch(Throwable t) {
-            log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
-        }
-        finally {
-            Util.close(dis);
-        }
     }
 
     protected void handleSingleMessage(Address sender, byte[] data, int offset, int length) {
@@ -1611,8 +1798,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         Executor pool=pickThreadPool(oob, internal);
 
         try {
-            if(pool instanceof DirectExecutor)
-                pool.execute(new MyHandler(sender, data, offset, length)); // we don't make a copy if we execute on this thread
+            // we don't make a copy if we execute on this thread, unless data is reused when we return
+            if(pool instanceof DirectExecutor && !reusesReceiveBuffers())
+                pool.execute(new MyHandler(sender, data, offset, length));
             else {
                 byte[] tmp=new byte[length];
                 System.arraycopy(data, offset, tmp, 0, length);
@@ -1709,7 +1897,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                 }
 
                 if(payload_offset >= 0)
-                    msg.setBuffer(data, payload_offset, length - payload_offset);
+                    msg.setBuffer(data, payload_offset, offset + length - payload_offset);
 
                 if(stats) {
                     num_msgs_received++;
@@ -1766,6 +1954,95 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
 
 
 
+    /**
+     * Collects the messages of a number of datagrams, which a receiver thread read in one go, into batches (one set of
+     * batches per sender, destination and cluster), and passes the batches up when {@link #flush()} is called. This
+     * way, draining N datagrams from a socket results in a few batches rather than in N thread pool tasks.
+     * Not thread safe: every receiver thread has its own instance
+     */
+    protected class ReceiveBatcher {
+        // the batches of the different senders, in the layout returned by readMessageBatch()
+        protected final List<MessageBatch[]> senders=new ArrayList<MessageBatch[]>();
+
+        /** Reads the message (or list of messages) in a datagram. The data is copied and can be reused afterwards */
+        public void add(Address sender, byte[] data, int offset, int length) {
+            DataInputStream dis=null;
+            try {
+                ExposedByteArrayInputStream in_stream=new ExposedByteArrayInputStream(data, offset, length);
+                dis=new DataInputStream(in_stream);
+                short version=dis.readShort();
+                if(!versionMatch(version, sender))
+                    return;
+
+                byte flags=dis.readByte();
+                boolean multicast=(flags & MULTICAST) == MULTICAST;
+                if((flags & LIST) == LIST) {
+                    MessageBatch[] batches=readMessageBatch(dis, multicast);
+                    for(int i=0; i < batches.length; i++)
+                        if(batches[i] != null)
+                            add(batches[i], i);
+                }
+                else {
+                    Message msg=new Message(false);
+                    msg.readFrom(dis);
+                    TpHeader hdr=(TpHeader)msg.getHeader(id);
+                    int index=batchIndex(msg);
+                    MessageBatch[] batches=find(msg.getDest(), msg.getSrc(), hdr.channel_name, multicast);
+                    if(batches[index] == null)
+                        batches[index]=new MessageBatch(msg.getDest(), msg.getSrc(), hdr.channel_name, multicast, BATCH_MODES[index], 16);
+                    batches[index].add(msg);
+                }
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("IncomingMsgFailure"), local_addr, t);
+            }
+            finally {
+                Util.close(dis);
+            }
+        }
+
+        /** Passes all batches up and clears them */
+        public void flush() {
+            for(MessageBatch[] batches: senders)
+                dispatch(batches);
+            senders.clear();
+        }
+
+        public boolean isEmpty() {
+            return senders.isEmpty();
+        }
+
+        protected void add(MessageBatch batch, int index) {
+            MessageBatch[] batches=find(batch.dest(), batch.sender(), batch.clusterName(), batch.multicast());
+            if(batches[index] == null)
+                batches[index]=batch;
+            else
+                for(Message msg: batch)
+                    batches[index].add(msg);
+        }
+
+        protected MessageBatch[] find(Address dest, Address sender, String cluster_name, boolean multicast) {
+            for(MessageBatch[] batches: senders) {
+                for(MessageBatch batch: batches) {
+                    if(batch == null)
+                        continue;
+                    if(batch.multicast() == multicast && equal(batch.sender(), sender) && equal(batch.dest(), dest)
+                      && equal(batch.clusterName(), cluster_name))
+                        return batches;
+                    break;
+                }
+            }
+            MessageBatch[] batches=new MessageBatch[4];
+            senders.add(batches);
+            return batches;
+        }
+
+        protected boolean equal(Object a, Object b) {
+            return a == null? b == null : a.equals(b);
+        }
+    }
+
+
     protected class BatchHandler implements Runnable {
         protected final MessageBatch batch;
 
@@ -1830,12 +2107,36 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
-    protected void sendToSingleMember(Address dest, byte[] buf, int offset, int length) throws Exception {
-        if(dest instanceof PhysicalAddress) {
-            sendUnicast((PhysicalAddress)dest, buf, offset, length);
-            return;
+    protected void doSend(Buffers data, Address dest, boolean multicast) throws Exception {
+        if(stats) {
+            num_msgs_sent++;
+            num_bytes_sent+=data.length();
         }
+        if(multicast)
+            sendMulticast(data);
+        else
+            sendToSingleMember(dest, data);
+    }
+
+
+    protected void sendToSingleMember(Address dest, byte[] buf, int offset, int length) throws Exception {
+        PhysicalAddress physical_dest=dest instanceof PhysicalAddress? (PhysicalAddress)dest : fetchPhysicalAddress(dest);
+        if(physical_dest != null)
+            sendUnicast(physical_dest, buf, offset, length);
+        else if(log.isWarnEnabled())
+            log.warn(Util.getMessage("PhysicalAddrMissing"), local_addr, dest);
+    }
 
+    protected void sendToSingleMember(Address dest, Buffers data) throws Exception {
+        PhysicalAddress physical_dest=dest instanceof PhysicalAddress? (PhysicalAddress)dest : fetchPhysicalAddress(dest);
+        if(physical_dest != null)
+            sendUnicast(physical_dest, data);
+        else if(log.isWarnEnabled())
+            log.warn(Util.getMessage("PhysicalAddrMissing"), local_addr, dest);
+    }
+
+    /** Returns the physical address of dest, fetching it if not in the cache. Returns null if not found */
+    protected PhysicalAddress fetchPhysicalAddress(Address dest) {
         PhysicalAddress physical_dest=null;
         int cnt=1;
         long sleep_time=20;
@@ -1849,34 +2150,32 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             Util.sleep(sleep_time);
             sleep_time=Math.min(1000, sleep_time *2);
         }
-
-        if(physical_dest != null)
-            sendUnicast(physical_dest, buf, offset, length);
-        else if(log.isWarnEnabled())
-            log.warn(Util.getMessage("PhysicalAddrMissing"), local_addr, dest);
+        return physical_dest;
     }
 
 
     protected void sendToAllPhysicalAddresses(byte[] buf, int offset, int length) throws Exception {
-        if(!logical_addr_cache.containsKeys(members)) {
-            long current_time=0;
-            boolean do_send=false;
-            synchronized(this) {
-                if(last_discovery_request == 0 || (current_time=System.currentTimeMillis()) - last_discovery_request >= 10000) {
-                    last_discovery_request=current_time == 0? System.currentTimeMillis() : current_time;
-                    do_send=true;
-                }
+        findMissingPhysicalAddresses();
+        for(LazyRemovalCache.Entry<PhysicalAddress> entry: logical_addr_cache.valuesIterator()) {
+            try {
+                if(!entry.isRemovable())
+                    sendUnicast(entry.getVal(), buf, offset, length);
             }
-            if(do_send) {
-                log.warn(Util.getMessage("NotAllPhysAddrsFound"), local_addr);
-                up(new Event(Event.FIND_INITIAL_MBRS));
+            catch(SocketException sock_ex) {
+                log.debug(Util.getMessage("FailureSendingToPhysAddr"), local_addr, entry.getVal(), sock_ex);
+            }
+            catch(Throwable t) {
+                log.error(Util.getMessage("FailureSendingToPhysAddr"), local_addr, entry.getVal(), t);
             }
         }
+    }
 
+    protected void sendToAllPhysicalAddresses(Buffers data) throws Exception {
+        findMissingPhysicalAddresses();
         for(LazyRemovalCache.Entry<PhysicalAddress> entry: logical_addr_cache.valuesIterator()) {
             try {
                 if(!entry.isRemovable())
-                    sendUnicast(entry.getVal(), buf, offset, length);
+                    sendUnicast(entry.getVal(), data);
             }
             catch(SocketException sock_ex) {
                 log.debug(Util.getMessage("FailureSendingToPhysAddr"), local_addr, entry.getVal(), sock_ex);
@@ -1887,6 +2186,24 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         }
     }
 
+    /** Triggers discovery (at most every 10 secs) if we don't have the physical addresses of all members */
+    protected void findMissingPhysicalAddresses() {
+        if(!logical_addr_cache.containsKeys(members)) {
+            long current_time=0;
+            boolean do_send=false;
+            synchronized(this) {
+                if(last_discovery_request == 0 || (current_time=System.currentTimeMillis()) - last_discovery_request >= 10000) {
+                    last_discovery_request=current_time == 0? System.currentTimeMillis() : current_time;
+                    do_send=true;
+                }
+            }
+            if(do_send) {
+                log.warn(Util.getMessage("NotAllPhysAddrsFound"), local_addr);
+                up(new Event(Event.FIND_INITIAL_MBRS));
+            }
+        }
+    }
+
     /**
      * This method needs to be synchronized on out_stream when it is called
      * @param msg
@@ -1894,12 +2211,17 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      * @throws java.io.IOException
      */
     protected static void writeMessage(Message msg, DataOutputStream dos, boolean multicast) throws Exception {
+        writeMessage(msg, dos, multicast, true);
+    }
+
+    /** Writes the message, but not its payload if write_payload is false (see {@link Message#writeTo(java.io.DataOutput,boolean)}) */
+    protected static void writeMessage(Message msg, DataOutputStream dos, boolean multicast, boolean write_payload) throws Exception {
         byte flags=0;
         dos.writeShort(Version.version); // write the version
         if(multicast)
             flags+=MULTICAST;
         dos.writeByte(flags);
-        msg.writeTo(dos);
+        msg.writeTo(dos, write_payload);
     }
 
     public static Message readMessage(DataInputStream instream) throws Exception {
@@ -1929,6 +2251,15 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      */
     public static void writeMessageList(Address dest, Address src, String cluster_name,
                                         List<Message> msgs, DataOutputStream dos, boolean multicast, short transport_id) throws Exception {
+        writeMessageListHeader(dest, src, cluster_name, msgs != null? msgs.size() : 0, dos, multicast);
+        if(msgs != null)
+            for(Message msg: msgs)
+                msg.writeToNoAddrs(src, dos, transport_id); // exclude the transport header
+    }
+
+    /** Writes everything of a message list except the messages */
+    protected static void writeMessageListHeader(Address dest, Address src, String cluster_name, int num_msgs,
+                                                 DataOutputStream dos, boolean multicast) throws Exception {
         dos.writeShort(Version.version);
 
         byte flags=LIST;
@@ -1944,11 +2275,7 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         Util.writeString(cluster_name, dos);
 
         // Number of messages (0 == no messages)
-        dos.writeInt(msgs != null? msgs.size() : 0);
-
-        if(msgs != null)
-            for(Message msg: msgs)
-                msg.writeToNoAddrs(src, dos, transport_id); // exclude the transport header
+        dos.writeInt(num_msgs);
     }
 
 
@@ -1989,6 +2316,9 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
      * @return an array of 4 MessageBatches in the order above, the first batch is at index 0
      * @throws Exception
      */
+    protected static final MessageBatch.Mode[] BATCH_MODES={MessageBatch.Mode.REG, MessageBatch.Mode.OOB,
+      MessageBatch.Mode.OOB, MessageBatch.Mode.INTERNAL};
+
     public static MessageBatch[] readMessageBatch(DataInputStream in, boolean multicast) throws Exception {
         MessageBatch[] batches=new MessageBatch[4]; // [0]: reg, [1]: OOB, [2]: internal-oob, [3]: internal
         Address dest=Util.readAddress(in);
@@ -2002,28 +2332,20 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             msg.setDest(dest);
             if(msg.getSrc() == null)
                 msg.setSrc(src);
-            boolean oob=msg.isFlagSet(Message.Flag.OOB);
-            boolean internal=msg.isFlagSet(Message.Flag.INTERNAL);
-            int index=0;
-            MessageBatch.Mode mode=MessageBatch.Mode.REG;
-
-            if(oob && !internal) {
-                index=1; mode=MessageBatch.Mode.OOB;
-            }
-            else if(oob && internal) {
-                index=2; mode=MessageBatch.Mode.OOB;
-            }
-            else if(!oob && internal) {
-                index=3; mode=MessageBatch.Mode.INTERNAL;
-            }
-
+            int index=batchIndex(msg);
             if(batches[index] == null)
-                batches[index]=new MessageBatch(dest, src, cluster_name, multicast, mode, len);
+                batches[index]=new MessageBatch(dest, src, cluster_name, multicast, BATCH_MODES[index], len);
             batches[index].add(msg);
         }
         return batches;
     }
 
+    /** Returns the index of the batch (see {@link #readMessageBatch(java.io.DataInputStream,boolean)}) msg belongs to */
+    protected static int batchIndex(Message msg) {
+        boolean oob=msg.isFlagSet(Message.Flag.OOB), internal=msg.isFlagSet(Message.Flag.INTERNAL);
+        return oob? (internal? 2 : 1) : (internal? 3 : 0);
+    }
+
 
     @SuppressWarnings("unchecked")
     protected Object handleDownEvent(Event evt) {
@@ -2179,6 +2501,10 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             global_thread_factory.renameThread(TransferQueueBundler.THREAD_NAME,
                                                ((TransferQueueBundler)bundler).getThread());
         }
+        if(bundler instanceof RingBufferBundler)
+            global_thread_factory.renameThread(RingBufferBundler.THREAD_NAME, ((RingBufferBundler)bundler).getThread());
+        if(bundler instanceof AdaptiveBundler)
+            global_thread_factory.renameThread(AdaptiveBundler.THREAD_NAME, ((AdaptiveBundler)bundler).getThread());
     }
 
 
@@ -2190,6 +2516,16 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             if(thread != null)
                 global_thread_factory.renameThread(TransferQueueBundler.THREAD_NAME, thread);
         }
+        if(bundler instanceof RingBufferBundler) {
+            Thread thread=((RingBufferBundler)bundler).getThread();
+            if(thread != null)
+                global_thread_factory.renameThread(RingBufferBundler.THREAD_NAME, thread);
+        }
+        if(bundler instanceof AdaptiveBundler) {
+            Thread thread=((AdaptiveBundler)bundler).getThread();
+            if(thread != null)
+                global_thread_factory.renameThread(AdaptiveBundler.THREAD_NAME, thread);
+        }
     }
 
     protected void setInAllThreadFactories(String cluster_name, Address local_address, String pattern) {
@@ -2223,6 +2559,40 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /**
+     * Returns true if a pool should be backed by virtual threads. If requested but not supported by the JVM, a
+     * warning is logged and false is returned, so the regular thread pool is created instead
+     */
+    protected boolean useVirtualThreads(boolean use_virtual_threads, String pool_name) {
+        if(!use_virtual_threads)
+            return false;
+        if(ThreadPerTaskExecutor.virtualThreadsSupported())
+            return true;
+        log.warn("%s.use_virtual_threads is true, but this JVM doesn't support virtual threads; using a regular thread pool",
+                 pool_name);
+        return false;
+    }
+
+    protected static boolean isShutdown(Executor pool) {
+        return pool instanceof ExecutorService && ((ExecutorService)pool).isShutdown();
+    }
+
+    protected static int getPoolSize(Executor pool) {
+        if(pool instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor)pool).getPoolSize();
+        if(pool instanceof ThreadPerTaskExecutor)
+            return ((ThreadPerTaskExecutor)pool).getPoolSize();
+        return 0;
+    }
+
+    protected static int getActiveCount(Executor pool) {
+        if(pool instanceof ThreadPoolExecutor)
+            return ((ThreadPoolExecutor)pool).getActiveCount();
+        if(pool instanceof ThreadPerTaskExecutor)
+            return ((ThreadPerTaskExecutor)pool).getActiveCount();
+        return 0;
+    }
+
     protected static void shutdownThreadPool(Executor thread_pool) {
         if(thread_pool instanceof ExecutorService) {
             ExecutorService service=(ExecutorService)thread_pool;
@@ -2303,6 +2673,12 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
         @GuardedBy("lock") long                    count;    // current number of bytes accumulated
         final ReentrantLock                        lock=new ReentrantLock();
 
+        // gathering writes: the payloads are sent after the bytes of the output stream at the given positions
+        final Buffers                              gather_bufs=new Buffers(16);
+        int[]                                      gather_positions=new int[8];
+        ByteBuffer[]                               gather_payloads=new ByteBuffer[8];
+        int                                        num_gathered;
+
 
         public void start() {}
         public void stop()  {}
@@ -2358,9 +2734,23 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                     out_stream.reset();
                     out.reset();
                 }
-                writeMessage(msg, out, multicast);
-                Buffer buf=out_stream.getBuffer();
-                doSend(buf, dest, multicast);
+                if(gather()) {
+                    try {
+                        boolean gather_payload=gatherPayload(msg);
+                        writeMessage(msg, out, multicast, !gather_payload);
+                        if(gather_payload)
+                            addPayload(msg, out_stream);
+                        doSend(gatheredBuffers(out_stream), dest, multicast);
+                    }
+                    finally {
+                        clearGathered(); // a failed send must not leave payloads behind for the next one
+                    }
+                }
+                else {
+                    writeMessage(msg, out, multicast);
+                    Buffer buf=out_stream.getBuffer();
+                    doSend(buf, dest, multicast);
+                }
                 if(stats)
                     num_single_msgs_sent++;
             }
@@ -2384,9 +2774,26 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
                     out_stream.reset();
                     out.reset();
                 }
-                writeMessageList(dest, src, cluster_name, list, out, dest == null, id); // flushes output stream when done
-                Buffer buf=out_stream.getBuffer();
-                doSend(buf, dest, dest == null);
+                if(gather()) {
+                    try {
+                        writeMessageListHeader(dest, src, cluster_name, list.size(), out, dest == null);
+                        for(Message msg: list) {
+                            boolean gather_payload=gatherPayload(msg);
+                            msg.writeToNoAddrs(src, out, !gather_payload, id); // exclude the transport header
+                            if(gather_payload)
+                                addPayload(msg, out_stream);
+                        }
+                        doSend(gatheredBuffers(out_stream), dest, dest == null);
+                    }
+                    finally {
+                        clearGathered(); // a failed send must not leave payloads behind for the next one
+                    }
+                }
+                else {
+                    writeMessageList(dest, src, cluster_name, list, out, dest == null, id); // flushes output stream when done
+                    Buffer buf=out_stream.getBuffer();
+                    doSend(buf, dest, dest == null);
+                }
             }
             catch(SocketException sock_ex) {
                 log.debug(Util.getMessage("FailureSendingMsgBundle"),local_addr,sock_ex);
@@ -2396,14 +2803,46 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             }
         }
 
-        @GuardedBy("lock") protected void addMessage(Message msg, long size) {
-            String cluster_name;
-            if(!isSingleton())
-                cluster_name=TP.this.channel_name;
-            else
-                cluster_name=((TpHeader)msg.getHeader(id)).channel_name;
+        protected boolean gather() {
+            return gathering_writes && supportsGatheringWrites();
+        }
+
+        protected boolean gatherPayload(Message msg) {
+            return msg.hasByteBuffer() || (msg.hasPayload() && msg.getLength() >= gathering_threshold);
+        }
+
+        /** Marks the payload of msg to be sent after the bytes currently in out_stream */
+        protected void addPayload(Message msg, ExposedByteArrayOutputStream out_stream) {
+            if(num_gathered == gather_positions.length) {
+                gather_positions=Arrays.copyOf(gather_positions, num_gathered * 2);
+                gather_payloads=Arrays.copyOf(gather_payloads, num_gathered * 2);
+            }
+            gather_positions[num_gathered]=out_stream.size();
+            gather_payloads[num_gathered++]=msg.getByteBuffer();
+        }
+
+        /** Returns the bytes of out_stream interleaved with the payloads added by {@link #addPayload(Message,ExposedByteArrayOutputStream)} */
+        protected Buffers gatheredBuffers(ExposedByteArrayOutputStream out_stream) {
+            byte[] buf=out_stream.getRawBuffer(); // the stream may have grown, so we only get the array now
+            int pos=0;
+            gather_bufs.clear();
+            for(int i=0; i < num_gathered; i++) {
+                gather_bufs.add(buf, pos, gather_positions[i] - pos).add(gather_payloads[i]);
+                pos=gather_positions[i];
+            }
+            return gather_bufs.add(buf, pos, out_stream.size() - pos);
+        }
+
+        /** Discards the payloads added by {@link #addPayload(Message,ExposedByteArrayOutputStream)}. Called after
+         * every gathered send, whether or not it succeeded */
+        protected void clearGathered() {
+            Arrays.fill(gather_payloads, 0, num_gathered, null);
+            num_gathered=0;
+            gather_bufs.clear();
+        }
 
-            SingletonAddress dest=new SingletonAddress(cluster_name, msg.getDest());
+        @GuardedBy("lock") protected void addMessage(Message msg, long size) {
+            SingletonAddress dest=destinationOf(msg);
             List<Message> tmp=msgs.get(dest);
             if(tmp == null) {
                 tmp=new LinkedList<Message>();
@@ -2413,6 +2852,16 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
             count+=size;
         }
 
+        /** Returns the cluster name and destination of msg: messages with the same destination are bundled */
+        protected SingletonAddress destinationOf(Message msg) {
+            String cluster_name;
+            if(!isSingleton())
+                cluster_name=TP.this.channel_name;
+            else
+                cluster_name=((TpHeader)msg.getHeader(id)).channel_name;
+            return new SingletonAddress(cluster_name, msg.getDest());
+        }
+
         protected void checkLength(long len) throws Exception {
             if(len > max_bundle_size)
                 throw new Exception("message size (" + len + ") is greater than max bundling size (" + max_bundle_size +
@@ -2588,6 +3037,331 @@ public abstract class TP extends Protocol implements DiagnosticsHandler.ProbeHan
     }
 
 
+    /**
+     * Bundler which uses a lock-free multi-producer single-consumer ring buffer ({@link MPSCRingBuffer}) instead of
+     * a blocking queue. Senders only CAS the ring buffer's tail; a single thread drains the buffer, bundles the
+     * messages by destination and sends them. When the buffer is empty, the bundler thread spins for an adaptive
+     * number of iterations before it parks.
+     */
+    protected class RingBufferBundler extends BaseBundler implements Runnable {
+        protected final        int                     threshold;
+        protected final        MPSCRingBuffer<Message> buf;
+        protected volatile     Thread                  bundler_thread;
+        protected static final String                  THREAD_NAME="RingBufferBundler";
+
+
+        protected RingBufferBundler(int capacity) {
+            if(capacity <=0) throw new IllegalArgumentException("bundler capacity cannot be " + capacity);
+            buf=new MPSCRingBuffer<Message>(capacity);
+            threshold=(int)(buf.capacity() * .9); // 90% of capacity
+        }
+
+        public Thread getThread()     {return bundler_thread;}
+        public int    getBufferSize() {return buf.size();}
+
+        public synchronized void start() {
+            if(bundler_thread != null)
+                stop();
+            bundler_thread=getThreadFactory().newThread(this, THREAD_NAME);
+            bundler_thread.start();
+        }
+
+        public synchronized void stop() {
+            Thread tmp=bundler_thread;
+            bundler_thread=null;
+            if(tmp != null) {
+                tmp.interrupt();
+                if(tmp.isAlive()) {
+                    try {tmp.join(500);} catch(InterruptedException e) {}
+                }
+            }
+            if(tmp == null || !tmp.isAlive()) { // only drain if there's no other consumer
+                while(buf.poll() != null)
+                    ;
+            }
+        }
+
+        public void send(Message msg) throws Exception {
+            long size=msg.size();
+            checkLength(size);
+            if(bundler_thread != null)
+                buf.put(msg);
+        }
+
+        public void run() {
+            while(Thread.currentThread() == bundler_thread) {
+                try {
+                    Message msg=buf.take();
+                    do {
+                        long size=msg.size();
+                        if(count + size >= max_bundle_size || buf.size() >= threshold)
+                            sendBundledMessages(msgs, bundler_out_stream, bundler_dos);
+                        addMessage(msg, size);
+                    }
+                    while((msg=buf.poll()) != null);
+                    if(count > 0)
+                        sendBundledMessages(msgs, bundler_out_stream, bundler_dos);
+                }
+                catch(InterruptedException e) {
+                }
+                catch(Throwable t) {
+                    log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, t);
+                }
+            }
+        }
+    }
+
+
+
+
+
+    /**
+     * Bundler which flushes the messages to a destination when waiting longer would miss the latency target
+     * (bundler_latency_target), rather than only when max_bundle_size is exceeded or the queue is empty. For every
+     * destination, it tracks the (exponentially weighted) average time between messages and the time it takes to
+     * send a bundle. A bundle is sent when
+     * <ul>
+     *     <li>adding the next message would exceed max_bundle_size (SIZE)</li>
+     *     <li>its oldest message has waited for the wait budget, minus the expected send time (DEADLINE)</li>
+     *     <li>the queue is empty and the next message to the destination is not expected before the deadline: under
+     *         light load, messages are therefore sent without delay (IDLE)</li>
+     *     <li>the queue is still almost full after the bundler thread drained it (FULL)</li>
+     * </ul>
+     * The wait budget is adjusted to the 99th percentile of the latency of the recently sent messages: it is
+     * decreased when the percentile exceeds the target, and increased (up to the target) when it is well below.
+     */
+    protected class AdaptiveBundler extends BaseBundler implements Runnable {
+        protected final        BlockingQueue<Entry>        queue;
+        protected final        int                         threshold;
+        protected final        Map<SingletonAddress,Bucket> buckets=new HashMap<SingletonAddress,Bucket>();
+        protected final        List<Entry>                 drained=new ArrayList<Entry>(); // only used by the bundler thread
+        protected volatile     Thread                      bundler_thread;
+        protected static final String                      THREAD_NAME="AdaptiveBundler";
+        protected static final int                         SIZE=0, DEADLINE=1, IDLE=2, FULL=3, NUM_REASONS=4;
+        protected static final double                      ALPHA=0.2;          // weight of a new sample in averages
+        protected static final long                        EXPIRY=60000000000L; // 60s: buckets of idle destinations are removed
+
+        // the latencies of the last messages, the 99th percentile is computed when the array is full
+        protected final long[]                             latencies=new long[1024];
+        protected int                                      num_latencies;
+        protected volatile long                            p99;
+        protected volatile long                            wait_budget; // ns
+
+        protected final AtomicLong[]                       flush_reasons=new AtomicLong[NUM_REASONS];
+        protected final Average                            avg_fill_ratio=new Average(100);
+
+
+        protected AdaptiveBundler(int capacity) {
+            if(capacity <=0) throw new IllegalArgumentException("bundler capacity cannot be " + capacity);
+            queue=new LinkedBlockingQueue<Entry>(capacity);
+            threshold=(int)(capacity * .9); // 90% of capacity
+            wait_budget=TimeUnit.MICROSECONDS.toNanos(bundler_latency_target) / 2;
+            for(int i=0; i < flush_reasons.length; i++)
+                flush_reasons[i]=new AtomicLong();
+        }
+
+        public Thread getThread()     {return bundler_thread;}
+        public int    getBufferSize() {return queue.size();}
+
+        public synchronized void start() {
+            if(bundler_thread != null)
+                stop();
+            bundler_thread=getThreadFactory().newThread(this, THREAD_NAME);
+            bundler_thread.start();
+        }
+
+        public synchronized void stop() {
+            Thread tmp=bundler_thread;
+            bundler_thread=null;
+            if(tmp != null) {
+                tmp.interrupt();
+                if(tmp.isAlive()) {
+                    try {tmp.join(500);} catch(InterruptedException e) {}
+                }
+            }
+            queue.clear();
+        }
+
+        public void send(Message msg) throws Exception {
+            long size=msg.size();
+            checkLength(size);
+            if(bundler_thread != null)
+                queue.put(new Entry(msg, size, System.nanoTime()));
+        }
+
+        public void run() {
+            while(Thread.currentThread() == bundler_thread) {
+                try {
+                    Entry entry;
+                    long deadline=nextDeadline();
+                    if(deadline == Long.MAX_VALUE) // no pending messages
+                        entry=queue.take();
+                    else {
+                        long timeout=deadline - System.nanoTime();
+                        entry=timeout > 0? queue.poll(timeout, TimeUnit.NANOSECONDS) : queue.poll();
+                    }
+                    if(entry != null) {
+                        add(entry);
+                        queue.drainTo(drained, threshold);
+                        try {
+                            for(int i=0; i < drained.size(); i++)
+                                add(drained.get(i));
+                        }
+                        finally {
+                            drained.clear();
+                        }
+                        if(queue.size() >= threshold) // at most once per drain, so the buckets are flushed with many msgs
+                            flushAll(FULL);
+                    }
+                    flushExpired(System.nanoTime());
+                }
+                catch(InterruptedException e) {
+                }
+                catch(Throwable t) {
+                    log.error(Util.getMessage("FailureSendingMsgBundle"), local_addr, t);
+                }
+            }
+        }
+
+        public String printFlushReasons() {
+            return String.format("size=%d, deadline=%d, idle=%d, full=%d", flush_reasons[SIZE].get(),
+                                 flush_reasons[DEADLINE].get(), flush_reasons[IDLE].get(), flush_reasons[FULL].get());
+        }
+
+        public void resetStats() {
+            for(AtomicLong reason: flush_reasons)
+                reason.set(0);
+            avg_fill_ratio.clear();
+        }
+
+        protected void add(Entry entry) {
+            SingletonAddress dest=destinationOf(entry.msg);
+            Bucket bucket=buckets.get(dest);
+            if(bucket == null)
+                buckets.put(dest, bucket=new Bucket(dest));
+            if(!bucket.isEmpty() && bucket.size + entry.size >= max_bundle_size)
+                flush(bucket, SIZE);
+            bucket.add(entry);
+        }
+
+        /** Returns the earliest time at which a bucket needs to be flushed, or Long.MAX_VALUE if all are empty */
+        protected long nextDeadline() {
+            long retval=Long.MAX_VALUE;
+            for(Bucket bucket: buckets.values())
+                if(!bucket.isEmpty())
+                    retval=Math.min(retval, bucket.deadline());
+            return retval;
+        }
+
+        protected void flushExpired(long now) {
+            boolean idle=queue.isEmpty();
+            for(Iterator<Bucket> it=buckets.values().iterator(); it.hasNext();) {
+                Bucket bucket=it.next();
+                if(bucket.isEmpty()) {
+                    if(now - bucket.last_arrival > EXPIRY)
+                        it.remove();
+                    continue;
+                }
+                long deadline=bucket.deadline();
+                if(now >= deadline)
+                    flush(bucket, DEADLINE);
+                else if(idle && (bucket.avg_interarrival == 0 || bucket.last_arrival + bucket.avg_interarrival > deadline))
+                    flush(bucket, IDLE); // no more messages are expected before the deadline
+            }
+        }
+
+        protected void flushAll(int reason) {
+            for(Bucket bucket: buckets.values())
+                if(!bucket.isEmpty())
+                    flush(bucket, reason);
+        }
+
+        protected void flush(Bucket bucket, int reason) {
+            List<Message> list=bucket.msgs;
+            long start=System.nanoTime();
+            if(list.size() == 1)
+                sendSingleMessage(list.get(0), true, bundler_out_stream, bundler_dos);
+            else {
+                sendMessageList(bucket.dest.getAddress(), list.get(0).getSrc(), bucket.dest.getClusterName(), list, true,
+                                bundler_out_stream, bundler_dos);
+                if(stats)
+                    num_batches_sent++;
+            }
+            long now=System.nanoTime();
+            bucket.avg_send_time=average(bucket.avg_send_time, now - start);
+            flush_reasons[reason].incrementAndGet();
+            avg_fill_ratio.add(bucket.size * 100 / max_bundle_size); // in percent
+            for(int i=0; i < list.size(); i++)
+                addLatency(now - bucket.arrivals[i]);
+            bucket.clear();
+        }
+
+        protected void addLatency(long latency) {
+            latencies[num_latencies++]=latency;
+            if(num_latencies < latencies.length)
+                return;
+            num_latencies=0;
+            long[] sorted=latencies.clone();
+            Arrays.sort(sorted);
+            p99=sorted[(int)(sorted.length * 0.99)];
+            long target=TimeUnit.MICROSECONDS.toNanos(bundler_latency_target);
+            if(p99 > target)
+                wait_budget=wait_budget * 3 / 4;
+            else if(p99 < target * 0.8)
+                wait_budget=Math.min(target, wait_budget + target / 10);
+        }
+
+        protected long average(long avg, long sample) {
+            return avg == 0? sample : (long)(avg * (1 - ALPHA) + sample * ALPHA);
+        }
+
+        protected class Bucket {
+            protected final SingletonAddress dest;
+            protected final List<Message>    msgs=new ArrayList<Message>();
+            protected long[]                 arrivals=new long[16]; // the times at which the messages were queued
+            protected long                   size;                  // bytes
+            protected long                   last_arrival, avg_interarrival, avg_send_time;
+
+            protected Bucket(SingletonAddress dest) {
+                this.dest=dest;
+            }
+
+            protected boolean isEmpty() {return msgs.isEmpty();}
+
+            /** The time at which the bundle has to be sent to meet the latency budget of its oldest message */
+            protected long deadline() {
+                return arrivals[0] + wait_budget - avg_send_time;
+            }
+
+            protected void add(Entry entry) {
+                if(last_arrival > 0)
+                    avg_interarrival=average(avg_interarrival, entry.arrival - last_arrival);
+                last_arrival=entry.arrival;
+                if(msgs.size() == arrivals.length)
+                    arrivals=Arrays.copyOf(arrivals, arrivals.length * 2);
+                arrivals[msgs.size()]=entry.arrival;
+                msgs.add(entry.msg);
+                size+=entry.size;
+            }
+
+            protected void clear() {
+                msgs.clear();
+                size=0;
+            }
+        }
+    }
+
+    protected static class Entry {
+        protected final Message msg;
+        protected final long    size;
+        protected final long    arrival; // ns
+
+        protected Entry(Message msg, long size, long arrival) {
+            this.msg=msg;
+            this.size=size;
+            this.arrival=arrival;
+        }
+    }
 
 
 
@@ -5,13 +5,17 @@ import org.jgroups.Global;
 import org.jgroups.PhysicalAddress;
 import org.jgroups.annotations.Property;
 import org.jgroups.stack.IpAddress;
+import org.jgroups.util.DatagramChannelFactory;
+import org.jgroups.util.SocketFactory;
 import org.jgroups.util.Util;
 
 import java.io.IOException;
 import java.net.*;
-import java.util.Formatter;
-import java.util.List;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 
 /**
@@ -89,6 +93,25 @@ public class UDP extends TP {
       "multicast packets). IP multicast packets send on a host P will therefore not be received by anyone on P. Use with caution.")
     protected boolean disable_loopback=false;
 
+    @Property(description="Number of threads receiving packets on the unicast socket and on the multicast socket " +
+      "(each). More than 1 thread lets receive throughput scale with the number of cores. If use_datagram_channel " +
+      "is true, a single thread reads the unicast channel and hands the datagrams off to receiver_threads threads",
+      writable=false)
+    protected int receiver_threads=1;
+
+    @Property(description="If true, the unicast socket is created from a (non-blocking) DatagramChannel: the " +
+      "receiver threads drain all queued datagrams (up to max_receive_batch_size) and pass them up as message batches",
+      writable=false)
+    protected boolean use_datagram_channel=false;
+
+    @Property(description="Max number of datagrams a receiver thread reads from the unicast DatagramChannel before " +
+      "passing them up. Only used if use_datagram_channel is true")
+    protected int max_receive_batch_size=64;
+
+    @Property(description="Max time (ms) to wait for room in the send buffer of the unicast DatagramChannel. When it " +
+      "elapses, the datagram is dropped (it will be retransmitted). Only used if use_datagram_channel is true")
+    protected long max_send_wait=2000;
+
 
     /* --------------------------------------------- Fields ------------------------------------------------ */
 
@@ -113,9 +136,13 @@ public class UDP extends TP {
     /** Runnable to receive multicast packets */
     protected PacketReceiver  mcast_receiver=null;
 
-    /** Runnable to receive unicast packets */
+    /** Runnable to receive unicast packets (a {@link ChannelReceiver} if use_datagram_channel is true) */
     protected PacketReceiver  ucast_receiver=null;
 
+    /** Waits for room in the send buffer of the unicast DatagramChannel; created when the buffer is full the first time */
+    protected volatile Selector write_selector;
+    protected final Object      write_selector_lock=new Object();
+
     protected static final boolean is_android;
 
     static  {
@@ -203,8 +230,39 @@ public class UDP extends TP {
                 }
             }
         }
-        else if(sock != null)
-            sock.send(packet);
+        else if(sock != null) {
+            DatagramChannel ch=sock.getChannel();
+            if(ch != null)
+                send(ch, ByteBuffer.wrap(data, offset, length), new InetSocketAddress(dest, port));
+            else
+                sock.send(packet);
+        }
+    }
+
+    /**
+     * Sends a datagram on the non-blocking unicast channel. If the send buffer is full, we wait until the channel is
+     * writable, for at most max_send_wait ms, and drop the datagram (throwing an exception) if it still isn't
+     */
+    protected void send(DatagramChannel ch, ByteBuffer buf, SocketAddress dest) throws IOException {
+        if(ch.send(buf, dest) > 0)
+            return;
+        long deadline=System.currentTimeMillis() + max_send_wait;
+        synchronized(write_selector_lock) {
+            if(write_selector == null) {
+                write_selector=Selector.open();
+                ch.register(write_selector, SelectionKey.OP_WRITE);
+            }
+            for(;;) {
+                if(ch.send(buf, dest) > 0)
+                    return;
+                long wait=deadline - System.currentTimeMillis();
+                if(wait <= 0)
+                    throw new SocketException("send buffer of the unicast channel was full for " + max_send_wait +
+                                                " ms: dropped datagram to " + dest);
+                write_selector.select(wait);
+                write_selector.selectedKeys().clear();
+            }
+        }
     }
 
 
@@ -228,13 +286,14 @@ public class UDP extends TP {
             destroySockets();
             throw ex;
         }
-        ucast_receiver=new PacketReceiver(sock,
-                                          "unicast receiver",
-                                          new Runnable() {
-                                              public void run() {
-                                                  closeUnicastSocket();
-                                              }
-                                          });
+        Runnable close_strategy=new Runnable() {
+            public void run() {
+                closeUnicastSocket();
+            }
+        };
+        ucast_receiver=sock.getChannel() != null?
+          new ChannelReceiver(sock.getChannel(), "unicast receiver", close_strategy)
+          : new PacketReceiver(sock, "unicast receiver", close_strategy);
 
         if(ip_mcast)
             mcast_receiver=new PacketReceiver(mcast_sock,
@@ -442,12 +501,12 @@ public class UDP extends TP {
 
     /** Creates a DatagramSocket with a random port. Because in certain operating systems, ports are reused,
      * we keep a list of the n last used ports, and avoid port reuse */
-    protected DatagramSocket createEphemeralDatagramSocket() throws SocketException {
+    protected DatagramSocket createEphemeralDatagramSocket() throws IOException {
         DatagramSocket tmp;
         int localPort=0;
         while(true) {
             try {
-                tmp=getSocketFactory().createDatagramSocket("jgroups.udp.unicast_sock", localPort, bind_addr);
+                tmp=createUnicastSocket(localPort);
             }
             catch(SocketException socket_ex) {
                 // Vladimir May 30th 2007
@@ -464,6 +523,38 @@ public class UDP extends TP {
 
 
 
+    /**
+     * Creates the unicast socket bound to port. If use_datagram_channel is true, the socket is created from a
+     * non-blocking DatagramChannel, and {@link DatagramSocket#getChannel()} returns the channel. The channel is
+     * created by the socket factory if it is a {@link DatagramChannelFactory}, otherwise it is opened directly
+     */
+    protected DatagramSocket createUnicastSocket(int port) throws IOException {
+        SocketFactory factory=getSocketFactory();
+        if(!use_datagram_channel)
+            return factory.createDatagramSocket("jgroups.udp.unicast_sock", port, bind_addr);
+        DatagramChannel ch=null;
+        try {
+            if(factory instanceof DatagramChannelFactory)
+                ch=((DatagramChannelFactory)factory).createDatagramChannel("jgroups.udp.unicast_sock", port, bind_addr);
+            else {
+                ch=DatagramChannel.open();
+                ch.socket().bind(new InetSocketAddress(bind_addr, port));
+            }
+            ch.configureBlocking(false);
+            return ch.socket();
+        }
+        catch(IOException ex) {
+            if(ch != null) {
+                if(factory instanceof DatagramChannelFactory)
+                    factory.close(ch.socket());
+                else
+                    Util.close(ch);
+            }
+            throw ex;
+        }
+    }
+
+
     /**
      * Creates a DatagramSocket when bind_port > 0. Attempts to allocate the socket with port == bind_port, and
      * increments until it finds a valid port, or until port_range has been exceeded
@@ -476,7 +567,7 @@ public class UDP extends TP {
         int rcv_port=bind_port, max_port=bind_port + port_range;
         while(rcv_port <= max_port) {
             try {
-                tmp=getSocketFactory().createDatagramSocket("jgroups.udp.unicast_sock", rcv_port, bind_addr);
+                tmp=createUnicastSocket(rcv_port);
                 return tmp;
             }
             catch(SocketException bind_ex) {	// Cannot listen on this port
@@ -567,7 +658,24 @@ public class UDP extends TP {
 
 
     protected void closeUnicastSocket() {
-        getSocketFactory().close(sock);
+        if(sock != null && sock.getChannel() != null) {
+            Util.close(sock.getChannel());
+            Selector tmp=write_selector;
+            if(tmp != null)
+                tmp.wakeup(); // a sender waiting for room will find the channel closed
+            synchronized(write_selector_lock) {
+                if(write_selector != null) {
+                    try {
+                        write_selector.close();
+                    }
+                    catch(IOException e) {
+                    }
+                    write_selector=null;
+                }
+            }
+        }
+        else
+            getSocketFactory().close(sock);
     }
 
 
@@ -618,11 +726,13 @@ public class UDP extends TP {
     /* ----------------------------- Inner Classes ---------------------------------------- */
 
 
+    /** Receives packets on a socket, with receiver_threads threads */
     public class PacketReceiver implements Runnable {
-        private       Thread         thread=null;
-        private final DatagramSocket receiver_socket;
-        private final String         name;
-        private final Runnable       close_strategy;
+        protected final DatagramSocket receiver_socket;
+        protected final String         name;
+        protected final Runnable       close_strategy;
+        protected Thread[]             threads;
+        protected volatile boolean     running;
 
         public PacketReceiver(DatagramSocket socket, String name, Runnable close_strategy) {
             this.receiver_socket=socket;
@@ -631,13 +741,19 @@ public class UDP extends TP {
         }
 
         public synchronized void start() {
-            if(thread == null || !thread.isAlive()) {
-                thread=getThreadFactory().newThread(this, name);
-                thread.start();
+            if(running)
+                return;
+            running=true;
+            int num_threads=Math.max(1, receiver_threads);
+            threads=new Thread[num_threads];
+            for(int i=0; i < num_threads; i++) {
+                threads[i]=getThreadFactory().newThread(this, num_threads > 1? name + "-" + (i+1) : name);
+                threads[i].start();
             }
         }
 
         public synchronized void stop() {
+            running=false;
             try {
                 close_strategy.run();
             }
@@ -647,18 +763,20 @@ public class UDP extends TP {
                 Util.close(receiver_socket); // second line of defense
             }
 
-            if(thread != null && thread.isAlive()) {
-                Thread tmp=thread;
-                thread=null;
-                tmp.interrupt();
-                try {
-                    tmp.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
-                }
-                catch(InterruptedException e) {
-                    Thread.currentThread().interrupt(); // set interrupt flag again
+            if(threads == null)
+                return;
+            for(Thread tmp: threads) {
+                if(tmp.isAlive()) {
+                    tmp.interrupt();
+                    try {
+                        tmp.join(Global.THREAD_SHUTDOWN_WAIT_TIME);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt(); // set interrupt flag again
+                    }
                 }
             }
-            thread=null;
+            threads=null;
         }
 
 
@@ -666,7 +784,7 @@ public class UDP extends TP {
             final byte           receive_buf[]=new byte[66000]; // to be on the safe side (IPv6 == 65575 bytes, IPv4 = 65535)
             final DatagramPacket packet=new DatagramPacket(receive_buf, receive_buf.length);
 
-            while(thread != null && Thread.currentThread().equals(thread)) {
+            while(running) {
                 try {
 
                     // solves Android ISSUE #24748 - DatagramPacket truncated UDP in ICS
@@ -706,4 +824,141 @@ public class UDP extends TP {
             return receiver_socket != null? receiver_socket.getLocalSocketAddress().toString() : "null";
         }
     }
+
+
+    /** A datagram read by a {@link ChannelReceiver}, to be processed by one of its worker threads */
+    protected static class Datagram {
+        protected final IpAddress sender;
+        protected final byte[]    data;
+
+        public Datagram(IpAddress sender, byte[] data) {
+            this.sender=sender;
+            this.data=data;
+        }
+    }
+
+
+    /**
+     * Receives packets on a non-blocking DatagramChannel. A single thread waits on a selector until datagrams are
+     * available, then drains up to max_receive_batch_size datagrams. Their messages are passed up as message batches
+     * (one set of batches per sender), rather than handing off every datagram separately.<p/>
+     * If receiver_threads is greater than 1, the drained datagrams are handed off to receiver_threads worker threads,
+     * which read the messages and pass them up. Otherwise, the selector thread does this itself. If all workers are
+     * busy and the queue is full, the selector thread blocks, and datagrams queue up in the socket's receive buffer
+     */
+    public class ChannelReceiver extends PacketReceiver {
+        protected final DatagramChannel         ch;
+        protected volatile Selector             selector;
+        protected BlockingQueue<List<Datagram>> drained; // null if there are no worker threads
+
+        public ChannelReceiver(DatagramChannel ch, String name, Runnable close_strategy) {
+            super(ch.socket(), name, close_strategy);
+            this.ch=ch;
+        }
+
+        public synchronized void start() {
+            if(running)
+                return;
+            running=true;
+            int num_workers=receiver_threads > 1? receiver_threads : 0;
+            drained=num_workers > 0? new ArrayBlockingQueue<List<Datagram>>(num_workers * 2) : null;
+            threads=new Thread[num_workers + 1];
+            threads[0]=getThreadFactory().newThread(this, name);
+            for(int i=1; i <= num_workers; i++) {
+                threads[i]=getThreadFactory().newThread(new Runnable() {
+                    public void run() {
+                        processDrained();
+                    }
+                }, name + "-" + i);
+            }
+            for(Thread thread: threads)
+                thread.start();
+        }
+
+        public synchronized void stop() {
+            running=false;
+            Selector tmp=selector;
+            if(tmp != null)
+                tmp.wakeup();
+            super.stop(); // closes the channel and interrupts the worker threads
+        }
+
+        /** Run by the selector thread */
+        public void run() {
+            final ByteBuffer     buf=ByteBuffer.allocate(66000);
+            final ReceiveBatcher batcher=drained == null? new ReceiveBatcher() : null;
+            try {
+                selector=Selector.open();
+                ch.register(selector, SelectionKey.OP_READ);
+                while(running) {
+                    selector.select();
+                    selector.selectedKeys().clear();
+                    List<Datagram> list=batcher == null? new ArrayList<Datagram>() : null;
+                    for(int i=0; i < max_receive_batch_size; i++) {
+                        buf.clear();
+                        InetSocketAddress sender=(InetSocketAddress)ch.receive(buf);
+                        if(sender == null) // no more datagrams queued
+                            break;
+                        IpAddress addr=new IpAddress(sender.getAddress(), sender.getPort());
+                        if(batcher != null)
+                            batcher.add(addr, buf.array(), 0, buf.position());
+                        else // buf is reused for the next datagram
+                            list.add(new Datagram(addr, Arrays.copyOf(buf.array(), buf.position())));
+                    }
+                    if(batcher != null)
+                        batcher.flush();
+                    else if(!list.isEmpty())
+                        drained.put(list);
+                }
+            }
+            catch(ClosedChannelException closed) {
+                if(log.isDebugEnabled()) log.debug("receiver channel is closed");
+            }
+            catch(ClosedSelectorException closed) {
+            }
+            catch(InterruptedException interrupted) {
+            }
+            catch(Throwable t) {
+                if(running)
+                    log.error("failed receiving packets", t);
+            }
+            finally {
+                if(batcher != null && !batcher.isEmpty())
+                    batcher.flush();
+                Selector tmp=selector;
+                selector=null;
+                if(tmp != null) {
+                    try {
+                        tmp.close();
+                    }
+                    catch(IOException e) {
+                    }
+                }
+            }
+            if(log.isDebugEnabled()) log.debug(name + " thread terminated");
+        }
+
+        /** Run by the worker threads: reads the messages of the datagrams drained by the selector thread */
+        protected void processDrained() {
+            final ReceiveBatcher batcher=new ReceiveBatcher();
+            while(running) {
+                List<Datagram> list;
+                try {
+                    list=drained.take();
+                }
+                catch(InterruptedException e) {
+                    break;
+                }
+                try {
+                    for(Datagram datagram: list)
+                        batcher.add(datagram.sender, datagram.data, 0, datagram.data.length);
+                    batcher.flush();
+                }
+                catch(Throwable t) {
+                    log.error("failed receiving packets", t);
+                }
+            }
+            if(log.isDebugEnabled()) log.debug(name + " worker thread terminated");
+        }
+    }
 }
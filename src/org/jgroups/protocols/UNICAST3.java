@@ -75,6 +75,19 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
       "Otherwise send delayed acks. If 1, ack single messages (similar to UNICAST)")
     protected int     ack_threshold=5;
 
+    @Property(description="Number of threads delivering regular unicast messages. Each sender is pinned to one of " +
+      "these threads, so the unicasts received on a connection are still delivered in the order in which they were " +
+      "sent, but unicasts from different senders are delivered in parallel. The thread removing messages from a " +
+      "receive window hands them off as a batch and returns to the thread pool immediately. Messages are " +
+      "acknowledged once they can be delivered, not when a delivery thread has delivered them. A receiver which " +
+      "blocks delays the unicasts of all senders pinned to the same thread. 0 disables this: the removing thread " +
+      "delivers the messages itself",writable=false)
+    protected int     delivery_shards=0;
+
+    @Property(description="Max number of message batches queued per delivery thread (see delivery_shards). When a " +
+      "queue is full, the thread handing off a batch blocks until there is space",writable=false)
+    protected int     delivery_queue_size=1024;
+
     /* --------------------------------------------- JMX  ---------------------------------------------- */
 
 
@@ -118,6 +131,9 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
 
     protected TimeService                  time_service;
 
+    /** Delivers regular messages if delivery_shards > 0, otherwise null */
+    protected DeliveryShards               shards;
+
     protected static final Message         DUMMY_OOB_MSG=new Message(false).setFlag(Message.Flag.OOB);
 
     protected static final Filter<Message> drop_oob_msgs_filter=new Filter<Message>() {
@@ -185,6 +201,16 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
     @ManagedAttribute
     public long getNumXmits() {return num_xmits;}
 
+    @ManagedAttribute(description="Number of regular message batches waiting to be delivered by the delivery shards")
+    public int getQueuedDeliveryBatches() {
+        return shards != null? shards.getQueuedBatches() : 0;
+    }
+
+    @ManagedAttribute(description="Number of regular message batches delivered by the delivery shards")
+    public long getShardDeliveredBatches() {
+        return shards != null? shards.getDeliveredBatches() : 0;
+    }
+
     public long getMaxRetransmitTime() {return max_retransmit_time;}
 
     @Property(description="Max number of milliseconds we try to retransmit a message to any given member. After that, " +
@@ -367,6 +393,13 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         if(max_retransmit_time > 0)
             cache=new AgeOutCache<Address>(timer, max_retransmit_time, this);
         running=true;
+        if(delivery_shards > 0) {
+            shards=new DeliveryShards(delivery_shards, delivery_queue_size, getTransport().getThreadFactory(),
+                                      "UNICAST3-delivery", new DeliveryShards.Handler() {
+                                          public void deliver(MessageBatch batch) {deliverBatch(batch);}
+                                      });
+            shards.start();
+        }
         startRetransmitTask();
     }
 
@@ -375,6 +408,10 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         running=false;
         stopRetransmitTask();
         xmit_task_map.clear();
+        if(shards != null) {
+            shards.stop();
+            shards=null;
+        }
         removeAllConnections();
     }
 
@@ -773,11 +810,24 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
      */
     protected void removeAndDeliver(final AtomicBoolean processing, Table<Message> win, Address sender) {
         boolean released_processing=false;
+        MessageBatch batch=null;
         try {
             while(true) {
-                List<Message> list=win.removeMany(processing, true, max_msg_batch_size, drop_oob_msgs_filter);
-                if(list != null) // list is guaranteed to NOT contain any OOB messages as the drop_oob_msgs_filter removed them
-                    deliverBatch(new MessageBatch(local_addr, sender, null, false, list));
+                if(batch == null) // the first batch, or the previous one was handed off to a delivery shard
+                    batch=new MessageBatch(local_addr, sender, null, false, MessageBatch.Mode.REG,
+                                           Math.max(1, Math.min(win.size(), max_msg_batch_size)));
+                else
+                    batch.clear().mode(MessageBatch.Mode.REG);
+                // the batch is guaranteed to NOT contain any OOB messages as the drop_oob_msgs_filter removed them
+                if(win.drain(processing, true, max_msg_batch_size, drop_oob_msgs_filter, batch) > 0) {
+                    DeliveryShards tmp=shards;
+                    if(tmp != null) {
+                        tmp.deliver(batch); // delivered by the sender's shard; we can go back to the thread pool
+                        batch=null;
+                    }
+                    else
+                        deliverBatch(batch);
+                }
                 else {
                     released_processing=true;
                     return;
@@ -913,7 +963,8 @@ public class UNICAST3 extends Protocol implements AgeOutCache.Handler<Address> {
         xmit_reqs_received.addAndGet(missing.size());
         Table<Message> win=entry != null? entry.sent_msgs : null;
         if(win != null) {
-            for(long seqno: missing) {
+            for(SeqnoList.SeqnoListIterator it=missing.seqnoIterator(); it.hasNext();) {
+                long seqno=it.nextSeqno();
                 Message msg=win.get(seqno);
                 if(msg == null) {
                     if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(sender) && seqno > win.getLow())
@@ -121,6 +121,23 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
       "0 disables this (every warning will be logged). Setting the log level to ERROR also disables this.")
     protected long suppress_time_non_member_warnings=60000;
 
+    @Property(description="Number of threads delivering regular multicast messages. Each sender is pinned to one of " +
+      "these threads, so the multicasts of a sender are still delivered in the order in which they were sent, but " +
+      "multicasts from different senders are delivered in parallel (there is no ordering across senders anyway). " +
+      "The thread removing messages from a sender's retransmission table hands them off as a batch and returns to the " +
+      "thread pool immediately. A receiver which blocks delays the multicasts of all senders pinned to the same " +
+      "thread. 0 disables this: the removing thread delivers the messages itself. A new view is only installed once " +
+      "the messages handed off before have been delivered (or delivery_view_timeout has elapsed)",writable=false)
+    protected int delivery_shards=0;
+
+    @Property(description="Max number of message batches queued per delivery thread (see delivery_shards). When a " +
+      "queue is full, the thread handing off a batch blocks until there is space",writable=false)
+    protected int delivery_queue_size=1024;
+
+    @Property(description="Max time (ms) to wait for the delivery threads to deliver the messages received in the " +
+      "previous view before a new view is installed")
+    protected long delivery_view_timeout=5000;
+
     /* -------------------------------------------------- JMX ---------------------------------------------------------- */
 
 
@@ -146,6 +163,20 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     @ManagedAttribute(description="Number of messages received")
     protected int num_messages_received=0;
 
+    @ManagedAttribute(description="Number of duplicate messages which were dropped without unmarshalling their " +
+      "headers (included in num_messages_received)")
+    protected int num_duplicates_dropped=0;
+
+    @ManagedAttribute(description="Number of regular message batches waiting to be delivered by the delivery shards")
+    public int getQueuedDeliveryBatches() {
+        return shards != null? shards.getQueuedBatches() : 0;
+    }
+
+    @ManagedAttribute(description="Number of regular message batches delivered by the delivery shards")
+    public long getShardDeliveredBatches() {
+        return shards != null? shards.getDeliveredBatches() : 0;
+    }
+
     @ManagedAttribute(description="Number of messages from non-members")
     public int getNonMemberMessages() {
         return suppress_log_non_member != null? suppress_log_non_member.getCache().size() : 0;
@@ -194,6 +225,9 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     protected BoundedList<Message>      become_server_queue;
 
+    /** Delivers regular messages if delivery_shards > 0, otherwise null */
+    protected DeliveryShards            shards;
+
      /** Log to suppress identical warnings for messages from non-members */
     protected SuppressLog<Address>      suppress_log_non_member;
 
@@ -350,7 +384,7 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
     @ManagedOperation(description="Resets all statistics")
     public void resetStats() {
-        num_messages_sent=num_messages_received=0;
+        num_messages_sent=num_messages_received=num_duplicates_dropped=0;
         xmit_reqs_received.set(0);
         xmit_reqs_sent.set(0);
         xmit_rsps_received.set(0);
@@ -430,6 +464,13 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             throw new Exception("timer is null");
         running=true;
         leaving=false;
+        if(delivery_shards > 0) {
+            shards=new DeliveryShards(delivery_shards, delivery_queue_size, getTransport().getThreadFactory(),
+                                      "NAKACK2-delivery", new DeliveryShards.Handler() {
+                                          public void deliver(MessageBatch batch) {deliverBatch(batch);}
+                                      });
+            shards.start();
+        }
         startRetransmitTask();
     }
 
@@ -441,6 +482,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             become_server_queue.clear();
         stopRetransmitTask();
         xmit_task_map.clear();
+        if(shards != null) {
+            shards.stop();
+            shards=null;
+        }
         reset();
     }
 
@@ -487,6 +532,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
             case Event.VIEW_CHANGE:
                 tmp_view=(View)evt.getArg();
+                DeliveryShards tmp_shards=shards;
+                if(tmp_shards != null && !tmp_shards.waitUntilDelivered(delivery_view_timeout))
+                    log.warn("%s: installing view %s before all messages of the previous view have been delivered " +
+                               "(%d batches queued)", local_addr, tmp_view.getViewId(), tmp_shards.getQueuedBatches());
                 List<Address> mbrs=tmp_view.getMembers();
                 members=mbrs;
                 view=tmp_view;
@@ -547,6 +596,10 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
                 Message msg=(Message)evt.getArg();
                 if(msg.isFlagSet(Message.Flag.NO_RELIABILITY))
                     break;
+                if(isDuplicate(msg)) {
+                    removeAndPassUp(msg.getSrc(), null);
+                    return null;
+                }
                 NakAckHeader2 hdr=(NakAckHeader2)msg.getHeader(this.id);
                 if(hdr == null)
                     break;  // pass up (e.g. unicast msg)
@@ -604,12 +657,18 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     public void up(MessageBatch batch) {
         int                       size=batch.size();
         boolean                   got_retransmitted_msg=false; // if at least 1 XMIT-RSP was received
+        boolean                   got_duplicate=false;         // if at least 1 duplicate was dropped
         List<Tuple<Long,Message>> msgs=null;      // regular or retransmitted messages
 
         for(Iterator<Message> it=batch.iterator(); it.hasNext();) {
             final Message msg=it.next();
             if(msg == null || msg.isFlagSet(Message.Flag.NO_RELIABILITY))
                 continue;
+            if(isDuplicate(msg)) {
+                it.remove();
+                got_duplicate=true;
+                continue;
+            }
             NakAckHeader2 hdr=(NakAckHeader2)msg.getHeader(id);
             if(hdr == null)
                 continue;
@@ -653,6 +712,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
         // Process (new and retransmitted) messages:
         if(msgs != null)
             handleMessages(batch.dest(), batch.sender(), msgs, batch.mode() == MessageBatch.Mode.OOB, batch.clusterName());
+        else if(got_duplicate)
+            removeAndPassUp(batch.sender(), batch.clusterName());
 
         // received XMIT-RSPs:
         if(got_retransmitted_msg && rebroadcasting)
@@ -734,6 +795,29 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
 
 
+    /**
+     * Checks whether a message received from the network has already been received, using the seqno peeked from its
+     * marshalled header: the header (and the other headers of the message) don't need to be unmarshalled to drop a
+     * duplicate, e.g. during a retransmission storm. Our own messages are not checked, as they're in the table before
+     * they're received
+     */
+    protected boolean isDuplicate(Message msg) {
+        if(!is_server || rebroadcasting)
+            return false;
+        long seqno=NakAckHeader2.peekSeqno(msg, id);
+        if(seqno <= 0)
+            return false;
+        Address sender=msg.getSrc();
+        if(sender == null || sender.equals(local_addr))
+            return false;
+        Table<Message> buf=xmit_table.get(sender);
+        if(buf == null || (seqno > buf.getHighestDelivered() && buf.get(seqno) == null))
+            return false;
+        num_messages_received++; // counted as received, as when the duplicate was dropped by the table
+        num_duplicates_dropped++;
+        return true;
+    }
+
     /**
      * Finds the corresponding retransmit buffer and adds the message to it (according to seqno). Then removes as many
      * messages as possible and passes them up the stack. Discards messages from non-members.
@@ -824,6 +908,16 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
     }
 
 
+    /**
+     * Passes up the messages of sender which are ready for delivery. Called when a duplicate was dropped, as
+     * {@link #handleMessage(org.jgroups.Message,NakAckHeader2)} would have done, had the duplicate been added
+     */
+    protected void removeAndPassUp(Address sender, String cluster_name) {
+        Table<Message> buf=xmit_table.get(sender);
+        if(buf != null)
+            removeAndPassUp(buf, sender, false, cluster_name);
+    }
+
     /** Efficient way of checking whether another thread is already processing messages from sender. If that's the case,
      *  we return immediately and let the existing thread process our message (https://jira.jboss.org/jira/browse/JGRP-829).
      *  Benefit: fewer threads blocked on the same lock, these threads an be returned to the thread pool */
@@ -834,24 +928,34 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
 
         boolean remove_msgs=discard_delivered_msgs && !loopback;
         boolean released_processing=false;
+        MessageBatch batch=null;
         try {
             while(true) {
-                // we're removing a msg and set processing to false (if null) *atomically* (wrt to add())
-                List<Message> msgs=buf.removeMany(processing, remove_msgs, max_msg_batch_size);
-                if(msgs == null || msgs.isEmpty()) {
+                if(batch == null) // the first batch, or the previous one was handed off to a delivery shard
+                    batch=new MessageBatch(null, sender, cluster_name, true, MessageBatch.Mode.REG,
+                                           Math.max(1, Math.min(buf.size(), max_msg_batch_size)));
+                else
+                    batch.clear().mode(MessageBatch.Mode.REG);
+                // we're removing msgs and set processing to false (if none) *atomically* (wrt to add())
+                if(buf.drain(processing, remove_msgs, max_msg_batch_size, null, batch) == 0) {
                     released_processing=true;
                     if(rebroadcasting)
                         checkForRebroadcasts();
                     return;
                 }
 
-                MessageBatch batch=new MessageBatch(null, sender, cluster_name, true, msgs);
                 for(Message msg_to_deliver: batch) {
                     // discard OOB msg if it has already been delivered (http://jira.jboss.com/jira/browse/JGRP-379)
                     if(msg_to_deliver.isFlagSet(Message.Flag.OOB) && !msg_to_deliver.setTransientFlagIfAbsent(Message.TransientFlag.OOB_DELIVERED))
                         batch.remove(msg_to_deliver);
                 }
-                deliverBatch(batch);
+                DeliveryShards tmp=shards;
+                if(tmp != null) {
+                    tmp.deliver(batch); // delivered by the sender's shard; we can go back to the thread pool
+                    batch=null;
+                }
+                else
+                    deliverBatch(batch);
             }
         }
         finally {
@@ -883,7 +987,8 @@ public class NAKACK2 extends Protocol implements DiagnosticsHandler.ProbeHandler
             return;
         }
 
-        for(long i: missing_msgs) {
+        for(SeqnoList.SeqnoListIterator it=missing_msgs.seqnoIterator(); it.hasNext();) {
+            long i=it.nextSeqno();
             Message msg=buf.get(i);
             if(msg == null) {
                 if(log.isWarnEnabled() && log_not_found_msgs && !local_addr.equals(xmit_requester) && i > buf.getLow())
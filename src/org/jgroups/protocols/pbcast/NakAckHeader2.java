@@ -4,6 +4,7 @@ package org.jgroups.protocols.pbcast;
 import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.Header;
+import org.jgroups.Message;
 import org.jgroups.util.Bits;
 import org.jgroups.util.Util;
 
@@ -40,6 +41,23 @@ public class NakAckHeader2 extends Header {
         return new NakAckHeader2(XMIT_RSP, -1);
     }
 
+    /**
+     * Returns the seqno of the header of a message (MSG) or retransmitted message (XMIT_RSP) without unmarshalling the
+     * header, or -1 if the message has no header with the given ID in marshalled form, or the header is of a different
+     * type
+     */
+    public static long peekSeqno(Message msg, short id) {
+        int offset=msg.getRawHeaderOffset(id);
+        if(offset < 0)
+            return -1;
+        byte[] buf=msg.getRawHeaderBuffer();
+        byte type=buf[offset];
+        if(type != MSG && type != XMIT_RSP)
+            return -1;
+        int len=buf[offset+1]; // see Bits.writeLong()
+        return Bits.makeLong(buf, offset + 2, len);
+    }
+
 
     /**
      * Constructor for regular messages or XMIT responses
@@ -36,6 +36,76 @@ public class Bits {
         return makeLong(buf, 0, len);
     }
 
+    /**
+     * Writes an int as a varint: 7 bits per byte, least significant group first, with the high bit set in all but
+     * the last byte. Non-negative numbers < 128 need 1 byte, negative numbers always need 5 bytes (use
+     * {@link #zigZag(int)} first for numbers which are likely to be negative)
+     */
+    public static void writeVarInt(int num, DataOutput out) throws IOException {
+        while((num & ~0x7F) != 0) {
+            out.write((num & 0x7F) | 0x80);
+            num>>>=7;
+        }
+        out.write(num);
+    }
+
+    public static int readVarInt(DataInput in) throws IOException {
+        int retval=0;
+        for(int shift=0; shift < 32; shift+=7) {
+            byte b=in.readByte();
+            retval|=(b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return retval;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /** Writes a long as a varint, see {@link #writeVarInt(int,java.io.DataOutput)} */
+    public static void writeVarLong(long num, DataOutput out) throws IOException {
+        while((num & ~0x7FL) != 0) {
+            out.write((int)((num & 0x7F) | 0x80));
+            num>>>=7;
+        }
+        out.write((int)num);
+    }
+
+    public static long readVarLong(DataInput in) throws IOException {
+        long retval=0;
+        for(int shift=0; shift < 64; shift+=7) {
+            byte b=in.readByte();
+            retval|=(long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0)
+                return retval;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    /** Returns the number of bytes needed to write num as a varint */
+    public static int sizeVarInt(int num) {
+        int retval=1;
+        while((num & ~0x7F) != 0) {
+            retval++;
+            num>>>=7;
+        }
+        return retval;
+    }
+
+    /** Returns the number of bytes needed to write num as a varint */
+    public static int sizeVarLong(long num) {
+        int retval=1;
+        while((num & ~0x7FL) != 0) {
+            retval++;
+            num>>>=7;
+        }
+        return retval;
+    }
+
+    /** Maps signed to unsigned ints (0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3 etc), so small negative numbers are small varints */
+    public static int  zigZag(int num)     {return (num << 1) ^ (num >> 31);}
+    public static int  unZigZag(int num)   {return (num >>> 1) ^ -(num & 1);}
+    public static long zigZag(long num)    {return (num << 1) ^ (num >> 63);}
+    public static long unZigZag(long num)  {return (num >>> 1) ^ -(num & 1);}
+
 
     public static void writeLongSequence(long highest_delivered, long highest_received, DataOutput out) throws Exception {
         if(highest_received < highest_delivered)
@@ -0,0 +1,25 @@
+package org.jgroups.util;
+
+/**
+ * Pool of byte[] buffers used by the transport on the send and receive paths, to avoid allocating a new buffer for
+ * every packet or frame. Implementations must be thread-safe.
+ * @author agent
+ * @since  3.6
+ */
+public interface BufferPool {
+
+    /**
+     * Returns a buffer with a length of <em>at least</em> size bytes. The buffer may be taken from the pool or be
+     * newly allocated, and its contents are undefined.
+     * @param size The min number of bytes of the returned buffer
+     * @return A buffer with a length >= size
+     */
+    byte[] acquire(int size);
+
+    /**
+     * Returns a buffer to the pool. The caller must not access the buffer after this call. Buffers which were not
+     * acquired from this pool, or which cannot be pooled (e.g. because the pool is full) are simply dropped.
+     * @param buf The buffer, may be null
+     */
+    void release(byte[] buf);
+}
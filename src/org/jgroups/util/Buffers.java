@@ -0,0 +1,109 @@
+package org.jgroups.util;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.Arrays;
+
+/**
+ * A sequence of ByteBuffers which is written as if it was a single contiguous buffer, e.g. with a gathering write.
+ * Used to send marshalled messages whose headers are in one buffer, but whose payloads are referenced rather than
+ * copied.<p/>
+ * Writing doesn't change the buffers: the positions are restored after each write, so the same instance can be sent
+ * to multiple destinations. The contents of the buffers must not be changed while in use. This class is not
+ * thread-safe.
+ * @author agent
+ * @since  3.6
+ */
+public class Buffers {
+    protected ByteBuffer[] bufs;
+    protected int[]        positions; // the positions of the buffers when added, restored after a write
+    protected int          size;      // number of buffers
+    protected int          length;    // number of bytes in all buffers
+
+
+    public Buffers(int capacity) {
+        bufs=new ByteBuffer[Math.max(1, capacity)];
+        positions=new int[bufs.length];
+    }
+
+    public int        size()          {return size;}
+    public int        length()        {return length;}
+    public ByteBuffer get(int index)  {return bufs[index];}
+
+    /** Adds the bytes between position and limit of buf. Empty buffers are ignored */
+    public Buffers add(ByteBuffer buf) {
+        if(buf == null || !buf.hasRemaining())
+            return this;
+        if(size == bufs.length) {
+            bufs=Arrays.copyOf(bufs, size * 2);
+            positions=Arrays.copyOf(positions, size * 2);
+        }
+        positions[size]=buf.position();
+        bufs[size++]=buf;
+        length+=buf.remaining();
+        return this;
+    }
+
+    public Buffers add(byte[] buf, int offset, int length) {
+        return length > 0? add(ByteBuffer.wrap(buf, offset, length)) : this;
+    }
+
+    /** Removes all buffers */
+    public Buffers clear() {
+        Arrays.fill(bufs, 0, size, null);
+        size=length=0;
+        return this;
+    }
+
+    /**
+     * Writes all buffers to a channel, looping until all bytes have been written. The channel has to be in
+     * blocking mode
+     */
+    public void write(GatheringByteChannel ch) throws IOException {
+        try {
+            long remaining=length;
+            while(remaining > 0)
+                remaining-=ch.write(bufs, 0, size);
+        }
+        finally {
+            rewind();
+        }
+    }
+
+    /** Writes all buffers to an output stream. Heap buffers are written directly, direct buffers in chunks */
+    public void write(DataOutput out) throws Exception {
+        for(int i=0; i < size; i++)
+            Util.writeBytes(bufs[i], out);
+    }
+
+    /** Copies all bytes into dest, starting at offset. Dest needs to have room for {@link #length()} bytes */
+    public void copyTo(byte[] dest, int offset) {
+        for(int i=0; i < size; i++) {
+            ByteBuffer buf=bufs[i];
+            int len=buf.remaining();
+            if(buf.hasArray())
+                System.arraycopy(buf.array(), buf.arrayOffset() + buf.position(), dest, offset, len);
+            else
+                buf.duplicate().get(dest, offset, len);
+            offset+=len;
+        }
+    }
+
+    /** Returns a copy of all bytes as a single array */
+    public byte[] copy() {
+        byte[] retval=new byte[length];
+        copyTo(retval, 0);
+        return retval;
+    }
+
+    public String toString() {
+        return String.format("%d bytes in %d buffers", length, size);
+    }
+
+    protected void rewind() {
+        for(int i=0; i < size; i++)
+            bufs[i].position(positions[i]);
+    }
+}
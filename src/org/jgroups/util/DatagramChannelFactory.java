@@ -0,0 +1,22 @@
+package org.jgroups.util;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * A {@link SocketFactory} which also creates DatagramChannels. This is a separate interface, so that existing
+ * implementations of SocketFactory don't have to implement it: if the socket factory of a transport doesn't implement
+ * it, the transport opens the channel itself.
+ * @author agent
+ * @since  3.6
+ */
+public interface DatagramChannelFactory extends SocketFactory {
+
+    /**
+     * Creates a DatagramChannel bound to laddr:port (any address if laddr is null, an ephemeral port if port is 0).
+     * The channel is in blocking mode; the socket returned by {@link DatagramChannel#socket()} is closed with
+     * {@link #close(java.net.DatagramSocket)}
+     */
+    DatagramChannel createDatagramChannel(String service_name, int port, InetAddress laddr) throws IOException;
+}
@@ -0,0 +1,121 @@
+package org.jgroups.util;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link BufferPool} with size classes. Every size class is a power of 2 between min_size and max_size and has its
+ * own bounded queue of free buffers. A request for N bytes is served from the smallest size class >= N; requests
+ * greater than max_size are not pooled and always allocate a new buffer.
+ * <p/>
+ * The pool keeps track of the buffers it created, and only takes those back: {@link #release(byte[])} drops any
+ * other buffer, even if its length matches a size class. A buffer which is dropped because its size class is full is
+ * forgotten, so the pool only references its free buffers and the ones currently acquired.
+ * @author agent
+ * @since  3.6
+ */
+public class DefaultBufferPool implements BufferPool {
+    protected final int                     min_size;   // size of the smallest size class
+    protected final int                     max_size;   // size of the biggest size class
+    protected final int                     min_shift;  // log2(min_size)
+    protected final BlockingQueue<byte[]>[] pools;      // index 0 has buffers of min_size, index 1 2*min_size etc
+    protected final Set<byte[]>             created;    // the pooled buffers created by this pool (arrays have identity equality)
+
+    protected final AtomicLong num_acquired=new AtomicLong(), num_created=new AtomicLong(),
+      num_oversized=new AtomicLong(), num_released=new AtomicLong(), num_dropped=new AtomicLong();
+
+
+    /**
+     * Creates a new pool
+     * @param min_size The size of the smallest size class, rounded up to the next power of 2
+     * @param max_size The size of the biggest size class, rounded up to the next power of 2
+     * @param max_buffers The max number of free buffers kept per size class
+     */
+    @SuppressWarnings("unchecked")
+    public DefaultBufferPool(int min_size, int max_size, int max_buffers) {
+        if(min_size <= 0 || max_size < min_size)
+            throw new IllegalArgumentException("min_size (" + min_size + ") has to be > 0 and <= max_size (" + max_size + ")");
+        if(max_buffers <= 0)
+            throw new IllegalArgumentException("max_buffers (" + max_buffers + ") has to be > 0");
+        this.min_size=Util.getNextHigherPowerOfTwo(min_size);
+        this.max_size=Util.getNextHigherPowerOfTwo(max_size);
+        this.min_shift=Integer.numberOfTrailingZeros(this.min_size);
+        int num_classes=Integer.numberOfTrailingZeros(this.max_size) - min_shift + 1;
+        pools=(BlockingQueue<byte[]>[])new BlockingQueue<?>[num_classes];
+        for(int i=0; i < pools.length; i++)
+            pools[i]=new ArrayBlockingQueue<byte[]>(max_buffers);
+        created=Collections.newSetFromMap(new ConcurrentHashMap<byte[],Boolean>());
+    }
+
+    public int  getMinSize()         {return min_size;}
+    public int  getMaxSize()         {return max_size;}
+    public int  getNumSizeClasses()  {return pools.length;}
+    public long getNumAcquired()     {return num_acquired.get();}
+    public long getNumCreated()      {return num_created.get();}
+    public long getNumOversized()    {return num_oversized.get();}
+    public long getNumReleased()     {return num_released.get();}
+    public long getNumDropped()      {return num_dropped.get();}
+
+    public void resetStats() {
+        for(AtomicLong stat: new AtomicLong[]{num_acquired, num_created, num_oversized, num_released, num_dropped})
+            stat.set(0);
+    }
+
+    /** Returns the number of free buffers in all size classes */
+    public int size() {
+        int retval=0;
+        for(BlockingQueue<byte[]> pool: pools)
+            retval+=pool.size();
+        return retval;
+    }
+
+    public byte[] acquire(int size) {
+        num_acquired.incrementAndGet();
+        if(size > max_size) {
+            num_oversized.incrementAndGet();
+            return new byte[size];
+        }
+        int index=index(size);
+        byte[] buf=pools[index].poll();
+        if(buf == null) {
+            num_created.incrementAndGet();
+            buf=new byte[min_size << index];
+            created.add(buf);
+        }
+        return buf;
+    }
+
+    public void release(byte[] buf) {
+        if(buf == null)
+            return;
+        int len=buf.length;
+        // only take back buffers of one of our size classes which we created
+        if(len < min_size || len > max_size || Integer.bitCount(len) != 1 || !created.contains(buf)) {
+            num_dropped.incrementAndGet();
+            return;
+        }
+        if(pools[index(len)].offer(buf))
+            num_released.incrementAndGet();
+        else {
+            created.remove(buf);
+            num_dropped.incrementAndGet();
+        }
+    }
+
+    public String toString() {
+        return String.format("%d free buffers in %d size classes [%d-%d], acquired=%d, created=%d, oversized=%d, released=%d, dropped=%d",
+                             size(), pools.length, min_size, max_size, num_acquired.get(), num_created.get(),
+                             num_oversized.get(), num_released.get(), num_dropped.get());
+    }
+
+    /** Returns the index of the smallest size class which can hold size bytes */
+    protected int index(int size) {
+        if(size <= min_size)
+            return 0;
+        return Integer.numberOfTrailingZeros(Util.getNextHigherPowerOfTwo(size)) - min_shift;
+    }
+}
@@ -2,13 +2,14 @@ package org.jgroups.util;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.util.Map;
 
 /**
  * Default implementation, ignores service names
  * @author Bela Ban
  */
-public class DefaultSocketFactory implements SocketFactory {
+public class DefaultSocketFactory implements DatagramChannelFactory {
 
     public Socket createSocket(String service_name) throws IOException {
         return new Socket();
@@ -62,6 +63,18 @@ public class DefaultSocketFactory implements SocketFactory {
         return new DatagramSocket(port, laddr);
     }
 
+    public DatagramChannel createDatagramChannel(String service_name, int port, InetAddress laddr) throws IOException {
+        DatagramChannel ch=DatagramChannel.open();
+        try {
+            ch.socket().bind(new InetSocketAddress(laddr, port));
+            return ch;
+        }
+        catch(IOException ex) {
+            Util.close(ch);
+            throw ex;
+        }
+    }
+
     public MulticastSocket createMulticastSocket(String service_name) throws IOException {
         return new MulticastSocket();
     }
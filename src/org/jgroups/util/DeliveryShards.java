@@ -0,0 +1,266 @@
+package org.jgroups.util;
+
+import org.jgroups.Address;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed set of delivery threads (shards). Each sender is pinned to one shard (by the hash of its address), so batches
+ * from the same sender are delivered in the order in which they were handed off (FIFO), while batches from different
+ * senders can be delivered in parallel by different shards.
+ * <p/>
+ * Used by NAKACK2 and UNICAST3: the thread which removes messages from a sender's table hands the resulting
+ * {@link MessageBatch} off to the sender's shard and returns to its thread pool immediately, instead of delivering
+ * the batch itself. As only one thread at a time removes messages from a given table, handoffs are FIFO, too.
+ * <p/>
+ * The queues are bounded: when a shard's queue is full, the handing-off thread blocks until there is space again. As
+ * it keeps the sender's table marked as being processed, the messages of the sender (and of all other senders pinned
+ * to the same shard) then accumulate in their tables, until the application catches up. Note that a message handler
+ * which blocks also blocks delivery of all other senders pinned to the same shard.
+ * <p/>
+ * Batches are delivered asynchronously, so a view could be installed before all the messages received in the previous
+ * view have been delivered; the protocols therefore {@link #waitUntilDelivered(long)} before passing a view up. On
+ * {@link #stop()}, the batches which are still queued are delivered before the shards terminate.
+ * @author agent
+ * @since 3.6
+ */
+public class DeliveryShards {
+    protected final Shard[]       shards;
+    protected final Handler       handler;
+    protected final ThreadFactory factory;
+    protected final String        name;
+    protected final int           max_batches; // max number of batches to drain from a queue at once
+    protected final Log           log=LogFactory.getLog(DeliveryShards.class);
+
+
+    /** Delivers a batch. Called by a shard thread; batches from the same sender are never delivered concurrently */
+    public interface Handler {
+        void deliver(MessageBatch batch);
+    }
+
+
+    public DeliveryShards(int num_shards, ThreadFactory factory, String name, Handler handler) {
+        this(num_shards, 1024, factory, name, handler);
+    }
+
+    /**
+     * @param num_shards The number of delivery threads
+     * @param queue_size The max number of batches queued per shard
+     * @param factory The factory for the delivery threads, may be null
+     * @param name The prefix of the names of the delivery threads
+     * @param handler Delivers the batches
+     */
+    public DeliveryShards(int num_shards, int queue_size, ThreadFactory factory, String name, Handler handler) {
+        if(num_shards <= 0)
+            throw new IllegalArgumentException("number of shards (" + num_shards + ") must be > 0");
+        if(queue_size <= 0)
+            throw new IllegalArgumentException("queue size (" + queue_size + ") must be > 0");
+        this.shards=new Shard[num_shards];
+        this.factory=factory;
+        this.name=name;
+        this.handler=handler;
+        this.max_batches=64;
+        for(int i=0; i < shards.length; i++)
+            shards[i]=new Shard(i, queue_size);
+    }
+
+    public int getNumShards() {return shards.length;}
+
+    /** The number of batches waiting to be delivered (in all shards) */
+    public int getQueuedBatches() {
+        int retval=0;
+        for(Shard shard: shards)
+            retval+=shard.queue.size();
+        return retval;
+    }
+
+    /** The number of batches delivered (by all shards) */
+    public long getDeliveredBatches() {
+        long retval=0;
+        for(Shard shard: shards)
+            retval+=shard.delivered.get();
+        return retval;
+    }
+
+    public synchronized void start() {
+        for(Shard shard: shards)
+            shard.start();
+    }
+
+    /** Stops all shards. Batches which haven't been delivered yet are delivered first */
+    public synchronized void stop() {
+        for(Shard shard: shards)
+            shard.stop();
+    }
+
+    /** Returns the index of the shard to which sender is pinned */
+    public int shard(Address sender) {
+        return sender == null? 0 : (sender.hashCode() & Integer.MAX_VALUE) % shards.length;
+    }
+
+    /**
+     * Hands a batch off to the shard of its sender. Blocks while the shard's queue is full. If the shard has been
+     * stopped, the batch is delivered by the caller
+     */
+    public void deliver(MessageBatch batch) {
+        if(batch != null && !batch.isEmpty())
+            shards[shard(batch.sender())].add(batch);
+    }
+
+    /**
+     * Waits until all batches handed off so far have been delivered, or the timeout (ms) has elapsed
+     * @return True if all batches have been delivered, false if the timeout elapsed
+     */
+    public boolean waitUntilDelivered(long timeout) {
+        long deadline=System.currentTimeMillis() + timeout;
+        for(Shard shard: shards)
+            if(!shard.waitUntilDelivered(deadline))
+                return false;
+        return true;
+    }
+
+    public String toString() {
+        StringBuilder sb=new StringBuilder();
+        for(Shard shard: shards)
+            sb.append(shard).append("\n");
+        return sb.toString();
+    }
+
+
+    protected class Shard implements Runnable {
+        protected final int                         index;
+        protected final BlockingQueue<MessageBatch> queue;
+        protected final List<MessageBatch>          batches=new ArrayList<MessageBatch>(max_batches);
+        protected final AtomicLong                  delivered=new AtomicLong(0);
+        protected final AtomicInteger               pending=new AtomicInteger(0); // queued or being delivered
+        protected final Object                      pending_lock=new Object();
+        protected volatile Thread                   thread;
+
+        public Shard(int index, int queue_size) {
+            this.index=index;
+            this.queue=new LinkedBlockingQueue<MessageBatch>(queue_size);
+        }
+
+        public synchronized void start() {
+            if(thread != null)
+                return;
+            String thread_name=name + "-" + index;
+            thread=factory != null? factory.newThread(this, thread_name) : new Thread(this, thread_name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        /** Stops the thread, which delivers the queued batches before terminating */
+        public synchronized void stop() {
+            Thread tmp=thread;
+            thread=null;
+            if(tmp != null) {
+                tmp.interrupt();
+                if(tmp.isAlive()) {
+                    try {tmp.join(500);} catch(InterruptedException e) {Thread.currentThread().interrupt();}
+                }
+            }
+            if(tmp == null || !tmp.isAlive())
+                deliverQueued(); // in case the thread was never started, or terminated before the last add()
+        }
+
+        protected void add(MessageBatch batch) {
+            pending.incrementAndGet();
+            if(Thread.currentThread() == thread) { // handed off by our own handler: blocking would deadlock
+                if(!queue.offer(batch)) {
+                    deliverQueued(); // the older batches first
+                    deliver(batch);
+                }
+                return;
+            }
+            boolean interrupted=false;
+            try {
+                while(thread != null) {
+                    try {
+                        if(queue.offer(batch, 100, TimeUnit.MILLISECONDS)) // checks periodically if we were stopped
+                            return;
+                    }
+                    catch(InterruptedException e) {
+                        interrupted=true;
+                    }
+                }
+                deliver(batch); // stopped
+            }
+            finally {
+                if(interrupted)
+                    Thread.currentThread().interrupt();
+            }
+        }
+
+        public void run() {
+            while(Thread.currentThread() == thread) {
+                try {
+                    MessageBatch batch=queue.take();
+                    deliver(batch);
+                    if(queue.drainTo(batches, max_batches) > 0) {
+                        for(MessageBatch b: batches)
+                            deliver(b);
+                    }
+                }
+                catch(InterruptedException e) {
+                }
+                finally {
+                    batches.clear();
+                }
+            }
+            deliverQueued();
+        }
+
+        protected void deliverQueued() {
+            MessageBatch batch;
+            while((batch=queue.poll()) != null)
+                deliver(batch);
+        }
+
+        protected void deliver(MessageBatch batch) {
+            try {
+                handler.deliver(batch);
+            }
+            catch(Throwable t) { // the shard must not die
+                log.error("%s-%d: failed delivering batch from %s: %s", name, index, batch.sender(), t);
+            }
+            delivered.incrementAndGet();
+            if(pending.decrementAndGet() == 0) {
+                synchronized(pending_lock) {
+                    pending_lock.notifyAll();
+                }
+            }
+        }
+
+        protected boolean waitUntilDelivered(long deadline) {
+            synchronized(pending_lock) {
+                for(;;) {
+                    if(pending.get() <= 0)
+                        return true;
+                    long wait_time=deadline - System.currentTimeMillis();
+                    if(wait_time <= 0)
+                        return false;
+                    try {
+                        pending_lock.wait(wait_time);
+                    }
+                    catch(InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return pending.get() <= 0;
+                    }
+                }
+            }
+        }
+
+        public String toString() {
+            return String.format("%s-%d: %d queued, %d delivered", name, index, queue.size(), delivered.get());
+        }
+    }
+}
@@ -31,6 +31,13 @@ public class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
         }
     }
 
+    /** Discards all bytes written after the first size bytes. Size must not be greater than {@link #size()} */
+    public void truncate(int size) {
+        if(size < 0 || size > count)
+            throw new IllegalArgumentException("size (" + size + ") must be between 0 and " + count);
+        count=size;
+    }
+
     public byte[] getRawBuffer() {
         return buf;
     }
@@ -4,8 +4,13 @@ import org.jgroups.Global;
 import org.jgroups.Header;
 import org.jgroups.conf.ClassConfigurator;
 
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 /**
  * Open addressing based implementation of a hashmap (not supporting the Map interface though) for message
@@ -18,37 +23,115 @@ import java.util.Map;
  *
  * The arrays are populated from left to right, and any 0 slots in 'ids' can terminate an interation, or signal empty slots.
  * <br/>
- * It is assumed that we only have a few headers, 3-4 on average. Note that getting a header for a given key and
- * putting a new key/header are operations with O(n) cost, so this implementation is <em>not</em> recommended for
- * a large number of elements.
+ * It is assumed that we only have a few headers, typically fewer than 10. Note that getting a header for a given key
+ * and putting a new key/header are operations with O(n) cost, so this implementation is <em>not</em> recommended for
+ * a large number of elements. For a handful of headers, scanning the (packed) IDs array is faster than hashing.
  * <br/>
- * This class is not synchronized
+ * The marshalled size of every header and the total marshalled size are cached, so {@link #marshalledSize()}
+ * (called by {@link org.jgroups.Message#size()}) only computes the size of headers that were added or replaced since
+ * the last call. A header must therefore not be modified after it has been added: to change it, a protocol has to put
+ * a modified copy (which invalidates the cached size). Modifying a header in place is wrong anyway, as copies of a
+ * message share their headers.
+ * <br/>
+ * Headers read by {@link #readFrom(java.io.DataInput)} are kept in marshalled form and are only unmarshalled on the
+ * first access (e.g. {@link #getHeader(short)}), so that messages which are dropped before a protocol looks at its
+ * header (e.g. duplicates) don't pay for unmarshalling it. The marshalled form is also used when the headers are
+ * written again (e.g. when a message is forwarded), unless the header has been replaced. Protocols
+ * can peek at fields of their marshalled header through {@link #getRawBuffer()} and {@link #getRawOffset(short)},
+ * without unmarshalling it.
+ * <br/>
+ * The marshalled format is | num headers (short) | length of all headers (varint) | header* |, and a header is
+ * | ID (short) | magic number (short) | length (varint) | header |. The lengths allow for skipping a header without
+ * unmarshalling it.
+ * <br/>
+ * This class is not synchronized; adding or replacing headers must not be done concurrently with other accesses.
+ * Reading headers which are in marshalled form is safe though, as a message read from the network is often accessed
+ * by multiple threads (e.g. retransmitted while it is being delivered): an unmarshalled header is published with a
+ * CAS to a slot of its own, so all threads see the same, fully initialized instance (a header might be unmarshalled
+ * more than once when threads race, but only one instance is used).
  * @author Bela Ban
  */
 public class Headers {
     private short[]  ids;
     private Header[] hdrs;
 
-    /** Add space for 3 new elements when resizing */
-    private static final int RESIZE_INCR=3;
+    /** The marshalled size (ID, magic number, length and header) of hdrs[i], or -1 if not yet computed */
+    private int[]    sizes;
+
+    /** The number of headers */
+    private int      num;
+
+    /** The marshalled size of all headers, or -1 if not yet computed */
+    private int      marshalled_size=-1;
+
+    /** The marshalled headers read by {@link #readFrom(java.io.DataInput)}, or null */
+    private byte[]   raw;
+
+    /** The offset of the marshalled form of hdrs[i] in raw, or -1 if hdrs[i] was added or replaced locally */
+    private int[]    offsets;
+
+    /** The length of the marshalled form of hdrs[i] (if offsets[i] >= 0) */
+    private int[]    lengths;
+
+    /** The magic number of hdrs[i] (if offsets[i] >= 0) */
+    private short[]  magics;
+
+    /** The unmarshalled header at index i (if offsets[i] >= 0), or null if it hasn't been accessed yet. Used instead
+     * of hdrs, so that unmarshalled headers are safely published to other threads */
+    private AtomicReferenceArray<Header> unmarshalled;
+
+    private static final int HDR_OVERHEAD=Global.SHORT_SIZE *2; // for protocol ID and magic number
+
+    /** Buffer used by {@link #writeTo(java.io.DataOutput,short...)} to marshal headers, as their lengths are
+     * written before them. Null while in use, so that a header marshalling a nested message gets its own */
+    private static final ThreadLocal<ExposedByteArrayOutputStream> marshal_buf=new ThreadLocal<ExposedByteArrayOutputStream>();
 
     public Headers(int capacity) {
         ids=new short[capacity];
         hdrs=new Header[capacity];
+        sizes=new int[capacity];
     }
 
     public Headers(Headers other) {
         this(other.ids.length);
         System.arraycopy(other.ids, 0, this.ids, 0, other.ids.length);
         System.arraycopy(other.hdrs, 0, this.hdrs, 0, other.hdrs.length);
+        System.arraycopy(other.sizes, 0, this.sizes, 0, other.sizes.length);
+        this.num=other.num;
+        this.marshalled_size=other.marshalled_size;
+        if(other.raw != null) {
+            this.raw=other.raw;
+            this.offsets=other.offsets.clone();
+            this.lengths=other.lengths.clone();
+            this.magics=other.magics.clone();
+            this.unmarshalled=copyOf(other.unmarshalled, other.unmarshalled.length());
+        }
     }
 
+    /** Returns the IDs array. Only the first {@link #size()} elements are valid. Must not be modified */
     public short[] getRawIDs() {
         return ids;
     }
 
+    /**
+     * Returns the headers array. Only the first {@link #size()} elements are valid. Must not be modified. If the
+     * headers were read by {@link #readFrom(java.io.DataInput)}, a copy with all headers unmarshalled is returned
+     */
     public Header[] getRawHeaders() {
-        return hdrs;
+        if(raw == null)
+            return hdrs;
+        Header[] retval=new Header[hdrs.length];
+        for(int i=0; i < num; i++)
+            retval[i]=header(i);
+        return retval;
+    }
+
+    /** Unmarshals all headers which are still in marshalled form */
+    public Headers unmarshal() {
+        if(raw != null)
+            for(int i=0; i < num; i++)
+                header(i);
+        return this;
     }
 
     /**
@@ -57,42 +140,56 @@ public class Headers {
      * @return
      */
     public Header getHeader(short id) {
-        for(int i=0; i < ids.length; i++) {
-            short current_id=ids[i];
-            if(current_id == 0)
-                return null;
-            if(current_id == id)
-                return hdrs[i];
-        }
+        for(int i=0; i < num; i++)
+            if(ids[i] == id)
+                return header(i);
         return null;
     }
 
     public Map<Short,Header> getHeaders() {
         Map<Short,Header> retval=new HashMap<Short,Header>(ids.length);
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0)
-                retval.put(ids[i], hdrs[i]);
-            else
-                break;
-        }
+        for(int i=0; i < num; i++)
+            retval.put(ids[i], header(i));
         return retval;
     }
 
+    /** Returns the marshalled headers read by {@link #readFrom(java.io.DataInput)}, or null */
+    public byte[] getRawBuffer() {
+        return raw;
+    }
+
+    /**
+     * Returns the offset of the marshalled header with the given ID in {@link #getRawBuffer()}, or -1 if there is no
+     * header with the ID, or if it was added or replaced after the headers had been read
+     */
+    public int getRawOffset(short id) {
+        if(offsets == null)
+            return -1;
+        for(int i=0; i < num; i++)
+            if(ids[i] == id)
+                return isRaw(i)? offsets[i] : -1;
+        return -1;
+    }
+
+    /** Returns true if the header with the given ID is still in marshalled form */
+    public boolean isMarshalled(short id) {
+        for(int i=0; i < num; i++)
+            if(ids[i] == id)
+                return isRaw(i);
+        return false;
+    }
+
     public String printHeaders() {
         StringBuilder sb=new StringBuilder();
         boolean first=true;
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0) {
-                if(first)
-                    first=false;
-                else
-                    sb.append(", ");
-                Class clazz=ClassConfigurator.getProtocol(ids[i]);
-                String name=clazz != null? clazz.getSimpleName() : Short.toString(ids[i]);
-                sb.append(name).append(": ").append(hdrs[i]);
-            }
+        for(int i=0; i < num; i++) {
+            if(first)
+                first=false;
             else
-                break;
+                sb.append(", ");
+            Class clazz=ClassConfigurator.getProtocol(ids[i]);
+            String name=clazz != null? clazz.getSimpleName() : Short.toString(ids[i]);
+            sb.append(name).append(": ").append(header(i));
         }
         return sb.toString();
     }
@@ -120,60 +217,176 @@ public class Headers {
         return _putHeader(id, hdr, 0, false);
     }
 
+    /**
+     * Appends a header without checking whether a header with the same ID is already present. Used when
+     * unmarshalling a message, where IDs are known to be unique
+     */
+    public Headers addHeader(short id, Header hdr) {
+        if(num >= ids.length)
+            resize();
+        ids[num]=id;
+        hdrs[num]=hdr;
+        sizes[num]=-1;
+        if(offsets != null)
+            offsets[num]=-1;
+        num++;
+        marshalled_size=-1;
+        return this;
+    }
+
 
     public Headers copy() {
         return new Headers(this);
     }
 
+    /** Returns a copy with only the headers whose IDs are >= starting_id or in copy_only_ids */
+    public Headers copy(short starting_id, short ... copy_only_ids) {
+        Headers retval=new Headers(Math.max(num, 3));
+        for(int i=0; i < num; i++) {
+            if(ids[i] < starting_id && !Util.containsId(ids[i], copy_only_ids))
+                continue;
+            if(raw != null && offsets[i] >= 0) {
+                if(retval.raw == null)
+                    retval.setRaw(raw);
+                retval.offsets[retval.num]=offsets[i];
+                retval.lengths[retval.num]=lengths[i];
+                retval.magics[retval.num]=magics[i];
+                retval.unmarshalled.set(retval.num, unmarshalled.get(i));
+            }
+            retval.ids[retval.num]=ids[i];
+            retval.hdrs[retval.num]=hdrs[i];
+            retval.sizes[retval.num]=sizes[i];
+            retval.num++;
+        }
+        return retval;
+    }
+
+    /**
+     * Returns a copy whose headers are all in marshalled form. Unlike {@link #copy()}, the copy doesn't share header
+     * instances with this instance: every header accessed in the copy (or in copies made from it) is unmarshalled
+     * into a new instance
+     */
+    public Headers marshalledCopy() throws Exception {
+        ExposedByteArrayOutputStream out=new ExposedByteArrayOutputStream(Global.SHORT_SIZE + marshalledSize());
+        writeTo(new DataOutputStream(out));
+        return readFrom(new DataInputStream(new ExposedByteArrayInputStream(out.getRawBuffer(), 0, out.size())));
+    }
+
+    /**
+     * Returns the marshalled size of all headers (length, IDs, magic numbers and headers), but excluding the number
+     * of headers. The result is cached. Headers in marshalled form have an exact size, for all others
+     * {@link Header#size()} is used, so the result is only an estimate if a header's size() is.
+     */
     public int marshalledSize() {
+        if(marshalled_size >= 0)
+            return marshalled_size;
         int retval=0;
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0) {
-                retval+=Global.SHORT_SIZE *2;    // for protocol ID and magic number
-                retval+=hdrs[i].size();
+        for(int i=0; i < num; i++)
+            retval+=size(i);
+        return marshalled_size=num > 0? Bits.sizeVarInt(retval) + retval : 0;
+    }
+
+
+    /**
+     * Writes all headers except the ones in excluded_ids. Headers in marshalled form are written as is. All others
+     * are marshalled once into a (thread-local) buffer, and their lengths are those of the bytes actually written, so
+     * {@link Header#size()} doesn't need to be exact
+     */
+    public void writeTo(DataOutput out, short ... excluded_ids) throws Exception {
+        int count=size(excluded_ids);
+        out.writeShort(count);
+        if(count == 0)
+            return;
+        ExposedByteArrayOutputStream buf=marshal_buf.get();
+        if(buf == null)
+            buf=new ExposedByteArrayOutputStream(256);
+        else
+            marshal_buf.set(null); // a header's writeTo() might write a message, and therefore headers, too
+        try {
+            buf.reset();
+            DataOutputStream tmp=new DataOutputStream(buf);
+            for(int i=0; i < num; i++) {
+                if(excluded_ids != null && Util.containsId(ids[i], excluded_ids))
+                    continue;
+                tmp.writeShort(ids[i]);
+                if(hasRaw(i)) {
+                    tmp.writeShort(magics[i]);
+                    Bits.writeVarInt(lengths[i], tmp);
+                    tmp.write(raw, offsets[i], lengths[i]);
+                }
+                else
+                    marshal(hdrs[i], buf, tmp);
             }
-            else
-                break;
+            Bits.writeVarInt(buf.size(), out);
+            out.write(buf.getRawBuffer(), 0, buf.size());
+        }
+        finally {
+            buf.reset(1024);
+            marshal_buf.set(buf);
         }
+    }
+
+    /**
+     * Reads headers written by {@link #writeTo(java.io.DataOutput,short...)}. The headers are kept in marshalled form
+     * and only unmarshalled when accessed
+     */
+    public static Headers readFrom(DataInput in) throws Exception {
+        int count=in.readShort();
+        Headers retval=new Headers(Math.max(count, 3));
+        if(count == 0)
+            return retval;
+        byte[] buf=new byte[Bits.readVarInt(in)];
+        in.readFully(buf);
+        retval.setRaw(buf);
+        int pos=0;
+        for(int i=0; i < count; i++) {
+            short id=(short)(((buf[pos] & 0xff) << 8) | (buf[pos+1] & 0xff)),
+              magic=(short)(((buf[pos+2] & 0xff) << 8) | (buf[pos+3] & 0xff));
+            if(ClassConfigurator.get(magic) == null)
+                throw new IllegalArgumentException("magic number " + magic + " is not available in magic map");
+            pos+=HDR_OVERHEAD;
+            int length=0, shift=0, b;
+            do { // varint
+                b=buf[pos++];
+                length|=(b & 0x7F) << shift;
+                shift+=7;
+            }
+            while((b & 0x80) != 0);
+            retval.ids[i]=id;
+            retval.sizes[i]=-1;
+            retval.offsets[i]=pos;
+            retval.lengths[i]=length;
+            retval.magics[i]=magic;
+            pos+=length;
+        }
+        if(pos != buf.length)
+            throw new IllegalStateException("length of headers is " + buf.length + ", but the headers have " + pos + " bytes");
+        retval.num=count;
         return retval;
     }
 
     public int size() {
+        return num;
+    }
+
+    public int size(short ... excluded_ids) {
+        if(excluded_ids == null)
+            return num;
         int retval=0;
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0)
+        for(int i=0; i < num; i++)
+            if(!Util.containsId(ids[i], excluded_ids))
                 retval++;
-            else
-                break;
-        }
         return retval;
     }
 
-    public int size(short ... excluded_ids) {
-         int retval=0;
-         for(int i=0; i < ids.length; i++) {
-             if(ids[i] > 0) {
-                 if(!Util.containsId(ids[i], excluded_ids))
-                     retval++;
-             }
-             else
-                 break;
-         }
-         return retval;
-     }
-
     public int capacity() {
         return ids.length;
     }
 
     public String printObjectHeaders() {
         StringBuilder sb=new StringBuilder();
-        for(int i=0; i < ids.length; i++) {
-            if(ids[i] > 0)
-                sb.append(ids[i]).append(": ").append(hdrs[i]).append('\n');
-            else
-                break;
-        }
+        for(int i=0; i < num; i++)
+            sb.append(ids[i]).append(": ").append(header(i)).append('\n');
         return sb.toString();
     }
 
@@ -183,43 +396,141 @@ public class Headers {
 
 
     /**
-     * Increases the capacity of the array and copies the contents of the old into the new array
+     * Doubles the capacity of the arrays and copies the contents of the old into the new arrays
      */
     private void resize() {
-        int new_capacity=ids.length + RESIZE_INCR;
+        int new_capacity=Math.max(ids.length * 2, 3);
 
         short[] new_ids=new short[new_capacity];
         Header[] new_hdrs=new Header[new_capacity];
+        int[] new_sizes=new int[new_capacity];
 
-        System.arraycopy(ids, 0, new_ids, 0, ids.length);
-        System.arraycopy(hdrs, 0, new_hdrs, 0, hdrs.length);
+        System.arraycopy(ids, 0, new_ids, 0, num);
+        System.arraycopy(hdrs, 0, new_hdrs, 0, num);
+        System.arraycopy(sizes, 0, new_sizes, 0, num);
 
         ids=new_ids;
         hdrs=new_hdrs;
+        sizes=new_sizes;
+
+        if(raw != null) {
+            int[] new_offsets=new int[new_capacity], new_lengths=new int[new_capacity];
+            short[] new_magics=new short[new_capacity];
+            System.arraycopy(offsets, 0, new_offsets, 0, num);
+            System.arraycopy(lengths, 0, new_lengths, 0, num);
+            System.arraycopy(magics, 0, new_magics, 0, num);
+            offsets=new_offsets;
+            lengths=new_lengths;
+            magics=new_magics;
+            unmarshalled=copyOf(unmarshalled, new_capacity);
+        }
+    }
+
+    private void setRaw(byte[] buf) {
+        raw=buf;
+        offsets=new int[ids.length];
+        lengths=new int[ids.length];
+        magics=new short[ids.length];
+        unmarshalled=new AtomicReferenceArray<Header>(ids.length);
+        for(int i=0; i < num; i++)
+            offsets[i]=-1;
+    }
+
+    /** Returns the marshalled size (ID, magic number, length and header) of the header at index i, and caches it */
+    private int size(int i) {
+        int size=sizes[i];
+        if(size < 0) {
+            int length=hasRaw(i)? lengths[i] : hdrs[i] != null? hdrs[i].size() : 0;
+            size=sizes[i]=HDR_OVERHEAD + Bits.sizeVarInt(length) + length;
+        }
+        return size;
+    }
+
+    /** Returns true if the marshalled form of the header at index i is available (whether or not it was accessed) */
+    private boolean hasRaw(int i) {
+        return offsets != null && offsets[i] >= 0;
+    }
+
+    /** Returns true if the header at index i is in marshalled form and hasn't been unmarshalled yet */
+    private boolean isRaw(int i) {
+        return hasRaw(i) && unmarshalled.get(i) == null;
+    }
+
+    /** Returns the header at index i without unmarshalling it, or null if it is still in marshalled form */
+    private Header loaded(int i) {
+        return hasRaw(i)? unmarshalled.get(i) : hdrs[i];
+    }
+
+    /** Returns the header at index i, unmarshalling it first if it is still in marshalled form */
+    private Header header(int i) {
+        if(!hasRaw(i))
+            return hdrs[i];
+        Header hdr=unmarshalled.get(i);
+        if(hdr != null)
+            return hdr;
+        try {
+            hdr=(Header)ClassConfigurator.get(magics[i]).newInstance();
+            hdr.readFrom(new DataInputStream(new ExposedByteArrayInputStream(raw, offsets[i], lengths[i])));
+        }
+        catch(Exception ex) {
+            throw new IllegalStateException("failed unmarshalling header with ID " + ids[i], ex);
+        }
+        return unmarshalled.compareAndSet(i, null, hdr)? hdr : unmarshalled.get(i);
+    }
+
+    /**
+     * Writes the magic number, length and contents of hdr to buf. The length is written before the header, so space for
+     * it is reserved based on {@link Header#size()}; the header is only moved if its actual length needs more or fewer
+     * bytes as varint
+     */
+    private static void marshal(Header hdr, ExposedByteArrayOutputStream buf, DataOutputStream out) throws Exception {
+        out.writeShort(ClassConfigurator.getMagicNumber(hdr.getClass()));
+        int length_pos=buf.size(), reserved=Bits.sizeVarInt(hdr.size());
+        for(int i=0; i < reserved; i++)
+            buf.write(0);
+        hdr.writeTo(out);
+        int start=length_pos + reserved, length=buf.size() - start;
+        if(Bits.sizeVarInt(length) != reserved) { // size() was off by so much that the varint needs a different size
+            byte[] contents=new byte[length];
+            System.arraycopy(buf.getRawBuffer(), start, contents, 0, length);
+            buf.truncate(length_pos);
+            Bits.writeVarInt(length, out);
+            out.write(contents);
+            return;
+        }
+        byte[] array=buf.getRawBuffer();
+        int pos=length_pos;
+        while((length & ~0x7F) != 0) { // varint, as written by Bits.writeVarInt()
+            array[pos++]=(byte)((length & 0x7F) | 0x80);
+            length>>>=7;
+        }
+        array[pos]=(byte)length;
+    }
+
+    private static AtomicReferenceArray<Header> copyOf(AtomicReferenceArray<Header> array, int length) {
+        AtomicReferenceArray<Header> retval=new AtomicReferenceArray<Header>(length);
+        for(int i=0; i < Math.min(length, array.length()); i++)
+            retval.set(i, array.get(i));
+        return retval;
     }
 
 
     private Header _putHeader(short id, Header hdr, int start_index, boolean replace_if_present) {
-        int i=start_index;
-        while(i < ids.length) {
-            if(ids[i] == 0) {
-                ids[i]=id;
-                hdrs[i]=hdr;
-                return null;
-            }
+        for(int i=start_index; i < num; i++) {
             if(ids[i] == id) {
-                Header retval=hdrs[i];
+                Header retval=replace_if_present? loaded(i) : header(i);
                 if(replace_if_present || retval == null) {
                     hdrs[i]=hdr;
+                    sizes[i]=-1;
+                    marshalled_size=-1;
+                    if(offsets != null)
+                        offsets[i]=-1;
                 }
                 return retval;
             }
-            i++;
-            if(i >= ids.length) {
-                resize();
-            }
         }
-        throw new IllegalStateException("unable to add element " + id + ", index=" + i); // we should never come here
+        addHeader(id, hdr);
+        return null;
     }
 
 
@@ -0,0 +1,140 @@
+package org.jgroups.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded, lock-free ring buffer for multiple producers and a single consumer. Producers claim a slot by CAS'ing the
+ * tail; every slot has a sequence number which tells the consumer whether an element has been published (and the
+ * producers whether the slot has been freed again). The consumer never takes a lock: it spins for a while when
+ * the buffer is empty and parks only if no element arrives in that time. The number of spins adapts: it is increased
+ * when spinning paid off and decreased when the consumer had to park anyway.
+ * <p/>
+ * <em>Note that poll() and take() must only be called by a single thread at a time !</em>
+ * @author agent
+ * @since  3.6
+ */
+public class MPSCRingBuffer<T> {
+    protected final Object[]         buf;
+    protected final AtomicLongArray  seqnos;   // seqno == pos: free for pos, seqno == pos+1: element for pos published
+    protected final int              mask;
+    protected final AtomicLong       tail=new AtomicLong(0); // next position to be claimed by a producer
+    protected long                   head;     // next position to be read by the consumer; only used by the consumer
+    protected volatile Thread        consumer; // set while the consumer is parked
+
+    protected int                    spins=MIN_SPINS; // only used by the consumer
+
+    protected static final int       MIN_SPINS=16, MAX_SPINS=4096;
+    protected static final long      PARK_TIME=TimeUnit.MILLISECONDS.toNanos(100);
+
+
+    /**
+     * Creates a ring buffer
+     * @param capacity The capacity, rounded up to the next power of 2
+     */
+    public MPSCRingBuffer(int capacity) {
+        if(capacity <= 0)
+            throw new IllegalArgumentException("capacity (" + capacity + ") has to be > 0");
+        int cap=Util.getNextHigherPowerOfTwo(capacity);
+        buf=new Object[cap];
+        seqnos=new AtomicLongArray(cap);
+        for(int i=0; i < cap; i++)
+            seqnos.set(i, i);
+        mask=cap - 1;
+    }
+
+    public int     capacity() {return buf.length;}
+    /** Returns the number of elements. This is an approximation when not called by the consumer */
+    public int     size()     {return (int)Math.max(0, Math.min(buf.length, tail.get() - head));}
+    /** Returns true if the buffer is empty. Must only be called by the consumer */
+    public boolean isEmpty()  {return seqnos.get((int)(head & mask)) != head + 1;}
+
+    /**
+     * Adds an element if there is space
+     * @return True if the element was added, false if the buffer is full
+     */
+    public boolean offer(T element) {
+        if(element == null)
+            throw new IllegalArgumentException("element must not be null");
+        for(;;) {
+            long pos=tail.get();
+            int index=(int)(pos & mask);
+            long diff=seqnos.get(index) - pos;
+            if(diff == 0) {
+                if(tail.compareAndSet(pos, pos + 1)) {
+                    buf[index]=element;
+                    seqnos.set(index, pos + 1); // publishes the element (volatile write before the read of consumer)
+                    Thread tmp=consumer;
+                    if(tmp != null)
+                        LockSupport.unpark(tmp);
+                    return true;
+                }
+            }
+            else if(diff < 0)
+                return false; // the consumer hasn't yet freed the slot: full
+        }
+    }
+
+    /** Adds an element, backing off (yield, then park) while the buffer is full */
+    public void put(T element) throws InterruptedException {
+        for(int i=0; !offer(element); i++) {
+            if(Thread.interrupted())
+                throw new InterruptedException();
+            if(i < 10)
+                Thread.yield();
+            else
+                LockSupport.parkNanos(10000);
+        }
+    }
+
+    /** Removes the next element, or returns null if the buffer is empty. Must only be called by the consumer */
+    @SuppressWarnings("unchecked")
+    public T poll() {
+        int index=(int)(head & mask);
+        if(seqnos.get(index) != head + 1)
+            return null;
+        T element=(T)buf[index];
+        buf[index]=null;
+        seqnos.lazySet(index, head + buf.length); // frees the slot for the producer of position head+capacity
+        head++;
+        return element;
+    }
+
+    /**
+     * Removes the next element, blocking until one is available. The caller spins first and parks only if no element
+     * arrived while spinning. Must only be called by the consumer
+     */
+    public T take() throws InterruptedException {
+        T element=poll();
+        if(element != null)
+            return element;
+        for(int i=0; i < spins; i++) {
+            if((element=poll()) != null) {
+                spins=Math.min(MAX_SPINS, spins * 2);
+                return element;
+            }
+        }
+        spins=Math.max(MIN_SPINS, spins / 2);
+
+        Thread current=Thread.currentThread();
+        for(;;) {
+            consumer=current; // volatile write before the re-check, so a producer either sees it or we see its element
+            try {
+                if((element=poll()) != null)
+                    return element;
+                LockSupport.parkNanos(this, PARK_TIME);
+                if(Thread.interrupted())
+                    throw new InterruptedException();
+            }
+            finally {
+                consumer=null;
+            }
+        }
+    }
+
+    public String toString() {
+        return String.format("%d elements (capacity=%d)", size(), buf.length);
+    }
+}
@@ -0,0 +1,424 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+import org.jgroups.annotations.GuardedBy;
+import org.jgroups.logging.Log;
+import org.jgroups.logging.LogFactory;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Append-only log of key/value records, stored in memory-mapped segment files, so that values can be kept off heap.
+ * A record is appended with {@link #put(byte[],byte[])}, which returns its location; the owner of the store keeps the
+ * locations in an in-heap index (e.g. {@link org.jgroups.blocks.MappedMap}) and reads the key or value of a record
+ * with {@link #getKey(long)} or {@link #getValue(long)}. A record which is not needed anymore (e.g. because its key
+ * was removed or overwritten) is marked as garbage with {@link #free(long)}.
+ * <p/>
+ * Segments are appended to until they're full, and are then sealed. When the live data in a sealed segment drops below
+ * compaction_threshold, its live records are copied to the current segment by a background thread and the segment
+ * file is deleted. Copying a record changes its location; the {@link Relocator} is asked to update the index, and
+ * the copy is discarded if the record was removed or overwritten in the meantime.
+ * <p/>
+ * Records are never modified (except for the type of freed records) and segment buffers are never unmapped
+ * explicitly, so a record can be read without locking. A read of a location whose segment has been deleted returns null: the caller has to look up the (new)
+ * location in its index again.
+ * <p/>
+ * If persistent is true, the segment files are kept on {@link #close()}, and removals are logged as tombstones, so
+ * the index can be rebuilt on restart with {@link #replay(Visitor)}. Otherwise the files are deleted on start and
+ * close. Writes are not forced to disk, so records written shortly before a crash of the host may be lost.
+ * @author agent
+ * @since 3.6
+ */
+public class MappedStore {
+    protected static final byte   PUT=1, REMOVE=2, FREED=3; // FREED: a PUT record which is garbage
+    protected static final int    HEADER_SIZE=Global.INT_SIZE + Global.BYTE_SIZE + Global.INT_SIZE; // length, type, key length
+    protected static final String SUFFIX=".seg";
+
+    protected static final Log    log=LogFactory.getLog(MappedStore.class);
+
+    protected final File          dir;
+    protected final String        name;         // the prefix of the segment files
+
+    protected int                 segment_size=64 * 1024 * 1024;
+    protected double              compaction_threshold=0.5;
+    protected boolean             persistent;
+    protected Relocator           relocator;
+
+    protected final ConcurrentNavigableMap<Integer,Segment> segments=new ConcurrentSkipListMap<Integer,Segment>();
+
+    @GuardedBy("this")
+    protected Segment             current;      // the segment to which records are appended
+    @GuardedBy("this")
+    protected int                 next_id;
+
+    protected ExecutorService     compactor;
+    protected final AtomicBoolean compaction_pending=new AtomicBoolean(false);
+    protected volatile int        num_compactions;
+    protected volatile boolean    closed;
+
+
+    /** Reads the keys of the records of compacted segments, and updates their locations in the index */
+    public interface Relocator {
+        /**
+         * Called when a record has been copied by a compaction. The index has to be updated (atomically) if key is
+         * still mapped to old_location.
+         * @return True if the location was updated, false if the record at old_location isn't in the index anymore
+         */
+        boolean relocate(byte[] key, long old_location, long new_location);
+    }
+
+    /** Receives the records of a persistent store, in the order in which they were written */
+    public interface Visitor {
+        void put(byte[] key, long location);
+        void remove(byte[] key);
+    }
+
+
+    public MappedStore(File dir, String name) {
+        this.dir=dir;
+        this.name=name;
+    }
+
+    public int         getSegmentSize()                     {return segment_size;}
+    public MappedStore setSegmentSize(int size)             {this.segment_size=size; return this;}
+    public double      getCompactionThreshold()             {return compaction_threshold;}
+    public MappedStore setCompactionThreshold(double t)     {this.compaction_threshold=t; return this;}
+    public boolean     isPersistent()                       {return persistent;}
+    public MappedStore setPersistent(boolean persistent)    {this.persistent=persistent; return this;}
+    public MappedStore setRelocator(Relocator relocator)    {this.relocator=relocator; return this;}
+    public int         getNumSegments()                     {return segments.size();}
+    public int         getNumCompactions()                  {return num_compactions;}
+
+    /** The number of bytes in all segments which are used by live records */
+    public synchronized long getLiveBytes() {
+        long retval=0;
+        for(Segment segment: segments.values())
+            retval+=segment.live;
+        return retval;
+    }
+
+    /** The number of bytes written to all segments */
+    public synchronized long getSize() {
+        long retval=0;
+        for(Segment segment: segments.values())
+            retval+=segment.write_pos;
+        return retval;
+    }
+
+
+    /** Opens the existing segment files if persistent, or deletes them otherwise */
+    public synchronized void start() throws IOException {
+        if(!dir.exists() && !dir.mkdirs())
+            throw new IOException("failed creating " + dir);
+        File[] files=dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String file_name) {
+                return file_name.startsWith(name + "-") && file_name.endsWith(SUFFIX);
+            }
+        });
+        for(File file: files) {
+            if(!persistent) {
+                file.delete();
+                continue;
+            }
+            String tmp=file.getName().substring(name.length() + 1, file.getName().length() - SUFFIX.length());
+            int id=Integer.parseInt(tmp);
+            Segment segment=new Segment(id, file, (int)file.length());
+            segment.recover();
+            segments.put(id, segment);
+            next_id=Math.max(next_id, id + 1);
+        }
+        compactor=Executors.newSingleThreadExecutor(new DefaultThreadFactory("MappedStore-compactor", true));
+    }
+
+    public synchronized void close() {
+        closed=true;
+        if(compactor != null)
+            compactor.shutdownNow();
+        for(Segment segment: segments.values()) {
+            segment.close();
+            if(!persistent)
+                segment.file.delete();
+        }
+        segments.clear();
+        current=null;
+    }
+
+
+    /**
+     * Reads all records of a persistent store, oldest first. Must be called after {@link #start()} and before
+     * records are added. The visitor needs to {@link #free(long)} the locations of keys which are overwritten or
+     * removed by later records
+     */
+    public void replay(Visitor visitor) {
+        for(Segment segment: segments.values()) {
+            for(int pos=0; pos < segment.write_pos;) {
+                ByteBuffer buf=segment.buffer(pos);
+                int len=buf.getInt();
+                byte type=buf.get();
+                if(type != FREED) {
+                    byte[] key=new byte[buf.getInt()];
+                    buf.get(key);
+                    if(type == PUT)
+                        visitor.put(key, location(segment.id, pos));
+                    else
+                        visitor.remove(key);
+                }
+                pos+=len;
+            }
+        }
+    }
+
+
+    /** Appends a record and returns its location */
+    public long put(byte[] key, byte[] value) throws IOException {
+        return append(PUT, key, value, 0, value.length);
+    }
+
+    /** Frees the record at location; if the store is persistent, a tombstone for key is appended */
+    public void remove(byte[] key, long location) throws IOException {
+        free(location);
+        if(persistent)
+            append(REMOVE, key, null, 0, 0);
+    }
+
+    /** Marks the record at location as garbage */
+    public void free(long location) {
+        Segment segment=segments.get(segmentId(location));
+        if(segment == null)
+            return;
+        boolean compact;
+        synchronized(this) {
+            int offset=offset(location);
+            if(segment.buf.get(offset + Global.INT_SIZE) != PUT)
+                return;
+            segment.buf.put(offset + Global.INT_SIZE, FREED);
+            segment.live-=segment.buf.getInt(offset);
+            compact=segment != current && needsCompaction(segment);
+        }
+        if(compact)
+            scheduleCompaction();
+    }
+
+    /** Returns the key of the record at location, or null if the segment has been deleted */
+    public byte[] getKey(long location) {
+        Segment segment=segments.get(segmentId(location));
+        if(segment == null)
+            return null;
+        ByteBuffer buf=segment.buffer(offset(location) + Global.INT_SIZE + Global.BYTE_SIZE);
+        byte[] key=new byte[buf.getInt()];
+        buf.get(key);
+        return key;
+    }
+
+    /** Returns the value of the record at location, or null if the segment has been deleted */
+    public byte[] getValue(long location) {
+        Segment segment=segments.get(segmentId(location));
+        if(segment == null)
+            return null;
+        ByteBuffer buf=segment.buffer(offset(location));
+        int len=buf.getInt();
+        buf.get(); // type
+        int key_len=buf.getInt();
+        byte[] value=new byte[len - HEADER_SIZE - key_len];
+        buf.position(buf.position() + key_len);
+        buf.get(value);
+        return value;
+    }
+
+    /** Compacts all sealed segments whose live data dropped below the compaction threshold */
+    public void compact() {
+        List<Segment> candidates=new ArrayList<Segment>();
+        synchronized(this) {
+            for(Segment segment: segments.values())
+                if(segment != current && needsCompaction(segment))
+                    candidates.add(segment);
+        }
+        for(Segment segment: candidates) {
+            try {
+                compact(segment);
+            }
+            catch(Throwable t) {
+                if(!closed)
+                    log.error("failed compacting " + segment, t);
+            }
+        }
+    }
+
+    public String toString() {
+        return name + ": " + segments.values();
+    }
+
+
+    protected long append(byte type, byte[] key, byte[] value, int offset, int length) throws IOException {
+        int len=HEADER_SIZE + key.length + length;
+        synchronized(this) {
+            if(closed)
+                throw new IllegalStateException("store " + name + " is closed");
+            if(current == null || current.capacity - current.write_pos < len) {
+                if(current != null) {
+                    current.buf.force();
+                    if(needsCompaction(current))
+                        scheduleCompaction();
+                }
+                int id=next_id++;
+                current=new Segment(id, new File(dir, name + "-" + id + SUFFIX), Math.max(segment_size, len));
+                segments.put(current.id, current);
+            }
+            int pos=current.write_pos;
+            ByteBuffer buf=current.buffer(pos + Global.INT_SIZE);
+            buf.put(type).putInt(key.length).put(key);
+            if(value != null)
+                buf.put(value, offset, length);
+            current.buffer(pos).putInt(len); // the length is written last, a record with length 0 ends the segment
+            current.write_pos+=len;
+            if(type == PUT)
+                current.live+=len;
+            else
+                current.tombstones+=len;
+            return location(current.id, pos);
+        }
+    }
+
+    /** Copies the live records of segment to the current segment and deletes segment */
+    protected void compact(Segment segment) throws IOException {
+        boolean oldest=isOldest(segment);
+        int copied=0;
+        for(int pos=0; pos < segment.write_pos && !closed;) {
+            ByteBuffer buf=segment.buffer(pos);
+            int len=buf.getInt();
+            byte type=buf.get();
+            if(type == FREED) {
+                pos+=len;
+                continue;
+            }
+            byte[] key=new byte[buf.getInt()];
+            buf.get(key);
+            if(type == PUT) {
+                long old_location=location(segment.id, pos);
+                int value_len=len - HEADER_SIZE - key.length;
+                byte[] value=new byte[value_len];
+                buf.get(value);
+                long new_location=append(PUT, key, value, 0, value_len);
+                if(relocator != null && relocator.relocate(key, old_location, new_location))
+                    copied++;
+                else
+                    free(new_location);
+            }
+            else if(!oldest) // a tombstone has to be kept as long as an older segment may contain the key
+                append(REMOVE, key, null, 0, 0);
+            pos+=len;
+        }
+        synchronized(this) {
+            if(closed)
+                return;
+            segments.remove(segment.id);
+        }
+        segment.close();
+        segment.file.delete();
+        num_compactions++;
+        if(log.isTraceEnabled())
+            log.trace(name + ": compacted segment " + segment.id + ", copied " + copied + " records");
+    }
+
+    @GuardedBy("this")
+    protected boolean needsCompaction(Segment segment) {
+        if(segment.write_pos == 0)
+            return false;
+        // tombstones in the oldest segment are garbage, as there are no older records which they could remove
+        long live=segment.live + (isOldest(segment)? 0 : segment.tombstones);
+        return live < segment.write_pos * compaction_threshold;
+    }
+
+    protected boolean isOldest(Segment segment) {
+        Map.Entry<Integer,Segment> first=segments.firstEntry();
+        return first != null && first.getValue() == segment;
+    }
+
+    protected void scheduleCompaction() {
+        if(compactor == null || !compaction_pending.compareAndSet(false, true))
+            return;
+        try {
+            compactor.execute(new Runnable() {
+                public void run() {
+                    compaction_pending.set(false);
+                    compact();
+                }
+            });
+        }
+        catch(Throwable t) { // the store was closed
+            compaction_pending.set(false);
+        }
+    }
+
+    protected static long location(int segment_id, int offset) {
+        return ((long)segment_id << 32) | (offset & 0xffffffffL);
+    }
+
+    protected static int segmentId(long location) {return (int)(location >>> 32);}
+    protected static int offset(long location)    {return (int)location;}
+
+
+
+    protected static class Segment {
+        protected final int              id;
+        protected final File             file;
+        protected final int              capacity;
+        protected final RandomAccessFile raf;
+        protected final MappedByteBuffer buf;
+        protected int                    write_pos;
+        protected long                   live;       // the number of bytes of records which are not garbage
+        protected long                   tombstones; // the number of bytes of tombstones
+
+        protected Segment(int id, File file, int capacity) throws IOException {
+            this.id=id;
+            this.file=file;
+            this.capacity=capacity;
+            raf=new RandomAccessFile(file, "rw");
+            raf.setLength(capacity);
+            buf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+
+        /** Returns a buffer positioned at pos; the buffer is not shared with other threads */
+        protected ByteBuffer buffer(int pos) {
+            ByteBuffer retval=buf.duplicate();
+            retval.position(pos);
+            return retval;
+        }
+
+        /** Finds the end of the records of an existing segment, all records are live until they are freed */
+        protected void recover() {
+            while(write_pos + HEADER_SIZE <= capacity) {
+                ByteBuffer tmp=buffer(write_pos);
+                int len=tmp.getInt();
+                if(len <= 0 || write_pos + len > capacity)
+                    break;
+                byte type=tmp.get();
+                if(type == PUT)
+                    live+=len;
+                else if(type == REMOVE)
+                    tombstones+=len;
+                write_pos+=len;
+            }
+        }
+
+        protected void close() {
+            Util.close(raf); // the mapping stays valid until the buffer is garbage collected
+        }
+
+        public String toString() {
+            return id + " (" + write_pos + " bytes, " + live + " live)";
+        }
+    }
+}
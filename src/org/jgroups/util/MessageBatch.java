@@ -13,7 +13,7 @@ import java.util.NoSuchElementException;
  * @author Bela Ban
  * @since  3.3
  */
-public class MessageBatch implements Iterable<Message> {
+public class MessageBatch implements Iterable<Message>, Table.Sink<Message> {
 
     /** The destination address. Null if this is a multicast message batch, non-null if the batch is sent to a specific member */
     protected Address          dest;
@@ -123,6 +123,11 @@ public class MessageBatch implements Iterable<Message> {
         return this;
     }
 
+    /** Adds a message drained from a {@link Table}; the seqno is ignored */
+    public void add(long seqno, Message msg) {
+        add(msg);
+    }
+
     /**
      * Replaces a message in the batch with another one
      * @param existing_msg The message to be replaced. The message has to be non-null and is found by identity (==)
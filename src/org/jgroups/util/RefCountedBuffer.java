@@ -0,0 +1,64 @@
+package org.jgroups.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link Buffer} whose underlying byte[] array is returned to a {@link BufferPool} when the last reference has been
+ * released. The buffer is created with a reference count of 1; every additional owner (e.g. a second queue the buffer
+ * is added to) has to call {@link #retain()}, and every owner has to call {@link #release()} when done. The buffer
+ * must not be accessed after the last release.
+ * @author agent
+ * @since  3.6
+ */
+public class RefCountedBuffer extends Buffer {
+    protected final BufferPool    pool;
+    protected final AtomicInteger refs=new AtomicInteger(1);
+
+    /**
+     * Creates a buffer
+     * @param buf The byte[] array
+     * @param offset The offset into buf
+     * @param length The number of bytes
+     * @param pool The pool to which buf is returned when the reference count drops to 0. May be null, in which case
+     *             buf is simply dropped
+     */
+    public RefCountedBuffer(byte[] buf, int offset, int length, BufferPool pool) {
+        super(buf, offset, length);
+        this.pool=pool;
+    }
+
+    /** Acquires a buffer of at least length bytes from pool (or allocates one if pool is null) and copies data into it */
+    public static RefCountedBuffer copyOf(byte[] data, int offset, int length, BufferPool pool) {
+        byte[] tmp=pool != null? pool.acquire(length) : new byte[length];
+        System.arraycopy(data, offset, tmp, 0, length);
+        return new RefCountedBuffer(tmp, 0, length, pool);
+    }
+
+    public int refCount() {return refs.get();}
+
+    /** Increments the reference count */
+    public RefCountedBuffer retain() {
+        if(refs.getAndIncrement() <= 0)
+            throw new IllegalStateException("buffer has already been released");
+        return this;
+    }
+
+    /**
+     * Decrements the reference count. When it drops to 0, the underlying array is returned to the pool
+     * @return True if this was the last reference, false otherwise
+     */
+    public boolean release() {
+        int count=refs.decrementAndGet();
+        if(count > 0)
+            return false;
+        if(count < 0)
+            throw new IllegalStateException("buffer has already been released");
+        if(pool != null)
+            pool.release(getBuf());
+        return true;
+    }
+
+    public String toString() {
+        return super.toString() + " (refs=" + refs.get() + ")";
+    }
+}
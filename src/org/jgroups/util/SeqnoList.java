@@ -4,20 +4,27 @@ import org.jgroups.Global;
 
 import java.io.DataInput;
 import java.io.DataOutput;
-import java.util.ArrayList;
 import java.util.Iterator;
-import java.util.List;
 import java.util.NoSuchElementException;
 
 /**
  * A list of sequence numbers (seqnos). Seqnos have to be added in ascending order, and can be single seqnos
  * or seqno ranges (e.g. [5-10]). This class is unsynchronized. Note that for serialization, we assume that the
  * lowest and highest seqno in the list are not more than 2 ^ 31 apart.
+ * <p/>
+ * Seqnos and ranges are stored as pairs of primitive longs, so adding seqnos and iterating over them with
+ * {@link #seqnoIterator()} doesn't create any objects (except when the array needs to grow).
  * @author Bela Ban
  * @since 3.1
  */
 public class SeqnoList implements Streamable, Iterable<Long> {
-    protected final List<Seqno> seqnos=new ArrayList<Seqno>();
+    /** Pairs of [from,to]; from == to for a single seqno */
+    protected long[] seqnos=new long[INITIAL_CAPACITY * 2];
+
+    /** Number of pairs in seqnos */
+    protected int    num;
+
+    protected static final int INITIAL_CAPACITY=4;
 
     public SeqnoList() {
     }
@@ -32,8 +39,7 @@ public class SeqnoList implements Streamable, Iterable<Long> {
 
     /** Adds a single seqno */
     public SeqnoList add(long seqno) {
-        seqnos.add(new Seqno(seqno));
-        return this;
+        return _add(seqno, seqno);
     }
 
     public SeqnoList add(long ... seqnos) {
@@ -46,49 +52,42 @@ public class SeqnoList implements Streamable, Iterable<Long> {
 
     /** Adds a seqno range */
     public SeqnoList add(long from, long to) {
-        seqnos.add(new SeqnoRange(from, to));
-        return this;
+        if(to <  from)
+            throw new IllegalArgumentException("to (" + to + ") needs to be >= from (" + from + ")");
+        return _add(from, to);
     }
 
     /** Removes all seqnos <= seqno */
     public void remove(long min_seqno) {
-        for(Iterator<Seqno> it=seqnos.iterator(); it.hasNext();) {
-            Seqno tmp=it.next();
-            if(tmp instanceof SeqnoRange) {
-                SeqnoRange range=(SeqnoRange)tmp;
-                if(range.to <= min_seqno)
-                    it.remove();
-                else {
-                    if(range.from <= min_seqno)
-                        range.from=min_seqno+1;
-                }
-            }
-            else {
-                if(tmp.from <= min_seqno)
-                    it.remove();
-            }
+        int new_num=0;
+        for(int i=0; i < num; i++) {
+            long from=seqnos[i*2], to=seqnos[i*2+1];
+            if(to <= min_seqno)
+                continue;
+            if(from <= min_seqno)
+                from=min_seqno+1;
+            seqnos[new_num*2]=from;
+            seqnos[new_num*2+1]=to;
+            new_num++;
         }
+        num=new_num;
     }
 
 
     /** Removes all seqnos > seqno */
     public void removeHigherThan(long max_seqno) {
-        for(Iterator<Seqno> it=seqnos.iterator(); it.hasNext();) {
-            Seqno tmp=it.next();
-            if(tmp instanceof SeqnoRange) {
-                SeqnoRange range=(SeqnoRange)tmp;
-                if(range.from > max_seqno)
-                    it.remove();
-                else {
-                    if(range.to > max_seqno)
-                        range.to=max_seqno;
-                }
-            }
-            else {
-                if(tmp.from > max_seqno)
-                    it.remove();
-            }
+        int new_num=0;
+        for(int i=0; i < num; i++) {
+            long from=seqnos[i*2], to=seqnos[i*2+1];
+            if(from > max_seqno)
+                continue;
+            if(to > max_seqno)
+                to=max_seqno;
+            seqnos[new_num*2]=from;
+            seqnos[new_num*2+1]=to;
+            new_num++;
         }
+        num=new_num;
     }
 
 
@@ -98,24 +97,22 @@ public class SeqnoList implements Streamable, Iterable<Long> {
      * @return
      */
     public long getLast() {
-        int size=seqnos.size();
-        if(size == 0)
-            return 0;
-        Seqno seqno=seqnos.get(size - 1);
-        return seqno instanceof SeqnoRange? ((SeqnoRange)seqno).to : seqno.from;
+        return num == 0? 0 : seqnos[num*2 -1];
     }
 
+    public boolean isEmpty() {return num == 0;}
+
     public void writeTo(DataOutput out) throws Exception {
-        out.writeInt(seqnos.size());
-        for(Seqno seqno: seqnos) {
-            if(seqno instanceof SeqnoRange) {
-                SeqnoRange range=(SeqnoRange)seqno;
+        out.writeInt(num);
+        for(int i=0; i < num; i++) {
+            long from=seqnos[i*2], to=seqnos[i*2+1];
+            if(from != to) {
                 out.writeBoolean(true);
-                Bits.writeLongSequence(range.from, range.to, out);
+                Bits.writeLongSequence(from, to, out);
             }
             else {
                 out.writeBoolean(false);
-                Bits.writeLong(seqno.from, out);
+                Bits.writeLong(from, out);
             }
         }
     }
@@ -125,105 +122,95 @@ public class SeqnoList implements Streamable, Iterable<Long> {
         for(int i=0; i < len; i++) {
             if(in.readBoolean()) {
                 long[] tmp=Bits.readLongSequence(in);
-                seqnos.add(new SeqnoRange(tmp[0], tmp[1]));
+                _add(tmp[0], tmp[1]);
             }
             else {
-                seqnos.add(new Seqno(Bits.readLong(in)));
+                long seqno=Bits.readLong(in);
+                _add(seqno, seqno);
             }
         }
     }
 
     public int serializedSize() {
         int retval=Global.INT_SIZE // number of elements in seqnos
-          + seqnos.size() * Global.BYTE_SIZE; // plus 1 boolean (Seqno or SeqnoRange) per element
-        for(Seqno seqno: seqnos) {
-            if(seqno instanceof SeqnoRange) {
-                SeqnoRange range=(SeqnoRange)seqno;
-                retval+=Bits.size(range.from, range.to);
-            }
-            else {
-                retval+=Bits.size(seqno.from);
-            }
+          + num * Global.BYTE_SIZE; // plus 1 boolean (seqno or range) per element
+        for(int i=0; i < num; i++) {
+            long from=seqnos[i*2], to=seqnos[i*2+1];
+            retval+=from != to? Bits.size(from, to) : Bits.size(from);
         }
         return retval;
     }
 
     public int size() {
         int retval=0;
-        for(Seqno seqno: seqnos) {
-            if(seqno instanceof SeqnoRange) {
-                SeqnoRange range=(SeqnoRange)seqno;
-                retval+=(range.to - range.from +1);
-            }
-            else
-                retval++;
-        }
-
+        for(int i=0; i < num; i++)
+            retval+=(seqnos[i*2+1] - seqnos[i*2] +1);
         return retval;
     }
 
     public String toString() {
-        return Util.printListWithDelimiter(seqnos, ", ", Util.MAX_LIST_PRINT_SIZE);
+        StringBuilder sb=new StringBuilder("(" + num + ") ");
+        for(int i=0; i < num; i++) {
+            if(i > 0)
+                sb.append(", ");
+            if(Util.MAX_LIST_PRINT_SIZE > 0 && i >= Util.MAX_LIST_PRINT_SIZE) {
+                sb.append(" ...");
+                break;
+            }
+            long from=seqnos[i*2], to=seqnos[i*2+1];
+            sb.append(from);
+            if(from != to)
+                sb.append("-").append(to);
+        }
+        return sb.toString();
     }
 
     public Iterator<Long> iterator() {
         return new SeqnoListIterator();
     }
 
-    protected static class Seqno {
-        protected long from;
-
-        public Seqno(long num) {
-            this.from=num;
-        }
-
-        public String toString() {
-            return String.valueOf(from);
-        }
+    /** Returns an iterator whose {@link SeqnoListIterator#nextSeqno()} returns primitive seqnos (no boxing) */
+    public SeqnoListIterator seqnoIterator() {
+        return new SeqnoListIterator();
     }
 
-    protected static class SeqnoRange extends Seqno {
-        protected long to;
-
-        public SeqnoRange(long from, long to) {
-            super(from);
-            this.to=to;
-            if(to <  from)
-                throw new IllegalArgumentException("to (" + to + ") needs to be >= from (" + from + ")");
-        }
-
-        public String toString() {
-            return super.toString() + "-" + to;
+    protected SeqnoList _add(long from, long to) {
+        if(num*2 >= seqnos.length) {
+            long[] tmp=new long[seqnos.length * 2];
+            System.arraycopy(seqnos, 0, tmp, 0, num*2);
+            seqnos=tmp;
         }
+        seqnos[num*2]=from;
+        seqnos[num*2+1]=to;
+        num++;
+        return this;
     }
 
 
-    protected class SeqnoListIterator implements Iterator<Long> {
-        protected int         index=0;
-        protected SeqnoRange  range=null;
-        protected long        range_index=-1;
+    public class SeqnoListIterator implements Iterator<Long> {
+        protected int  index=0;        // index of the current pair
+        protected long next=Long.MIN_VALUE; // next seqno of the current pair; MIN_VALUE if not yet started
 
         public boolean hasNext() {
-            return (range != null && range_index < range.to) || index <  seqnos.size();
+            if(index >= num)
+                return false;
+            return next == Long.MIN_VALUE || next <= seqnos[index*2+1] || index+1 < num;
         }
 
-        public Long next() {
-            if(range != null) {
-                if(range_index < range.to)
-                    return ++range_index;
-                else
-                    range=null;
+        public long nextSeqno() {
+            if(index < num && next == Long.MIN_VALUE)
+                next=seqnos[index*2];
+            else if(index < num && next > seqnos[index*2+1]) {
+                if(++index < num)
+                    next=seqnos[index*2];
             }
-            if(index >= seqnos.size())
-                throw new NoSuchElementException("index " + index + " is >= size " + seqnos.size());
-            Seqno next=seqnos.get(index++);
-            if(next instanceof SeqnoRange) {
-                range=(SeqnoRange)next;
-                range_index=range.from;
-                return range_index;
-            }
-            else
-                return next.from;
+            if(index >= num)
+                throw new NoSuchElementException("index " + index + " is >= size " + num);
+            return next++;
+        }
+
+        public Long next() {
+            return nextSeqno();
         }
 
         public void remove() { // not supported
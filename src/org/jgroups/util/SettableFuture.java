@@ -0,0 +1,121 @@
+package org.jgroups.util;
+
+import org.jgroups.annotations.GuardedBy;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * A {@link NotifyingFuture} which is completed by calling {@link #set(Object)} or {@link #setException(Throwable)},
+ * from any thread. E.g. a method invoked by an {@link org.jgroups.blocks.RpcDispatcher} can return a SettableFuture
+ * and complete it later; the response is sent when the future completes, and the thread which delivered the request
+ * is not blocked meanwhile.
+ * <p/>
+ * The listener is notified exactly once, by the thread which completes the future, or - if the future is already
+ * done - by the thread which sets the listener.
+ * @author agent
+ * @since 3.6
+ */
+public class SettableFuture<T> implements NotifyingFuture<T> {
+    protected T                 value;
+    protected Throwable         exception;
+    protected boolean           done, cancelled;
+    protected FutureListener<T> listener;
+    protected boolean           notified; // set when the listener has been (or is about to be) notified
+
+
+    /** Completes the future with a value. Returns false if the future was already done */
+    public boolean set(T value) {
+        synchronized(this) {
+            if(done)
+                return false;
+            this.value=value;
+            done=true;
+            notifyAll();
+        }
+        notifyListener();
+        return true;
+    }
+
+    /** Completes the future with an exception. Returns false if the future was already done */
+    public boolean setException(Throwable t) {
+        synchronized(this) {
+            if(done)
+                return false;
+            this.exception=t;
+            done=true;
+            notifyAll();
+        }
+        notifyListener();
+        return true;
+    }
+
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized(this) {
+            if(done)
+                return false;
+            cancelled=done=true;
+            notifyAll();
+        }
+        notifyListener();
+        return true;
+    }
+
+    public synchronized boolean isCancelled() {return cancelled;}
+    public synchronized boolean isDone()      {return done;}
+
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while(!done)
+            wait();
+        return result();
+    }
+
+    public synchronized T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        long wait_time=unit.toNanos(timeout), target_time=System.nanoTime() + wait_time;
+        while(!done && wait_time > 0) {
+            TimeUnit.NANOSECONDS.timedWait(this, wait_time);
+            wait_time=target_time - System.nanoTime();
+        }
+        if(!done)
+            throw new TimeoutException();
+        return result();
+    }
+
+    public NotifyingFuture<T> setListener(FutureListener<T> listener) {
+        synchronized(this) {
+            this.listener=listener;
+            if(!done)
+                return this;
+        }
+        notifyListener();
+        return this;
+    }
+
+    public synchronized String toString() {
+        return !done? "pending" : cancelled? "cancelled" : exception != null? "exception: " + exception : "value: " + value;
+    }
+
+
+    @GuardedBy("this")
+    protected T result() throws ExecutionException {
+        if(cancelled)
+            throw new CancellationException();
+        if(exception != null)
+            throw new ExecutionException(exception);
+        return value;
+    }
+
+    /** Notifies the listener, unless there is none yet or it has already been notified */
+    protected void notifyListener() {
+        FutureListener<T> tmp;
+        synchronized(this) {
+            if(notified || listener == null)
+                return;
+            notified=true;
+            tmp=listener;
+        }
+        tmp.futureDone(this);
+    }
+}
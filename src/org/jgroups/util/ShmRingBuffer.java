@@ -0,0 +1,492 @@
+package org.jgroups.util;
+
+import org.jgroups.Global;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ring buffer of variable-length records in a memory-mapped file (e.g. under /dev/shm), which is shared between
+ * processes on the same host. Any number of producers (in any number of processes) can {@link #offer(byte[],byte[],int,int,long)}
+ * records concurrently; there must be only one consumer, which {@link #take(byte[])}s them.
+ * <p/>
+ * The file starts with a header of {@link #DATA_OFFSET} bytes, in which the tail (next position to be claimed by a
+ * producer), the head (next position to be read by the consumer), a heartbeat and a closed flag are kept on separate
+ * cache lines. Each record consists of an int header, followed by the payload, and is padded to a multiple of 8 bytes.
+ * A producer claims space by CAS'ing the tail, copies its payload into the claimed space and publishes the record by
+ * writing its length into the header with an ordered write. The consumer reads the header with a volatile read: 0 means
+ * that the record has not yet been published, a negative value is padding that skips the rest of the buffer when a
+ * record would wrap around. A consumed record is zeroed before the head is advanced, so the space can be reused.
+ * <p/>
+ * Atomic operations on the mapped memory are done with sun.misc.Unsafe (through {@link UnsafeMemory}), as there is no
+ * other way to CAS shared memory; {@link #isSupported()} returns false if it is not available.
+ * <p/>
+ * A producer which dies after claiming space and before publishing its record would block the consumer forever. To
+ * recover from this, a producer first takes one of {@link #MAX_CLAIMS} claim slots in the header and records the range
+ * it is about to claim there, then CASes the tail, and frees the slot after publishing. When the record at the head
+ * hasn't been published for {@link #claimTimeout(long)} ms, the consumer looks for the claim covering it: the rest
+ * of the claimed range is skipped (as padding) and the slot of the dead producer is freed. If the claims are
+ * ambiguous (e.g. several producers died at the same time), the ring is closed, so that senders fall back to other
+ * means and the owner can re-create it. The claim timeout must therefore be longer than any pause (e.g. GC) of a
+ * live producer between claiming space and publishing its record.
+ * <p/>
+ * The file is unmapped when the last reference to the ring is released: the creator of a ring holds a reference,
+ * and other threads can {@link #acquire()} one while they access the ring, so that it isn't unmapped under their feet.
+ * All methods accessing the mapped memory also hold a reference while they run, and fail (e.g. offer() returns false)
+ * once the ring has been released, as accessing an unmapped file would crash the JVM.
+ * @author agent
+ * @since 3.6
+ */
+public class ShmRingBuffer {
+    protected static final int    MAGIC=0x4a475352; // "JGSR"
+    protected static final int    MAGIC_OFFSET=0, CAPACITY_OFFSET=8, TAIL_OFFSET=64, HEAD_OFFSET=128,
+                                  HEARTBEAT_OFFSET=192, CLOSED_OFFSET=200, CLAIMS_OFFSET=256;
+    /** The max number of concurrent offers; more producers wait for a free claim slot */
+    public    static final int    MAX_CLAIMS=64;
+    /** A claim slot: | long start of the claimed range | int length of the range | int state (0 = free) | */
+    protected static final int    CLAIM_SIZE=16, CLAIM_START=0, CLAIM_LENGTH=8, CLAIM_STATE=12;
+    public    static final int    DATA_OFFSET=CLAIMS_OFFSET + MAX_CLAIMS * CLAIM_SIZE;
+    protected static final int    RECORD_HEADER=Global.INT_SIZE;
+
+    protected final File             file;
+    protected final MappedByteBuffer buf; // keeps the mapping alive
+    protected final ByteBuffer       read_buf; // only used by the consumer
+    protected final long             address;  // of the start of the mapped file
+    protected final int              capacity, mask;
+    protected final AtomicInteger    refs=new AtomicInteger(1); // the mapping is released when this drops to 0
+    protected long                   claim_timeout=TimeUnit.NANOSECONDS.convert(5000, TimeUnit.MILLISECONDS);
+
+    // the consumer's position at which no record has been published yet, and since when (ns)
+    protected long                   stuck_head=-1, stuck_since;
+
+
+    protected ShmRingBuffer(File file, MappedByteBuffer buf, int capacity) {
+        this.file=file;
+        this.buf=buf;
+        this.read_buf=buf.duplicate();
+        this.address=UnsafeMemory.address(buf);
+        this.capacity=capacity;
+        this.mask=capacity-1;
+    }
+
+    /** Returns true if shared memory ring buffers can be used in this JVM */
+    public static boolean isSupported() {return UnsafeMemory.isAvailable();}
+
+    /**
+     * Creates a new ring buffer in file, to be used by the consumer. An existing file is deleted first: producers which
+     * still map it are not affected and will notice that it is closed (or stale)
+     * @param file The file to create
+     * @param capacity The size of the data section; will be rounded up to a power of 2
+     */
+    public static ShmRingBuffer create(File file, int capacity) throws IOException {
+        if(!isSupported())
+            throw new UnsupportedOperationException("shared memory ring buffers are not supported by this JVM");
+        capacity=Util.getNextHigherPowerOfTwo(capacity);
+        if(file.exists() && !file.delete())
+            throw new IOException("failed deleting " + file);
+        RandomAccessFile raf=new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(DATA_OFFSET + capacity);
+            MappedByteBuffer mbuf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, DATA_OFFSET + capacity);
+            ShmRingBuffer ring=new ShmRingBuffer(file, mbuf, capacity);
+            UnsafeMemory.putLong(ring.address + CAPACITY_OFFSET, capacity);
+            ring.touch();
+            UnsafeMemory.putIntVolatile(ring.address + MAGIC_OFFSET, MAGIC); // producers only open initialized rings
+            return ring;
+        }
+        finally {
+            Util.close(raf); // the mapping stays valid after the file has been closed
+        }
+    }
+
+    /** Opens an existing ring buffer, to be used by a producer */
+    public static ShmRingBuffer open(File file) throws IOException {
+        MappedByteBuffer mbuf=map(file);
+        return new ShmRingBuffer(file, mbuf, mbuf.capacity() - DATA_OFFSET);
+    }
+
+    /** Maps an existing (initialized) ring buffer */
+    protected static MappedByteBuffer map(File file) throws IOException {
+        if(!isSupported())
+            throw new UnsupportedOperationException("shared memory ring buffers are not supported by this JVM");
+        RandomAccessFile raf=new RandomAccessFile(file, "rw");
+        try {
+            long length=raf.length();
+            if(length <= DATA_OFFSET)
+                throw new IOException(file + " is not a ring buffer");
+            MappedByteBuffer mbuf=raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            long addr=UnsafeMemory.address(mbuf);
+            IOException ex=null;
+            long cap=-1;
+            if(UnsafeMemory.getIntVolatile(addr + MAGIC_OFFSET) != MAGIC)
+                ex=new IOException(file + " has not been initialized");
+            else {
+                cap=UnsafeMemory.getLong(addr + CAPACITY_OFFSET);
+                if(cap + DATA_OFFSET != length || Integer.bitCount((int)cap) != 1)
+                    ex=new IOException(file + ": capacity of " + cap + " doesn't match file length of " + length);
+            }
+            if(ex != null) {
+                UnsafeMemory.unmap(mbuf);
+                throw ex;
+            }
+            return mbuf;
+        }
+        finally {
+            Util.close(raf);
+        }
+    }
+
+    /**
+     * Reads the header of the ring in file with plain file I/O, without mapping the file
+     * @return True if file is an initialized ring which is not closed and whose heartbeat was updated in the last
+     * timeout ms
+     */
+    public static boolean isAlive(File file, long timeout) throws IOException {
+        RandomAccessFile raf=new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer hdr=ByteBuffer.allocate(DATA_OFFSET).order(ByteOrder.nativeOrder()); // Unsafe uses native order
+            FileChannel ch=raf.getChannel();
+            while(hdr.hasRemaining())
+                if(ch.read(hdr, hdr.position()) < 0)
+                    return false; // too short to be a ring
+            return hdr.getInt(MAGIC_OFFSET) == MAGIC && hdr.getInt(CLOSED_OFFSET) == 0
+              && System.currentTimeMillis() - hdr.getLong(HEARTBEAT_OFFSET) < timeout;
+        }
+        finally {
+            Util.close(raf);
+        }
+    }
+
+    /**
+     * Acquires a reference to the ring, so that it isn't unmapped while it is being accessed. Every successful call
+     * has to be followed by a call to {@link #release()}
+     * @return False if the ring has already been released (and must not be accessed anymore)
+     */
+    public boolean acquire() {
+        for(;;) {
+            int count=refs.get();
+            if(count <= 0)
+                return false;
+            if(refs.compareAndSet(count, count+1))
+                return true;
+        }
+    }
+
+    /**
+     * Releases a reference acquired by {@link #acquire()}, or the one of the creator of the ring. When the last
+     * reference has been released, the file is unmapped and the ring must not be accessed anymore
+     */
+    public void release() {
+        if(refs.decrementAndGet() == 0)
+            UnsafeMemory.unmap(buf);
+    }
+
+    public boolean isReleased() {return refs.get() <= 0;}
+
+    public File    getFile()             {return file;}
+    public long    claimTimeout()        {return TimeUnit.MILLISECONDS.convert(claim_timeout, TimeUnit.NANOSECONDS);}
+
+    /**
+     * Sets the time (ms) after which the consumer skips a record which has been claimed, but not published, as its
+     * producer is assumed to have died. Only relevant for the consumer
+     */
+    public ShmRingBuffer claimTimeout(long timeout) {
+        this.claim_timeout=TimeUnit.NANOSECONDS.convert(timeout, TimeUnit.MILLISECONDS); return this;
+    }
+    public int     capacity()            {return capacity;}
+    /** The max size of a record (including the prefix) that can be offered */
+    public int     maxRecordSize()       {return capacity / 2 - RECORD_HEADER;}
+    public long size() {
+        if(!acquire())
+            return 0;
+        try {
+            return getLong(TAIL_OFFSET) - getLong(HEAD_OFFSET);
+        }
+        finally {
+            release();
+        }
+    }
+
+    public boolean isEmpty() {return size() == 0;}
+
+    /** Returns true if the ring was closed, or has been released */
+    public boolean isClosed() {
+        if(!acquire())
+            return true;
+        try {
+            return closed();
+        }
+        finally {
+            release();
+        }
+    }
+
+    /** Sets the heartbeat; called periodically by the consumer */
+    public void touch() {
+        if(!acquire())
+            return;
+        try {
+            UnsafeMemory.putOrderedLong(address + HEARTBEAT_OFFSET, System.currentTimeMillis());
+        }
+        finally {
+            release();
+        }
+    }
+
+    public long lastHeartbeat() {
+        if(!acquire())
+            return 0;
+        try {
+            return getLong(HEARTBEAT_OFFSET);
+        }
+        finally {
+            release();
+        }
+    }
+
+    /** Returns true if the ring is not closed and its consumer has updated the heartbeat in the last timeout ms */
+    public boolean isAlive(long timeout) {
+        if(!acquire())
+            return false;
+        try {
+            return !closed() && System.currentTimeMillis() - getLong(HEARTBEAT_OFFSET) < timeout;
+        }
+        finally {
+            release();
+        }
+    }
+
+    /** Marks the ring as closed; producers won't add records anymore. The file itself is not removed */
+    public void close() {
+        if(!acquire())
+            return;
+        try {
+            UnsafeMemory.putIntVolatile(address + CLOSED_OFFSET, 1);
+        }
+        finally {
+            release();
+        }
+    }
+
+
+    /**
+     * Adds a record consisting of prefix and the given range of data. Blocks (spinning) for at most timeout_ns if the
+     * ring is full.
+     * @return True if the record was added, false if the ring stayed full, was closed or released, or the record is
+     * too big
+     */
+    public boolean offer(byte[] prefix, byte[] data, int offset, int length, long timeout_ns) {
+        if(!acquire())
+            return false;
+        try {
+            return _offer(prefix, data, offset, length, timeout_ns);
+        }
+        finally {
+            release();
+        }
+    }
+
+    /**
+     * Copies the next record into dst, which needs to have a length of at least {@link #maxRecordSize()}. Must only
+     * be called by the (single) consumer
+     * @return The length of the record, or 0 if no record is available or the ring has been released
+     */
+    public int take(byte[] dst) {
+        if(!acquire())
+            return 0;
+        try {
+            return _take(dst);
+        }
+        finally {
+            release();
+        }
+    }
+
+    public String toString() {
+        if(!acquire())
+            return file + " (capacity=" + capacity + ", released)";
+        try {
+            return file + " (capacity=" + capacity + ", size=" + (getLong(TAIL_OFFSET) - getLong(HEAD_OFFSET))
+              + (closed()? ", closed" : "") + ")";
+        }
+        finally {
+            release();
+        }
+    }
+
+
+    /** Adds a record; the caller must hold a reference */
+    protected boolean _offer(byte[] prefix, byte[] data, int offset, int length, long timeout_ns) {
+        int payload=prefix.length + length;
+        if(payload > maxRecordSize())
+            return false;
+        int required=align(RECORD_HEADER + payload);
+        long deadline=0, claim=-1;
+        for(;;) {
+            if(closed()) {
+                freeClaim(claim);
+                return false;
+            }
+            if(claim < 0)
+                claim=takeClaim();
+            if(claim >= 0) {
+                long tail=getLong(TAIL_OFFSET), head=getLong(HEAD_OFFSET);
+                int index=(int)(tail & mask);
+                int padding=capacity - index < required? capacity - index : 0;
+                long new_tail=tail + padding + required;
+                if(new_tail - head <= capacity) {
+                    // records the range before claiming it, so the consumer can skip it if we die before publishing
+                    UnsafeMemory.putOrderedInt(claim + CLAIM_LENGTH, 0);
+                    UnsafeMemory.putOrderedLong(claim + CLAIM_START, tail);
+                    UnsafeMemory.putOrderedInt(claim + CLAIM_LENGTH, padding + required);
+                    if(!UnsafeMemory.compareAndSwapLong(address + TAIL_OFFSET, tail, new_tail))
+                        continue; // another producer claimed the space
+                    if(padding > 0) {
+                        UnsafeMemory.putOrderedInt(recordAddress(index), -padding);
+                        index=0;
+                    }
+                    ByteBuffer tmp=buf.duplicate();
+                    tmp.position(DATA_OFFSET + index + RECORD_HEADER);
+                    tmp.put(prefix);
+                    tmp.put(data, offset, length);
+                    publish(index, payload);
+                    freeClaim(claim);
+                    return true;
+                }
+            }
+            if(timeout_ns <= 0) {
+                freeClaim(claim);
+                return false;
+            }
+            long now=System.nanoTime();
+            if(deadline == 0)
+                deadline=now + timeout_ns;
+            else if(now - deadline >= 0) {
+                freeClaim(claim);
+                return false;
+            }
+            Thread.yield();
+        }
+    }
+
+    /** Publishes a record by writing its length into the header with an ordered write */
+    protected void publish(int index, int length) {
+        UnsafeMemory.putOrderedInt(recordAddress(index), length);
+    }
+
+    /** Takes a free claim slot, starting at one derived from the current thread. Returns its address, or -1 */
+    protected long takeClaim() {
+        int start=(int)Thread.currentThread().getId();
+        for(int i=0; i < MAX_CLAIMS; i++) {
+            long claim=claimAddress((start + i) & (MAX_CLAIMS-1));
+            if(UnsafeMemory.getIntVolatile(claim + CLAIM_STATE) == 0 && UnsafeMemory.compareAndSwapInt(claim + CLAIM_STATE, 0, 1))
+                return claim;
+        }
+        return -1;
+    }
+
+    protected static void freeClaim(long claim) {
+        if(claim >= 0)
+            UnsafeMemory.putOrderedInt(claim + CLAIM_STATE, 0);
+    }
+
+    /** Copies the next record into dst; the caller must hold a reference */
+    protected int _take(byte[] dst) {
+        for(;;) {
+            long head=UnsafeMemory.getLong(address + HEAD_OFFSET);
+            int index=(int)(head & mask);
+            long record=recordAddress(index);
+            int length=UnsafeMemory.getIntVolatile(record);
+            if(length == 0) {
+                if(getLong(TAIL_OFFSET) != head && skipDeadClaim(head))
+                    continue;
+                return 0;
+            }
+            int size=length < 0? -length : align(RECORD_HEADER + length);
+            if(length > 0) {
+                read_buf.position(DATA_OFFSET + index + RECORD_HEADER);
+                read_buf.get(dst, 0, length);
+            }
+            UnsafeMemory.setMemory(record, size, (byte)0);
+            UnsafeMemory.putOrderedLong(address + HEAD_OFFSET, head + size); // releases the space to the producers
+            if(length > 0)
+                return length;
+        }
+    }
+
+    /**
+     * Called by the consumer when the record at head has been claimed, but not yet published. If this has been the case
+     * for claim_timeout, the rest of the range claimed by the (presumably dead) producer is turned into padding, so
+     * that the consumer can skip it. If no claim or more than one (different) claim covers head, the ring is closed
+     * @return True if the range was turned into padding
+     */
+    protected boolean skipDeadClaim(long head) {
+        long now=System.nanoTime();
+        if(head != stuck_head) {
+            stuck_head=head;
+            stuck_since=now;
+            return false;
+        }
+        if(now - stuck_since < claim_timeout)
+            return false;
+        long end=-1;
+        for(int i=0; i < MAX_CLAIMS; i++) {
+            long claim_end=claimEnd(claimAddress(i), head);
+            if(claim_end < 0)
+                continue;
+            if(end >= 0 && end != claim_end) {
+                end=-1;
+                break;
+            }
+            end=claim_end;
+        }
+        stuck_head=-1;
+        if(end < 0) {
+            UnsafeMemory.putIntVolatile(address + CLOSED_OFFSET, 1);
+            return false;
+        }
+        for(int i=0; i < MAX_CLAIMS; i++) { // frees the slot(s) of the dead producer
+            long claim=claimAddress(i);
+            if(claimEnd(claim, head) == end)
+                freeClaim(claim);
+        }
+        int index=(int)(head & mask);
+        int skip=(int)Math.min(end - head, capacity - index);
+        if(end - head > skip) // the range wraps around
+            UnsafeMemory.putOrderedInt(recordAddress(0), -(int)(end - head - skip));
+        UnsafeMemory.putOrderedInt(recordAddress(index), -skip);
+        return true;
+    }
+
+    /**
+     * Returns the end of the range recorded in a claim slot if the slot is in use and the range covers pos, else -1.
+     * Producers write 0 into the length before changing the start, so a range is only valid if it reads the same
+     * (non-zero) length before and after the start
+     */
+    protected static long claimEnd(long claim, long pos) {
+        if(UnsafeMemory.getIntVolatile(claim + CLAIM_STATE) == 0)
+            return -1;
+        int length=UnsafeMemory.getIntVolatile(claim + CLAIM_LENGTH);
+        long start=UnsafeMemory.getLongVolatile(claim + CLAIM_START);
+        if(length == 0 || UnsafeMemory.getIntVolatile(claim + CLAIM_LENGTH) != length)
+            return -1; // the producer is alive and changing its claim
+        return start <= pos && pos < start + length? start + length : -1;
+    }
+
+    protected boolean closed() {return UnsafeMemory.getIntVolatile(address + CLOSED_OFFSET) != 0;}
+
+    protected long recordAddress(int index) {return address + DATA_OFFSET + index;}
+
+    protected long claimAddress(int slot)   {return address + CLAIMS_OFFSET + slot * CLAIM_SIZE;}
+
+    protected long getLong(int offset) {return UnsafeMemory.getLongVolatile(address + offset);}
+
+    protected static int align(int size) {return (size + 7) & ~7;}
+}
@@ -0,0 +1,266 @@
+package org.jgroups.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Map with primitive long keys, used e.g. for the pending requests of a RequestCorrelator. Keys are not boxed and
+ * there are no per-entry objects: the map is split into stripes, each of which is an open-addressing hash table
+ * (linear probing, backward-shift deletion) guarded by its own lock, so concurrent accesses to different stripes
+ * don't contend. Null values are not allowed.
+ * <p/>
+ * Iteration ({@link #forEach(Visitor)}, {@link #values()}) works on a per-stripe snapshot and invokes the visitor
+ * without holding a lock, so a visitor can modify the map.
+ * @author agent
+ * @since 3.6
+ */
+public class StripedLongMap<V> {
+    protected final Stripe[] stripes;
+    protected final int      mask;
+
+
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+
+    public StripedLongMap() {
+        this(32, 16);
+    }
+
+    /**
+     * Creates a map
+     * @param num_stripes The number of stripes, will be rounded up to a power of 2
+     * @param initial_capacity The initial capacity of each stripe, will be rounded up to a power of 2
+     */
+    public StripedLongMap(int num_stripes, int initial_capacity) {
+        int num=powerOfTwo(num_stripes);
+        stripes=new Stripe[num];
+        mask=num-1;
+        for(int i=0; i < stripes.length; i++)
+            stripes[i]=new Stripe(powerOfTwo(Math.max(2, initial_capacity)));
+    }
+
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int hash=hash(key);
+        return (V)stripes[hash & mask].get(key, hash);
+    }
+
+    /** Adds the value if no value is associated with key. Returns the existing value, or null if val was added */
+    @SuppressWarnings("unchecked")
+    public V putIfAbsent(long key, V val) {
+        if(val == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int hash=hash(key);
+        return (V)stripes[hash & mask].putIfAbsent(key, val, hash);
+    }
+
+    /** Replaces the value associated with key with val if it is equal to expected. Returns true if it was replaced */
+    public boolean replace(long key, V expected, V val) {
+        if(val == null)
+            throw new IllegalArgumentException("null values are not allowed");
+        int hash=hash(key);
+        return stripes[hash & mask].replace(key, expected, val, hash);
+    }
+
+    /** Removes the value associated with key and returns it, or null if not present */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int hash=hash(key);
+        return (V)stripes[hash & mask].remove(key, hash);
+    }
+
+    public boolean containsKey(long key) {return get(key) != null;}
+
+    public int size() {
+        int retval=0;
+        for(Stripe stripe: stripes)
+            retval+=stripe.size();
+        return retval;
+    }
+
+    public boolean isEmpty() {
+        for(Stripe stripe: stripes)
+            if(stripe.size() > 0)
+                return false;
+        return true;
+    }
+
+    public void clear() {
+        for(Stripe stripe: stripes)
+            stripe.clear();
+    }
+
+    /** Visits all entries. Entries added or removed during the iteration may or may not be visited */
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<V> visitor) {
+        for(Stripe stripe: stripes) {
+            long[] keys;
+            Object[] vals;
+            int num;
+            synchronized(stripe) {
+                if((num=stripe.size) == 0)
+                    continue;
+                keys=new long[num];
+                vals=new Object[num];
+                for(int i=0, index=0; i < stripe.vals.length; i++) {
+                    if(stripe.vals[i] != null) {
+                        keys[index]=stripe.keys[i];
+                        vals[index++]=stripe.vals[i];
+                    }
+                }
+            }
+            for(int i=0; i < num; i++)
+                visitor.visit(keys[i], (V)vals[i]);
+        }
+    }
+
+    /** Returns a snapshot of all values */
+    @SuppressWarnings("unchecked")
+    public List<V> values() {
+        final List<V> retval=new ArrayList<V>(size());
+        for(Stripe stripe: stripes) {
+            synchronized(stripe) {
+                for(Object val: stripe.vals)
+                    if(val != null)
+                        retval.add((V)val);
+            }
+        }
+        return retval;
+    }
+
+    public String toString() {
+        final StringBuilder sb=new StringBuilder();
+        forEach(new Visitor<V>() {
+            public void visit(long key, V value) {
+                sb.append(key).append(": ").append(value).append("\n");
+            }
+        });
+        return sb.toString();
+    }
+
+
+    /** Mixes the bits of key (Fibonacci hashing), so that consecutive keys are spread across stripes and slots */
+    protected static int hash(long key) {
+        long h=key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    protected static int powerOfTwo(int num) {
+        int retval=1;
+        while(retval < num)
+            retval<<=1;
+        return retval;
+    }
+
+
+    /** An open-addressing hash table; the low bits of the hash select the stripe, the high bits the slot */
+    protected static class Stripe {
+        protected long[]   keys;
+        protected Object[] vals; // null: empty slot
+        protected int      size;
+
+        protected Stripe(int capacity) {
+            keys=new long[capacity];
+            vals=new Object[capacity];
+        }
+
+        protected synchronized int size() {return size;}
+
+        protected synchronized Object get(long key, int hash) {
+            int m=vals.length-1;
+            for(int i=slot(hash, m);; i=(i+1) & m) {
+                Object val=vals[i];
+                if(val == null || keys[i] == key)
+                    return val;
+            }
+        }
+
+        protected synchronized Object putIfAbsent(long key, Object val, int hash) {
+            int m=vals.length-1, i=slot(hash, m);
+            for(;; i=(i+1) & m) {
+                Object existing=vals[i];
+                if(existing == null)
+                    break;
+                if(keys[i] == key)
+                    return existing;
+            }
+            keys[i]=key;
+            vals[i]=val;
+            if(++size * 4 > vals.length * 3) // load factor of 0.75
+                resize(vals.length * 2);
+            return null;
+        }
+
+        protected synchronized boolean replace(long key, Object expected, Object val, int hash) {
+            int m=vals.length-1;
+            for(int i=slot(hash, m);; i=(i+1) & m) {
+                Object existing=vals[i];
+                if(existing == null)
+                    return false;
+                if(keys[i] == key) {
+                    if(!existing.equals(expected))
+                        return false;
+                    vals[i]=val;
+                    return true;
+                }
+            }
+        }
+
+        protected synchronized Object remove(long key, int hash) {
+            int m=vals.length-1, i=slot(hash, m);
+            for(;; i=(i+1) & m) {
+                Object val=vals[i];
+                if(val == null)
+                    return null;
+                if(keys[i] == key)
+                    break;
+            }
+            Object retval=vals[i];
+            vals[i]=null;
+            size--;
+
+            // backward-shift deletion: move subsequent entries of the cluster into the gap if their home slot allows
+            for(int j=(i+1) & m; vals[j] != null; j=(j+1) & m) {
+                int home=slot(hash(keys[j]), m);
+                boolean stays=i <= j? (i < home && home <= j) : (i < home || home <= j);
+                if(stays)
+                    continue;
+                keys[i]=keys[j];
+                vals[i]=vals[j];
+                vals[j]=null;
+                i=j;
+            }
+            return retval;
+        }
+
+        protected synchronized void clear() {
+            for(int i=0; i < vals.length; i++)
+                vals[i]=null;
+            size=0;
+        }
+
+        protected void resize(int new_capacity) {
+            long[] old_keys=keys;
+            Object[] old_vals=vals;
+            keys=new long[new_capacity];
+            vals=new Object[new_capacity];
+            int m=new_capacity-1;
+            for(int i=0; i < old_vals.length; i++) {
+                if(old_vals[i] == null)
+                    continue;
+                int j=slot(hash(old_keys[i]), m);
+                while(vals[j] != null)
+                    j=(j+1) & m;
+                keys[j]=old_keys[i];
+                vals[j]=old_vals[i];
+            }
+        }
+
+        protected static int slot(int hash, int m) {
+            return (hash >>> 16 ^ hash >>> 8) & m;
+        }
+    }
+}
@@ -60,6 +60,10 @@ public class Table<T> {
 
     protected final AtomicBoolean  processing=new AtomicBoolean(false);
 
+    /** Reused by {@link #drain(AtomicBoolean,boolean,int,Filter,Sink)}, so draining doesn't create garbage */
+    @GuardedBy("lock")
+    protected final Remover        drainer=new Remover(false, 0);
+
     protected int                  num_compactions=0, num_resizes=0, num_moves=0, num_purges=0;
     
     protected static final long    DEFAULT_MAX_COMPACTION_TIME=10000; // in milliseconds
@@ -84,6 +88,15 @@ public class Table<T> {
         boolean visit(long seqno, T element, int row, int column);
     }
 
+    /** Receives the elements removed by {@link Table#drain(AtomicBoolean,boolean,int,Filter,Sink)} */
+    public interface Sink<T> {
+        /**
+         * Called for every removed element accepted by the filter, in order of seqnos. Called with the table's
+         * lock held, so implementations must not block
+         */
+        void add(long seqno, T element);
+    }
+
 
 
     public Table() {
@@ -385,6 +398,35 @@ public class Table<T> {
     }
 
 
+    /**
+     * Removes between 0 and max_results elements from the table and passes them to sink. Same as
+     * {@link #removeMany(AtomicBoolean,boolean,int,Filter)}, but instead of collecting the elements in a newly created
+     * list, they're handed to sink (e.g. a {@link MessageBatch}), so draining a table creates no garbage.
+     * @return The number of elements passed to sink. If 0, there are no more elements to be removed and
+     * processing (if non-null) will be set to false
+     */
+    public int drain(final AtomicBoolean processing, boolean nullify, int max_results, Filter<T> filter, Sink<T> sink) {
+        lock.lock();
+        try {
+            drainer.init(nullify, max_results, filter, sink);
+            try {
+                forEach(hd+1, hr, drainer);
+            }
+            finally {
+                drainer.sink=null; // don't hold on to the sink and filter
+                drainer.filter=null;
+            }
+            int retval=drainer.num_results;
+            if(processing != null && retval == 0)
+                processing.set(false);
+            return retval;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+
     /**
      * Removes all elements less than or equal to seqno from the table. Does this by nulling entire rows in the matrix
      * and nulling all elements < index(seqno) of the first row that cannot be removed
@@ -720,32 +762,46 @@ public class Table<T> {
     }
 
 
-    protected class Remover implements Visitor<T> {
-        protected final boolean      nullify;
-        protected final int          max_results;
+    protected class Remover implements Visitor<T>, Sink<T> {
+        protected boolean            nullify;
+        protected int                max_results;
         protected List<T>            list;
         protected int                num_results;
-        protected final Filter<T>    filter;
+        protected Filter<T>          filter;
+        protected Sink<T>            sink; // receives the removed elements; adds them to list if this
 
         public Remover(boolean nullify, int max_results) {
             this(nullify, max_results, null);
         }
 
         public Remover(boolean nullify, int max_results, Filter<T> filter) {
+            init(nullify, max_results, filter, this);
+        }
+
+        /** Resets the remover, so it can be reused */
+        protected Remover init(boolean nullify, int max_results, Filter<T> filter, Sink<T> sink) {
             this.nullify=nullify;
             this.max_results=max_results;
             this.filter=filter;
+            this.sink=sink;
+            this.list=null;
+            this.num_results=0;
+            return this;
         }
 
         public List<T> getList() {return list;}
 
+        public void add(long seqno, T element) {
+            if(list == null)
+                list=new LinkedList<T>();
+            list.add(element);
+        }
+
         @GuardedBy("lock")
         public boolean visit(long seqno, T element, int row, int column) {
             if(element != null) {
                 if(filter == null || filter.accept(element)) {
-                    if(list == null)
-                        list=new LinkedList<T>();
-                    list.add(element);
+                    sink.add(seqno, element);
                     num_results++;
                 }
                 if(seqno > hd)
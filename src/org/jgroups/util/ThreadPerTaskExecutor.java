@@ -0,0 +1,166 @@
+package org.jgroups.util;
+
+import java.lang.reflect.Method;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor which runs every task in a new thread. Used with virtual threads (JDK 21+), which are cheap enough to
+ * be created per task, so there is no max pool size, queue or rejection policy: a task is never rejected
+ * unless the executor has been shut down.
+ * <p/>
+ * Virtual threads are looked up by reflection, so this class compiles and loads on older JDKs;
+ * {@link #virtualThreadsSupported()} returns false there and {@link #newVirtualThreadExecutor(ThreadFactory,String)}
+ * returns null.
+ * <p/>
+ * Threads are named by a {@link ThreadFactory}, the same way as the threads of a regular thread pool.
+ * @author agent
+ * @since 3.6
+ */
+public class ThreadPerTaskExecutor extends AbstractExecutorService {
+    protected final java.util.concurrent.ThreadFactory thread_source; // creates the (unstarted) threads
+    protected volatile ThreadFactory                   factory; // names the threads, may be null
+    protected final String                             base_name;
+    protected final Set<Thread>                        threads=Collections.newSetFromMap(new ConcurrentHashMap<Thread,Boolean>());
+    protected final AtomicInteger                      largest_pool_size=new AtomicInteger(0);
+    protected final AtomicLong                         num_tasks=new AtomicLong(0);
+    protected volatile boolean                         shutdown;
+
+    protected static final java.util.concurrent.ThreadFactory VIRTUAL_THREAD_FACTORY=createVirtualThreadFactory();
+
+
+    public ThreadPerTaskExecutor(java.util.concurrent.ThreadFactory thread_source, ThreadFactory factory, String base_name) {
+        if(thread_source == null)
+            throw new IllegalArgumentException("thread source must not be null");
+        this.thread_source=thread_source;
+        this.factory=factory;
+        this.base_name=base_name;
+    }
+
+    /** Returns true if the JVM supports virtual threads */
+    public static boolean virtualThreadsSupported() {return VIRTUAL_THREAD_FACTORY != null;}
+
+    /** Creates an executor which runs each task in a new virtual thread, or returns null if not supported */
+    public static ThreadPerTaskExecutor newVirtualThreadExecutor(ThreadFactory factory, String base_name) {
+        return VIRTUAL_THREAD_FACTORY != null? new ThreadPerTaskExecutor(VIRTUAL_THREAD_FACTORY, factory, base_name) : null;
+    }
+
+    public ThreadFactory         getThreadFactory()                {return factory;}
+    public ThreadPerTaskExecutor setThreadFactory(ThreadFactory f) {this.factory=f; return this;}
+    /** The number of threads currently running a task */
+    public int                   getPoolSize()                     {return threads.size();}
+    public int                   getActiveCount()                  {return threads.size();}
+    public int                   getLargestPoolSize()              {return largest_pool_size.get();}
+    public long                  getTaskCount()                    {return num_tasks.get();}
+
+    public void execute(Runnable task) {
+        if(shutdown)
+            throw new RejectedExecutionException("executor has been shut down");
+        Thread thread=thread_source.newThread(new Task(task));
+        ThreadFactory tmp=factory;
+        if(tmp != null)
+            tmp.renameThread(base_name, thread);
+        threads.add(thread); // removed by the thread itself when done
+        updateLargestPoolSize();
+        num_tasks.incrementAndGet();
+        try {
+            thread.start();
+        }
+        catch(Throwable t) {
+            threads.remove(thread);
+            throw new RejectedExecutionException("failed starting thread for " + task, t);
+        }
+    }
+
+    public void shutdown() {
+        shutdown=true;
+    }
+
+    /** Interrupts all running threads. As tasks aren't queued, the returned list is always empty */
+    public List<Runnable> shutdownNow() {
+        shutdown=true;
+        for(Thread thread: threads)
+            thread.interrupt();
+        return Collections.emptyList();
+    }
+
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public boolean isTerminated() {
+        return shutdown && threads.isEmpty();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long target=System.nanoTime() + unit.toNanos(timeout);
+        synchronized(threads) {
+            while(!isTerminated()) {
+                long wait_time=TimeUnit.MILLISECONDS.convert(target - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if(wait_time <= 0)
+                    return false;
+                threads.wait(wait_time);
+            }
+            return true;
+        }
+    }
+
+    public String toString() {
+        return String.format("%s: %d threads (largest: %d), %d tasks%s", getClass().getSimpleName(), getPoolSize(),
+                             getLargestPoolSize(), getTaskCount(), shutdown? " (shut down)" : "");
+    }
+
+    protected void updateLargestPoolSize() {
+        int size=threads.size(), largest;
+        while(size > (largest=largest_pool_size.get()))
+            if(largest_pool_size.compareAndSet(largest, size))
+                break;
+    }
+
+    /** Returns Thread.ofVirtual().factory(), or null if virtual threads are not supported */
+    protected static java.util.concurrent.ThreadFactory createVirtualThreadFactory() {
+        try {
+            Method of_virtual=Thread.class.getMethod("ofVirtual");
+            Object builder=of_virtual.invoke(null);
+            Method factory=Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (java.util.concurrent.ThreadFactory)factory.invoke(builder);
+        }
+        catch(Throwable t) { // JDK < 21, or virtual threads are a preview feature which is not enabled
+            return null;
+        }
+    }
+
+
+    protected class Task implements Runnable {
+        protected final Runnable task;
+
+        public Task(Runnable task) {
+            this.task=task;
+        }
+
+        public void run() {
+            try {
+                task.run();
+            }
+            finally {
+                threads.remove(Thread.currentThread());
+                if(shutdown && threads.isEmpty()) {
+                    synchronized(threads) {
+                        threads.notifyAll();
+                    }
+                }
+            }
+        }
+
+        public String toString() {
+            return task.toString();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package org.jgroups.util;
+
+import sun.misc.Unsafe;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+
+/**
+ * Access to off-heap memory (by address) through {@link sun.misc.Unsafe}, used by {@link ShmRingBuffer} to CAS and
+ * to do ordered reads and writes on memory shared between processes. This is the only class which uses Unsafe, so
+ * that the dependency on it is confined to one place:
+ * <ul>
+ * <li>javac warns that sun.misc.Unsafe is an internal proprietary API (the warning can't be suppressed)
+ * <li>the class doesn't compile with javac's -release option, which only exposes the supported APIs
+ * <li>at runtime, Unsafe may not be available (e.g. in some JVMs or with a security manager); {@link #isAvailable()}
+ *     returns false then, and shared memory rings are not used
+ * </ul>
+ * @author agent
+ * @since 3.6
+ */
+final class UnsafeMemory {
+    private static final Unsafe UNSAFE;
+    private static final long   ADDRESS_OFFSET;  // offset of Buffer.address
+    private static final Method INVOKE_CLEANER;  // Unsafe.invokeCleaner(ByteBuffer), JDK 9+
+
+    static {
+        Unsafe unsafe=null;
+        long address_offset=-1;
+        try {
+            Field field=Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            unsafe=(Unsafe)field.get(null);
+            address_offset=unsafe.objectFieldOffset(Buffer.class.getDeclaredField("address"));
+        }
+        catch(Throwable t) {
+            unsafe=null;
+        }
+        Method invoke_cleaner=null;
+        try {
+            invoke_cleaner=Unsafe.class.getMethod("invokeCleaner", ByteBuffer.class);
+        }
+        catch(Throwable t) {
+        }
+        UNSAFE=unsafe;
+        ADDRESS_OFFSET=address_offset;
+        INVOKE_CLEANER=invoke_cleaner;
+    }
+
+    private UnsafeMemory() {
+    }
+
+    static boolean isAvailable()                                   {return UNSAFE != null;}
+
+    /** Returns the address of the memory of a direct (e.g. memory-mapped) buffer */
+    static long    address(ByteBuffer direct_buf)                  {return UNSAFE.getLong(direct_buf, ADDRESS_OFFSET);}
+
+    static long    getLong(long address)                           {return UNSAFE.getLong(address);}
+    static void    putLong(long address, long value)               {UNSAFE.putLong(address, value);}
+    static long    getLongVolatile(long address)                   {return UNSAFE.getLongVolatile(null, address);}
+    static void    putOrderedLong(long address, long value)        {UNSAFE.putOrderedLong(null, address, value);}
+    static int     getIntVolatile(long address)                    {return UNSAFE.getIntVolatile(null, address);}
+    static void    putIntVolatile(long address, int value)         {UNSAFE.putIntVolatile(null, address, value);}
+    static void    putOrderedInt(long address, int value)          {UNSAFE.putOrderedInt(null, address, value);}
+    static boolean compareAndSwapInt(long address, int expected, int value) {
+        return UNSAFE.compareAndSwapInt(null, address, expected, value);
+    }
+    static boolean compareAndSwapLong(long address, long expected, long value) {
+        return UNSAFE.compareAndSwapLong(null, address, expected, value);
+    }
+    static void    setMemory(long address, long bytes, byte value) {UNSAFE.setMemory(address, bytes, value);}
+
+    /**
+     * Unmaps a memory-mapped buffer right away, rather than when it is garbage collected. The buffer (and all of its
+     * duplicates) must not be accessed anymore: this would crash the JVM. If unmapping is not possible, the mapping is
+     * released when the buffer is garbage collected
+     */
+    static void unmap(ByteBuffer mapped_buf) {
+        try {
+            if(INVOKE_CLEANER != null) {
+                INVOKE_CLEANER.invoke(UNSAFE, mapped_buf);
+                return;
+            }
+            Method cleaner_method=mapped_buf.getClass().getMethod("cleaner"); // JDK 6-8: sun.nio.ch.DirectBuffer
+            cleaner_method.setAccessible(true);
+            Object cleaner=cleaner_method.invoke(mapped_buf);
+            if(cleaner != null)
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+        }
+        catch(Throwable t) {
+        }
+    }
+}
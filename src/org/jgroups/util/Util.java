@@ -1365,6 +1365,27 @@ public class Util {
     }
 
 
+    /**
+     * Writes the bytes between position and limit of buf to out, without changing the position of buf. Heap buffers
+     * are written from their backing array, direct (or memory-mapped) buffers are copied in chunks
+     */
+    public static void writeBytes(ByteBuffer buf, DataOutput out) throws Exception {
+        int remaining=buf.remaining();
+        if(buf.hasArray()) {
+            out.write(buf.array(), buf.arrayOffset() + buf.position(), remaining);
+            return;
+        }
+        ByteBuffer tmp=buf.duplicate();
+        byte[] chunk=new byte[Math.min(remaining, 8192)];
+        while(remaining > 0) {
+            int len=Math.min(remaining, chunk.length);
+            tmp.get(chunk, 0, len);
+            out.write(chunk, 0, len);
+            remaining-=len;
+        }
+    }
+
+
     public static Buffer messageToByteBuffer(Message msg) throws Exception {
         ExposedByteArrayOutputStream output=new ExposedByteArrayOutputStream(512);
         DataOutputStream out=new ExposedDataOutputStream(output);
@@ -0,0 +1,141 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+/**
+ * Tests the bounded {@link Cache} and the {@link EvictionPolicy} implementations
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class CacheTest {
+    protected Cache<Integer,byte[]> cache;
+
+    @BeforeMethod
+    protected void setup() {
+        cache=new Cache<Integer,byte[]>();
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        cache.stop();
+    }
+
+
+    public void testUnbounded() {
+        for(int i=0; i < 1000; i++)
+            cache.put(i, new byte[10], 0);
+        assert cache.getSize() == 1000;
+        assert cache.getNumEvictions() == 0;
+    }
+
+    public void testMaxNumberOfEntriesLru() {
+        cache.setMaxNumberOfEntries(10);
+        for(int i=0; i < 10; i++)
+            cache.put(i, new byte[10], 0);
+        assert cache.get(0) != null; // 0 is now the most recently used key
+        cache.put(10, new byte[10], 0);
+        assert cache.getSize() == 10;
+        assert cache.getNumEvictions() == 1;
+        assert cache.get(1) == null : "1 should have been evicted";
+        assert cache.get(0) != null;
+        assert cache.get(10) != null;
+    }
+
+    public void testMaxNumberOfEntriesFifo() {
+        cache.setEvictionPolicy("fifo");
+        cache.setMaxNumberOfEntries(10);
+        for(int i=0; i < 10; i++)
+            cache.put(i, new byte[10], 0);
+        assert cache.get(0) != null;
+        cache.put(10, new byte[10], 0);
+        assert cache.getSize() == 10;
+        assert cache.get(0) == null : "0 should have been evicted";
+    }
+
+    public void testMaxNumberOfBytes() {
+        cache.setSizer(new Cache.Sizer<Integer,byte[]>() {
+            public long size(Integer key, byte[] value) {return value.length;}
+        });
+        cache.setMaxNumberOfBytes(1000);
+        for(int i=0; i < 10; i++)
+            cache.put(i, new byte[100], 0);
+        assert cache.getNumberOfBytes() == 1000;
+        assert cache.getNumEvictions() == 0;
+
+        cache.put(10, new byte[250], 0); // evicts 0, 1 and 2
+        assert cache.getNumberOfBytes() == 950 : "bytes: " + cache.getNumberOfBytes();
+        assert cache.getSize() == 8;
+        assert cache.getNumEvictions() == 3;
+        for(int i=0; i < 3; i++)
+            assert cache.get(i) == null;
+
+        cache.put(3, new byte[50], 0); // replaces 100 bytes with 50
+        cache.remove(4);
+        assert cache.getNumberOfBytes() == 800 : "bytes: " + cache.getNumberOfBytes();
+    }
+
+    public void testDefaultSizer() {
+        cache.setMaxNumberOfBytes(10000);
+        for(int i=0; i < 100; i++)
+            cache.put(i, new byte[1000], 0);
+        assert cache.getNumberOfBytes() <= 10000;
+        assert cache.getSize() < 10 : "size: " + cache.getSize();
+    }
+
+    public void testStats() {
+        cache.put(1, new byte[1], 0);
+        cache.get(1);
+        cache.get(1);
+        cache.get(2);
+        assert cache.getNumHits() == 2;
+        assert cache.getNumMisses() == 1;
+        assert cache.getHitRatio() > 0.6 && cache.getHitRatio() < 0.7;
+        cache.resetStats();
+        assert cache.getNumHits() == 0 && cache.getNumMisses() == 0;
+    }
+
+    public void testSetEvictionPolicyWithEntries() {
+        for(int i=0; i < 10; i++)
+            cache.put(i, new byte[1], 0);
+        cache.setEvictionPolicy(EvictionPolicies.<Integer>tinyLfu());
+        cache.setMaxNumberOfEntries(5);
+        cache.put(10, new byte[1], 0);
+        assert cache.getSize() == 5 : "size: " + cache.getSize();
+    }
+
+    /** A scan of keys which are accessed only once must not evict the frequently accessed keys */
+    public void testTinyLfuScanResistance() {
+        cache.setEvictionPolicy("tinylfu");
+        cache.setMaxNumberOfEntries(100);
+        for(int i=0; i < 100; i++)
+            cache.put(i, new byte[1], 0);
+        for(int round=0; round < 5; round++)
+            for(int i=0; i < 50; i++) // keys 0-49 are hot
+                cache.get(i);
+
+        for(int i=1000; i < 2000; i++) // scan
+            cache.put(i, new byte[1], 0);
+
+        assert cache.getSize() == 100;
+        int hot=0;
+        for(int i=0; i < 50; i++)
+            if(cache.getEntry(i) != null)
+                hot++;
+        System.out.println("hot keys still cached: " + hot + ", policy: " + cache.getEvictionPolicyName());
+        assert hot >= 40 : "only " + hot + " hot keys are still cached";
+    }
+
+    public void testLruIsNotScanResistant() {
+        cache.setMaxNumberOfEntries(100);
+        for(int i=0; i < 100; i++)
+            cache.put(i, new byte[1], 0);
+        for(int i=1000; i < 1100; i++)
+            cache.put(i, new byte[1], 0);
+        for(int i=0; i < 100; i++)
+            assert cache.getEntry(i) == null;
+    }
+}
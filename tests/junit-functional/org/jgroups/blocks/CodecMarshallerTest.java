@@ -0,0 +1,203 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.util.Buffer;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.util.*;
+
+/**
+ * Tests {@link CodecMarshaller}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class CodecMarshallerTest {
+
+    public void testBuiltins() throws Exception {
+        CodecMarshaller m=new CodecMarshaller();
+        Map<Object,Object> map=new HashMap<Object,Object>();
+        map.put("one", 1);
+        map.put(2L, "two");
+        Object[] objects={null, true, false, (byte)5, (short)-300, 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE, 322649,
+          Long.MIN_VALUE, 5L, 3.14f, 2.71828, 'x', '\u20ac', "", "hello world", "gr\u00fc\u00dfe \u20ac",
+          new ArrayList<Object>(Arrays.asList(1, "two", null)), map, new HashSet<Object>(Arrays.asList("a", "b"))};
+        for(Object obj: objects) {
+            Object tmp=roundtrip(m, obj);
+            assert obj == null? tmp == null : obj.equals(tmp) : obj + " != " + tmp;
+        }
+
+        byte[] bytes="bla".getBytes();
+        assert Arrays.equals(bytes, (byte[])roundtrip(m, bytes));
+        Object[] array={1, "two", null, new byte[]{3}};
+        Object[] array2=(Object[])roundtrip(m, array);
+        assert array2.length == 4 && array2[0].equals(1) && array2[1].equals("two") && array2[2] == null;
+
+        Cache.Value<String> val=(Cache.Value<String>)roundtrip(m, new Cache.Value<String>("bela", 5000));
+        assert val.getValue().equals("bela") && val.getTimeout() == 5000;
+    }
+
+    /** Strings longer than the 64K limit of writeUTF() */
+    public void testLongString() throws Exception {
+        StringBuilder sb=new StringBuilder();
+        for(int i=0; i < 70000; i++)
+            sb.append((char)('a' + i % 26));
+        String str=sb.toString();
+        assert str.equals(roundtrip(new CodecMarshaller(), str));
+    }
+
+    public void testCompactness() throws Exception {
+        CodecMarshaller m=new CodecMarshaller();
+        MethodCall call=new MethodCall((short)1, "key", 42, true);
+        int size=m.objectToBuffer(call).getLength();
+        int old_size=Util.objectToByteBuffer(call).length;
+        System.out.println("size of " + call + ": " + size + " (Util.objectToByteBuffer(): " + old_size + ")");
+        assert size < old_size;
+        assert m.objectToBuffer(7).getLength() == 2; // type ID + 1 byte varint
+    }
+
+    public void testMethodCall() throws Exception {
+        CodecMarshaller m=new CodecMarshaller();
+        MethodCall call=(MethodCall)roundtrip(m, new MethodCall((short)22, "key", 42L, null));
+        assert call.getMode() == MethodCall.ID && call.getId() == 22;
+        assert call.getArgs().length == 3 && call.getArgs()[0].equals("key") && call.getArgs()[1].equals(42L);
+
+        call=(MethodCall)roundtrip(m, new MethodCall("foo", new Object[]{1, "bar"}, new Class[]{int.class, String.class}));
+        assert call.getMode() == MethodCall.TYPES && call.getName().equals("foo");
+        assert Arrays.equals(call.getArgs(), new Object[]{1, "bar"});
+        assert Arrays.equals(call.types, new Class[]{int.class, String.class});
+
+        call=(MethodCall)roundtrip(m, new MethodCall(CodecMarshallerTest.class.getMethod("foo", int.class), 5));
+        assert call.getMode() == MethodCall.METHOD && call.getName().equals("foo");
+        assert call.invoke(new CodecMarshallerTest()).equals(10);
+
+        call=(MethodCall)roundtrip(m, new MethodCall((short)1));
+        assert call.getArgs() == null;
+    }
+
+    public void testRegisteredType() throws Exception {
+        CodecMarshaller m=new CodecMarshaller();
+        Person p=new Person("Bela", 48);
+        Buffer buf=m.objectToBuffer(p);
+        assert roundtrip(m, p).equals(p); // serialized
+        m.register(CodecMarshaller.MIN_USER_ID, Person.class, new PersonCodec());
+        assert m.isRegistered(Person.class);
+        Buffer buf2=m.objectToBuffer(p);
+        assert buf2.getLength() < buf.getLength();
+        assert m.objectFromBuffer(buf2.getBuf(), buf2.getOffset(), buf2.getLength()).equals(p);
+
+        // nested in a method call
+        MethodCall call=(MethodCall)roundtrip(m, new MethodCall((short)1, p, new Object[]{p}));
+        assert call.getArgs()[0].equals(p) && ((Object[])call.getArgs()[1])[0].equals(p);
+
+        m.unregister(Person.class);
+        assert !m.isRegistered(Person.class);
+        assert roundtrip(m, p).equals(p);
+    }
+
+    public void testInvalidRegistration() {
+        CodecMarshaller m=new CodecMarshaller();
+        try {
+            m.register(1, Person.class, new PersonCodec());
+            assert false : "IDs below MIN_USER_ID are reserved";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+        m.register(100, Person.class, new PersonCodec());
+        try {
+            m.register(101, Person.class, new PersonCodec());
+            assert false : "Person is already registered";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    public void testUnknownId() throws Exception {
+        CodecMarshaller m=new CodecMarshaller().register(100, Person.class, new PersonCodec());
+        Buffer buf=m.objectToBuffer(new Person("Bela", 48));
+        try {
+            new CodecMarshaller().objectFromBuffer(buf.getBuf(), buf.getOffset(), buf.getLength());
+            assert false : "the receiver has no codec for ID 100";
+        }
+        catch(IllegalStateException expected) {
+        }
+    }
+
+    public void testBufferIsNotReused() throws Exception {
+        CodecMarshaller m=new CodecMarshaller();
+        Buffer buf=m.objectToBuffer("hello");
+        m.objectToBuffer("world");
+        assert m.objectFromBuffer(buf.getBuf(), buf.getOffset(), buf.getLength()).equals("hello");
+    }
+
+    public void testOffset() throws Exception {
+        CodecMarshaller m=new CodecMarshaller();
+        Buffer buf=m.objectToBuffer("hello");
+        byte[] tmp=new byte[buf.getLength() + 10];
+        System.arraycopy(buf.getBuf(), 0, tmp, 5, buf.getLength());
+        assert m.objectFromBuffer(tmp, 5, buf.getLength()).equals("hello");
+    }
+
+    /** A codec marshalling a nested object into a byte[] must not overwrite the thread's buffer */
+    public void testReentrantMarshalling() throws Exception {
+        CodecMarshaller m=new CodecMarshaller();
+        m.register(CodecMarshaller.MIN_USER_ID, Person.class, new CodecMarshaller.Codec<Person>() {
+            public void write(Person obj, DataOutput out, CodecMarshaller marshaller) throws Exception {
+                Buffer buf=marshaller.objectToBuffer(obj.name);
+                out.writeInt(buf.getLength());
+                out.write(buf.getBuf(), buf.getOffset(), buf.getLength());
+                out.writeInt(obj.age);
+            }
+
+            public Person read(DataInput in, CodecMarshaller marshaller) throws Exception {
+                byte[] buf=new byte[in.readInt()];
+                in.readFully(buf);
+                return new Person((String)marshaller.objectFromBuffer(buf, 0, buf.length), in.readInt());
+            }
+        });
+        List<Object> list=new ArrayList<Object>(Arrays.asList("before", new Person("Bela", 50), "after"));
+        assert list.equals(roundtrip(m, list));
+    }
+
+
+    public static int foo(int num) {return num * 2;}
+
+    protected static Object roundtrip(CodecMarshaller m, Object obj) throws Exception {
+        Buffer buf=m.objectToBuffer(obj);
+        return m.objectFromBuffer(buf.getBuf(), buf.getOffset(), buf.getLength());
+    }
+
+
+    protected static class Person implements java.io.Serializable {
+        private static final long serialVersionUID=-5178946437447467519L;
+        protected final String name;
+        protected final int    age;
+
+        public Person(String name, int age) {
+            this.name=name;
+            this.age=age;
+        }
+
+        public boolean equals(Object obj) {
+            return obj instanceof Person && name.equals(((Person)obj).name) && age == ((Person)obj).age;
+        }
+
+        public int hashCode() {return name.hashCode();}
+
+        public String toString() {return name + " (" + age + ")";}
+    }
+
+    protected static class PersonCodec implements CodecMarshaller.Codec<Person> {
+        public void write(Person obj, DataOutput out, CodecMarshaller marshaller) throws Exception {
+            out.writeUTF(obj.name);
+            out.writeInt(obj.age);
+        }
+
+        public Person read(DataInput in, CodecMarshaller marshaller) throws Exception {
+            return new Person(in.readUTF(), in.readInt());
+        }
+    }
+}
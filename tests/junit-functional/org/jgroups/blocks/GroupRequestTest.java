@@ -6,6 +6,7 @@ import org.jgroups.Global;
 import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.protocols.relay.SiteUUID;
+import org.jgroups.util.FutureListener;
 import org.jgroups.util.RspList;
 import org.jgroups.util.UUID;
 import org.jgroups.util.Util;
@@ -20,6 +21,8 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * @author Bela Ban
@@ -136,6 +139,27 @@ public class GroupRequestTest {
         Assert.assertEquals(2, results.numReceived());
     }
 
+    /** A request completed early by its RspFilter notifies the listener, and a later timeout doesn't notify it again */
+    public void testListenerNotifiedWhenFilterCompletesRequest() {
+        dests.add(c);
+        GroupRequest<Long> req=new GroupRequest<Long>(new Message(), null, dests, new RequestOptions(ResponseMode.GET_ALL, 10000));
+        req.setResponseFilter(new RspFilter() {
+            public boolean isAcceptable(Object response, Address sender) {return true;}
+            public boolean needMoreResponses() {return false;} // the first response completes the request
+        });
+        final AtomicInteger notifications=new AtomicInteger();
+        req.setListener(new FutureListener() {
+            public void futureDone(Future future) {notifications.incrementAndGet();}
+        });
+
+        req.receiveResponse(1L, a, false);
+        assert req.isDone();
+        assert notifications.get() == 1 : "listener was notified " + notifications.get() + " times";
+        req.timeout();
+        req.receiveResponse(2L, b, false);
+        assert notifications.get() == 1 : "listener was notified " + notifications.get() + " times";
+    }
+
     /**
      * Tests reception of 3 null values, which are all rejected by the NonNullFilter. However, isDone() returns true
      * because we received responses for all 3 requests, even though all of them were rejected. If we continued here,
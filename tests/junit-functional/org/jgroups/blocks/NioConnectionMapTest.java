@@ -0,0 +1,309 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.stack.IpAddress;
+import org.jgroups.util.*;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Tests {@link NioConnectionMap}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class NioConnectionMapTest {
+    protected NioConnectionMap  ct1, ct2;
+    protected TCPConnectionMap  tcp;
+    protected int               PORT1, PORT2;
+    protected Address           addr1, addr2;
+    static final InetAddress    loopback_addr;
+
+    static {
+        try {
+            StackType type=Util.getIpStackType();
+            String tmp=type == StackType.IPv6? "::1" : "127.0.0.1";
+            loopback_addr=InetAddress.getByName(tmp);
+        }
+        catch(UnknownHostException e) {
+            throw new RuntimeException("failed initializing loopback_addr", e);
+        }
+    }
+
+
+    @BeforeMethod
+    protected void init() throws Exception {
+        List<Short> ports=ResourceManager.getNextTcpPorts(loopback_addr, 2);
+        PORT1=ports.get(0);
+        PORT2=ports.get(1);
+        addr1=new IpAddress(loopback_addr, PORT1);
+        addr2=new IpAddress(loopback_addr, PORT2);
+    }
+
+    @AfterMethod
+    protected void tearDown() throws Exception {
+        for(NioConnectionMap ct: new NioConnectionMap[]{ct2, ct1})
+            if(ct != null)
+                ct.stop();
+        ct1=ct2=null;
+        if(tcp != null) {
+            tcp.stop();
+            tcp=null;
+        }
+    }
+
+
+    public void testSendAndReceive() throws Exception {
+        MyReceiver r1=new MyReceiver(), r2=new MyReceiver();
+        ct1=create(r1, PORT1);
+        ct2=create(r2, PORT2);
+
+        int[] sizes={1, 10, 1000, 8192, 10000, 100000, 5};
+        for(int i=0; i < sizes.length; i++)
+            ct1.send(addr2, create(sizes[i], i), 0, sizes[i]);
+        r2.waitFor(sizes.length);
+        r2.check(sizes);
+
+        for(int i=0; i < sizes.length; i++) // other direction, uses the same connection
+            ct2.send(addr1, create(sizes[i], i), 0, sizes[i]);
+        r1.waitFor(sizes.length);
+        r1.check(sizes);
+        waitForConnections(1, ct1, ct2);
+    }
+
+    /** Sends more data than the socket buffers can hold, so frames are queued and written by the reactor */
+    public void testSendWithQueuedFrames() throws Exception {
+        MyReceiver r2=new MyReceiver();
+        ct1=create(new MyReceiver(), PORT1);
+        ct2=create(r2, PORT2);
+        int num=200, size=50000;
+        int[] sizes=new int[num];
+        byte[] buf=new byte[size];
+        for(int i=0; i < num; i++) {
+            sizes[i]=size;
+            create(buf, i);
+            ct1.send(addr2, buf, 0, size); // reuses buf: the map has to copy whatever is queued
+        }
+        r2.waitFor(num);
+        r2.check(sizes);
+    }
+
+    public void testGatheringSend() throws Exception {
+        MyReceiver r2=new MyReceiver();
+        ct1=create(new MyReceiver(), PORT1);
+        ct2=create(r2, PORT2);
+        byte[] data=create(3000, 0);
+        ByteBuffer direct=ByteBuffer.allocateDirect(2000);
+        direct.put(data, 1000, 2000).flip();
+        Buffers bufs=new Buffers(2).add(data, 0, 1000).add(direct);
+        ct1.send(addr2, bufs);
+        ct1.send(addr2, bufs); // the positions of the buffers must not have changed
+        assert direct.position() == 0 && direct.remaining() == 2000;
+        r2.waitFor(2);
+        for(byte[] buf: r2.list)
+            assert Arrays.equals(buf, data);
+    }
+
+    public void testConcurrentConnect() throws Exception {
+        MyReceiver r1=new MyReceiver(), r2=new MyReceiver();
+        ct1=create(r1, PORT1);
+        ct2=create(r2, PORT2);
+        byte[] data={'b', 'e', 'l', 'a'};
+        ct1.send(addr2, data, 0, data.length);
+        ct2.send(addr1, data, 0, data.length);
+        waitForConnections(1, ct1, ct2);
+        assert ct1.connectionEstablishedTo(addr2);
+        assert ct2.connectionEstablishedTo(addr1);
+    }
+
+    /** The wire format is the same as that of TCPConnectionMap, so the two can talk to each other */
+    public void testInteroperabilityWithTCPConnectionMap() throws Exception {
+        MyReceiver r1=new MyReceiver(), r2=new MyReceiver();
+        ct1=create(r1, PORT1);
+        tcp=new TCPConnectionMap("NioConnectionMapTest", new DefaultThreadFactory("NioConnectionMapTest", true),
+                                 null, r2, loopback_addr, null, 0, PORT2, PORT2);
+        tcp.start();
+        int[] sizes={10, 20000};
+        for(int i=0; i < sizes.length; i++)
+            ct1.send(addr2, create(sizes[i], i), 0, sizes[i]);
+        r2.waitFor(sizes.length);
+        r2.check(sizes);
+
+        for(int i=0; i < sizes.length; i++)
+            tcp.send(addr1, create(sizes[i], i), 0, sizes[i]);
+        r1.waitFor(sizes.length);
+        r1.check(sizes);
+    }
+
+    /** A duplicate connection which is rejected must not make listeners think that the connection to the peer closed */
+    public void testRejectedDuplicateConnection() throws Exception {
+        ct1=create(new MyReceiver(), PORT1);
+        ct2=create(new MyReceiver(), PORT2);
+        byte[] data={'b', 'e', 'l', 'a'};
+        ct1.send(addr2, data, 0, data.length);
+        waitForConnections(1, ct1, ct2);
+
+        // the side with the bigger address keeps its connection and rejects the duplicate from the smaller address
+        boolean first_is_bigger=addr1.compareTo(addr2) > 0;
+        NioConnectionMap bigger=first_is_bigger? ct1 : ct2;
+        Address smaller_addr=first_is_bigger? addr2 : addr1, bigger_addr=first_is_bigger? addr1 : addr2;
+        final List<Address> closed=Collections.synchronizedList(new ArrayList<Address>());
+        bigger.addConnectionMapListener(new AbstractConnectionMap.ConnectionMapListener<NioConnectionMap.NioConnection>() {
+            public void connectionClosed(Address address) {closed.add(address);}
+            public void connectionOpened(Address address, NioConnectionMap.NioConnection conn) {}
+        });
+
+        Socket sock=new Socket(loopback_addr, ((IpAddress)bigger_addr).getPort());
+        try {
+            ByteBuffer handshake=NioConnectionMap.createHandshake(smaller_addr);
+            sock.getOutputStream().write(handshake.array(), handshake.arrayOffset(), handshake.remaining());
+            sock.getOutputStream().flush();
+            for(int i=0; i < 20 && sock.getInputStream().read() >= 0; i++) // the duplicate is closed by bigger
+                ;
+        }
+        finally {
+            Util.close(sock);
+        }
+        assert closed.isEmpty() : "listener was notified about closed connection(s) to " + closed;
+        assert bigger.getNumConnections() == 1 && bigger.connectionEstablishedTo(smaller_addr);
+    }
+
+    /** Frames are copied by default, so a receiver can keep them after its callback returned */
+    public void testRetainedFrames() throws Exception {
+        RetainingReceiver r2=new RetainingReceiver();
+        ct1=create(new MyReceiver(), PORT1);
+        ct2=create(r2, PORT2);
+        int num=100, size=100; // multiple frames per read
+        int[] sizes=new int[num];
+        for(int i=0; i < num; i++) {
+            sizes[i]=size;
+            ct1.send(addr2, create(size, i), 0, size);
+        }
+        r2.waitFor(num);
+        r2.check(sizes);
+    }
+
+    /** An accepted connection which doesn't send the handshake is closed after peer_addr_read_timeout ms */
+    public void testHandshakeTimeout() throws Exception {
+        ct1=new NioConnectionMap(new DefaultThreadFactory("NioConnectionMapTest", true), new MyReceiver(),
+                                 loopback_addr, null, 0, PORT1, PORT1, 0, 0, 2).peerAddressReadTimeout(500);
+        ct1.start();
+        Socket sock=new Socket(loopback_addr, PORT1);
+        try {
+            sock.setSoTimeout(10000);
+            long start=System.currentTimeMillis();
+            assert sock.getInputStream().read() == -1;
+            long time=System.currentTimeMillis() - start;
+            assert time < 5000 : "connection was closed after " + time + " ms";
+        }
+        finally {
+            Util.close(sock);
+        }
+    }
+
+    public void testStop() throws Exception {
+        ct1=create(new MyReceiver(), PORT1);
+        ct2=create(new MyReceiver(), PORT2);
+        byte[] data={'b', 'e', 'l', 'a'};
+        ct1.send(addr1, data, 0, data.length); // send to self
+        assert ct1.getNumConnections() == 0;
+        ct1.send(addr2, data, 0, data.length);
+        waitForConnections(1, ct1, ct2);
+        ct2.stop();
+        ct1.stop();
+        assert ct1.getNumConnections() == 0 : "ct1 should have 0 connections: " + ct1;
+        assert ct2.getNumConnections() == 0 : "ct2 should have 0 connections: " + ct2;
+    }
+
+
+    protected NioConnectionMap create(TCPConnectionMap.Receiver r, int port) throws Exception {
+        NioConnectionMap ct=new NioConnectionMap(new DefaultThreadFactory("NioConnectionMapTest", true), r,
+                                                 loopback_addr, null, 0, port, port, 0, 0, 2)
+          .readBufferSize(1024);
+        ct.start();
+        return ct;
+    }
+
+    protected static void waitForConnections(int expected, NioConnectionMap ... maps) {
+        for(int i=0; i < 20; i++) {
+            boolean done=true;
+            for(NioConnectionMap map: maps)
+                if(map.getNumConnections() != expected)
+                    done=false;
+            if(done)
+                break;
+            Util.sleep(500);
+        }
+        for(NioConnectionMap map: maps)
+            assert map.getNumConnections() == expected : "expected " + expected + " connections: " + map;
+    }
+
+    /** Creates a buffer where each byte is (seqno + index) */
+    protected static byte[] create(int size, int seqno) {
+        return create(new byte[size], seqno);
+    }
+
+    protected static byte[] create(byte[] buf, int seqno) {
+        for(int i=0; i < buf.length; i++)
+            buf[i]=(byte)(seqno + i);
+        return buf;
+    }
+
+
+    protected static class MyReceiver implements TCPConnectionMap.Receiver {
+        protected final List<byte[]> list=Collections.synchronizedList(new ArrayList<byte[]>());
+
+        public void receive(Address sender, byte[] data, int offset, int length) {
+            byte[] copy=new byte[length]; // data is only valid until we return
+            System.arraycopy(data, offset, copy, 0, length);
+            list.add(copy);
+        }
+
+        protected void waitFor(int num) {
+            for(int i=0; i < 20 && list.size() < num; i++)
+                Util.sleep(500);
+            assert list.size() == num : "expected " + num + " frames, but got " + list.size();
+        }
+
+        /** Checks that the frames were received in order, and that their contents are correct */
+        protected void check(int ... sizes) {
+            for(int i=0; i < sizes.length; i++) {
+                byte[] buf=list.get(i);
+                assert buf.length == sizes[i] : "expected " + sizes[i] + " bytes, but got " + buf.length;
+                for(int j=0; j < buf.length; j++)
+                    assert buf[j] == (byte)(i + j) : "frame #" + i + ": wrong byte at index " + j;
+            }
+        }
+    }
+
+    /** Keeps references to the passed data, and only reads it in check() */
+    protected static class RetainingReceiver extends MyReceiver {
+        protected final List<int[]> ranges=Collections.synchronizedList(new ArrayList<int[]>());
+
+        public void receive(Address sender, byte[] data, int offset, int length) {
+            synchronized(list) {
+                list.add(data);
+                ranges.add(new int[]{offset, length});
+            }
+        }
+
+        protected void check(int ... sizes) {
+            for(int i=0; i < list.size(); i++) {
+                int[] range=ranges.get(i);
+                list.set(i, Arrays.copyOfRange(list.get(i), range[0], range[0] + range[1]));
+            }
+            super.check(sizes);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.View;
+import org.jgroups.util.Util;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.*;
+
+/**
+ * Tests the segment ownership ({@link PartitionedHashMap.ConsistentHash}) of {@link PartitionedHashMap}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class PartitionedHashMapTest {
+    protected static final int NUM_SEGMENTS=256, NUM_OWNERS=2;
+    protected List<Address> members;
+
+    @BeforeMethod
+    protected void setup() {
+        members=new ArrayList<Address>();
+        for(int i=0; i < 5; i++)
+            members.add(Util.createRandomAddress(String.valueOf((char)('A' + i))));
+    }
+
+
+    public void testOwnersAreDistinct() {
+        PartitionedHashMap.ConsistentHash<String> hash=create(members);
+        for(int i=0; i < NUM_SEGMENTS; i++) {
+            Address[] owners=hash.owners(i);
+            assert owners.length == NUM_OWNERS;
+            assert !owners[0].equals(owners[1]) : Arrays.toString(owners);
+        }
+    }
+
+    public void testSameOwnersOnAllMembers() {
+        List<Address> shuffled=new ArrayList<Address>(members);
+        Collections.shuffle(shuffled);
+        PartitionedHashMap.ConsistentHash<String> hash=create(members), hash2=create(shuffled);
+        for(int i=0; i < NUM_SEGMENTS; i++)
+            assert Arrays.equals(hash.owners(i), hash2.owners(i));
+        for(int i=0; i < 1000; i++) {
+            String key="key-" + i;
+            assert hash.segmentOf(key) == hash2.segmentOf(key);
+            assert hash.primary(key).equals(hash2.primary(key));
+        }
+    }
+
+    public void testSingleMember() {
+        PartitionedHashMap.ConsistentHash<String> hash=create(members.subList(0, 1));
+        for(int i=0; i < NUM_SEGMENTS; i++)
+            assert hash.owners(i).length == 1 && hash.owners(i)[0].equals(members.get(0));
+    }
+
+    public void testBalance() {
+        PartitionedHashMap.ConsistentHash<String> hash=create(members);
+        Map<Address,Integer> primaries=new HashMap<Address,Integer>();
+        for(int i=0; i < NUM_SEGMENTS; i++) {
+            Address primary=hash.owners(i)[0];
+            Integer count=primaries.get(primary);
+            primaries.put(primary, count == null? 1 : count + 1);
+        }
+        System.out.println("primary segments: " + primaries);
+        assert primaries.size() == members.size();
+        for(int count: primaries.values())
+            assert count >= NUM_SEGMENTS / members.size() / 3 : "primary segments: " + primaries;
+    }
+
+    /** Only segments which the left member owned may get different owners, and the other owners must stay */
+    public void testLeave() {
+        Address left=members.get(2);
+        List<Address> new_members=new ArrayList<Address>(members);
+        new_members.remove(left);
+        PartitionedHashMap.ConsistentHash<String> hash=create(members), new_hash=create(new_members);
+        int moved=0;
+        for(int i=0; i < NUM_SEGMENTS; i++) {
+            Address[] old_owners=hash.owners(i), new_owners=new_hash.owners(i);
+            if(!PartitionedHashMap.ConsistentHash.contains(old_owners, left)) {
+                assert Arrays.equals(old_owners, new_owners);
+                continue;
+            }
+            moved++;
+            for(Address owner: old_owners)
+                if(!owner.equals(left))
+                    assert PartitionedHashMap.ConsistentHash.contains(new_owners, owner);
+        }
+        System.out.println(moved + " of " + NUM_SEGMENTS + " segments got a new owner");
+        assert moved < NUM_SEGMENTS * NUM_OWNERS * 2 / members.size();
+    }
+
+    /** Only segments which the joiner owns may get different owners */
+    public void testJoin() {
+        List<Address> new_members=new ArrayList<Address>(members);
+        Address joiner=Util.createRandomAddress("F");
+        new_members.add(joiner);
+        PartitionedHashMap.ConsistentHash<String> hash=create(members), new_hash=create(new_members);
+        for(int i=0; i < NUM_SEGMENTS; i++) {
+            Address[] old_owners=hash.owners(i), new_owners=new_hash.owners(i);
+            if(!PartitionedHashMap.ConsistentHash.contains(new_owners, joiner))
+                assert Arrays.equals(old_owners, new_owners);
+        }
+    }
+
+    /** Keys put or removed after a view change must not be overwritten by transferred (older) values */
+    public void testTransferSkipsUpdatedKeys() {
+        PartitionedHashMap<String,String> map=new PartitionedHashMap<String,String>(null, "PartitionedHashMapTest");
+        View view=View.create(members.get(0), 2, members.toArray(new Address[members.size()]));
+        map._put("b", "old", 0);
+        map.startTracking(view);
+        map._put("a", "new", 0);
+        map._remove("b");
+        transfer(map, "a", "b", "c");
+        Cache<String,String> cache=map.getL2Cache();
+        assert "new".equals(cache.get("a"));
+        assert cache.get("b") == null;
+        assert "old".equals(cache.get("c"));
+
+        map._transferDone(1, members.get(0)); // from a previous view: ignored
+        for(Address mbr: members.subList(1, members.size()))
+            map._transferDone(2, mbr);
+        transfer(map, "b");
+        assert cache.get("b") == null : "transfers of view 2 have not yet completed";
+
+        map._transferDone(2, members.get(0));
+        transfer(map, "b");
+        assert "old".equals(cache.get("b")) : "updated keys are not tracked anymore";
+    }
+
+    protected static void transfer(PartitionedHashMap<String,String> map, String ... keys) {
+        Object[] values=new Object[keys.length];
+        for(int i=0; i < keys.length; i++)
+            values[i]=new Cache.Value<String>("old", 0);
+        map._transfer(keys, values);
+    }
+
+    protected static PartitionedHashMap.ConsistentHash<String> create(List<Address> mbrs) {
+        return new PartitionedHashMap.ConsistentHash<String>(mbrs, NUM_SEGMENTS, NUM_OWNERS);
+    }
+}
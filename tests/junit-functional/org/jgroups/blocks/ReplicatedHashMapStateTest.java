@@ -0,0 +1,177 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Tests the batched state transfer of {@link ReplicatedHashMap}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ReplicatedHashMapStateTest {
+    protected static final int NUM_ENTRIES=1000;
+    protected JChannel                         a, b;
+    protected ReplicatedHashMap<String,String> provider, requester;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=new JChannel();
+        b=new JChannel();
+        provider=new ReplicatedHashMap<String,String>(a);
+        requester=new ReplicatedHashMap<String,String>(b);
+        provider.setStateBatchSize(10);
+        for(int i=0; i < NUM_ENTRIES; i++)
+            provider._put("key-" + i, "val-" + i);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(a, b);
+    }
+
+
+    public void testStateTransfer() throws Exception {
+        requester.setState(new ByteArrayInputStream(getState()));
+        assert requester.size() == NUM_ENTRIES;
+        assert requester.equals(provider);
+        int[] missing=requester.missingSegments();
+        assert missing != null && missing.length == 0 : Arrays.toString(missing);
+    }
+
+    /** Updates received during the state transfer must not be overwritten by the (older) entries of the state */
+    public void testUpdatesDuringStateTransfer() throws Exception {
+        byte[] state=getState();
+        requester.beginStateTransfer();
+        try {
+            requester._put("key-1", "live");
+            requester._remove("key-2");
+            requester._put("new-key", "new-val");
+            requester.setState(new ByteArrayInputStream(state));
+        }
+        finally {
+            requester.endStateTransfer();
+        }
+        assert requester.get("key-1").equals("live");
+        assert !requester.containsKey("key-2");
+        assert requester.get("new-key").equals("new-val");
+        assert requester.get("key-3").equals("val-3");
+        assert requester.size() == NUM_ENTRIES;
+
+        requester._put("key-1", "after"); // updates after the state transfer are not tracked anymore
+        assert requester.updated_keys == null;
+    }
+
+    public void testClearDuringStateTransfer() throws Exception {
+        byte[] state=getState();
+        requester.beginStateTransfer();
+        try {
+            requester._clear();
+            requester.setState(new ByteArrayInputStream(state));
+        }
+        finally {
+            requester.endStateTransfer();
+        }
+        assert requester.isEmpty();
+    }
+
+    /** A state transfer which fails midway is completed by fetching only the missing segments */
+    public void testResume() throws Exception {
+        byte[] state=getState();
+        byte[] truncated=Arrays.copyOf(state, state.length / 2);
+        requester.beginStateTransfer();
+        try {
+            try {
+                requester.setState(new ByteArrayInputStream(truncated));
+                assert false : "reading a truncated state should have failed";
+            }
+            catch(Exception expected) {
+                System.out.println("caught expected exception: " + expected);
+            }
+            int[] missing=requester.missingSegments();
+            System.out.println("missing segments: " + Arrays.toString(missing));
+            assert missing != null && missing.length > 0 && missing.length < provider.getNumStateSegments();
+            assert requester.size() > 0 && requester.size() < NUM_ENTRIES;
+
+            final BitSet requested=new BitSet();
+            for(int segment: missing)
+                requested.set(segment);
+            provider.writeState(provider.getNumStateSegments(), requested, new ReplicatedHashMap.BatchWriter() {
+                public boolean write(byte[] batch, int length) throws Exception {
+                    DataInputStream in=new DataInputStream(new ByteArrayInputStream(batch, 0, length));
+                    requester.readBatch(in.readInt(), in);
+                    return true;
+                }
+            });
+        }
+        finally {
+            requester.endStateTransfer();
+        }
+        assert requester.missingSegments().length == 0;
+        assert requester.equals(provider);
+    }
+
+    /** The segments requested to resume a state transfer are written by a daemon thread of the channel's thread factory */
+    public void testGetStateUsesThreadFactory() throws Exception {
+        final List<Thread> threads=new ArrayList<Thread>();
+        a.getProtocolStack().getTransport().setThreadFactory(new DefaultThreadFactory("test", false) {
+            public Thread newThread(Runnable r, String name) {
+                Thread thread=super.newThread(r, name);
+                threads.add(thread);
+                return thread;
+            }
+        });
+        ResponseStream<byte[]> stream=provider._getState(provider.getNumStateSegments(), new int[]{0, 1});
+        for(int i=0; i < 20 && !stream.isClosed(); i++)
+            Util.sleep(100);
+        assert stream.isClosed() && stream.exception == null;
+        assert threads.size() == 1 : "threads: " + threads;
+        Thread thread=threads.get(0);
+        assert thread.isDaemon() && thread.getName().contains("ReplicatedHashMap-state") : thread;
+
+        requester.beginStateTransfer();
+        try {
+            for(byte[] batch: stream.pending) {
+                DataInputStream in=new DataInputStream(new ByteArrayInputStream(batch));
+                requester.readBatch(in.readInt(), in);
+            }
+        }
+        finally {
+            requester.endStateTransfer();
+        }
+        for(String key: provider.keySet()) {
+            int segment=ReplicatedHashMap.segmentOf(key, provider.getNumStateSegments());
+            assert requester.containsKey(key) == (segment == 0 || segment == 1) : key + " (segment " + segment + ")";
+        }
+    }
+
+    public void testCancelledWriter() throws Exception {
+        final int[] batches={0};
+        provider.writeState(provider.getNumStateSegments(), null, new ReplicatedHashMap.BatchWriter() {
+            public boolean write(byte[] batch, int length) throws Exception {
+                return ++batches[0] < 3;
+            }
+        });
+        assert batches[0] == 3;
+    }
+
+
+    protected byte[] getState() throws Exception {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        provider.getState(out);
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,171 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Event;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.View;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests the handling of cancelled requests by {@link RequestCorrelator}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class RequestCorrelatorTest {
+    protected static final short ID=1;
+    protected Address            a, b;
+    protected RequestCorrelator  corr;
+
+    @BeforeMethod
+    protected void setup() {
+        a=Util.createRandomAddress("A");
+        b=Util.createRandomAddress("B");
+        corr=new RequestCorrelator(ID, null, null, Util.createRandomAddress("C"));
+    }
+
+    /** Request IDs are only unique per sender, so a cancellation from A must not cancel B's request with the same ID */
+    public void testCancellationIsPerSender() {
+        corr.requestStarted(1, a);
+        corr.requestStarted(1, b);
+        cancel(a, 1);
+        assert !corr.wasCancelled(1, b);
+        assert corr.wasCancelled(1, a);
+        corr.requestDone(1, a);
+        assert !corr.wasCancelled(1, a) : "the cancellation should have been removed";
+        assert corr.getNumCancelledRequests() == 0;
+    }
+
+    /** A cancellation which is received before its request causes the request to be dropped */
+    public void testCancellationBeforeRequest() {
+        corr.requestStarted(1, a);
+        corr.requestDone(1, a);
+        cancel(a, 2);
+        assert corr.getNumCancelledRequests() == 1;
+        corr.requestStarted(2, a);
+        assert corr.wasCancelled(2, a);
+        corr.requestDone(2, a);
+        assert corr.getNumCancelledRequests() == 0;
+    }
+
+    /** A cancellation of a request which was already answered must not be kept */
+    public void testCancellationAfterResponse() {
+        corr.requestStarted(1, a);
+        corr.requestStarted(2, a);
+        corr.requestDone(2, a);
+        cancel(a, 2);
+        assert corr.getNumCancelledRequests() == 0 : "the cancellation of an answered request was kept";
+        cancel(a, 1);
+        assert corr.getNumCancelledRequests() == 1;
+        cancel(a, 1); // duplicate
+        assert corr.getNumCancelledRequests() == 1;
+        corr.requestDone(1, a);
+        assert corr.getNumCancelledRequests() == 0;
+    }
+
+    /** When the table is full, only the oldest cancellations of requests which weren't received are evicted */
+    public void testEvictionOfOldestCancellations() {
+        corr.setMaxCancelledRequests(3);
+        for(int i=1; i <= 5; i++)
+            cancel(a, i);
+        assert corr.getNumCancelledRequests() == 3;
+        for(int i=1; i <= 5; i++)
+            corr.requestStarted(i, a);
+        assert !corr.wasCancelled(1, a) && !corr.wasCancelled(2, a);
+        for(int i=3; i <= 5; i++)
+            assert corr.wasCancelled(i, a) : "cancellation of request " + i + " should not have been evicted";
+    }
+
+
+    /** The requests and cancellations of members which left are removed on a view change */
+    public void testDepartedSendersArePurged() {
+        corr.requestStarted(1, a);
+        corr.requestStarted(1, b);
+        cancel(a, 1);
+        cancel(a, 5); // not yet received
+        assert corr.getNumCancelledRequests() == 2;
+        corr.receiveView(View.create(b, 2, b));
+        assert corr.getNumCancelledRequests() == 0;
+        assert !corr.senders.containsKey(a) && corr.senders.containsKey(b);
+        assert !corr.wasCancelled(1, a);
+        corr.requestDone(1, a); // the response to a departed member
+        assert corr.getNumCancelledRequests() == 0;
+    }
+
+    /** A cancellation to more than one member is sent as a single multicast, excluding the other members */
+    public void testCancellationIsMulticast() throws Exception {
+        final List<Message> sent=new ArrayList<Message>();
+        Protocol transport=new Protocol() {
+            public Object down(Event evt) {
+                if(evt.getType() == Event.MSG)
+                    sent.add((Message)evt.getArg());
+                return null;
+            }
+        };
+        Address c=Util.createRandomAddress("C");
+        corr=new RequestCorrelator(ID, transport, null, a);
+        corr.receiveView(View.create(a, 1, a, b, c));
+
+        corr.sendCancellation(1, Arrays.asList(b, c));
+        assert sent.size() == 1;
+        Message msg=sent.remove(0);
+        assert msg.getDest() == null && msg.isFlagSet(Message.Flag.OOB);
+        RequestCorrelator.MultiDestinationHeader hdr=(RequestCorrelator.MultiDestinationHeader)msg.getHeader(ID);
+        assert hdr.type == RequestCorrelator.Header.CANCEL && hdr.id == 1;
+        assert Arrays.equals(hdr.exclusion_list, new Address[]{a});
+
+        corr.sendCancellation(2, Arrays.asList(b));
+        assert sent.size() == 1 && b.equals(sent.get(0).getDest());
+    }
+
+    /** Without cancellations, starting a request and checking for a cancellation must not acquire the lock of the cancelled requests */
+    public void testNoLockingWithoutCancellations() throws Exception {
+        final CountDownLatch locked=new CountDownLatch(1), done=new CountDownLatch(1);
+        Thread holder=new Thread() {
+            public void run() {
+                synchronized(corr.cancelled_requests) {
+                    locked.countDown();
+                    try {done.await(10, TimeUnit.SECONDS);} catch(InterruptedException e) {}
+                }
+            }
+        };
+        holder.start();
+        try {
+            locked.await();
+            final AtomicBoolean cancelled=new AtomicBoolean(true);
+            Thread checker=new Thread() {
+                public void run() {
+                    corr.requestStarted(1, a);
+                    cancelled.set(corr.wasCancelled(1, a));
+                    corr.requestDone(1, a);
+                }
+            };
+            checker.start();
+            checker.join(5000);
+            assert !checker.isAlive() : "wasCancelled() blocked on the lock";
+            assert !cancelled.get();
+        }
+        finally {
+            done.countDown();
+            holder.join(10000);
+        }
+    }
+
+
+    protected void cancel(Address sender, long req_id) {
+        Message msg=new Message(null, sender, null)
+          .putHeader(ID, new RequestCorrelator.Header(RequestCorrelator.Header.CANCEL, req_id, false, ID));
+        assert corr.receiveMessage(msg);
+    }
+}
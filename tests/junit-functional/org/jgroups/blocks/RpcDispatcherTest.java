@@ -4,6 +4,7 @@ package org.jgroups.blocks;
 import org.jgroups.Address;
 import org.jgroups.Global;
 import org.jgroups.JChannel;
+import org.jgroups.Message;
 import org.jgroups.View;
 import org.jgroups.protocols.*;
 import org.jgroups.stack.Protocol;
@@ -13,9 +14,13 @@ import org.testng.annotations.BeforeMethod;
 import org.testng.annotations.Test;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A collection of tests to test the RpcDispatcher.
@@ -160,6 +165,160 @@ public class RpcDispatcherTest {
     }
 
 
+    public void testBatch() throws Exception {
+        List<MethodCall> calls=Arrays.asList(new MethodCall("foo", null, null),
+                                             new MethodCall("throwException", null, null),
+                                             new MethodCall("sleep", new Object[]{10L}, new Class[]{long.class}));
+        List<RspList<Object>> rsps=disp1.callRemoteMethodsBatch(null, calls, false, new RequestOptions(ResponseMode.GET_ALL, 5000));
+        System.out.println("rsps:\n" + rsps);
+        checkBatch(rsps);
+    }
+
+    public void testParallelBatch() throws Exception {
+        ExecutorService pool=Executors.newFixedThreadPool(12); // shared by all 3 members
+        try {
+            for(RpcDispatcher disp: Arrays.asList(disp1, disp2, disp3))
+                disp.setBatchExecutor(pool);
+            List<MethodCall> calls=new ArrayList<MethodCall>();
+            calls.add(new MethodCall("foo", null, null));
+            calls.add(new MethodCall("throwException", null, null));
+            for(int i=0; i < 4; i++) // each call waits (at most 5s) until all 4 calls are invoked concurrently
+                calls.add(new MethodCall("rendezvous", new Object[]{4}, new Class[]{int.class}));
+            List<RspList<Object>> rsps=disp1.callRemoteMethodsBatch(null, calls, true, new RequestOptions(ResponseMode.GET_ALL, 20000));
+            System.out.println("rsps:\n" + rsps);
+            checkBatch(rsps);
+            for(int i=2; i < rsps.size(); i++)
+                for(Rsp<Object> rsp: rsps.get(i).values())
+                    assert rsp.getValue().equals(4L) : "calls should have been invoked in parallel, but only " +
+                      rsp.getValue() + " of them overlapped";
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    protected void checkBatch(List<RspList<Object>> rsps) {
+        Map<Address,Integer> ids=new HashMap<Address,Integer>(3);
+        ids.put(a.getAddress(), 1); ids.put(b.getAddress(), 2); ids.put(c.getAddress(), 3);
+        assert rsps.get(0).size() == 3;
+        for(Map.Entry<Address,Integer> entry: ids.entrySet())
+            assert entry.getValue().equals(rsps.get(0).getValue(entry.getKey()));
+        for(Rsp<Object> rsp: rsps.get(1).values())
+            assert rsp.wasReceived() && rsp.getException() != null && rsp.getException().getMessage().equals("booom");
+        for(int i=2; i < rsps.size(); i++) {
+            assert rsps.get(i).size() == 3;
+            for(Rsp<Object> rsp: rsps.get(i).values())
+                assert rsp.wasReceived() && rsp.getException() == null && rsp.getValue() instanceof Long;
+        }
+    }
+
+
+    public void testAggregatedFirstN() throws Exception {
+        long start=System.currentTimeMillis();
+        List<Integer> rsps=disp1.callRemoteMethodsAggregated(null, new MethodCall("slowFoo", null, null),
+                                                             RequestOptions.SYNC(), RspAggregators.<Integer>firstN(1));
+        long time=System.currentTimeMillis() - start;
+        System.out.println("rsps (" + time + " ms): " + rsps);
+        assert rsps.size() == 1 && rsps.get(0) == 1;
+        assert time < 1000 : "call should have returned after the first response, but took " + time + " ms";
+        assert disp1.corr.getNumPendingRequests() == 0 : disp1.corr.getNumPendingRequests() + " pending requests";
+
+        // B and C were told not to send their responses: they either drop the request or don't send the response
+        for(int i=0; i < 40 && disp2.corr.getNumSkippedResponses() + disp3.corr.getNumSkippedResponses() < 2; i++)
+            Util.sleep(100);
+        assert disp2.corr.getNumSkippedResponses() == 1 && disp3.corr.getNumSkippedResponses() == 1
+          : "skipped responses: B=" + disp2.corr.getNumSkippedResponses() + ", C=" + disp3.corr.getNumSkippedResponses();
+        assert disp2.corr.getNumCancelledRequests() == 0 && disp3.corr.getNumCancelledRequests() == 0;
+    }
+
+    public void testAggregatedMajorityAndReduce() throws Exception {
+        Integer val=disp1.callRemoteMethodsAggregated(null, new MethodCall("foo", null, null),
+                                                      RequestOptions.SYNC(), RspAggregators.<Integer>majority());
+        assert val == null : "no majority of the members returned the same value: " + val;
+        val=disp1.callRemoteMethodsAggregated(null, new MethodCall("largeReturnValue", new Object[]{5}, new Class[]{int.class}),
+                                              RequestOptions.SYNC(), new RspAggregators.Reduce<byte[],Integer>(0) {
+              protected Integer reduce(Integer value, byte[] response, Address sender) {return value + response.length;}
+          });
+        assert val == 15 : "sum of lengths should be 15, but is " + val;
+        val=disp1.callRemoteMethodsAggregated(null, new MethodCall("foo", null, null),
+                                              RequestOptions.SYNC(), new RspAggregators.Reduce<Integer,Integer>(0) {
+              protected Integer reduce(Integer value, Integer response, Address sender) {return value + response;}
+          });
+        assert val == 6 : "sum should be 6, but is " + val;
+    }
+
+    public void testAggregatedWithFuture() throws Exception {
+        MyFutureListener<List<Integer>> listener=new MyFutureListener<List<Integer>>();
+        NotifyingFuture<List<Integer>> future=disp1.callRemoteMethodsAggregatedWithFuture(null, new MethodCall("foo", null, null),
+                                                                                         RequestOptions.SYNC(),
+                                                                                         RspAggregators.<Integer>firstN(3),
+                                                                                         listener);
+        List<Integer> rsps=future.get(5000, TimeUnit.MILLISECONDS);
+        System.out.println("rsps = " + rsps);
+        assert rsps.size() == 3 && rsps.containsAll(Arrays.asList(1, 2, 3));
+        for(int i=0; i < 20 && !listener.isDone(); i++)
+            Util.sleep(100);
+        assert listener.isDone() && listener.count() == 1;
+    }
+
+
+    /** The methods return futures which are completed by a different thread */
+    public void testAsyncResponse() throws Exception {
+        RspList<Integer> rsps=disp1.callRemoteMethods(null, "asyncFoo", null, null, new RequestOptions(ResponseMode.GET_ALL, 5000));
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.size() == 3;
+        assert rsps.getValue(a.getAddress()) == 1 && rsps.getValue(b.getAddress()) == 2 && rsps.getValue(c.getAddress()) == 3;
+
+        rsps=disp1.callRemoteMethods(null, "asyncException", null, null, new RequestOptions(ResponseMode.GET_ALL, 5000));
+        System.out.println("rsps:\n" + rsps);
+        for(Rsp<Integer> rsp: rsps.values())
+            assert rsp.wasReceived() && rsp.getException() != null && rsp.getException().getMessage().equals("booom");
+    }
+
+    public void testStreaming() throws Exception {
+        final Map<Address,List<Integer>> chunks=new HashMap<Address,List<Integer>>();
+        for(Address mbr: Arrays.asList(a.getAddress(), b.getAddress(), c.getAddress()))
+            chunks.put(mbr, Collections.synchronizedList(new ArrayList<Integer>()));
+        NotifyingFuture<RspList<Integer>> future=disp1.callRemoteMethodsStreaming(
+          null, new MethodCall("stream", new Object[]{100}, new Class[]{int.class}), RequestOptions.SYNC().setFlags(Message.Flag.OOB),
+          new ChunkListener<Integer>() {
+              public void chunkReceived(Integer chunk, Address sender) {chunks.get(sender).add(chunk);}
+          });
+        RspList<Integer> rsps=future.get(10000, TimeUnit.MILLISECONDS);
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.size() == 3;
+        for(Rsp<Integer> rsp: rsps.values())
+            assert rsp.wasReceived() && rsp.getValue() == 100 : rsp;
+
+        // the chunks from each member are received in order
+        for(int i=1; i <= 3; i++) {
+            List<Integer> list=chunks.get(i == 1? a.getAddress() : i == 2? b.getAddress() : c.getAddress());
+            assert list.size() == 100;
+            for(int j=0; j < list.size(); j++)
+                assert list.get(j) == i * 1000 + j : "chunk #" + j + " of member " + i + ": " + list.get(j);
+        }
+    }
+
+    public void testStreamingCancel() throws Exception {
+        final AtomicInteger num_chunks=new AtomicInteger(0);
+        NotifyingFuture<RspList<Integer>> future=disp1.callRemoteMethodsStreaming(
+          Arrays.asList(b.getAddress()), new MethodCall("endlessStream", null, null), RequestOptions.SYNC(),
+          new ChunkListener<Integer>() {
+              public void chunkReceived(Integer chunk, Address sender) {num_chunks.incrementAndGet();}
+          });
+        for(int i=0; i < 50 && num_chunks.get() < 10; i++)
+            Util.sleep(100);
+        assert num_chunks.get() >= 10;
+        assert future.cancel(true) && future.isDone();
+
+        // B stops streaming when it notices the cancellation
+        for(int i=0; i < 50 && disp2.corr.getNumSkippedResponses() == 0; i++)
+            Util.sleep(100);
+        assert disp2.corr.getNumSkippedResponses() == 1;
+        assert disp1.corr.getNumPendingRequests() == 0;
+    }
+
+
     public void testUnicastException()  {
         try {
             disp1.callRemoteMethod(b.getAddress(), "throwException", null, null, new RequestOptions(ResponseMode.GET_ALL, 5000));
@@ -336,6 +495,70 @@ public class RpcDispatcherTest {
     }
 
 
+    /** The timeout of a future is enforced by the timer: neither get() nor a waiting thread are needed to complete it */
+    public void testNotifyingFutureTimeout() throws Exception {
+        MethodCall sleep=new MethodCall("sleep", new Object[]{5000L}, new Class[]{long.class});
+        MyFutureListener<Long> listener=new MyFutureListener<Long>();
+        long start=System.currentTimeMillis();
+        Future<RspList<Long>> future=disp1.callRemoteMethodsWithFuture(null, sleep,
+                                                                       new RequestOptions(ResponseMode.GET_ALL, 500L),
+                                                                       listener);
+        for(int i=0; i < 20 && !listener.isDone(); i++)
+            Util.sleep(100);
+        long time=System.currentTimeMillis() - start;
+        assert listener.isDone() : "future should have timed out after 500 ms";
+        assert listener.count() == 1;
+        System.out.println("future completed after " + time + " ms");
+        assert time < 4000;
+        assert future.isDone();
+        RspList<Long> rsps=future.get(1L, TimeUnit.MILLISECONDS);
+        System.out.println("rsps:\n" + rsps);
+        assert rsps.size() == 3 && rsps.numReceived() == 0;
+    }
+
+    public void testUnicastNotifyingFutureTimeout() throws Exception {
+        MethodCall sleep=new MethodCall("sleep", new Object[]{5000L}, new Class[]{long.class});
+        MyFutureListener<Long> listener=new MyFutureListener<Long>();
+        Future<Long> future=disp1.callRemoteMethodWithFuture(b.getAddress(), sleep,
+                                                             new RequestOptions(ResponseMode.GET_ALL, 500L), listener);
+        for(int i=0; i < 20 && !listener.isDone(); i++)
+            Util.sleep(100);
+        assert listener.isDone() && listener.count() == 1;
+        try {
+            future.get(1L, TimeUnit.MILLISECONDS);
+            assert false : "get() should have thrown an ExecutionException";
+        }
+        catch(ExecutionException ex) {
+            System.out.println("got exception as expected: " + ex);
+            assert ex.getCause() instanceof TimeoutException;
+        }
+    }
+
+    /** The listener is notified once, even if responses are received after it has been notified */
+    public void testListenerIsNotifiedOnce() throws Exception {
+        MethodCall sleep=new MethodCall("sleep", new Object[]{100L}, new Class[]{long.class});
+        MyFutureListener<Long> listener=new MyFutureListener<Long>();
+        Future<RspList<Long>> future=disp1.callRemoteMethodsWithFuture(null, sleep,
+                                                                       new RequestOptions(ResponseMode.GET_FIRST, 5000L),
+                                                                       listener);
+        future.get(5000, TimeUnit.MILLISECONDS);
+        Util.sleep(500); // the remaining responses arrive
+        assert listener.isDone() && listener.count() == 1 : "listener was notified " + listener.count() + " times";
+        future.cancel(true);
+        assert listener.count() == 1;
+    }
+
+    public void testCancelNotifiesListener() throws Exception {
+        MethodCall sleep=new MethodCall("sleep", new Object[]{5000L}, new Class[]{long.class});
+        MyFutureListener<Long> listener=new MyFutureListener<Long>();
+        Future<RspList<Long>> future=disp1.callRemoteMethodsWithFuture(null, sleep,
+                                                                       new RequestOptions(ResponseMode.GET_ALL, 0),
+                                                                       listener);
+        assert !listener.isDone();
+        future.cancel(true);
+        assert listener.isDone() && listener.count() == 1;
+    }
+
     public void testMultipleFutures() throws Exception {
         MethodCall sleep=new MethodCall("sleep", new Object[]{100L}, new Class[]{long.class});
         List<Future<RspList<Long>>> futures=new ArrayList<Future<RspList<Long>>>();
@@ -653,10 +876,82 @@ public class RpcDispatcherTest {
      */
     private static class ServerObject {
         int i;
+        int concurrent, max_concurrent; // used by rendezvous()
         public ServerObject(int i) {
             this.i=i;
         }
         public int foo() {return i;}
+
+        public NotifyingFuture<Integer> asyncFoo() {
+            final SettableFuture<Integer> future=new SettableFuture<Integer>();
+            new Thread() {
+                public void run() {
+                    Util.sleep(200);
+                    future.set(i);
+                }
+            }.start();
+            return future;
+        }
+
+        public static NotifyingFuture<Integer> asyncException() {
+            final SettableFuture<Integer> future=new SettableFuture<Integer>();
+            new Thread() {
+                public void run() {
+                    future.setException(new Exception("booom"));
+                }
+            }.start();
+            return future;
+        }
+
+        /** Streams num chunks from a separate thread */
+        public ResponseStream<Integer> stream(final int num) {
+            final ResponseStream<Integer> stream=new ResponseStream<Integer>();
+            new Thread() {
+                public void run() {
+                    for(int j=0; j < num; j++)
+                        stream.send(i * 1000 + j);
+                    stream.close();
+                }
+            }.start();
+            return stream;
+        }
+
+        public static ResponseStream<Integer> endlessStream() {
+            final ResponseStream<Integer> stream=new ResponseStream<Integer>();
+            new Thread() {
+                public void run() {
+                    for(int j=0; !stream.isCancelled(); j++) {
+                        stream.send(j);
+                        Util.sleep(10);
+                    }
+                    stream.close();
+                }
+            }.start();
+            return stream;
+        }
+
+        /**
+         * Blocks until parties invocations of this method overlap, or 5 seconds have elapsed
+         * @return The max number of concurrent invocations seen by this invocation
+         */
+        public synchronized long rendezvous(int parties) throws InterruptedException {
+            max_concurrent=Math.max(max_concurrent, ++concurrent);
+            notifyAll();
+            try {
+                long deadline=System.currentTimeMillis() + 5000, wait_time;
+                while(max_concurrent < parties && (wait_time=deadline - System.currentTimeMillis()) > 0)
+                    wait(wait_time);
+                return max_concurrent;
+            }
+            finally {
+                concurrent--;
+            }
+        }
+
+        public int slowFoo() {
+            Util.sleep((i-1) * 1000L);
+            return i;
+        }
         
         public static long sleep(long timeout) {
             // System.out.println("sleep()");
@@ -682,13 +977,16 @@ public class RpcDispatcherTest {
     }
 
     private static class MyFutureListener<T> implements FutureListener<T> {
-        private boolean done;
+        private volatile boolean done;
+        private final AtomicInteger count=new AtomicInteger(0);
 
         public void futureDone(Future<T> future) {
             done=true;
+            count.incrementAndGet();
         }
 
         public boolean isDone() {return done;}
+        public int     count()  {return count.get();}
     }
 
 
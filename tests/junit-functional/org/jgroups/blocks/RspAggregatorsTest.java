@@ -0,0 +1,71 @@
+package org.jgroups.blocks;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.List;
+
+/**
+ * Tests {@link RspAggregators}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class RspAggregatorsTest {
+    protected static final Address A=Util.createRandomAddress("A"), B=Util.createRandomAddress("B"),
+      C=Util.createRandomAddress("C"), D=Util.createRandomAddress("D"), E=Util.createRandomAddress("E");
+
+    public void testFirstN() {
+        RspAggregator<List<Integer>> agg=RspAggregators.firstN(2);
+        agg.init(4);
+        assert !agg.add(1, A, false);
+        assert !agg.add(new Exception("booom"), B, true);
+        assert agg.add(3, C, false);
+        assert agg.getResult().size() == 2 && agg.getResult().contains(1) && agg.getResult().contains(3);
+    }
+
+    public void testFirstNNotReachable() {
+        RspAggregator<List<Integer>> agg=RspAggregators.firstN(3);
+        agg.init(4);
+        assert !agg.add(1, A, false);
+        assert !agg.missing(B);
+        assert agg.add(new Exception("booom"), C, true); // only D is left: 3 responses cannot be reached anymore
+        assert agg.getResult().size() == 1;
+    }
+
+    public void testMajority() {
+        RspAggregator<String> agg=RspAggregators.majority();
+        agg.init(5);
+        assert !agg.add("v1", A, false);
+        assert !agg.add("v2", B, false);
+        assert !agg.add("v1", C, false);
+        assert agg.add("v1", D, false);
+        assert agg.getResult().equals("v1");
+    }
+
+    public void testNoMajority() {
+        RspAggregator<String> agg=RspAggregators.majority();
+        agg.init(5);
+        assert !agg.add("v1", A, false);
+        assert !agg.add("v2", B, false);
+        assert !agg.missing(C);
+        assert agg.add("v3", D, false); // only E is left: "v1" can get at most 2 of the required 3 votes
+        assert agg.getResult() == null;
+    }
+
+    public void testReduce() {
+        RspAggregator<Integer> agg=new RspAggregators.Reduce<Integer,Integer>(0) {
+            protected Integer reduce(Integer value, Integer response, Address sender) {return Math.max(value, response);}
+            protected boolean isDecided(Integer value) {return value >= 10;}
+        };
+        agg.init(5);
+        assert !agg.add(3, A, false);
+        assert !agg.add(new Exception("booom"), B, true);
+        assert !agg.add(7, C, false);
+        assert agg.getResult() == 7;
+        assert agg.add(12, D, false);
+        assert agg.getResult() == 12;
+    }
+}
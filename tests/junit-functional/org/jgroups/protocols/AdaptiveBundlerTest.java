@@ -0,0 +1,170 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.PhysicalAddress;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.stack.Protocol;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests the adaptive bundler of {@link TP}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class AdaptiveBundlerTest {
+    protected JChannel                  a, b;
+    protected final AtomicInteger       received=new AtomicInteger();
+    protected TP.AdaptiveBundler        bundler;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        received.set(0);
+        a=createChannel("A");
+        b=createChannel("B");
+        b.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                received.incrementAndGet();
+            }
+        });
+        a.connect("AdaptiveBundlerTest");
+        b.connect("AdaptiveBundlerTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        bundler=(TP.AdaptiveBundler)a.getProtocolStack().getTransport().bundler;
+        a.getProtocolStack().getTransport().resetStats();
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(b, a);
+    }
+
+
+    /** Messages which are sent infrequently are sent immediately, without waiting for more messages */
+    public void testLightLoad() throws Exception {
+        for(int i=0; i < 20; i++) {
+            a.send(b.getAddress(), i);
+            Util.sleep(20);
+        }
+        waitForMessages(20);
+        System.out.println("flush reasons: " + bundler.printFlushReasons());
+        assert bundler.flush_reasons[TP.AdaptiveBundler.IDLE].get() > 0;
+        assert bundler.flush_reasons[TP.AdaptiveBundler.SIZE].get() == 0;
+    }
+
+    public void testHeavyLoad() throws Exception {
+        final int NUM=20000;
+        for(int i=0; i < NUM; i++)
+            a.send(new Message(b.getAddress(), new byte[1000]));
+        waitForMessages(NUM);
+        TP tp=a.getProtocolStack().getTransport();
+        System.out.println("flush reasons: " + bundler.printFlushReasons() + ", fill ratio: " + tp.getBundleFillRatio() +
+                             "%, p99: " + tp.getBundlerLatencyP99() + " us, wait budget: " + tp.getBundlerWaitBudget() + " us");
+        assert bundler.flush_reasons[TP.AdaptiveBundler.SIZE].get() > 0;
+        assert tp.getBundleFillRatio() > 0;
+        assert tp.getBundlerLatencyP99() > 0;
+    }
+
+    /**
+     * When sending is slower than adding messages, the queue fills up. The bundler must then still send full bundles,
+     * rather than flushing all destinations after every message it takes from the queue
+     */
+    public void testBackpressure() throws Exception {
+        Util.close(b, a);
+        a=createChannel("A", new SlowTransport().setValue("bundler_capacity", 500));
+        b=createChannel("B", new SHARED_LOOPBACK());
+        b.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                received.incrementAndGet();
+            }
+        });
+        a.connect("AdaptiveBundlerTest");
+        b.connect("AdaptiveBundlerTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+        TP tp=a.getProtocolStack().getTransport();
+        bundler=(TP.AdaptiveBundler)tp.bundler;
+        tp.resetStats();
+
+        final int NUM=5000;
+        for(int i=0; i < NUM; i++)
+            a.send(new Message(b.getAddress(), new byte[1000]));
+        waitForMessages(NUM);
+        System.out.println("flush reasons: " + bundler.printFlushReasons() + ", fill ratio: " + tp.getBundleFillRatio() + "%");
+        assert tp.getBundleFillRatio() > 50 : "fill ratio is only " + tp.getBundleFillRatio() + "%";
+    }
+
+    /** A message of exactly max_bundle_size bytes to a destination without pending messages is sent on its own */
+    public void testMaxSizeMessageToEmptyBucket() throws Exception {
+        TP tp=a.getProtocolStack().getTransport();
+        int max_bundle_size=tp.getMaxBundleSize();
+        Message msg=new Message(b.getAddress()).src(a.getAddress());
+        msg.putHeader(tp.getId(), new TpHeader("AdaptiveBundlerTest"));
+        msg.setBuffer(new byte[max_bundle_size - (int)msg.size()]);
+        msg.setBuffer(new byte[msg.getLength() + max_bundle_size - (int)msg.size()]); // the size includes the length
+        assert msg.size() == max_bundle_size : "size=" + msg.size() + ", max_bundle_size=" + max_bundle_size;
+        bundler.send(msg); // bypasses the protocols, so only the transport's header is added
+        waitForMessages(1);
+        assert bundler.flush_reasons[TP.AdaptiveBundler.SIZE].get() == 0;
+        a.send(b.getAddress(), "hello"); // the bundler thread is still alive
+        waitForMessages(2);
+    }
+
+    /** A latency target which cannot be met makes the bundler reduce the time it waits for more messages */
+    public void testWaitBudgetIsReduced() throws Exception {
+        long initial_budget=bundler.wait_budget;
+        a.getProtocolStack().getTransport().setValue("bundler_latency_target", 1L);
+        for(int i=0; i < 5000; i++)
+            a.send(new Message(b.getAddress(), new byte[100]));
+        waitForMessages(5000);
+        System.out.println("wait budget: " + initial_budget + " ns -> " + bundler.wait_budget + " ns");
+        assert bundler.wait_budget < initial_budget;
+    }
+
+
+    protected void waitForMessages(int expected) {
+        for(int i=0; i < 100 && received.get() < expected; i++)
+            Util.sleep(100);
+        assert received.get() == expected : "received " + received.get() + " messages, expected " + expected;
+    }
+
+    protected static JChannel createChannel(String name) throws Exception {
+        return createChannel(name, new SHARED_LOOPBACK());
+    }
+
+    protected static JChannel createChannel(String name, Protocol transport) throws Exception {
+        return Util.createChannel(transport.setValue("bundler_type", "adaptive"),
+                                  new PING().setValue("timeout", 500).setValue("num_initial_members", 2),
+                                  new NAKACK2(),
+                                  new UNICAST3(),
+                                  new GMS().setValue("print_local_addr", false)).name(name);
+    }
+
+
+    /** Takes 1 ms to send a message or bundle */
+    protected static class SlowTransport extends SHARED_LOOPBACK {
+        public SlowTransport() {
+            id=ClassConfigurator.getProtocolId(SHARED_LOOPBACK.class);
+        }
+
+        public void sendUnicast(PhysicalAddress dest, byte[] data, int offset, int length) throws Exception {
+            Util.sleep(1);
+            super.sendUnicast(dest, data, offset, length);
+        }
+
+        protected void sendToSingleMember(Address dest, byte[] buf, int offset, int length) throws Exception {
+            Util.sleep(1);
+            super.sendToSingleMember(dest, buf, offset, length);
+        }
+    }
+}
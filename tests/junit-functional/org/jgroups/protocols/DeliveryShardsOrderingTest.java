@@ -0,0 +1,141 @@
+package org.jgroups.protocols;
+
+import org.jgroups.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests that regular messages are delivered in per-sender FIFO order when NAKACK2 and UNICAST3 hand them off to
+ * delivery shards (delivery_shards > 0)
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class DeliveryShardsOrderingTest {
+    protected static final int NUM_MSGS=2000, NUM_SHARDS=2;
+    protected JChannel         a, b, c, d;
+    protected MyReceiver       receiver;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        a=create("A");
+        b=create("B");
+        c=create("C");
+        d=create("D");
+        d.setReceiver(receiver=new MyReceiver());
+        for(JChannel ch: new JChannel[]{a, b, c, d})
+            ch.connect("DeliveryShardsOrderingTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c, d);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(d, c, b, a);
+    }
+
+
+    /** Multicasts from A, B and C are delivered (by NAKACK2's shards) in the order in which each sender sent them */
+    public void testMulticastOrdering() throws Exception {
+        send(null, a, b, c);
+        receiver.waitFor(receiver.multicasts, 3 * NUM_MSGS);
+        receiver.checkOrder(receiver.multicasts, a, b, c);
+        assert ((NAKACK2)d.getProtocolStack().findProtocol(NAKACK2.class)).getShardDeliveredBatches() > 0;
+    }
+
+    /** Unicasts from A, B and C to D are delivered (by UNICAST3's shards) in the order in which each sender sent them */
+    public void testUnicastOrdering() throws Exception {
+        send(d.getAddress(), a, b, c);
+        receiver.waitFor(receiver.unicasts, 3 * NUM_MSGS);
+        receiver.checkOrder(receiver.unicasts, a, b, c);
+        assert ((UNICAST3)d.getProtocolStack().findProtocol(UNICAST3.class)).getShardDeliveredBatches() > 0;
+    }
+
+
+    /** All senders send NUM_MSGS messages concurrently; the payload is the sequence number of the message */
+    protected static void send(final Address dest, JChannel ... senders) throws Exception {
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] threads=new Thread[senders.length];
+        for(int i=0; i < senders.length; i++) {
+            final JChannel sender=senders[i];
+            threads[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(int j=1; j <= NUM_MSGS; j++)
+                            sender.send(dest, j);
+                    }
+                    catch(Exception e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join(30000);
+    }
+
+    protected static JChannel create(String name) throws Exception {
+        return new JChannel(new SHARED_LOOPBACK(),
+                            new PING().timeout(1000),
+                            new NAKACK2().setValue("delivery_shards", NUM_SHARDS),
+                            new UNICAST3().setValue("delivery_shards", NUM_SHARDS),
+                            new STABLE(),
+                            new GMS().setValue("print_local_addr", false)).name(name);
+    }
+
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final Map<Address,List<Integer>> multicasts=new ConcurrentHashMap<Address,List<Integer>>(),
+                                                   unicasts=new ConcurrentHashMap<Address,List<Integer>>();
+
+        public void receive(Message msg) {
+            Map<Address,List<Integer>> map=msg.getDest() == null? multicasts : unicasts;
+            List<Integer> list=map.get(msg.getSrc());
+            if(list == null) {
+                list=new ArrayList<Integer>(NUM_MSGS);
+                map.put(msg.getSrc(), list); // a sender's messages are never delivered concurrently
+            }
+            synchronized(list) {
+                list.add((Integer)msg.getObject());
+            }
+        }
+
+        protected static int count(Map<Address,List<Integer>> map) {
+            int retval=0;
+            for(List<Integer> list: map.values()) {
+                synchronized(list) {
+                    retval+=list.size();
+                }
+            }
+            return retval;
+        }
+
+        protected void waitFor(Map<Address,List<Integer>> map, int expected) {
+            for(int i=0; i < 60 && count(map) < expected; i++)
+                Util.sleep(500);
+            assert count(map) == expected : "expected " + expected + " messages, but got " + count(map);
+        }
+
+        protected static void checkOrder(Map<Address,List<Integer>> map, JChannel ... senders) {
+            for(JChannel sender: senders) {
+                List<Integer> list=map.get(sender.getAddress());
+                assert list != null && list.size() == NUM_MSGS : "messages from " + sender.getAddress() + ": " + list;
+                for(int i=0; i < list.size(); i++)
+                    assert list.get(i) == i+1 : "expected " + (i+1) + " from " + sender.getAddress() + ", but got " + list.get(i);
+            }
+        }
+    }
+}
@@ -87,6 +87,27 @@ public class NAKACK2_RetransmitTest {
     }
 
 
+    /** Duplicates received from the network are dropped based on the seqno peeked from the marshalled header */
+    public void testDuplicatesAreDropped() throws Exception {
+        for(long seqno: new long[]{1,2,3,4,5,   7})
+            injectMarshalledMessage(seqno);
+        assertReceived(1,2,3,4,5);
+        assert nak.getValue("num_duplicates_dropped").equals(0);
+        assert nak.getValue("num_messages_received").equals(6);
+
+        injectMarshalledMessage(2);  // already delivered
+        injectMarshalledMessage(7);  // already received, but not yet delivered
+        injectMarshalledMessage(6);
+        assertReceived(6,7);
+        assert nak.getValue("num_duplicates_dropped").equals(2);
+        assert nak.getValue("num_messages_received").equals(9) : "duplicates must be counted as received";
+
+        injectMessage(3); // not marshalled, goes through the regular path
+        assertReceived();
+        assert nak.getValue("num_duplicates_dropped").equals(2);
+    }
+
+
     protected void injectMessages(long ... seqnos) {
         for(long seqno: seqnos)
             injectMessage(seqno);
@@ -101,6 +122,12 @@ public class NAKACK2_RetransmitTest {
         nak.up(new Event(Event.MSG, msg));
     }
 
+    /** Makes NAKACK2 receive a message with the given seqno whose headers are still marshalled, as if it was received from the network */
+    protected void injectMarshalledMessage(long seqno) throws Exception {
+        Message msg=new Message(null, B, null).putHeader(ID, NakAckHeader2.createMessageHeader(seqno));
+        nak.up(new Event(Event.MSG, Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg))));
+    }
+
     /** Asserts that the delivered messages are in the same order than the expected seqnos and then clears the list */
     protected void assertReceived(long ... seqnos) {
         List<Long> msgs=receiver.getMsgs();
@@ -0,0 +1,153 @@
+package org.jgroups.protocols;
+
+import org.jgroups.Global;
+import org.jgroups.Header;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests {@link SHARED_LOOPBACK} with pass_references=true
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class SHARED_LOOPBACK_PassReferencesTest {
+    protected static final int NUM=1000;
+    protected JChannel         a, b, c;
+    protected MyReceiver       rb, rc;
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(c, b, a);
+    }
+
+
+    public void testMulticastAndUnicast() throws Exception {
+        create(true, true, true);
+        for(int i=1; i <= NUM; i++) {
+            a.send(null, i);
+            a.send(b.getAddress(), -i);
+        }
+        waitForMessages(rb, 2 * NUM);
+        waitForMessages(rc, NUM);
+        checkOrder(rb.multicasts);
+        checkOrder(rc.multicasts);
+        checkOrder(rb.unicasts);
+
+        TP tp=b.getProtocolStack().getTransport();
+        System.out.println("B: batches received: " + tp.num_batches_received + ", single msgs received: " +
+                             tp.num_single_msgs_received);
+        assert tp.num_batches_received > 0;
+    }
+
+    /** The receivers get their own copies of a message, which share the payload with the sent message */
+    public void testPayloadIsShared() throws Exception {
+        create(true, true, true);
+        byte[] payload=new byte[1000];
+        a.send(new Message(null, payload));
+        waitForMessages(rb, 1);
+        waitForMessages(rc, 1);
+        Message mb=rb.msgs.get(0), mc=rc.msgs.get(0);
+        assert mb != mc;
+        assert mb.getRawBuffer() == payload && mc.getRawBuffer() == payload;
+    }
+
+    /** Every receiver gets its own header instances, so it can't see changes made to the headers by other members */
+    public void testHeadersAreNotShared() throws Exception {
+        create(true, true, true);
+        short nakack_id=a.getProtocolStack().findProtocol(NAKACK2.class).getId();
+        Message msg=new Message(null, "hello");
+        a.send(msg);
+        waitForMessages(rb, 1);
+        waitForMessages(rc, 1);
+        Header ha=msg.getHeader(nakack_id), hb=rb.msgs.get(0).getHeader(nakack_id), hc=rc.msgs.get(0).getHeader(nakack_id);
+        assert ha != null && hb != null && hc != null;
+        assert ha != hb && ha != hc && hb != hc;
+        assert ha.toString().equals(hb.toString()) && hb.toString().equals(hc.toString());
+    }
+
+    /** Messages flagged DONT_BUNDLE (sent directly) and bundled messages are counted by the receiver */
+    public void testReceiveStats() throws Exception {
+        create(true, true, true);
+        TP tp=b.getProtocolStack().getTransport();
+        tp.resetStats();
+        for(int i=1; i <= NUM; i++) {
+            Message msg=new Message(b.getAddress(), i);
+            if(i % 2 == 0)
+                msg.setFlag(Message.Flag.DONT_BUNDLE);
+            a.send(msg);
+        }
+        waitForMessages(rb, NUM);
+        for(int i=0; i < 20 && tp.getNumMessagesReceived() < NUM; i++) // acks (e.g. of UNICAST3) are counted, too
+            Util.sleep(100);
+        System.out.println("B: msgs received: " + tp.num_msgs_received + ", batches received: " +
+                             tp.num_batches_received + ", single msgs received: " + tp.num_single_msgs_received);
+        assert tp.getNumMessagesReceived() >= NUM;
+        assert tp.num_single_msgs_received >= NUM / 2;
+        assert tp.num_incoming_msgs_received >= NUM;
+    }
+
+    /** A member which passes references can talk to a member which serializes messages, and vice versa */
+    public void testMixedCluster() throws Exception {
+        create(true, false, true);
+        for(int i=1; i <= NUM; i++) {
+            a.send(null, i);
+            b.send(null, i);
+        }
+        waitForMessages(rc, 2 * NUM);
+        waitForMessages(rb, 2 * NUM); // B also receives its own multicasts
+    }
+
+
+    protected void create(boolean ref_a, boolean ref_b, boolean ref_c) throws Exception {
+        a=createChannel("A", ref_a);
+        b=createChannel("B", ref_b);
+        c=createChannel("C", ref_c);
+        a.connect("SHARED_LOOPBACK_PassReferencesTest");
+        b.connect("SHARED_LOOPBACK_PassReferencesTest");
+        c.connect("SHARED_LOOPBACK_PassReferencesTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b, c);
+        b.setReceiver(rb=new MyReceiver());
+        c.setReceiver(rc=new MyReceiver());
+    }
+
+    protected static void waitForMessages(MyReceiver receiver, int expected) {
+        for(int i=0; i < 100 && receiver.msgs.size() < expected; i++)
+            Util.sleep(100);
+        assert receiver.msgs.size() == expected : "received " + receiver.msgs.size() + " messages, expected " + expected;
+    }
+
+    protected static void checkOrder(List<Integer> list) {
+        for(int i=0; i < list.size(); i++)
+            assert Math.abs(list.get(i)) == i+1 : "list: " + list;
+    }
+
+    protected static JChannel createChannel(String name, boolean pass_references) throws Exception {
+        return Util.createChannel(new SHARED_LOOPBACK().setValue("pass_references", pass_references),
+                                  new PING().setValue("timeout", 500).setValue("num_initial_members", 3),
+                                  new NAKACK2(),
+                                  new UNICAST3(),
+                                  new GMS().setValue("print_local_addr", false)).name(name);
+    }
+
+    protected static class MyReceiver extends ReceiverAdapter {
+        protected final List<Message> msgs=new ArrayList<Message>();
+        protected final List<Integer> multicasts=new ArrayList<Integer>(), unicasts=new ArrayList<Integer>();
+
+        public synchronized void receive(Message msg) {
+            msgs.add(msg);
+            Object obj=msg.getObject();
+            if(obj instanceof Integer)
+                (msg.getDest() == null? multicasts : unicasts).add((Integer)obj);
+        }
+    }
+}
@@ -28,6 +28,39 @@ public class BitsTest {
         }
     }
 
+    public static void testVarInt() throws Exception {
+        int[] values={0, 1, 127, 128, 255, 16383, 16384, Short.MAX_VALUE, 322649, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        for(int val: values) {
+            ByteArrayOutputStream out_stream=new ByteArrayOutputStream();
+            DataOutputStream out=new DataOutputStream(out_stream);
+            Bits.writeVarInt(val, out);
+            Bits.writeVarInt(Bits.zigZag(val), out);
+            byte[] buf=out_stream.toByteArray();
+            assert buf.length == Bits.sizeVarInt(val) + Bits.sizeVarInt(Bits.zigZag(val));
+            DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf));
+            assert Bits.readVarInt(in) == val;
+            assert Bits.unZigZag(Bits.readVarInt(in)) == val;
+        }
+        assert Bits.sizeVarInt(127) == 1 && Bits.sizeVarInt(128) == 2 && Bits.sizeVarInt(-1) == 5;
+        assert Bits.sizeVarInt(Bits.zigZag(-1)) == 1;
+    }
+
+    public static void testVarLong() throws Exception {
+        long[] values={0, 1, 127, 128, Integer.MAX_VALUE, (long)Integer.MAX_VALUE + 1, Long.MAX_VALUE, -1, Long.MIN_VALUE};
+        for(long val: values) {
+            ByteArrayOutputStream out_stream=new ByteArrayOutputStream();
+            DataOutputStream out=new DataOutputStream(out_stream);
+            Bits.writeVarLong(val, out);
+            Bits.writeVarLong(Bits.zigZag(val), out);
+            byte[] buf=out_stream.toByteArray();
+            assert buf.length == Bits.sizeVarLong(val) + Bits.sizeVarLong(Bits.zigZag(val));
+            DataInputStream in=new DataInputStream(new ByteArrayInputStream(buf));
+            assert Bits.readVarLong(in) == val;
+            assert Bits.unZigZag(Bits.readVarLong(in)) == val;
+        }
+        assert Bits.sizeVarLong(-1) == 10;
+    }
+
     public static void testSize() {
         int[] shifts={0, 1, 2, 4, 7, 8, 15, 16, 17, 23, 24, 25, 31, 32, 33, 39, 40, 41, 47, 48, 49, 55, 56};
         assert Bits.size(0) == 1;
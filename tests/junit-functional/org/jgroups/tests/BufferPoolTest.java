@@ -0,0 +1,105 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.protocols.PING;
+import org.jgroups.protocols.SHARED_LOOPBACK;
+import org.jgroups.protocols.TP;
+import org.jgroups.protocols.UNICAST3;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.util.DefaultBufferPool;
+import org.jgroups.util.RefCountedBuffer;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link DefaultBufferPool} and {@link RefCountedBuffer}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class BufferPoolTest {
+
+    public void testSizeClasses() {
+        DefaultBufferPool pool=new DefaultBufferPool(100, 1000, 10);
+        assert pool.getMinSize() == 128;
+        assert pool.getMaxSize() == 1024;
+        assert pool.getNumSizeClasses() == 4;
+        assert pool.acquire(1).length == 128;
+        assert pool.acquire(128).length == 128;
+        assert pool.acquire(129).length == 256;
+        assert pool.acquire(1000).length == 1024;
+        assert pool.acquire(2000).length == 2000;
+        assert pool.getNumOversized() == 1;
+    }
+
+    public void testReuse() {
+        DefaultBufferPool pool=new DefaultBufferPool(128, 1024, 10);
+        byte[] buf=pool.acquire(200);
+        pool.release(buf);
+        assert pool.size() == 1;
+        byte[] buf2=pool.acquire(150);
+        assert buf2 == buf;
+        assert pool.size() == 0;
+        assert pool.getNumCreated() == 1;
+    }
+
+    public void testReleaseOfForeignBuffers() {
+        DefaultBufferPool pool=new DefaultBufferPool(128, 1024, 10);
+        pool.release(new byte[100]);
+        pool.release(new byte[300]);
+        pool.release(new byte[2048]);
+        pool.release(new byte[256]); // has the size of a size class, but wasn't created by the pool
+        pool.release(null);
+        assert pool.size() == 0;
+        assert pool.getNumDropped() == 4;
+    }
+
+    public void testBoundedSizeClass() {
+        DefaultBufferPool pool=new DefaultBufferPool(128, 1024, 2);
+        byte[][] bufs=new byte[5][];
+        for(int i=0; i < bufs.length; i++)
+            bufs[i]=pool.acquire(256);
+        for(byte[] buf: bufs)
+            pool.release(buf);
+        System.out.println("pool = " + pool);
+        assert pool.size() == 2;
+        assert pool.getNumReleased() == 2;
+        assert pool.getNumDropped() == 3;
+    }
+
+    public void testRefCounting() {
+        DefaultBufferPool pool=new DefaultBufferPool(128, 1024, 10);
+        byte[] data="hello world".getBytes();
+        RefCountedBuffer buf=RefCountedBuffer.copyOf(data, 6, 5, pool);
+        assert buf.getLength() == 5;
+        assert new String(buf.getBuf(), buf.getOffset(), buf.getLength()).equals("world");
+        buf.retain();
+        assert buf.refCount() == 2;
+        assert !buf.release();
+        assert pool.size() == 0;
+        assert buf.release();
+        assert pool.size() == 1;
+        try {
+            buf.release();
+            assert false : "releasing a released buffer should have thrown an exception";
+        }
+        catch(IllegalStateException expected) {
+            System.out.println("caught exception as expected: " + expected);
+        }
+    }
+
+    /** Only the transports which queue messages for sending (TCP and TCP_NIO2) create a buffer pool */
+    public void testNoPoolInTransportsNotUsingIt() throws Exception {
+        JChannel ch=new JChannel(new SHARED_LOOPBACK(), new PING(), new NAKACK2(), new UNICAST3(), new GMS());
+        try {
+            ch.connect("BufferPoolTest");
+            TP transport=ch.getProtocolStack().getTransport();
+            assert transport.getBufferPool() == null : "SHARED_LOOPBACK created a buffer pool it doesn't use";
+        }
+        finally {
+            Util.close(ch);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.Buffers;
+import org.jgroups.util.ExposedByteArrayOutputStream;
+import org.jgroups.util.ExposedDataOutputStream;
+import org.testng.annotations.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Pipe;
+import java.util.Arrays;
+
+/**
+ * Tests {@link Buffers}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class BuffersTest {
+    protected static final byte[] HELLO="hello ".getBytes(), WORLD="world".getBytes(), EXPECTED="hello world".getBytes();
+
+    public void testAdd() {
+        Buffers bufs=create();
+        System.out.println("bufs = " + bufs);
+        assert bufs.size() == 2;
+        assert bufs.length() == EXPECTED.length;
+        bufs.add(new byte[10], 0, 0).add(ByteBuffer.allocate(0)).add((ByteBuffer)null); // empty buffers are ignored
+        assert bufs.size() == 2;
+        bufs.clear();
+        assert bufs.size() == 0 && bufs.length() == 0;
+    }
+
+    public void testResize() {
+        Buffers bufs=new Buffers(1);
+        for(int i=0; i < 10; i++)
+            bufs.add(new byte[]{(byte)i}, 0, 1);
+        assert bufs.size() == 10;
+        byte[] tmp=bufs.copy();
+        for(int i=0; i < tmp.length; i++)
+            assert tmp[i] == i;
+    }
+
+    public void testCopy() {
+        Buffers bufs=create();
+        assert Arrays.equals(bufs.copy(), EXPECTED);
+        assert Arrays.equals(bufs.copy(), EXPECTED); // copying doesn't change the buffers
+    }
+
+    public void testWriteToOutputStream() throws Exception {
+        Buffers bufs=create();
+        ExposedByteArrayOutputStream out_stream=new ExposedByteArrayOutputStream(32);
+        bufs.write(new ExposedDataOutputStream(out_stream));
+        assert Arrays.equals(out_stream.toByteArray(), EXPECTED);
+    }
+
+    public void testGatheringWrite() throws Exception {
+        Buffers bufs=create();
+        Pipe pipe=Pipe.open();
+        try {
+            for(int i=0; i < 2; i++) { // the second write has to produce the same bytes
+                bufs.write(pipe.sink());
+                ByteBuffer result=ByteBuffer.allocate(EXPECTED.length);
+                while(result.hasRemaining())
+                    pipe.source().read(result);
+                assert Arrays.equals(result.array(), EXPECTED);
+            }
+        }
+        finally {
+            pipe.sink().close();
+            pipe.source().close();
+        }
+    }
+
+    /** Creates a Buffers instance with a heap and a direct buffer */
+    protected static Buffers create() {
+        ByteBuffer direct=ByteBuffer.allocateDirect(WORLD.length);
+        direct.put(WORLD).flip();
+        byte[] tmp=new byte[HELLO.length + 4];
+        System.arraycopy(HELLO, 0, tmp, 2, HELLO.length);
+        return new Buffers(4).add(tmp, 2, HELLO.length).add(direct);
+    }
+}
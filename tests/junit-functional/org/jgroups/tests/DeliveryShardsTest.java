@@ -0,0 +1,200 @@
+package org.jgroups.tests;
+
+import org.jgroups.Address;
+import org.jgroups.Global;
+import org.jgroups.Message;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.DeliveryShards;
+import org.jgroups.util.MessageBatch;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link DeliveryShards}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class DeliveryShardsTest {
+    protected DeliveryShards shards;
+
+    @AfterMethod
+    protected void destroy() {
+        if(shards != null)
+            shards.stop();
+    }
+
+    /** Batches from the same sender must be delivered in the order in which they were handed off */
+    public void testFifoPerSender() throws Exception {
+        final int NUM_SENDERS=10, NUM_BATCHES=1000, BATCH_SIZE=5;
+        final Map<Address,List<Integer>> received=new ConcurrentHashMap<Address,List<Integer>>();
+        shards=create(4, new DeliveryShards.Handler() {
+            public void deliver(MessageBatch batch) {
+                List<Integer> list=received.get(batch.sender());
+                for(Message msg: batch)
+                    list.add((Integer)msg.getObject());
+            }
+        });
+
+        final Address[] senders=new Address[NUM_SENDERS];
+        for(int i=0; i < senders.length; i++) {
+            senders[i]=Util.createRandomAddress(String.valueOf((char)('A' + i)));
+            received.put(senders[i], new ArrayList<Integer>()); // only accessed by the sender's shard
+        }
+
+        Thread[] threads=new Thread[NUM_SENDERS];
+        for(int i=0; i < threads.length; i++) {
+            final Address sender=senders[i];
+            threads[i]=new Thread() {
+                public void run() {
+                    int seqno=1;
+                    for(int j=0; j < NUM_BATCHES; j++) {
+                        MessageBatch batch=new MessageBatch(null, sender, null, true, MessageBatch.Mode.REG, BATCH_SIZE);
+                        for(int k=0; k < BATCH_SIZE; k++)
+                            batch.add(new Message(null, sender, seqno++));
+                        shards.deliver(batch);
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for(Thread thread: threads)
+            thread.join();
+
+        int expected=NUM_BATCHES * BATCH_SIZE;
+        for(int i=0; i < 20 && shards.getDeliveredBatches() < NUM_SENDERS * NUM_BATCHES; i++)
+            Util.sleep(500);
+        assert shards.getDeliveredBatches() == NUM_SENDERS * NUM_BATCHES : shards;
+        assert shards.getQueuedBatches() == 0;
+
+        for(Address sender: senders) {
+            List<Integer> list=received.get(sender);
+            assert list.size() == expected : sender + ": expected " + expected + " messages, but got " + list.size();
+            for(int i=0; i < list.size(); i++)
+                assert list.get(i) == i+1 : sender + ": expected " + (i+1) + " but got " + list.get(i);
+        }
+    }
+
+    /** A blocked shard must not block senders pinned to a different shard */
+    public void testSendersOnDifferentShardsAreIndependent() throws Exception {
+        final CountDownLatch blocked=new CountDownLatch(1), unblock=new CountDownLatch(1), done=new CountDownLatch(1);
+        final Address a=Util.createRandomAddress("A");
+        shards=create(2, new DeliveryShards.Handler() {
+            public void deliver(MessageBatch batch) {
+                if(batch.sender().equals(a)) {
+                    blocked.countDown();
+                    try {unblock.await();} catch(InterruptedException e) {}
+                }
+                else
+                    done.countDown();
+            }
+        });
+
+        Address b=Util.createRandomAddress("B");
+        while(shards.shard(b) == shards.shard(a))
+            b=Util.createRandomAddress("B");
+
+        shards.deliver(batch(a));
+        assert blocked.await(10, TimeUnit.SECONDS);
+        shards.deliver(batch(b));
+        assert done.await(10, TimeUnit.SECONDS) : "delivery of B's batch was blocked by A: " + shards;
+        unblock.countDown();
+    }
+
+    /** A full queue blocks the handoff until the shard has caught up */
+    public void testBoundedQueue() throws Exception {
+        final CountDownLatch blocked=new CountDownLatch(1), unblock=new CountDownLatch(1);
+        final Address a=Util.createRandomAddress("A");
+        shards=new DeliveryShards(1, 2, new DefaultThreadFactory("test", true), "delivery", new DeliveryShards.Handler() {
+            public void deliver(MessageBatch batch) {
+                blocked.countDown();
+                try {unblock.await();} catch(InterruptedException e) {}
+            }
+        });
+        shards.start();
+        shards.deliver(batch(a)); // blocks the shard
+        assert blocked.await(10, TimeUnit.SECONDS);
+        shards.deliver(batch(a));
+        shards.deliver(batch(a)); // the queue is full now
+        final CountDownLatch added=new CountDownLatch(1);
+        new Thread() {
+            public void run() {
+                shards.deliver(batch(a));
+                added.countDown();
+            }
+        }.start();
+        assert !added.await(500, TimeUnit.MILLISECONDS) : "the handoff should have blocked: " + shards;
+        unblock.countDown();
+        assert added.await(10, TimeUnit.SECONDS);
+        assert shards.waitUntilDelivered(10000);
+        assert shards.getDeliveredBatches() == 4;
+    }
+
+    /** Batches which are still queued are delivered on stop() */
+    public void testStopDeliversQueuedBatches() throws Exception {
+        final CountDownLatch blocked=new CountDownLatch(1), unblock=new CountDownLatch(1);
+        final AtomicInteger delivered=new AtomicInteger();
+        final Address a=Util.createRandomAddress("A");
+        shards=create(1, new DeliveryShards.Handler() {
+            public void deliver(MessageBatch batch) {
+                blocked.countDown();
+                try {unblock.await();} catch(InterruptedException e) {}
+                delivered.incrementAndGet();
+            }
+        });
+        shards.deliver(batch(a));
+        assert blocked.await(10, TimeUnit.SECONDS);
+        for(int i=0; i < 10; i++)
+            shards.deliver(batch(a));
+        unblock.countDown();
+        shards.stop();
+        assert shards.waitUntilDelivered(10000);
+        assert delivered.get() == 11 : "delivered " + delivered + " batches";
+    }
+
+    /** An exception thrown by the handler doesn't kill the shard */
+    public void testHandlerThrowingException() throws Exception {
+        final CountDownLatch done=new CountDownLatch(2);
+        shards=create(1, new DeliveryShards.Handler() {
+            public void deliver(MessageBatch batch) {
+                done.countDown();
+                throw new IllegalStateException("boom");
+            }
+        });
+        Address a=Util.createRandomAddress("A");
+        shards.deliver(batch(a));
+        shards.deliver(batch(a));
+        assert done.await(10, TimeUnit.SECONDS);
+    }
+
+    public void testShardIsStable() {
+        shards=create(3, null);
+        Address a=Util.createRandomAddress("A");
+        int shard=shards.shard(a);
+        assert shard >= 0 && shard < 3;
+        for(int i=0; i < 10; i++)
+            assert shards.shard(a) == shard;
+    }
+
+
+    protected static DeliveryShards create(int num, DeliveryShards.Handler handler) {
+        DeliveryShards retval=new DeliveryShards(num, new DefaultThreadFactory("test", true), "delivery", handler);
+        retval.start();
+        return retval;
+    }
+
+    protected static MessageBatch batch(Address sender) {
+        MessageBatch batch=new MessageBatch(null, sender, null, true, MessageBatch.Mode.REG, 1);
+        batch.add(new Message(null, sender, "hello"));
+        return batch;
+    }
+}
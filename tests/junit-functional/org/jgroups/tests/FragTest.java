@@ -18,7 +18,9 @@ import org.testng.annotations.BeforeClass;
 import org.testng.annotations.Test;
 
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 
@@ -98,6 +100,41 @@ public class FragTest {
         assert frag_receiver.getNumMsgs() == NUM_MSGS;
     }
 
+    /** Tests fragmentation of messages whose payload is an off-heap ByteBuffer */
+    public void testDirectByteBufferMessages() throws Exception {
+        final byte[] data=new byte[MSG_SIZE];
+        for(int i=0; i < data.length; i++)
+            data[i]=(byte)i;
+        ByteBuffer payload=ByteBuffer.allocateDirect(MSG_SIZE);
+        payload.put(data).flip();
+
+        final List<Message> list=new ArrayList<Message>();
+        ch.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                synchronized(list) {
+                    list.add(msg);
+                }
+            }
+        });
+        int num_msgs=10;
+        for(int i=0; i < num_msgs; i++)
+            ch.send(new Message(null).setBuffer(payload));
+
+        for(int i=0; i < 10; i++) {
+            synchronized(list) {
+                if(list.size() >= num_msgs)
+                    break;
+            }
+            Util.sleep(500);
+        }
+        synchronized(list) {
+            assert list.size() == num_msgs;
+            for(Message msg: list)
+                assert Arrays.equals(msg.getBuffer(), data);
+        }
+        assert payload.remaining() == MSG_SIZE;
+    }
+
     /**
      * Tests potential ordering violation by sending small, unfragmented messages, followed by a large message
      * which generates 3 fragments, followed by a final small message. Verifies that the message assembled from the
@@ -2,11 +2,21 @@ package org.jgroups.tests;
 
 import org.jgroups.Global;
 import org.jgroups.Header;
+import org.jgroups.Message;
+import org.jgroups.conf.ClassConfigurator;
+import org.jgroups.protocols.FragHeader;
+import org.jgroups.protocols.pbcast.NakAckHeader2;
+import org.jgroups.util.Bits;
 import org.jgroups.util.Headers;
+import org.jgroups.util.Util;
 import org.testng.annotations.Test;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Tests the functionality of the Headers class
@@ -18,6 +28,10 @@ public class HeadersTest {
 
     private static final MyHeader h1=new MyHeader(), h2=new MyHeader(), h3=new MyHeader();
 
+    static {
+        ClassConfigurator.add((short)1900, EstimatedHeader.class);
+    }
+
 
 
     public static void testConstructor() {
@@ -168,6 +182,299 @@ public class HeadersTest {
     }
 
 
+    public static void testMarshalledSizeIsCached() {
+        SizeHeader a=new SizeHeader(10), b=new SizeHeader(20);
+        Headers hdrs=new Headers(3);
+        hdrs.putHeader(NAKACK_ID, a);
+        hdrs.putHeader(FRAG_ID, b);
+        int expected=marshalledSize(10, 20);
+        assert hdrs.marshalledSize() == expected;
+        assert hdrs.marshalledSize() == expected;
+        assert a.calls == 1 && b.calls == 1 : "size() should have been called once: " + a.calls + ", " + b.calls;
+
+        SizeHeader c=new SizeHeader(5);
+        hdrs.putHeader(FRAG_ID, c); // replaces b: only c's size has to be computed
+        assert hdrs.marshalledSize() == marshalledSize(10, 5);
+        assert a.calls == 1 && c.calls == 1;
+
+        Headers copy=hdrs.copy(); // the copy shares the cached sizes
+        assert copy.marshalledSize() == marshalledSize(10, 5);
+        assert a.calls == 1 && c.calls == 1;
+
+        hdrs.putHeaderIfAbsent(FRAG_ID, new SizeHeader(100)); // no change
+        assert hdrs.marshalledSize() == marshalledSize(10, 5);
+    }
+
+    /** A header is changed by putting a modified copy, which invalidates its cached size */
+    public static void testMarshalledSizeOfReplacedHeader() {
+        SizeHeader a=new SizeHeader(10);
+        Headers hdrs=new Headers(3);
+        hdrs.putHeader(NAKACK_ID, a);
+        assert hdrs.marshalledSize() == marshalledSize(10);
+
+        a.size=200; // modified in place: not allowed, the cached size is used
+        assert hdrs.marshalledSize() == marshalledSize(10);
+
+        hdrs.putHeader(NAKACK_ID, a); // putting the header again invalidates the cached size
+        assert hdrs.marshalledSize() == marshalledSize(200);
+
+        hdrs.addHeader(FRAG_ID, new SizeHeader(1));
+        assert hdrs.marshalledSize() == marshalledSize(200, 1);
+    }
+
+    public static void testAddHeader() {
+        Headers hdrs=new Headers(1);
+        for(short id=1; id <= 8; id++)
+            hdrs.addHeader(id, new MyHeader());
+        assert hdrs.size() == 8;
+        assert hdrs.capacity() == 12 : "capacity should have grown from 1 to 3, 6 and 12, but is " + hdrs.capacity();
+        for(short id=1; id <= 8; id++)
+            assert hdrs.getHeader(id) != null;
+        assert hdrs.getHeader((short)9) == null;
+        assert hdrs.marshalledSize() == marshalledSize(0, 0, 0, 0, 0, 0, 0, 0);
+    }
+
+
+    /** Headers read from a stream are unmarshalled on first access */
+    public static void testLazyUnmarshalling() throws Exception {
+        Headers hdrs=new Headers(3);
+        hdrs.putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(322649));
+        hdrs.putHeader(FRAG_ID, new FragHeader(1, 2, 3));
+        byte[] buf=marshal(hdrs);
+        assert buf.length == Global.SHORT_SIZE + hdrs.marshalledSize();
+
+        Headers copy=Headers.readFrom(new DataInputStream(new ByteArrayInputStream(buf)));
+        assert copy.size() == 2;
+        assert copy.marshalledSize() == hdrs.marshalledSize();
+        assert copy.isMarshalled(NAKACK_ID) && copy.isMarshalled(FRAG_ID);
+
+        NakAckHeader2 hdr=(NakAckHeader2)copy.getHeader(NAKACK_ID);
+        assert hdr.getType() == NakAckHeader2.MSG && hdr.getSeqno() == 322649;
+        assert !copy.isMarshalled(NAKACK_ID) && copy.isMarshalled(FRAG_ID);
+        assert copy.getHeader(NAKACK_ID) == hdr;
+        assert ((FragHeader)copy.getHeader(FRAG_ID)).frag_id == 2;
+    }
+
+    /** Headers in marshalled form are written as is; replaced headers are marshalled again */
+    public static void testWriteMarshalledHeaders() throws Exception {
+        Headers hdrs=new Headers(3);
+        hdrs.putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(5));
+        hdrs.putHeader(FRAG_ID, new FragHeader(1, 2, 3));
+        byte[] buf=marshal(hdrs);
+
+        Headers copy=Headers.readFrom(new DataInputStream(new ByteArrayInputStream(buf)));
+        assert Arrays.equals(marshal(copy), buf);
+        assert copy.isMarshalled(NAKACK_ID) && copy.isMarshalled(FRAG_ID);
+
+        copy.putHeader(FRAG_ID, new FragHeader(1, 200, 300));
+        assert copy.getRawOffset(FRAG_ID) == -1 && copy.getRawOffset(NAKACK_ID) >= 0;
+        Headers copy2=Headers.readFrom(new DataInputStream(new ByteArrayInputStream(marshal(copy))));
+        assert ((FragHeader)copy2.getHeader(FRAG_ID)).frag_id == 200;
+        assert ((NakAckHeader2)copy2.getHeader(NAKACK_ID)).getSeqno() == 5;
+
+        Headers copy3=copy.copy(NAKACK_ID); // copies only the NAKACK header, which stays marshalled
+        assert copy3.size() == 1 && copy3.getHeader(FRAG_ID) == null;
+        assert copy3.isMarshalled(NAKACK_ID);
+        assert ((NakAckHeader2)copy3.getHeader(NAKACK_ID)).getSeqno() == 5;
+    }
+
+    /** The lengths of headers are those of the bytes written, so headers whose size() is only an estimate work, too */
+    public static void testEstimatedHeaderSize() throws Exception {
+        for(int estimate: new int[]{0, 5, 10, 11, 500}) {
+            Headers hdrs=new Headers(3);
+            hdrs.putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(5));
+            hdrs.putHeader(FRAG_ID, new EstimatedHeader(estimate, 10));
+            hdrs.putHeader(UDP_ID, new EstimatedHeader(estimate, 200));
+            byte[] buf=marshal(hdrs);
+            assert buf.length == Global.SHORT_SIZE + marshalledSize(NakAckHeader2.createMessageHeader(5).size(), 10, 200);
+
+            Headers copy=Headers.readFrom(new DataInputStream(new ByteArrayInputStream(buf)));
+            assert ((EstimatedHeader)copy.getHeader(FRAG_ID)).data.length == 10 - Global.INT_SIZE;
+            assert ((EstimatedHeader)copy.getHeader(UDP_ID)).data.length == 200 - Global.INT_SIZE;
+            assert ((NakAckHeader2)copy.getHeader(NAKACK_ID)).getSeqno() == 5;
+        }
+    }
+
+    /** Headers are written consistently while they're concurrently being unmarshalled by another thread */
+    public static void testConcurrentWriteAndUnmarshal() throws Exception {
+        Headers hdrs=new Headers(3);
+        hdrs.putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(322649));
+        hdrs.putHeader(FRAG_ID, new FragHeader(1, 2, 3));
+        hdrs.putHeader(UDP_ID, NakAckHeader2.createMessageHeader(5));
+        final byte[] buf=marshal(hdrs);
+        final short[] ids={NAKACK_ID, FRAG_ID, UDP_ID};
+        final CyclicBarrier barrier=new CyclicBarrier(2);
+        final AtomicReference<Headers> ref=new AtomicReference<Headers>();
+        final int NUM=5000;
+
+        Thread reader=new Thread() {
+            public void run() {
+                try {
+                    for(int i=0; i < NUM; i++) {
+                        barrier.await();
+                        Headers copy=ref.get();
+                        for(short id: ids)
+                            copy.getHeader(id);
+                        barrier.await();
+                    }
+                }
+                catch(Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        };
+        reader.start();
+        try {
+            for(int i=0; i < NUM; i++) {
+                ref.set(Headers.readFrom(new DataInputStream(new ByteArrayInputStream(buf))));
+                barrier.await();
+                byte[] written=marshal(ref.get());
+                barrier.await(10, TimeUnit.SECONDS);
+                assert Arrays.equals(written, buf) : "headers written in iteration " + i + " differ from the original";
+            }
+        }
+        finally {
+            reader.interrupt();
+            reader.join(10000);
+        }
+    }
+
+    /** Threads accessing a marshalled header concurrently all get the same (fully unmarshalled) instance */
+    public static void testConcurrentUnmarshal() throws Exception {
+        Headers hdrs=new Headers(3);
+        hdrs.putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(322649));
+        final byte[] buf=marshal(hdrs);
+        final int NUM_THREADS=4;
+        for(int i=0; i < 1000; i++) {
+            final Headers copy=Headers.readFrom(new DataInputStream(new ByteArrayInputStream(buf)));
+            final CyclicBarrier barrier=new CyclicBarrier(NUM_THREADS);
+            final Header[] results=new Header[NUM_THREADS];
+            Thread[] threads=new Thread[NUM_THREADS];
+            for(int j=0; j < threads.length; j++) {
+                final int index=j;
+                threads[j]=new Thread() {
+                    public void run() {
+                        try {
+                            barrier.await();
+                            results[index]=copy.getHeader(NAKACK_ID);
+                        }
+                        catch(Exception ex) {
+                            ex.printStackTrace();
+                        }
+                    }
+                };
+                threads[j].start();
+            }
+            for(Thread thread: threads)
+                thread.join(10000);
+            for(Header hdr: results) {
+                assert hdr == results[0] : "threads got different instances of the same header";
+                assert ((NakAckHeader2)hdr).getSeqno() == 322649;
+            }
+        }
+    }
+
+    public static void testUnmarshal() throws Exception {
+        Message msg=new Message(null).putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(5))
+          .putHeader(FRAG_ID, new FragHeader(1, 2, 3));
+        Message copy=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg));
+        assert copy.getRawHeaderOffset(NAKACK_ID) >= 0 && copy.getRawHeaderOffset(FRAG_ID) >= 0;
+        copy.unmarshalHeaders();
+        assert copy.getRawHeaderOffset(NAKACK_ID) == -1 && copy.getRawHeaderOffset(FRAG_ID) == -1;
+        assert ((NakAckHeader2)copy.getHeader(NAKACK_ID)).getSeqno() == 5;
+    }
+
+    /** A marshalled copy and the copies made from it don't share header instances with the original or each other */
+    public static void testMarshalledCopy() throws Exception {
+        Headers hdrs=new Headers(3);
+        NakAckHeader2 nakack_hdr=NakAckHeader2.createMessageHeader(5);
+        hdrs.putHeader(NAKACK_ID, nakack_hdr);
+        hdrs.putHeader(FRAG_ID, new FragHeader(1, 2, 3));
+
+        Headers copy=hdrs.marshalledCopy();
+        assert copy.size() == 2 && copy.isMarshalled(NAKACK_ID) && copy.isMarshalled(FRAG_ID);
+        Headers copy2=copy.copy();
+        Header hdr=copy.getHeader(NAKACK_ID), hdr2=copy2.getHeader(NAKACK_ID);
+        assert hdr != nakack_hdr && hdr2 != nakack_hdr && hdr != hdr2;
+        assert ((NakAckHeader2)hdr).getSeqno() == 5 && ((NakAckHeader2)hdr2).getSeqno() == 5;
+        assert ((FragHeader)copy2.getHeader(FRAG_ID)).frag_id == 2;
+    }
+
+    public static void testPeekSeqno() throws Exception {
+        for(long seqno: new long[]{0, 1, 127, 128, 322649, Long.MAX_VALUE}) {
+            Message msg=new Message(null).putHeader(NAKACK_ID, NakAckHeader2.createMessageHeader(seqno))
+              .putHeader(FRAG_ID, new FragHeader(1, 2, 3));
+            assert NakAckHeader2.peekSeqno(msg, NAKACK_ID) == -1; // not marshalled
+            Message copy=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg));
+            assert NakAckHeader2.peekSeqno(copy, NAKACK_ID) == seqno;
+            assert NakAckHeader2.peekSeqno(copy, UDP_ID) == -1;
+        }
+
+        Message msg=new Message(null).putHeader(NAKACK_ID, NakAckHeader2.createXmitRequestHeader(null));
+        Message copy=(Message)Util.streamableFromByteBuffer(Message.class, Util.streamableToByteBuffer(msg));
+        assert NakAckHeader2.peekSeqno(copy, NAKACK_ID) == -1;
+    }
+
+
+    protected static byte[] marshal(Headers hdrs) throws Exception {
+        ByteArrayOutputStream out=new ByteArrayOutputStream();
+        hdrs.writeTo(new DataOutputStream(out));
+        return out.toByteArray();
+    }
+
+    /** The marshalled size of headers with the given sizes: | length | (ID | magic number | length | header)* | */
+    protected static int marshalledSize(int ... sizes) {
+        int retval=0;
+        for(int size: sizes)
+            retval+=Global.SHORT_SIZE * 2 + Bits.sizeVarInt(size) + size;
+        return Bits.sizeVarInt(retval) + retval;
+    }
+
+
+    /** A header whose size() is only an estimate of its marshalled size */
+    public static class EstimatedHeader extends Header {
+        protected int    estimate;
+        protected byte[] data;
+
+        public EstimatedHeader() {
+        }
+
+        public EstimatedHeader(int estimate, int length) {
+            this.estimate=estimate;
+            this.data=new byte[length - Global.INT_SIZE];
+        }
+
+        public int size() {
+            return estimate;
+        }
+
+        public void writeTo(DataOutput out) throws Exception {
+            out.writeInt(data.length);
+            out.write(data);
+        }
+
+        public void readFrom(DataInput in) throws Exception {
+            data=new byte[in.readInt()];
+            in.readFully(data);
+        }
+    }
+
+
+    protected static class SizeHeader extends MyHeader {
+        protected int size;
+        protected int calls; // number of calls to size()
+
+        public SizeHeader(int size) {
+            this.size=size;
+        }
+
+        public int size() {
+            calls++;
+            return size;
+        }
+    }
+
+
     public static class MyHeader extends Header {
 
         public MyHeader() {
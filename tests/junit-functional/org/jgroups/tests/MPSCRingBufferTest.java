@@ -0,0 +1,107 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.MPSCRingBuffer;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Tests {@link MPSCRingBuffer}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class MPSCRingBufferTest {
+
+    public void testCapacity() {
+        MPSCRingBuffer<Integer> buf=new MPSCRingBuffer<Integer>(10);
+        assert buf.capacity() == 16;
+        assert buf.isEmpty();
+        assert buf.poll() == null;
+    }
+
+    public void testOfferAndPoll() {
+        MPSCRingBuffer<Integer> buf=new MPSCRingBuffer<Integer>(4);
+        for(int i=1; i <= 4; i++)
+            assert buf.offer(i);
+        assert !buf.offer(5) : "buffer should be full";
+        assert buf.size() == 4;
+        for(int i=1; i <= 4; i++)
+            assert buf.poll() == i;
+        assert buf.isEmpty();
+        assert buf.poll() == null;
+
+        // wrap around
+        for(int i=0; i < 10; i++) {
+            assert buf.offer(i);
+            assert buf.offer(i+1);
+            assert buf.poll() == i;
+            assert buf.poll() == i+1;
+        }
+        assert buf.size() == 0;
+    }
+
+    public void testNullElement() {
+        MPSCRingBuffer<Integer> buf=new MPSCRingBuffer<Integer>(4);
+        try {
+            buf.offer(null);
+            assert false : "adding a null element should have thrown an exception";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    public void testTakeBlocksUntilElementIsAdded() throws Exception {
+        final MPSCRingBuffer<Integer> buf=new MPSCRingBuffer<Integer>(4);
+        new Thread() {
+            public void run() {
+                Util.sleep(500);
+                buf.offer(42);
+            }
+        }.start();
+        long start=System.currentTimeMillis();
+        int el=buf.take();
+        long time=System.currentTimeMillis() - start;
+        System.out.println("took " + time + " ms to get " + el);
+        assert el == 42;
+    }
+
+    /** Multiple producers add elements concurrently; the consumer needs to receive all of them in producer order */
+    public void testConcurrentProducers() throws Exception {
+        final int NUM_PRODUCERS=8, NUM_ELEMENTS=50000;
+        final MPSCRingBuffer<long[]> buf=new MPSCRingBuffer<long[]>(128);
+        final CountDownLatch latch=new CountDownLatch(1);
+        Thread[] producers=new Thread[NUM_PRODUCERS];
+        for(int i=0; i < producers.length; i++) {
+            final int id=i;
+            producers[i]=new Thread() {
+                public void run() {
+                    try {
+                        latch.await();
+                        for(long j=1; j <= NUM_ELEMENTS; j++)
+                            buf.put(new long[]{id, j});
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+            };
+            producers[i].start();
+        }
+        latch.countDown();
+
+        long[] last=new long[NUM_PRODUCERS];
+        for(int i=0; i < NUM_PRODUCERS * NUM_ELEMENTS; i++) {
+            long[] el=buf.take();
+            int id=(int)el[0];
+            assert el[1] == last[id] + 1 : "expected " + (last[id] + 1) + " from producer " + id + ", but got " + el[1];
+            last[id]=el[1];
+        }
+        for(Thread producer: producers)
+            producer.join(10000);
+        assert buf.isEmpty();
+        for(long num: last)
+            assert num == NUM_ELEMENTS;
+    }
+}
@@ -0,0 +1,153 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.blocks.Cache;
+import org.jgroups.blocks.MappedMap;
+import org.jgroups.blocks.ReplicatedHashMap;
+import org.jgroups.util.MappedStore;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tests {@link MappedStore}, {@link MappedMap} and the use of a store by {@link Cache}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class MappedStoreTest {
+    protected File                     dir;
+    protected MappedMap<String,String> map;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        dir=new File(System.getProperty("java.io.tmpdir"), "MappedStoreTest-" + System.nanoTime());
+        map=new MappedMap<String,String>(createStore(false));
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        map.close();
+        File[] files=dir.listFiles();
+        if(files != null)
+            for(File file: files)
+                file.delete();
+        dir.delete();
+    }
+
+
+    public void testPutGetRemove() {
+        assert map.put("one", "1") == null;
+        assert map.put("two", "2") == null;
+        assert map.put("one", "1-new").equals("1");
+        assert map.get("one").equals("1-new");
+        assert map.size() == 2;
+        assert map.remove("two").equals("2");
+        assert map.get("two") == null;
+        assert map.putIfAbsent("one", "x").equals("1-new");
+        assert !map.remove("one", "x");
+        assert map.replace("one", "1-new", "1-newer");
+        assert map.get("one").equals("1-newer");
+        map.clear();
+        assert map.isEmpty();
+    }
+
+    public void testIteration() {
+        Map<String,String> expected=new HashMap<String,String>();
+        for(int i=0; i < 100; i++) {
+            map.put("key-" + i, "val-" + i);
+            expected.put("key-" + i, "val-" + i);
+        }
+        assert map.equals(expected);
+        assert expected.equals(map);
+        assert map.hashCode() == expected.hashCode();
+    }
+
+    /** Overwrites the keys many times, so that sealed segments are compacted and the live records relocated */
+    public void testCompaction() throws Exception {
+        for(int round=0; round < 20; round++)
+            for(int i=0; i < 100; i++)
+                map.put("key-" + i, "val-" + i + "-" + round);
+        MappedStore store=map.getStore();
+        for(int i=0; i < 50 && store.getNumCompactions() == 0; i++)
+            Util.sleep(100);
+        System.out.println("store: " + store + ", compactions: " + store.getNumCompactions());
+        assert store.getNumCompactions() > 0;
+        store.compact();
+        assert store.getNumSegments() < 10 : "segments: " + store.getNumSegments();
+        for(int i=0; i < 100; i++)
+            assert map.get("key-" + i).equals("val-" + i + "-19");
+    }
+
+    public void testRecovery() throws Exception {
+        map.close();
+        map=new MappedMap<String,String>(createStore(true));
+        for(int i=0; i < 100; i++)
+            map.put("key-" + i, "val-" + i);
+        for(int i=0; i < 50; i++)
+            map.remove("key-" + i);
+        map.put("key-99", "val-99-new");
+        map.close();
+
+        map=new MappedMap<String,String>(createStore(true));
+        assert map.size() == 50 : "size: " + map.size();
+        for(int i=0; i < 50; i++)
+            assert map.get("key-" + i) == null;
+        for(int i=50; i < 99; i++)
+            assert map.get("key-" + i).equals("val-" + i);
+        assert map.get("key-99").equals("val-99-new");
+    }
+
+    public void testCache() throws Exception {
+        Cache<Integer,String> cache=new Cache<Integer,String>();
+        cache.setStore(createStore(false).setSegmentSize(4096));
+        try {
+            for(int round=0; round < 10; round++)
+                for(int i=0; i < 100; i++)
+                    cache.put(i, "val-" + i + "-" + round, 0);
+            cache.getStore().compact();
+            for(int i=0; i < 100; i++)
+                assert cache.get(i).equals("val-" + i + "-9");
+            assert cache.remove(5).equals("val-5-9");
+            assert cache.getEntry(6).getValue().equals("val-6-9");
+            assert cache.getSize() == 99;
+        }
+        finally {
+            cache.stop();
+        }
+    }
+
+    /** The state of a ReplicatedHashMap with a MappedMap is written and read without deserializing the values */
+    public void testStateTransfer() throws Exception {
+        JChannel a=new JChannel(), b=new JChannel();
+        MappedMap<String,String> map2=new MappedMap<String,String>(new MappedStore(dir, "map2"));
+        try {
+            ReplicatedHashMap<String,String> provider=new ReplicatedHashMap<String,String>(map, a);
+            ReplicatedHashMap<String,String> requester=new ReplicatedHashMap<String,String>(map2, b);
+            for(int i=0; i < 1000; i++)
+                map.put("key-" + i, "val-" + i);
+            ByteArrayOutputStream out=new ByteArrayOutputStream();
+            provider.getState(out);
+            requester.setState(new ByteArrayInputStream(out.toByteArray()));
+            assert map2.size() == 1000;
+            assert map2.equals(map);
+        }
+        finally {
+            map2.close();
+            Util.close(a, b);
+        }
+    }
+
+
+    protected MappedStore createStore(boolean persistent) {
+        return new MappedStore(dir, "test").setSegmentSize(8192).setPersistent(persistent).setCompactionThreshold(0.5);
+    }
+}
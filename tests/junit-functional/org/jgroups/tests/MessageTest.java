@@ -17,7 +17,9 @@ import org.testng.annotations.Test;
 import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
 
 /**
  * @author Bela Ban
@@ -438,6 +440,94 @@ public class MessageTest {
         assert copy.size() == msg2.size();
     }
 
+    public static void testByteBufferPayload() throws Exception {
+        ByteBuffer payload=ByteBuffer.allocateDirect(10);
+        payload.put("hello world".getBytes(), 0, 10).flip();
+        payload.position(6); // payload is "worl"
+        Message msg=new Message(Util.createRandomAddress("A"), Util.createRandomAddress("B"), null).setBuffer(payload);
+        assert msg.hasByteBuffer() && msg.hasPayload();
+        assert msg.getLength() == 4;
+        assert msg.getOffset() == 0;
+        assert new String(msg.getBuffer()).equals("worl");
+        assert new String(msg.getRawBuffer()).equals("worl");
+        assert payload.position() == 6 && payload.limit() == 10; // the payload must not have been changed
+
+        ByteBuffer tmp=msg.getByteBuffer();
+        tmp.get(new byte[tmp.remaining()]); // consuming the returned buffer doesn't affect the message
+        assert msg.getByteBuffer().remaining() == 4;
+
+        Message copy=msg.copy();
+        assert copy.hasByteBuffer();
+        assert new String(copy.getBuffer()).equals("worl");
+
+        msg.setBuffer("bela".getBytes());
+        assert !msg.hasByteBuffer();
+        assert new String(msg.getBuffer()).equals("bela");
+    }
+
+    /** The array of a ByteBuffer payload is created once; a heap buffer spanning its entire array isn't copied */
+    public static void testByteBufferPayloadRawBuffer() throws Exception {
+        ByteBuffer payload=ByteBuffer.allocateDirect(10);
+        payload.put("hello world".getBytes(), 0, 10).flip();
+        Message msg=new Message(null).setBuffer(payload);
+        byte[] raw=msg.getRawBuffer();
+        assert raw.length == 10 && msg.getOffset() == 0;
+        assert msg.getRawBuffer() == raw && msg.getBuffer() == raw;
+        assert msg.hasByteBuffer();
+
+        byte[] array="hello".getBytes();
+        msg.setBuffer(ByteBuffer.wrap(array));
+        assert msg.getRawBuffer() == array;
+
+        msg.setBuffer(ByteBuffer.wrap(array, 1, 3)); // a subset of the array is copied
+        raw=msg.getRawBuffer();
+        assert raw != array && new String(raw).equals("ell") && msg.getRawBuffer() == raw;
+    }
+
+    /** Threads calling getRawBuffer() concurrently on a message with a direct ByteBuffer payload get the same array */
+    public static void testConcurrentRawBuffer() throws Exception {
+        for(int i=0; i < 100; i++) {
+            ByteBuffer payload=ByteBuffer.allocateDirect(100);
+            payload.put(new byte[100]).flip();
+            final Message msg=new Message(null).setBuffer(payload);
+            final byte[][] arrays=new byte[4][];
+            final CyclicBarrier barrier=new CyclicBarrier(arrays.length);
+            Thread[] threads=new Thread[arrays.length];
+            for(int j=0; j < threads.length; j++) {
+                final int index=j;
+                threads[j]=new Thread() {
+                    public void run() {
+                        try {barrier.await();} catch(Exception e) {}
+                        arrays[index]=msg.getRawBuffer();
+                    }
+                };
+                threads[j].start();
+            }
+            for(Thread thread: threads)
+                thread.join();
+            for(byte[] array: arrays)
+                assert array == arrays[0] && array.length == 100;
+        }
+    }
+
+    public static void testByteBufferPayloadMarshalling() throws Exception {
+        byte[] data=new byte[20000];
+        for(int i=0; i < data.length; i++)
+            data[i]=(byte)i;
+        ByteBuffer payload=ByteBuffer.allocateDirect(data.length);
+        payload.put(data).flip();
+        Message msg=new Message(Util.createRandomAddress("A"), Util.createRandomAddress("B"), null).setBuffer(payload);
+        addHeaders(msg);
+        _testSize(msg);
+
+        byte[] buf=Util.streamableToByteBuffer(msg);
+        Message msg2=(Message)Util.streamableFromByteBuffer(Message.class, buf);
+        assert !msg2.hasByteBuffer();
+        assert msg2.getLength() == data.length;
+        Assert.assertEquals(msg2.getBuffer(), data);
+        assert payload.remaining() == data.length;
+    }
+
     protected static void addHeaders(Message msg) {
         TpHeader tp_hdr=new TpHeader("DemoChannel2");
         msg.putHeader(UDP_ID, tp_hdr);
@@ -107,6 +107,26 @@ public class SeqnoListTest {
     }
 
 
+    public static void testPrimitiveIteration() {
+        SeqnoList list=new SeqnoList(3).add(5, 7).add(9).add(10, 11);
+        List<Long> actual=new ArrayList<Long>();
+        for(SeqnoList.SeqnoListIterator it=list.seqnoIterator(); it.hasNext();)
+            actual.add(it.nextSeqno());
+        assert actual.equals(Arrays.asList(3L,5L,6L,7L,9L,10L,11L)) : "actual: " + actual;
+        assert !new SeqnoList().seqnoIterator().hasNext();
+    }
+
+    public static void testGrowth() {
+        SeqnoList list=new SeqnoList();
+        for(int i=0; i < 100; i++)
+            list.add(i*10, i*10+2);
+        assert list.size() == 300;
+        assert list.getLast() == 992;
+        list.remove(500); // 501-502 and 49 ranges of 3 seqnos are left
+        assert list.size() == 2 + 49*3 : "size: " + list.size();
+    }
+
+
     public void testSerialization() throws Exception {
         SeqnoList list=new SeqnoList().add(1, 10, 50)
           .add(100,150).add(152,153).add(200,205).add(300,304,306).add(400,450).add(500);
@@ -0,0 +1,82 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.FutureListener;
+import org.jgroups.util.SettableFuture;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link SettableFuture}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class SettableFutureTest {
+
+    public static void testListenerSetBeforeCompletion() throws Exception {
+        SettableFuture<Integer> future=new SettableFuture<Integer>();
+        Counter counter=new Counter();
+        future.setListener(counter);
+        assert counter.get() == 0;
+        assert future.set(1);
+        assert !future.set(2);
+        assert counter.get() == 1;
+        assert future.get() == 1;
+    }
+
+    public static void testListenerSetAfterCompletion() throws Exception {
+        SettableFuture<Integer> future=new SettableFuture<Integer>();
+        future.setException(new Exception("booom"));
+        Counter counter=new Counter();
+        future.setListener(counter);
+        assert counter.get() == 1;
+    }
+
+    /**
+     * Races set() against setListener(): set() is held after marking the future done, until the listener has been set
+     * by another thread. The listener must be notified exactly once
+     */
+    public static void testConcurrentSetAndSetListener() throws Exception {
+        final CountDownLatch listener_set=new CountDownLatch(1);
+        final SettableFuture<Integer> future=new SettableFuture<Integer>() {
+            protected void notifyListener() {
+                if(Thread.currentThread().getName().equals("setter")) {
+                    try {
+                        listener_set.await(10, TimeUnit.SECONDS);
+                    }
+                    catch(InterruptedException e) {
+                    }
+                }
+                super.notifyListener();
+            }
+        };
+        Thread setter=new Thread("setter") {
+            public void run() {
+                future.set(1);
+            }
+        };
+        setter.start();
+        for(int i=0; i < 1000 && !future.isDone(); i++)
+            Util.sleep(10);
+        assert future.isDone();
+
+        Counter counter=new Counter();
+        future.setListener(counter);
+        listener_set.countDown();
+        setter.join(10000);
+        assert counter.get() == 1 : "listener was notified " + counter.get() + " times";
+    }
+
+
+    protected static class Counter extends AtomicInteger implements FutureListener<Integer> {
+        public void futureDone(Future<Integer> future) {
+            incrementAndGet();
+        }
+    }
+}
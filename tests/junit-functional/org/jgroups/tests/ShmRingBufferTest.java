@@ -0,0 +1,298 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.ShmRingBuffer;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.BeforeMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests {@link ShmRingBuffer}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL,sequential=true)
+public class ShmRingBufferTest {
+    protected static final byte[] PREFIX={1,2,3};
+    protected File                file;
+    protected ShmRingBuffer       consumer, producer;
+
+    @BeforeMethod
+    protected void setup() throws Exception {
+        file=File.createTempFile("ShmRingBufferTest", ".ring");
+        consumer=ShmRingBuffer.create(file, 1024);
+        producer=ShmRingBuffer.open(file);
+    }
+
+    @AfterMethod
+    protected void destroy() {
+        if(!consumer.isReleased())
+            consumer.close();
+        for(ShmRingBuffer ring: new ShmRingBuffer[]{producer, consumer})
+            if(!ring.isReleased())
+                ring.release();
+        file.delete();
+    }
+
+
+    public void testOfferAndTake() {
+        assert producer.capacity() == 1024;
+        byte[] buf=new byte[consumer.maxRecordSize()];
+        assert consumer.take(buf) == 0;
+        for(int i=0; i < 10; i++)
+            assert producer.offer(PREFIX, record(i, 10), 0, 10, 0);
+        for(int i=0; i < 10; i++) {
+            int length=consumer.take(buf);
+            assert length == PREFIX.length + 10;
+            check(buf, i, 10);
+        }
+        assert consumer.take(buf) == 0;
+        assert consumer.isEmpty();
+    }
+
+    /** Records of different lengths wrap around many times */
+    public void testWrapAround() {
+        byte[] buf=new byte[consumer.maxRecordSize()];
+        for(int i=0; i < 1000; i++) {
+            int size=i % 300;
+            assert producer.offer(PREFIX, record(i, size), 0, size, 0);
+            assert consumer.take(buf) == PREFIX.length + size;
+            check(buf, i, size);
+        }
+        assert consumer.isEmpty();
+    }
+
+    public void testFull() {
+        byte[] data=new byte[100];
+        int count=0;
+        while(producer.offer(PREFIX, data, 0, data.length, 0))
+            count++;
+        assert count == 1024 / 112 : "count=" + count;
+        assert !producer.offer(PREFIX, data, 0, data.length, 1000000); // waits for 1 ms
+
+        assert consumer.take(new byte[consumer.maxRecordSize()]) > 0;
+        assert producer.offer(PREFIX, data, 0, data.length, 0);
+    }
+
+    public void testRecordTooBig() {
+        byte[] data=new byte[consumer.maxRecordSize()];
+        assert !producer.offer(PREFIX, data, 0, data.length, 0);
+        assert producer.offer(PREFIX, data, 0, data.length - PREFIX.length, 0);
+    }
+
+    public void testClose() {
+        assert producer.isAlive(1000);
+        consumer.close();
+        assert producer.isClosed() && !producer.isAlive(1000);
+        assert !producer.offer(PREFIX, new byte[10], 0, 10, 0);
+    }
+
+    /** The liveness of a ring can be checked without mapping its file */
+    public void testIsAliveWithoutMapping() throws Exception {
+        assert ShmRingBuffer.isAlive(file, 1000);
+        consumer.close();
+        assert !ShmRingBuffer.isAlive(file, 1000);
+
+        File tmp=File.createTempFile("ShmRingBufferTest", ".ring");
+        try {
+            assert !ShmRingBuffer.isAlive(tmp, 1000); // empty file
+        }
+        finally {
+            tmp.delete();
+        }
+    }
+
+    /** The ring is unmapped when the last reference is released, and cannot be acquired anymore */
+    public void testRelease() {
+        assert producer.acquire();
+        producer.release();
+        assert !producer.isReleased(); // the creator's reference is still held
+        assert producer.offer(PREFIX, new byte[10], 0, 10, 0);
+        producer.release(); // releases the creator's reference and unmaps the ring
+        assert producer.isReleased() && !producer.acquire();
+        assert producer.toString().contains("released");
+        assert consumer.take(new byte[consumer.maxRecordSize()]) == PREFIX.length + 10; // the consumer's mapping is separate
+    }
+
+    /** Multiple producers add records concurrently; the records of each producer must be received in order */
+    public void testConcurrentProducers() throws Exception {
+        final int NUM_PRODUCERS=4, NUM=20000;
+        final CountDownLatch latch=new CountDownLatch(1);
+        final AtomicBoolean running=new AtomicBoolean(true);
+        Thread[] producers=new Thread[NUM_PRODUCERS];
+        ShmRingBuffer[] rings=new ShmRingBuffer[NUM_PRODUCERS];
+        try {
+            for(int i=0; i < producers.length; i++) {
+                final ShmRingBuffer ring=rings[i]=ShmRingBuffer.open(file);
+                final byte[] prefix={(byte)i};
+                producers[i]=new Thread() {
+                    public void run() {
+                        try {
+                            latch.await();
+                        }
+                        catch(InterruptedException e) {
+                            return;
+                        }
+                        for(int j=0; j < NUM && running.get(); j++) {
+                            byte[] data=ByteBuffer.allocate(Global.INT_SIZE).putInt(j).array();
+                            while(!ring.offer(prefix, data, 0, data.length, 1000000))
+                                if(!running.get())
+                                    return;
+                        }
+                    }
+                };
+                producers[i].start();
+            }
+            latch.countDown();
+
+            int[] next=new int[NUM_PRODUCERS];
+            byte[] buf=new byte[consumer.maxRecordSize()];
+            int received=0;
+            long deadline=System.currentTimeMillis() + 20000;
+            while(received < NUM_PRODUCERS * NUM && System.currentTimeMillis() < deadline) {
+                int length=consumer.take(buf);
+                if(length == 0)
+                    continue;
+                assert length == 1 + Global.INT_SIZE;
+                int producer_id=buf[0], seqno=ByteBuffer.wrap(buf, 1, Global.INT_SIZE).getInt();
+                assert seqno == next[producer_id] : "expected " + next[producer_id] + " from " + producer_id + ", but got " + seqno;
+                next[producer_id]++;
+                received++;
+            }
+            assert received == NUM_PRODUCERS * NUM : "received " + received + " records";
+            assert consumer.isEmpty();
+        }
+        finally {
+            // the producers must have stopped accessing the rings before they're unmapped
+            running.set(false);
+            latch.countDown();
+            for(Thread producer_thread: producers)
+                if(producer_thread != null)
+                    producer_thread.join();
+            for(ShmRingBuffer ring: rings)
+                if(ring != null)
+                    ring.release();
+        }
+    }
+
+    /** A ring which is released while a producer is offering records fails the offers instead of crashing */
+    public void testReleaseWhileOffering() throws Exception {
+        final ShmRingBuffer ring=ShmRingBuffer.open(file);
+        final AtomicBoolean running=new AtomicBoolean(true);
+        final CountDownLatch started=new CountDownLatch(1);
+        Thread producer_thread=new Thread() {
+            public void run() {
+                byte[] data=new byte[10];
+                while(running.get()) {
+                    ring.offer(PREFIX, data, 0, data.length, 0);
+                    started.countDown();
+                }
+            }
+        };
+        producer_thread.start();
+        try {
+            started.await();
+            ring.release();
+            assert ring.isReleased();
+            assert !ring.offer(PREFIX, new byte[10], 0, 10, 0);
+            assert ring.isClosed() && ring.take(new byte[ring.maxRecordSize()]) == 0;
+        }
+        finally {
+            running.set(false);
+            producer_thread.join();
+        }
+    }
+
+    /** The record of a producer which died after claiming space is skipped after the claim timeout */
+    public void testDeadProducer() throws Exception {
+        consumer.claimTimeout(100);
+        ShmRingBuffer dying=new DyingProducer(file);
+        try {
+            byte[] buf=new byte[consumer.maxRecordSize()];
+            assert producer.offer(PREFIX, record(1, 10), 0, 10, 0);
+            offerAndDie(dying, 20);
+            assert producer.offer(PREFIX, record(2, 10), 0, 10, 0);
+
+            assert consumer.take(buf) == PREFIX.length + 10;
+            check(buf, 1, 10);
+            assert consumer.take(buf) == 0 : "the unpublished record must not be skipped before the claim timeout";
+            long deadline=System.currentTimeMillis() + 5000;
+            int length;
+            while((length=consumer.take(buf)) == 0 && System.currentTimeMillis() < deadline)
+                Thread.sleep(10);
+            assert length == PREFIX.length + 10;
+            check(buf, 2, 10);
+            assert consumer.isEmpty() && !consumer.isClosed();
+        }
+        finally {
+            dying.release();
+        }
+    }
+
+    /** The claim of a dead producer wraps around the end of the buffer */
+    public void testDeadProducerWithWrapAround() throws Exception {
+        consumer.claimTimeout(100);
+        ShmRingBuffer dying=new DyingProducer(file);
+        try {
+            byte[] buf=new byte[consumer.maxRecordSize()];
+            for(int i=0; i < 9; i++) { // 9 * 112 bytes: the next record doesn't fit at the end and wraps around
+                assert producer.offer(PREFIX, record(i, 100), 0, 100, 0);
+                assert consumer.take(buf) == PREFIX.length + 100;
+            }
+            offerAndDie(dying, 100);
+            for(int i=0; i < 100; i++) { // the space of the dead producer is reused
+                assert producer.offer(PREFIX, record(i, 50), 0, 50, 0);
+                long deadline=System.currentTimeMillis() + 5000;
+                int length;
+                while((length=consumer.take(buf)) == 0 && System.currentTimeMillis() < deadline)
+                    Thread.sleep(10);
+                assert length == PREFIX.length + 50;
+                check(buf, i, 50);
+            }
+            assert consumer.isEmpty() && !consumer.isClosed();
+        }
+        finally {
+            dying.release();
+        }
+    }
+
+
+    protected static void offerAndDie(ShmRingBuffer ring, int size) {
+        try {
+            ring.offer(PREFIX, record(0, size), 0, size, 0);
+            assert false : "the producer should have died";
+        }
+        catch(IllegalStateException expected) {
+        }
+    }
+
+    /** Dies (throws an exception) after claiming space and copying its record, but before publishing it */
+    protected static class DyingProducer extends ShmRingBuffer {
+        protected DyingProducer(File file) throws Exception {
+            super(file, map(file), (int)file.length() - DATA_OFFSET);
+        }
+
+        protected void publish(int index, int length) {
+            throw new IllegalStateException("died before publishing the record");
+        }
+    }
+
+    protected static byte[] record(int id, int size) {
+        byte[] retval=new byte[size];
+        for(int i=0; i < size; i++)
+            retval[i]=(byte)(id + i);
+        return retval;
+    }
+
+    protected static void check(byte[] buf, int id, int size) {
+        for(int i=0; i < PREFIX.length; i++)
+            assert buf[i] == PREFIX[i];
+        for(int i=0; i < size; i++)
+            assert buf[PREFIX.length + i] == (byte)(id + i) : "record " + id + ": wrong byte at index " + i;
+    }
+}
@@ -5,11 +5,14 @@ package org.jgroups.tests;
 import org.jgroups.*;
 import org.jgroups.auth.*;
 import org.jgroups.blocks.RequestCorrelator;
+import org.jgroups.blocks.mux.MuxHeader;
 import org.jgroups.protocols.*;
 import org.jgroups.protocols.pbcast.*;
 import org.jgroups.protocols.relay.RELAY2;
 import org.jgroups.protocols.relay.SiteMaster;
 import org.jgroups.protocols.relay.SiteUUID;
+import org.jgroups.protocols.tom.MessageID;
+import org.jgroups.protocols.tom.ToaHeader;
 import org.jgroups.stack.GossipData;
 import org.jgroups.stack.IpAddress;
 import org.jgroups.util.*;
@@ -21,6 +24,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.lang.reflect.Constructor;
 import java.util.*;
 
 
@@ -907,6 +911,90 @@ public class SizeTest {
     }
 
 
+    public static void testNakAckHeader2() throws Exception {
+        _testSize(NakAckHeader2.createMessageHeader(322649));
+        _testSize(NakAckHeader2.createXmitRequestHeader(Util.createRandomAddress("A")));
+        _testSize(NakAckHeader2.createXmitRequestHeader(null));
+        _testSize(NakAckHeader2.createXmitResponseHeader());
+    }
+
+
+    public static void testUnicast3Header() throws Exception {
+        _testSize(UNICAST3.Header.createDataHeader(322649, (short)22, true));
+        _testSize(UNICAST3.Header.createDataHeader(1, Short.MAX_VALUE, false));
+        _testSize(UNICAST3.Header.createAckHeader(322649, (short)2));
+        _testSize(UNICAST3.Header.createSendFirstSeqnoHeader());
+        _testSize(UNICAST3.Header.createXmitReqHeader());
+        _testSize(UNICAST3.Header.createCloseHeader((short)5));
+    }
+
+
+    public static void testStreamingStateTransferHeader() throws Exception {
+        _testSize(new StreamingStateTransfer.StateHeader(StreamingStateTransfer.StateHeader.STATE_REQ));
+        _testSize(new StreamingStateTransfer.StateHeader(StreamingStateTransfer.StateHeader.STATE_RSP,
+                                                         new IpAddress("127.0.0.1", 5555), null));
+        Address a=Util.createRandomAddress("A"), b=Util.createRandomAddress("B");
+        Digest digest=new Digest(new Address[]{a, b}, new long[]{10, 10, 20, 25});
+        _testSize(new StreamingStateTransfer.StateHeader(StreamingStateTransfer.StateHeader.STATE_RSP, digest));
+    }
+
+
+    public static void testFlushHeader() throws Exception {
+        _testSize(new FLUSH.FlushHeader(FLUSH.FlushHeader.START_FLUSH, 322649));
+        _testSize(new FLUSH.FlushHeader(FLUSH.FlushHeader.FLUSH_COMPLETED));
+    }
+
+
+    public static void testForkHeader() throws Exception {
+        _testSize(new FORK.ForkHeader("stack", "channel"));
+        _testSize(new FORK.ForkHeader("stack", null));
+    }
+
+
+    public static void testToaHeader() throws Exception {
+        ToaHeader hdr=ToaHeader.createNewHeader(ToaHeader.DATA_MESSAGE, new MessageID(Util.createRandomAddress("A"), 322649));
+        hdr.addDestinations(Arrays.asList(Util.createRandomAddress("B"), Util.createRandomAddress("C")));
+        hdr.setSequencerNumber(1000);
+        _testSize(hdr);
+    }
+
+
+    public static void testScopeHeader() throws Exception {
+        _testSize(SCOPE.ScopeHeader.createMessageHeader((short)22));
+        _testSize(SCOPE.ScopeHeader.createExpireHeader((short)1));
+    }
+
+
+    public static void testDemoHeader() throws Exception {
+        _testSize(new DemoToken.DemoHeader("challenge".getBytes()));
+        _testSize(new DemoToken.DemoHeader(322649L));
+    }
+
+
+    public static void testSmallHeaders() throws Exception {
+        _testSize(new MuxHeader((short)22));
+        _testSize(new PrioHeader((byte)5));
+        _testSize(new DAISYCHAIN.DaisyHeader((short)3));
+        _testSize(new FD_ALL.HeartbeatHeader());
+        _testSize(new FD_ALL2.HeartbeatHeader());
+        _testSize(new Locking.LockingHeader());
+        _testSize(new Executing.ExecutorHeader());
+        _testSize(new COUNTER.CounterHeader());
+        _testSize(new EXAMPLE.ExampleHeader());
+    }
+
+
+    /** Headers which aren't accessible from this package */
+    public static void testNonPublicHeaders() throws Exception {
+        _testSize("org.jgroups.protocols.VERIFY_SUSPECT$VerifyHeader", new Class<?>[]{short.class, Address.class},
+                  (short)1, Util.createRandomAddress("A"));
+        _testSize("org.jgroups.protocols.PERF$PerfHeader", new Class<?>[]{long.class}, System.nanoTime());
+        _testSize("org.jgroups.protocols.FORWARD_TO_COORD$ForwardHeader", new Class<?>[]{byte.class, long.class},
+                  (byte)1, 322649L);
+        _testSize("org.jgroups.protocols.RSVP$RsvpHeader", new Class<?>[]{byte.class, short.class}, (byte)1, (short)22);
+    }
+
+
     private static void _testMarshalling(UNICAST2.Unicast2Header hdr) throws Exception {
         byte[] buf=Util.streamableToByteBuffer(hdr);
         UNICAST2.Unicast2Header hdr2=(UNICAST2.Unicast2Header)Util.streamableFromByteBuffer(UNICAST2.Unicast2Header.class, buf);
@@ -936,6 +1024,12 @@ public class SizeTest {
         assert hdr2.size() == hdr.size();
     }
 
+    private static void _testSize(String classname, Class<?>[] types, Object ... args) throws Exception {
+        Constructor<?> ctor=Class.forName(classname).getDeclaredConstructor(types);
+        ctor.setAccessible(true);
+        _testSize((Header)ctor.newInstance(args));
+    }
+
 
     private static void _testSize(Address addr) throws Exception {
         long size=addr.size();
@@ -0,0 +1,137 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.StripedLongMap;
+import org.testng.annotations.Test;
+
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link StripedLongMap}
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class StripedLongMapTest {
+
+    public void testPutGetRemove() {
+        StripedLongMap<String> map=new StripedLongMap<String>(4, 2);
+        assert map.isEmpty();
+        assert map.putIfAbsent(1, "one") == null;
+        assert map.putIfAbsent(1, "uno").equals("one");
+        assert map.putIfAbsent(-5, "minus five") == null;
+        assert map.putIfAbsent(Long.MAX_VALUE, "max") == null;
+        assert map.size() == 3;
+        assert map.get(1).equals("one") && map.get(-5).equals("minus five") && map.get(Long.MAX_VALUE).equals("max");
+        assert map.get(2) == null;
+        assert map.remove(1).equals("one");
+        assert map.remove(1) == null;
+        assert !map.containsKey(1) && map.size() == 2;
+        assert map.replace(-5, "minus five", "-5") && map.get(-5).equals("-5");
+        assert !map.replace(-5, "minus five", "-five") && map.get(-5).equals("-5");
+        assert !map.replace(2, null, "two") && !map.containsKey(2);
+        map.clear();
+        assert map.isEmpty() && map.get(-5) == null;
+    }
+
+    public void testNullValue() {
+        StripedLongMap<String> map=new StripedLongMap<String>();
+        try {
+            map.putIfAbsent(1, null);
+            assert false : "null values must be rejected";
+        }
+        catch(IllegalArgumentException expected) {
+        }
+    }
+
+    /** Random adds and removes (causing resizing and backward shifts) compared against a HashMap */
+    public void testAgainstHashMap() {
+        StripedLongMap<Long> map=new StripedLongMap<Long>(2, 2);
+        Map<Long,Long> ref=new HashMap<Long,Long>();
+        Random random=new Random(42);
+        for(int i=0; i < 100000; i++) {
+            long key=random.nextInt(2000);
+            if(random.nextBoolean()) {
+                Long prev=map.putIfAbsent(key, key * 2);
+                Long ref_prev=ref.get(key);
+                if(ref_prev == null)
+                    ref.put(key, key * 2);
+                assert prev == null? ref_prev == null : prev.equals(ref_prev);
+            }
+            else {
+                Long removed=map.remove(key), ref_removed=ref.remove(key);
+                assert removed == null? ref_removed == null : removed.equals(ref_removed);
+            }
+        }
+        assert map.size() == ref.size();
+        for(long key=0; key < 2000; key++) {
+            Long val=map.get(key);
+            assert val == null? !ref.containsKey(key) : val.equals(ref.get(key));
+        }
+    }
+
+    public void testConsecutiveKeys() {
+        StripedLongMap<Long> map=new StripedLongMap<Long>();
+        for(long i=1; i <= 10000; i++)
+            map.putIfAbsent(i, i);
+        assert map.size() == 10000;
+        for(long i=1; i <= 10000; i+=2)
+            assert map.remove(i) == i;
+        assert map.size() == 5000;
+        for(long i=1; i <= 10000; i++)
+            assert (map.get(i) != null) == (i % 2 == 0);
+    }
+
+    /** The visitor is called outside of the lock, so it can remove entries */
+    public void testForEachWithRemoval() {
+        final StripedLongMap<String> map=new StripedLongMap<String>(4, 2);
+        for(long i=0; i < 100; i++)
+            map.putIfAbsent(i, String.valueOf(i));
+        final AtomicInteger count=new AtomicInteger(0);
+        map.forEach(new StripedLongMap.Visitor<String>() {
+            public void visit(long key, String value) {
+                assert value.equals(String.valueOf(key));
+                count.incrementAndGet();
+                map.remove(key);
+            }
+        });
+        assert count.get() == 100;
+        assert map.isEmpty();
+        assert map.values().isEmpty();
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        final StripedLongMap<Long> map=new StripedLongMap<Long>();
+        final int NUM_THREADS=8, NUM=20000;
+        final CountDownLatch latch=new CountDownLatch(1);
+        final AtomicInteger errors=new AtomicInteger(0);
+        Thread[] threads=new Thread[NUM_THREADS];
+        for(int i=0; i < threads.length; i++) {
+            final long base=(long)i * NUM;
+            threads[i]=new Thread() {
+                public void run() {
+                    try {latch.await();} catch(InterruptedException e) {}
+                    for(long key=base; key < base + NUM; key++) {
+                        if(map.putIfAbsent(key, key) != null)
+                            errors.incrementAndGet();
+                    }
+                    for(long key=base; key < base + NUM; key++) {
+                        Long val=map.get(key);
+                        if(val == null || val != key)
+                            errors.incrementAndGet();
+                        if(key % 2 == 0 && map.remove(key) == null)
+                            errors.incrementAndGet();
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        latch.countDown();
+        for(Thread thread: threads)
+            thread.join();
+        assert errors.get() == 0 : errors.get() + " errors";
+        assert map.size() == NUM_THREADS * NUM / 2;
+    }
+}
@@ -1,6 +1,7 @@
 package org.jgroups.tests;
 
 import org.jgroups.Global;
+import org.jgroups.Message;
 import org.jgroups.util.*;
 import org.testng.annotations.Test;
 
@@ -8,6 +9,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /** Tests {@link org.jgroups.util.Table<Integer>}
  * @author Bela Ban
@@ -547,6 +549,46 @@ public class TableTest {
     }
 
 
+    public void testDrain() {
+        Table<Integer> buf=new Table<Integer>(3, 10, 0);
+        for(int i: Arrays.asList(1,2,3,4,5,6,7,9,10))
+            buf.add(i, i);
+        final List<Long> seqnos=new ArrayList<Long>();
+        final List<Integer> list=new ArrayList<Integer>();
+        Table.Sink<Integer> sink=new Table.Sink<Integer>() {
+            public void add(long seqno, Integer element) {
+                seqnos.add(seqno);
+                list.add(element);
+            }
+        };
+        AtomicBoolean processing=new AtomicBoolean(true);
+        assert buf.drain(processing, true, 3, null, sink) == 3;
+        assert list.equals(Arrays.asList(1,2,3)) && seqnos.equals(Arrays.asList(1L,2L,3L));
+        assert processing.get();
+
+        list.clear();
+        Filter<Integer> odd_only=new Filter<Integer>() {
+            public boolean accept(Integer num) {return num % 2 != 0;}
+        };
+        assert buf.drain(processing, true, 0, odd_only, sink) == 2; // removes 4-7, but only passes 5 and 7 to the sink
+        assert list.equals(Arrays.asList(5,7));
+        for(long i=1; i <= 7; i++)
+            assert buf._get(i) == null;
+        assertIndices(buf, 7, 7, 10);
+
+        assert buf.drain(processing, true, 0, null, sink) == 0; // 8 is missing
+        assert !processing.get();
+
+        buf.add(8, 8);
+        MessageBatch batch=new MessageBatch(3);
+        Table<Message> msgs=new Table<Message>(3, 10, 0);
+        for(int i=1; i <= 5; i++)
+            msgs.add(i, new Message(null, null, i));
+        assert msgs.drain(null, true, 0, null, batch) == 5;
+        assert batch.size() == 5 && msgs.isEmpty();
+    }
+
+
     public static void testRemoveManyWithWrapping() {
         Table<Integer> table=new Table<Integer>(3, 10, 0);
         for(int seqno: Arrays.asList(1,2,3,4,5,6,7,8,9,10,11,12,15,16,17,18,19,20))
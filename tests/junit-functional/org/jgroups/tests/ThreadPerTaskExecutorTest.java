@@ -0,0 +1,104 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.util.DefaultThreadFactory;
+import org.jgroups.util.ThreadPerTaskExecutor;
+import org.jgroups.util.Util;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Tests {@link ThreadPerTaskExecutor}. Uses platform threads as thread source, so the tests also run on JVMs without
+ * virtual threads
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.FUNCTIONAL)
+public class ThreadPerTaskExecutorTest {
+    protected static final ThreadFactory PLATFORM_THREADS=new ThreadFactory() {
+        public Thread newThread(Runnable r) {return new Thread(r);}
+    };
+
+    public void testExecute() throws Exception {
+        ThreadPerTaskExecutor executor=create();
+        final CountDownLatch latch=new CountDownLatch(1), done=new CountDownLatch(10);
+        for(int i=0; i < 10; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {latch.await();} catch(InterruptedException e) {}
+                    done.countDown();
+                }
+            });
+        }
+        assert executor.getPoolSize() == 10 && executor.getActiveCount() == 10;
+        assert executor.getTaskCount() == 10;
+        latch.countDown();
+        assert done.await(10, TimeUnit.SECONDS);
+        for(int i=0; i < 20 && executor.getPoolSize() > 0; i++)
+            Util.sleep(100);
+        assert executor.getPoolSize() == 0;
+        assert executor.getLargestPoolSize() == 10;
+        executor.shutdown();
+        assert executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    public void testThreadNaming() throws Exception {
+        ThreadPerTaskExecutor executor=create();
+        final AtomicReference<String> name=new AtomicReference<String>();
+        final CountDownLatch done=new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                name.set(Thread.currentThread().getName());
+                done.countDown();
+            }
+        });
+        assert done.await(10, TimeUnit.SECONDS);
+        assert name.get().startsWith("OOB") : "thread name is " + name.get();
+        executor.shutdown();
+    }
+
+    public void testShutdown() throws Exception {
+        ThreadPerTaskExecutor executor=create();
+        final CountDownLatch started=new CountDownLatch(1);
+        executor.execute(new Runnable() {
+            public void run() {
+                started.countDown();
+                Util.sleep(60000);
+            }
+        });
+        assert started.await(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        assert executor.isShutdown() && !executor.isTerminated();
+        try {
+            executor.execute(new Runnable() {public void run() {}});
+            assert false : "execute() should have thrown an exception";
+        }
+        catch(RejectedExecutionException expected) {
+        }
+        executor.shutdownNow(); // interrupts the sleeping task
+        assert executor.awaitTermination(10, TimeUnit.SECONDS);
+        assert executor.isTerminated();
+    }
+
+    public void testVirtualThreadExecutor() throws Exception {
+        ThreadPerTaskExecutor executor=ThreadPerTaskExecutor.newVirtualThreadExecutor(null, "INT");
+        assert (executor != null) == ThreadPerTaskExecutor.virtualThreadsSupported();
+        if(executor == null)
+            return;
+        final CountDownLatch done=new CountDownLatch(1);
+        executor.execute(new Runnable() {public void run() {done.countDown();}});
+        assert done.await(10, TimeUnit.SECONDS);
+        executor.shutdown();
+        assert executor.awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+
+    protected static ThreadPerTaskExecutor create() {
+        return new ThreadPerTaskExecutor(PLATFORM_THREADS, new DefaultThreadFactory("OOB", false, true), "OOB");
+    }
+}
@@ -0,0 +1,140 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.*;
+import org.jgroups.protocols.pbcast.GMS;
+import org.jgroups.protocols.pbcast.NAKACK2;
+import org.jgroups.protocols.pbcast.STABLE;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link SHM} and {@link SHM_TCP}: members on the same host exchange messages through shared memory
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.STACK_INDEPENDENT,sequential=true)
+public class SHMTest {
+    protected static final int NUM_MSGS=10000;
+    protected JChannel         a, b;
+    protected final AtomicInteger unicasts=new AtomicInteger(), multicasts=new AtomicInteger();
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(b, a);
+    }
+
+
+    public void testSHM() throws Exception {
+        create(new SHM(), new SHM(), new PING());
+        sendAndReceive();
+        SHM shm_a=(SHM)a.getProtocolStack().getTransport(), shm_b=(SHM)b.getProtocolStack().getTransport();
+        assert shm_a.isAllMembersLocal() && shm_b.isAllMembersLocal();
+        assert shm_a.getNumShmPacketsSent() > 0;
+        assert shm_b.getNumShmPacketsReceived() > 0;
+    }
+
+    public void testSHMWithoutIpMulticast() throws Exception {
+        create((TP)new SHM().setValue("ip_mcast", false), (TP)new SHM().setValue("ip_mcast", false), new MPING());
+        sendAndReceive();
+        assert ((SHM)a.getProtocolStack().getTransport()).getNumShmPacketsSent() > 0;
+    }
+
+    /** Members which don't see each other's ring buffers (as if they were on different hosts) fall back to UDP */
+    public void testRemoteMembers() throws Exception {
+        File dir_a=new File(System.getProperty("java.io.tmpdir"), "SHMTest-A"),
+             dir_b=new File(System.getProperty("java.io.tmpdir"), "SHMTest-B");
+        try {
+            create((TP)new SHM().setValue("shm_dir", dir_a.getPath()), (TP)new SHM().setValue("shm_dir", dir_b.getPath()),
+                   new PING());
+            sendAndReceive();
+            SHM shm_a=(SHM)a.getProtocolStack().getTransport(), shm_b=(SHM)b.getProtocolStack().getTransport();
+            assert !shm_a.isAllMembersLocal();
+            assert shm_b.getNumShmPacketsReceived() == 0;
+        }
+        finally {
+            Util.close(b, a);
+            delete(dir_a);
+            delete(dir_b);
+        }
+    }
+
+    /** Messages which don't fit into the ring buffer are sent via UDP */
+    public void testBigMessages() throws Exception {
+        create((TP)new SHM().setValue("ring_size", 4096), (TP)new SHM().setValue("ring_size", 4096), new PING());
+        for(int i=0; i < 100; i++) {
+            a.send(new Message(b.getAddress(), new byte[3000]));
+            a.send(new Message(null, new byte[3000]));
+            Util.sleep(1); // reduces drops in the UDP socket buffers
+        }
+        waitForMessages(100);
+    }
+
+    public void testSHM_TCP() throws Exception {
+        create(new SHM_TCP(), new SHM_TCP(), new MPING());
+        sendAndReceive();
+        SHM_TCP shm_a=(SHM_TCP)a.getProtocolStack().getTransport(), shm_b=(SHM_TCP)b.getProtocolStack().getTransport();
+        assert shm_a.getNumShmPacketsSent() > 0;
+        assert shm_b.getNumShmPacketsReceived() > 0;
+    }
+
+
+    protected void sendAndReceive() throws Exception {
+        for(int i=0; i < NUM_MSGS; i++) {
+            a.send(b.getAddress(), i);
+            a.send(null, i);
+        }
+        waitForMessages(NUM_MSGS);
+    }
+
+    /** Deletes dir and the files in it (e.g. rings of other clusters, or of members which weren't stopped) */
+    protected static void delete(File dir) {
+        File[] files=dir.listFiles();
+        if(files != null)
+            for(File file: files)
+                file.delete();
+        dir.delete();
+    }
+
+    protected void waitForMessages(int expected) {
+        for(int i=0; i < 100 && (unicasts.get() < expected || multicasts.get() < expected); i++)
+            Util.sleep(100);
+        System.out.println("unicasts: " + unicasts + ", multicasts: " + multicasts);
+        assert unicasts.get() == expected;
+        assert multicasts.get() == expected;
+    }
+
+    protected void create(TP transport_a, TP transport_b, Discovery discovery) throws Exception {
+        unicasts.set(0);
+        multicasts.set(0);
+        a=createChannel("A", transport_a, discovery);
+        b=createChannel("B", transport_b, discovery.getClass().newInstance());
+        b.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                if(msg.getDest() == null)
+                    multicasts.incrementAndGet();
+                else
+                    unicasts.incrementAndGet();
+            }
+        });
+        a.connect("SHMTest");
+        b.connect("SHMTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+    }
+
+    protected static JChannel createChannel(String name, TP transport, Discovery discovery) throws Exception {
+        return Util.createChannel(transport,
+                                  discovery.setValue("timeout", 1000).setValue("num_initial_members", 2),
+                                  new NAKACK2(),
+                                  new UNICAST3(),
+                                  new STABLE().setValue("desired_avg_gossip", 1000),
+                                  new GMS().setValue("print_local_addr", false)).name(name);
+    }
+}
@@ -0,0 +1,126 @@
+package org.jgroups.tests;
+
+import org.jgroups.Global;
+import org.jgroups.JChannel;
+import org.jgroups.Message;
+import org.jgroups.ReceiverAdapter;
+import org.jgroups.protocols.UDP;
+import org.jgroups.util.DatagramChannelFactory;
+import org.jgroups.util.DefaultSocketFactory;
+import org.jgroups.util.SocketFactory;
+import org.jgroups.util.Util;
+import org.testng.annotations.AfterMethod;
+import org.testng.annotations.Test;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tests {@link UDP} with multiple receiver threads, with and without the DatagramChannel based receive path
+ * @author agent
+ * @since 3.6
+ */
+@Test(groups=Global.STACK_INDEPENDENT,sequential=true)
+public class UDPReceiverThreadsTest {
+    protected static final int NUM_MSGS=10000;
+    protected JChannel a, b;
+
+    @AfterMethod
+    protected void destroy() {
+        Util.close(b, a);
+    }
+
+
+    public void testMultipleReceiverThreads() throws Exception {
+        sendAndReceive(false, 3);
+    }
+
+    public void testDatagramChannel() throws Exception {
+        sendAndReceive(true, 1);
+    }
+
+    public void testDatagramChannelWithMultipleReceiverThreads() throws Exception {
+        sendAndReceive(true, 3);
+    }
+
+
+    /** The unicast DatagramChannel is created by the socket factory */
+    public void testDatagramChannelCreatedBySocketFactory() throws Exception {
+        final AtomicInteger channels=new AtomicInteger();
+        a=create("A", true, 1);
+        a.setSocketFactory(new DefaultSocketFactory() {
+            public DatagramChannel createDatagramChannel(String service_name, int port, InetAddress laddr) throws IOException {
+                channels.incrementAndGet();
+                return super.createDatagramChannel(service_name, port, laddr);
+            }
+        });
+        a.connect("UDPReceiverThreadsTest");
+        assert channels.get() == 1 : "the socket factory created " + channels + " channels";
+    }
+
+
+    /** A socket factory which doesn't create DatagramChannels can still be used with use_datagram_channel */
+    public void testDatagramChannelWithPlainSocketFactory() throws Exception {
+        final SocketFactory delegate=new DefaultSocketFactory();
+        SocketFactory factory=(SocketFactory)Proxy.newProxyInstance(SocketFactory.class.getClassLoader(),
+                                                                     new Class<?>[]{SocketFactory.class},
+                                                                     new InvocationHandler() {
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                try {
+                    return method.invoke(delegate, args);
+                }
+                catch(InvocationTargetException ex) {
+                    throw ex.getCause();
+                }
+            }
+        });
+        assert !(factory instanceof DatagramChannelFactory);
+        a=create("A", true, 1);
+        a.setSocketFactory(factory);
+        a.connect("UDPReceiverThreadsTest");
+        UDP udp=(UDP)a.getProtocolStack().getTransport();
+        assert ((DatagramSocket)udp.getValue("sock")).getChannel() != null;
+    }
+
+    protected void sendAndReceive(boolean use_datagram_channel, int receiver_threads) throws Exception {
+        a=create("A", use_datagram_channel, receiver_threads);
+        b=create("B", use_datagram_channel, receiver_threads);
+        final AtomicInteger unicasts=new AtomicInteger(), multicasts=new AtomicInteger();
+        b.setReceiver(new ReceiverAdapter() {
+            public void receive(Message msg) {
+                if(msg.getDest() == null)
+                    multicasts.incrementAndGet();
+                else
+                    unicasts.incrementAndGet();
+            }
+        });
+        a.connect("UDPReceiverThreadsTest");
+        b.connect("UDPReceiverThreadsTest");
+        Util.waitUntilAllChannelsHaveSameSize(10000, 500, a, b);
+
+        for(int i=0; i < NUM_MSGS; i++) {
+            a.send(b.getAddress(), i);
+            a.send(null, i);
+        }
+        for(int i=0; i < 100 && (unicasts.get() < NUM_MSGS || multicasts.get() < NUM_MSGS); i++)
+            Util.sleep(100);
+        System.out.println("unicasts: " + unicasts + ", multicasts: " + multicasts);
+        assert unicasts.get() == NUM_MSGS;
+        assert multicasts.get() == NUM_MSGS;
+    }
+
+    protected static JChannel create(String name, boolean use_datagram_channel, int receiver_threads) throws Exception {
+        JChannel ch=new JChannel("udp.xml").name(name);
+        UDP udp=(UDP)ch.getProtocolStack().getTransport();
+        udp.setValue("use_datagram_channel", use_datagram_channel);
+        udp.setValue("receiver_threads", receiver_threads);
+        return ch;
+    }
+}